@@ -0,0 +1,103 @@
+package uk.co.chriskurzeja.prepaidcard.benchmark;
+
+import uk.co.chriskurzeja.prepaidcard.ledger.CardBalanceTable;
+import uk.co.chriskurzeja.prepaidcard.ledger.TransactionBalanceTable;
+import uk.co.chriskurzeja.prepaidcard.model.CardBalance;
+import uk.co.chriskurzeja.prepaidcard.model.TransactionBalance;
+import uk.co.chriskurzeja.prepaidcard.model.TransactionKey;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Supplier;
+
+/**
+ * Compares the heap held by a partition's balances stored as maps of objects, as the ledger used
+ * to, with the same balances in {@link CardBalanceTable} and {@link TransactionBalanceTable}. Each
+ * layout is built from ids that arrive as fresh objects, as they do from requests, and measured
+ * as the growth in used heap after a full collection.
+ * <p>
+ * Run with {@code mvn -Pjmh test-compile exec:java -Dexec.classpathScope=test
+ * -Dstart-class=uk.co.chriskurzeja.prepaidcard.benchmark.BalanceFootprint -Dfootprint.cards=1000000
+ * -Dfootprint.authorisations-per-card=2}.
+ */
+public class BalanceFootprint {
+
+    private static Object retained;
+
+    public static void main(String[] args) {
+        int cards = Integer.getInteger("footprint.cards", 1_000_000);
+        int authorisationsPerCard = Integer.getInteger("footprint.authorisations-per-card", 2);
+
+        UUID[] cardIds = new UUID[cards];
+        String[] requestIds = new String[cards * authorisationsPerCard];
+        for (int i = 0; i < cards; i++) {
+            cardIds[i] = UUID.randomUUID();
+        }
+        for (int i = 0; i < requestIds.length; i++) {
+            requestIds[i] = UUID.randomUUID().toString();
+        }
+
+        System.out.printf("%,d cards, %,d authorisations%n", cards, requestIds.length);
+
+        report("maps", cards, measure(() -> maps(cardIds, requestIds, authorisationsPerCard)));
+        report("tables", cards, measure(() -> tables(cardIds, requestIds, authorisationsPerCard)));
+    }
+
+    private static Object maps(UUID[] cardIds, String[] requestIds, int authorisationsPerCard) {
+        Map<UUID, CardBalance> cardBalances = new HashMap<>();
+        Map<TransactionKey, TransactionBalance> transactionBalances = new HashMap<>();
+        for (int i = 0; i < cardIds.length; i++) {
+            cardBalances.computeIfAbsent(copy(cardIds[i]), k -> new CardBalance()).load(1_000L);
+            for (int a = 0; a < authorisationsPerCard; a++) {
+                TransactionKey key = new TransactionKey(copy(requestIds[i * authorisationsPerCard + a]), copy(cardIds[i]));
+                transactionBalances.computeIfAbsent(key, k -> new TransactionBalance()).block(100L);
+            }
+        }
+        return new Object[]{cardBalances, transactionBalances};
+    }
+
+    private static Object tables(UUID[] cardIds, String[] requestIds, int authorisationsPerCard) {
+        CardBalanceTable cardBalances = new CardBalanceTable();
+        TransactionBalanceTable transactionBalances = new TransactionBalanceTable();
+        for (int i = 0; i < cardIds.length; i++) {
+            int card = cardBalances.findOrAdd(copy(cardIds[i]));
+            cardBalances.load(card, 1_000L);
+            for (int a = 0; a < authorisationsPerCard; a++) {
+                int authorisation = transactionBalances.findOrAdd(card, copy(requestIds[i * authorisationsPerCard + a]));
+                transactionBalances.block(authorisation, 100L);
+            }
+        }
+        return new Object[]{cardBalances, transactionBalances};
+    }
+
+    private static long measure(Supplier<Object> build) {
+        retained = null;
+        long before = usedAfterCollection();
+        retained = build.get();
+        return usedAfterCollection() - before;
+    }
+
+    private static void report(String layout, int cards, long bytes) {
+        System.out.printf("%-7s %,15d bytes  %,6d bytes per card%n", layout, bytes, bytes / cards);
+    }
+
+    private static long usedAfterCollection() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    private static String copy(String id) {
+        return new String(id.toCharArray());
+    }
+
+    private static UUID copy(UUID id) {
+        return new UUID(id.getMostSignificantBits(), id.getLeastSignificantBits());
+    }
+
+}
@@ -0,0 +1,130 @@
+package uk.co.chriskurzeja.prepaidcard.benchmark;
+
+import io.atlassian.fugue.Either;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.co.chriskurzeja.prepaidcard.model.TransactionType;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static uk.co.chriskurzeja.prepaidcard.benchmark.BenchmarkLedger.transaction;
+
+/**
+ * Throughput of the in-memory ledger against balances kept in the database as instances are
+ * added, all to one hot card or spread uniformly over many. Every instance is the full
+ * application on H2.
+ * <p>
+ * With {@code memory} balances each instance owns a share of the cards, as a cluster does, and a
+ * request goes to the card's owner; the hot card is owned by one instance however many there are.
+ * With {@code database} balances the instances share one database and a request goes to any of
+ * them, so adding instances adds contention on the card's rows instead. Writes that lose to a
+ * concurrent change more often than {@code ledger.balances.max-attempts} allows are declined and
+ * counted under {@code declined}.
+ * <p>
+ * As in {@link ContentionBenchmark}, each write reverses a small part of one large authorisation
+ * per card.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(16)
+public class BalanceModeBenchmark {
+
+    private static final long FUNDS = 1_000_000_000_000_000L;
+
+    @Param({"memory", "database"})
+    public String balances;
+
+    @Param({"1", "4", "16"})
+    public int instances;
+
+    @Param({"hot", "uniform"})
+    public String cards;
+
+    @Param({"256"})
+    public int cardCount;
+
+    private final List<BenchmarkLedger> ledgers = new ArrayList<>();
+    private UUID[] cardIds;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        boolean shared = "database".equals(balances);
+        String sharedUrl = "jdbc:h2:mem:balances-" + System.nanoTime() + ";DB_CLOSE_DELAY=-1";
+        for (int i = 0; i < instances; i++) {
+            ledgers.add(shared ?
+                    BenchmarkLedger.onH2(sharedUrl, "--ledger.balances=database",
+                            "--spring.jpa.hibernate.ddl-auto=" + (i == 0 ? "create" : "none")) :
+                    BenchmarkLedger.onH2("jdbc:h2:mem:balances-" + i + "-" + System.nanoTime() + ";DB_CLOSE_DELAY=-1"));
+        }
+
+        cardIds = new UUID["hot".equals(cards) ? 1 : cardCount];
+        for (int i = 0; i < cardIds.length; i++) {
+            BenchmarkLedger owner = ledgers.get(i % instances);
+            cardIds[i] = owner.createCard("user-" + i);
+            owner.handle(cardIds[i], "load", TransactionType.LOAD_FUNDS, FUNDS);
+            owner.handle(cardIds[i], "hold", TransactionType.AUTHORISE_TRANSACTION, FUNDS);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        for (BenchmarkLedger ledger : ledgers) {
+            ledger.close();
+        }
+    }
+
+    @Benchmark
+    public Either<String, Object> reverse(Outcomes outcomes) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int card = random.nextInt(cardIds.length);
+        BenchmarkLedger ledger = "database".equals(balances) ?
+                ledgers.get(random.nextInt(instances)) :
+                ledgers.get(card % instances);
+
+        Either<String, Object> result = ledger.transactions()
+                .handleTransaction(transaction(cardIds[card], "hold", TransactionType.REVERSE_TRANSACTION, 1L));
+        if (result.isRight()) {
+            outcomes.accepted++;
+        } else {
+            outcomes.declined++;
+        }
+        return result;
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Outcomes {
+
+        public long accepted;
+        public long declined;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            accepted = 0;
+            declined = 0;
+        }
+
+    }
+
+}
@@ -0,0 +1,75 @@
+package uk.co.chriskurzeja.prepaidcard.benchmark;
+
+import io.atlassian.fugue.Either;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.co.chriskurzeja.prepaidcard.model.BalanceSummary;
+import uk.co.chriskurzeja.prepaidcard.model.CardBalance;
+import uk.co.chriskurzeja.prepaidcard.model.TransactionType;
+
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The ways a card balance can be read: from the published read model the balance endpoints use,
+ * by asking the card's partition worker, and the cost of the summary the worker publishes after
+ * every write.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BalanceReadBenchmark {
+
+    private BenchmarkLedger ledger;
+    private UUID cardId;
+    private CardBalance cardBalance;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        ledger = BenchmarkLedger.start(BenchmarkLedger.MEMORY);
+        cardId = ledger.createCard("benchmark");
+        ledger.handle(cardId, "load", TransactionType.LOAD_FUNDS, 10_000L);
+        ledger.handle(cardId, "authorise", TransactionType.AUTHORISE_TRANSACTION, 2_500L);
+        cardBalance = new CardBalance(10_000L, 7_500L, 2_500L, 0L);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        ledger.close();
+    }
+
+    @Benchmark
+    public Either<String, BalanceSummary> serviceBalance() {
+        return ledger.transactions().getBalance(cardId);
+    }
+
+    @Benchmark
+    public Optional<BalanceSummary> readModel() {
+        return ledger.ledger().getBalance(cardId);
+    }
+
+    @Benchmark
+    public long partitionWorker() {
+        return ledger.ledger().execute(cardId, partition -> partition.getCardBalances().getBalance(partition.getCardBalances().find(cardId)));
+    }
+
+    @Benchmark
+    public BalanceSummary summary() {
+        return cardBalance.summary();
+    }
+
+}
@@ -0,0 +1,215 @@
+package uk.co.chriskurzeja.prepaidcard.benchmark;
+
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import uk.co.chriskurzeja.prepaidcard.PrepaidcardApplication;
+import uk.co.chriskurzeja.prepaidcard.card.HoldExpiryPolicy;
+import uk.co.chriskurzeja.prepaidcard.card.TransactionService;
+import uk.co.chriskurzeja.prepaidcard.card.UserService;
+import uk.co.chriskurzeja.prepaidcard.card.VersionedBalanceStore;
+import uk.co.chriskurzeja.prepaidcard.cluster.ClusterTopology;
+import uk.co.chriskurzeja.prepaidcard.data.jpa.repository.CardRepository;
+import uk.co.chriskurzeja.prepaidcard.data.jpa.repository.TransactionRepository;
+import uk.co.chriskurzeja.prepaidcard.ledger.LedgerEngine;
+import uk.co.chriskurzeja.prepaidcard.ledger.TransactionJournal;
+import uk.co.chriskurzeja.prepaidcard.metrics.TransactionMetrics;
+import uk.co.chriskurzeja.prepaidcard.model.Card;
+import uk.co.chriskurzeja.prepaidcard.model.Transaction;
+import uk.co.chriskurzeja.prepaidcard.model.TransactionKey;
+import uk.co.chriskurzeja.prepaidcard.model.TransactionType;
+import uk.co.chriskurzeja.prepaidcard.projection.LedgerEventLog;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link TransactionService} wired either to the full application on an in-memory H2 database,
+ * or to the ledger alone with map-backed stand-ins for the two repositories, so the cost of the
+ * ledger itself can be told apart from the cost of persisting what it decides.
+ */
+final class BenchmarkLedger implements AutoCloseable {
+
+    static final String MEMORY = "memory";
+    static final String H2 = "h2";
+
+    private final TransactionService transactionService;
+    private final UserService userService;
+    private final LedgerEngine ledgerEngine;
+    private final AutoCloseable resources;
+
+    private BenchmarkLedger(TransactionService transactionService, UserService userService, LedgerEngine ledgerEngine, AutoCloseable resources) {
+        this.transactionService = transactionService;
+        this.userService = userService;
+        this.ledgerEngine = ledgerEngine;
+        this.resources = resources;
+    }
+
+    static BenchmarkLedger start(String store) {
+        switch (store) {
+            case MEMORY:
+                return inMemory();
+            case H2:
+                return onH2();
+            default:
+                throw new IllegalArgumentException("Unknown store " + store);
+        }
+    }
+
+    private static BenchmarkLedger inMemory() {
+        LedgerEngine ledgerEngine = new LedgerEngine(0, 0L);
+        ledgerEngine.markRecovered();
+        ExecutorService persistenceExecutor = Executors.newCachedThreadPool();
+        UserService userService = new UserService(inMemoryCardRepository(), ClusterTopology.standalone(), 100_000L, 600L, 5L, 1000, 300L);
+        TransactionJournal journal = new TransactionJournal(null, false, "ledger.journal");
+        TransactionMetrics metrics = new TransactionMetrics();
+        LedgerEventLog eventLog = discardingEventLog();
+        TransactionService transactionService = new TransactionService(inMemoryTransactionRepository(), userService, ledgerEngine, journal,
+                persistenceExecutor, metrics, eventLog, new HoldExpiryPolicy(604800L, ""),
+                new VersionedBalanceStore(null, null, null, null, metrics, "memory", 1));
+
+        return new BenchmarkLedger(transactionService, userService, ledgerEngine, () -> {
+            persistenceExecutor.shutdown();
+            ledgerEngine.shutdown();
+        });
+    }
+
+    private static BenchmarkLedger onH2() {
+        return onH2("jdbc:h2:mem:jmh-" + System.nanoTime() + ";DB_CLOSE_ON_EXIT=FALSE");
+    }
+
+    /**
+     * The full application on the given H2 database, which several instances can share, with any
+     * further properties as command line arguments.
+     */
+    static BenchmarkLedger onH2(String url, String... properties) {
+        List<String> arguments = new ArrayList<>(Arrays.asList(
+                "--server.port=0",
+                "--spring.datasource.url=" + url,
+                "--spring.jmx.enabled=false",
+                "--logging.level.root=WARN"));
+        arguments.addAll(Arrays.asList(properties));
+        ConfigurableApplicationContext context = new SpringApplicationBuilder(PrepaidcardApplication.class)
+                .run(arguments.toArray(new String[0]));
+        return new BenchmarkLedger(context.getBean(TransactionService.class), context.getBean(UserService.class), context.getBean(LedgerEngine.class), context);
+    }
+
+    TransactionService transactions() {
+        return transactionService;
+    }
+
+    LedgerEngine ledger() {
+        return ledgerEngine;
+    }
+
+    UUID createCard(String userId) {
+        return userService.createCardForUser(userId).getOrError(() -> "Could not create card for " + userId);
+    }
+
+    void handle(UUID cardId, String requestId, TransactionType type, long amount) {
+        transactionService.handleTransaction(transaction(cardId, requestId, type, amount))
+                .getOrError(() -> type + " " + requestId + " was declined");
+    }
+
+    static Transaction transaction(UUID cardId, String requestId, TransactionType type, long amount) {
+        return new Transaction(new TransactionKey(requestId, cardId), "benchmark", amount, type);
+    }
+
+    @Override
+    public void close() throws Exception {
+        resources.close();
+    }
+
+    /**
+     * Nothing projects in memory, so events are dropped rather than left to pile up.
+     */
+    private static LedgerEventLog discardingEventLog() {
+        return new LedgerEventLog() {
+            @Override
+            public void publish(Transaction transaction) {
+
+            }
+        };
+    }
+
+    /**
+     * Keeps only what the service asks of the table on its hot path: the first row saved for each
+     * key and type, which is what the duplicate and authorisation checks look up.
+     */
+    private static TransactionRepository inMemoryTransactionRepository() {
+        AtomicLong ids = new AtomicLong();
+        Map<List<Object>, Transaction> rows = new ConcurrentHashMap<>();
+
+        return repository(TransactionRepository.class, (method, args) -> {
+            switch (method.getName()) {
+                case "save":
+                    return save((Transaction) args[0], ids, rows);
+                case "saveAll":
+                    List<Transaction> saved = new ArrayList<>();
+                    for (Object transaction : (Iterable<?>) args[0]) {
+                        saved.add(save((Transaction) transaction, ids, rows));
+                    }
+                    return saved;
+                case "findTransactionByTransactionKeyAndTransactionType":
+                    return rows.get(Arrays.asList(args[0], args[1]));
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    private static Transaction save(Transaction transaction, AtomicLong ids, Map<List<Object>, Transaction> rows) {
+        transaction.setId(ids.incrementAndGet());
+        rows.putIfAbsent(Arrays.asList(transaction.getTransactionKey(), transaction.getTransactionType()), transaction);
+        return transaction;
+    }
+
+    private static CardRepository inMemoryCardRepository() {
+        Map<UUID, Card> cards = new ConcurrentHashMap<>();
+
+        return repository(CardRepository.class, (method, args) -> {
+            switch (method.getName()) {
+                case "save":
+                    Card card = (Card) args[0];
+                    cards.put(card.getId(), card);
+                    return card;
+                case "findById":
+                    return Optional.ofNullable(cards.get(args[0]));
+                case "existsCardByUserId":
+                    return cards.values().stream().anyMatch(existing -> existing.getUserId().equals(args[0]));
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    private interface Handler {
+        Object invoke(Method method, Object[] args);
+    }
+
+    private static <T> T repository(Class<T> type, Handler handler) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, (proxy, method, args) -> {
+            if (method.getDeclaringClass() == Object.class) {
+                switch (method.getName()) {
+                    case "equals":
+                        return proxy == args[0];
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    default:
+                        return "In-memory " + type.getSimpleName();
+                }
+            }
+            return handler.invoke(method, args);
+        }));
+    }
+
+}
@@ -0,0 +1,77 @@
+package uk.co.chriskurzeja.prepaidcard.benchmark;
+
+import io.atlassian.fugue.Either;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.co.chriskurzeja.prepaidcard.model.TransactionType;
+
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static uk.co.chriskurzeja.prepaidcard.benchmark.BenchmarkLedger.transaction;
+
+/**
+ * Throughput of the ledger when many request threads write at once, either all to one hot card,
+ * which serialises everything on a single partition worker, or spread uniformly over many cards
+ * and so over every partition. Runs against the in-memory repositories so the figure is the
+ * ledger's own.
+ * <p>
+ * Each write reverses a small part of one large authorisation per card, so the full write path
+ * is taken on every invocation without the ledger growing as the benchmark runs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+public class ContentionBenchmark {
+
+    private static final long FUNDS = 1_000_000_000_000_000L;
+
+    @Param({"hot", "uniform"})
+    public String cards;
+
+    @Param({"1024"})
+    public int cardCount;
+
+    private BenchmarkLedger ledger;
+    private UUID[] cardIds;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        ledger = BenchmarkLedger.start(BenchmarkLedger.MEMORY);
+        cardIds = new UUID["hot".equals(cards) ? 1 : cardCount];
+        for (int i = 0; i < cardIds.length; i++) {
+            cardIds[i] = ledger.createCard("user-" + i);
+            ledger.handle(cardIds[i], "load", TransactionType.LOAD_FUNDS, FUNDS);
+            ledger.handle(cardIds[i], "hold", TransactionType.AUTHORISE_TRANSACTION, FUNDS);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        ledger.close();
+    }
+
+    @Benchmark
+    public Either<String, Object> reverse() {
+        UUID cardId = cardIds[ThreadLocalRandom.current().nextInt(cardIds.length)];
+        return ledger.transactions().handleTransaction(transaction(cardId, "hold", TransactionType.REVERSE_TRANSACTION, 1L));
+    }
+
+}
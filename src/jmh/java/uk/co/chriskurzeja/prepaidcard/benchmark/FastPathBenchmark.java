@@ -0,0 +1,144 @@
+package uk.co.chriskurzeja.prepaidcard.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import uk.co.chriskurzeja.prepaidcard.controllers.utils.MerchantResultWriter;
+import uk.co.chriskurzeja.prepaidcard.ledger.CardBalanceTable;
+import uk.co.chriskurzeja.prepaidcard.ledger.LedgerPartition;
+import uk.co.chriskurzeja.prepaidcard.ledger.OperationResult;
+import uk.co.chriskurzeja.prepaidcard.ledger.TransactionBalanceTable;
+import uk.co.chriskurzeja.prepaidcard.model.TransactionKey;
+import uk.co.chriskurzeja.prepaidcard.model.TransactionType;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * An authorisation and its capture, decided in place by the card's partition and written out by
+ * a {@link MerchantResultWriter}, against the same pair handled through the service. Each
+ * operation is marked and the authorisation given a merchant and an expiry, as the service does
+ * for a queued request, and each authorisation is settled once captured so the tables stay the
+ * same size.
+ * <p>
+ * Run {@code main} with {@code mvn -Pjmh test-compile exec:java -Dexec.classpathScope=test
+ * -Dstart-class=uk.co.chriskurzeja.prepaidcard.benchmark.FastPathBenchmark} to profile allocation
+ * and fail unless the in-place path allocates nothing per operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FastPathBenchmark {
+
+    private static final int KEYS = 64;
+    private static final String ALLOCATION = "gc.alloc.rate.norm";
+
+    private BenchmarkLedger ledger;
+    private UUID cardId;
+    private LedgerPartition partition;
+    private final MerchantResultWriter writer = new MerchantResultWriter();
+    private final TransactionKey[] keys = new TransactionKey[KEYS];
+    private long expiresAt;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        ledger = BenchmarkLedger.start(BenchmarkLedger.MEMORY);
+        cardId = ledger.createCard("benchmark");
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = new TransactionKey("request-" + i, cardId);
+        }
+        // The benchmark thread stands in for the card's worker; nothing else touches the partition.
+        partition = ledger.ledger().execute(cardId, Function.identity());
+        expiresAt = System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        ledger.close();
+    }
+
+    @Benchmark
+    public void inPlace(Blackhole blackhole) {
+        TransactionKey key = keys[nextIndex()];
+        CardBalanceTable cards = partition.getCardBalances();
+        int card = cards.findOrAdd(cardId);
+        cards.load(card, 100L);
+
+        partition.mark(key);
+        OperationResult result = partition.authorise(key, 100L, "benchmark", expiresAt);
+        blackhole.consume(writer.write(cardId, "benchmark", key.getRequestId(), result.getBlocked(), result.getCaptured(),
+                TransactionType.AUTHORISE_TRANSACTION).length());
+        partition.mark(key);
+        result = partition.capture(key, 100L);
+        blackhole.consume(writer.write(cardId, "benchmark", key.getRequestId(), result.getBlocked(), result.getCaptured(),
+                TransactionType.CAPTURE_TRANSACTION_FUNDS).length());
+
+        TransactionBalanceTable authorisations = partition.getTransactionBalances();
+        authorisations.remove(authorisations.find(card, key.getRequestId()));
+    }
+
+    @Benchmark
+    public void throughService(Blackhole blackhole) {
+        String requestId = UUID.randomUUID().toString();
+        ledger.handle(cardId, "load-" + requestId, TransactionType.LOAD_FUNDS, 100L);
+        blackhole.consume(ledger.transactions().handleTransaction(
+                BenchmarkLedger.transaction(cardId, requestId, TransactionType.AUTHORISE_TRANSACTION, 100L)));
+        blackhole.consume(ledger.transactions().handleTransaction(
+                BenchmarkLedger.transaction(cardId, requestId, TransactionType.CAPTURE_TRANSACTION_FUNDS, 100L)));
+    }
+
+    private int nextIndex() {
+        int i = next;
+        next = i + 1 == KEYS ? 0 : i + 1;
+        return i;
+    }
+
+    /**
+     * Runs without forking, as the launching classpath is not one a forked JVM could use.
+     */
+    public static void main(String[] args) throws RunnerException {
+        boolean measured = false;
+        for (RunResult run : new Runner(new OptionsBuilder()
+                .include(FastPathBenchmark.class.getName() + ".inPlace")
+                .addProfiler(GCProfiler.class)
+                .forks(0)
+                .build()).run()) {
+            for (Map.Entry<String, Result> secondary : run.getSecondaryResults().entrySet()) {
+                if (secondary.getKey().endsWith(ALLOCATION)) {
+                    double bytes = secondary.getValue().getScore();
+                    measured = true;
+                    System.out.printf("%s: %.2f bytes per operation%n", run.getParams().getBenchmark(), bytes);
+                    if (bytes >= 1.0) {
+                        throw new IllegalStateException("The in-place path allocated " + bytes + " bytes per operation");
+                    }
+                }
+            }
+        }
+        if (!measured) {
+            throw new IllegalStateException("No allocation was measured");
+        }
+    }
+
+}
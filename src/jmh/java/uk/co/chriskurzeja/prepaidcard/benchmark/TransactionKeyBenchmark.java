@@ -0,0 +1,83 @@
+package uk.co.chriskurzeja.prepaidcard.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.co.chriskurzeja.prepaidcard.model.TransactionBalance;
+import uk.co.chriskurzeja.prepaidcard.model.TransactionKey;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link TransactionKey} is hashed on every lookup of a transaction balance. Measures the hash on
+ * its own, hashing a freshly built key as a request does, and a lookup in a partition-sized map.
+ * The card id half of the hash is two longs folded together, so none of these should allocate
+ * beyond the new key itself.
+ * Run with {@code -prof gc} to see what each allocates.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransactionKeyBenchmark {
+
+    @Param({"100000"})
+    public int keys;
+
+    private Map<TransactionKey, TransactionBalance> balances;
+    private String[] requestIds;
+    private UUID[] cardIds;
+    private TransactionKey[] lookups;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        balances = new HashMap<>();
+        requestIds = new String[keys];
+        cardIds = new UUID[keys];
+        lookups = new TransactionKey[keys];
+        for (int i = 0; i < keys; i++) {
+            requestIds[i] = UUID.randomUUID().toString();
+            cardIds[i] = UUID.randomUUID();
+            lookups[i] = new TransactionKey(requestIds[i], cardIds[i]);
+            balances.put(new TransactionKey(requestIds[i], cardIds[i]), new TransactionBalance());
+        }
+    }
+
+    @Benchmark
+    public int hashCodeOfKey() {
+        return lookups[nextIndex()].hashCode();
+    }
+
+    @Benchmark
+    public int hashCodeOfNewKey() {
+        int i = nextIndex();
+        return new TransactionKey(requestIds[i], cardIds[i]).hashCode();
+    }
+
+    @Benchmark
+    public TransactionBalance lookup() {
+        return balances.get(lookups[nextIndex()]);
+    }
+
+    private int nextIndex() {
+        int i = next;
+        next = i + 1 == keys ? 0 : i + 1;
+        return i;
+    }
+
+}
@@ -0,0 +1,99 @@
+package uk.co.chriskurzeja.prepaidcard.benchmark;
+
+import io.atlassian.fugue.Either;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.co.chriskurzeja.prepaidcard.card.TransactionService;
+import uk.co.chriskurzeja.prepaidcard.model.TransactionType;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static uk.co.chriskurzeja.prepaidcard.benchmark.BenchmarkLedger.transaction;
+
+/**
+ * Single-threaded latency of each transaction type through {@link TransactionService}, once with
+ * the repositories replaced by maps and once against H2, so the ledger's own share of a request
+ * can be read off next to the share spent in JPA.
+ * <p>
+ * Captures, reversals and refunds all work against one very large authorisation each, so every
+ * invocation takes the same path without the card ever running out of funds.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransactionTypeBenchmark {
+
+    private static final long FUNDS = 1_000_000_000_000_000L;
+    private static final long HOLD = FUNDS / 4;
+
+    @Param({BenchmarkLedger.MEMORY, BenchmarkLedger.H2})
+    public String store;
+
+    private BenchmarkLedger ledger;
+    private TransactionService transactionService;
+    private UUID cardId;
+    private long requests;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        ledger = BenchmarkLedger.start(store);
+        transactionService = ledger.transactions();
+        cardId = ledger.createCard("benchmark");
+
+        ledger.handle(cardId, "load", TransactionType.LOAD_FUNDS, FUNDS);
+        ledger.handle(cardId, "capture", TransactionType.AUTHORISE_TRANSACTION, HOLD);
+        ledger.handle(cardId, "reverse", TransactionType.AUTHORISE_TRANSACTION, HOLD);
+        ledger.handle(cardId, "refund", TransactionType.AUTHORISE_TRANSACTION, HOLD);
+        ledger.handle(cardId, "refund", TransactionType.CAPTURE_TRANSACTION_FUNDS, HOLD);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        ledger.close();
+    }
+
+    @Benchmark
+    public Either<String, Object> load() {
+        return transactionService.handleTransaction(transaction(cardId, nextRequest(), TransactionType.LOAD_FUNDS, 1L));
+    }
+
+    @Benchmark
+    public Either<String, Object> authorise() {
+        return transactionService.handleTransaction(transaction(cardId, nextRequest(), TransactionType.AUTHORISE_TRANSACTION, 1L));
+    }
+
+    @Benchmark
+    public Either<String, Object> capture() {
+        return transactionService.handleTransaction(transaction(cardId, "capture", TransactionType.CAPTURE_TRANSACTION_FUNDS, 1L));
+    }
+
+    @Benchmark
+    public Either<String, Object> reverse() {
+        return transactionService.handleTransaction(transaction(cardId, "reverse", TransactionType.REVERSE_TRANSACTION, 1L));
+    }
+
+    @Benchmark
+    public Either<String, Object> refund() {
+        return transactionService.handleTransaction(transaction(cardId, "refund", TransactionType.REFUND_CAPTURED_FUNDS, 1L));
+    }
+
+    private String nextRequest() {
+        return "request-" + requests++;
+    }
+
+}
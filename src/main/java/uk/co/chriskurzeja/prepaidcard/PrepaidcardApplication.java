@@ -6,6 +6,8 @@ import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.Bean;
 import uk.co.chriskurzeja.prepaidcard.card.UserService;
+import uk.co.chriskurzeja.prepaidcard.card.VersionedBalanceStore;
+import uk.co.chriskurzeja.prepaidcard.cluster.ClusterTopology;
 import uk.co.chriskurzeja.prepaidcard.controllers.UserCardController;
 import uk.co.chriskurzeja.prepaidcard.data.jpa.repository.CardRepository;
 import uk.co.chriskurzeja.prepaidcard.data.jpa.repository.TransactionRepository;
@@ -15,6 +17,7 @@ import uk.co.chriskurzeja.prepaidcard.model.TransactionKey;
 import uk.co.chriskurzeja.prepaidcard.model.TransactionType;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.UUID;
 import java.util.function.BiConsumer;
@@ -31,19 +34,33 @@ public class PrepaidcardApplication {
 		SpringApplication.run(PrepaidcardApplication.class, args);
 	}
 
+	/**
+	 * In a cluster each preconfigured user's card is created only by the node that owns them, and
+	 * instances sharing a database create it only once.
+	 */
 	@Bean
-	CommandLineRunner persistPreconfiguredCards(CardRepository cardRepository) {
+	CommandLineRunner persistPreconfiguredCards(CardRepository cardRepository, ClusterTopology topology) {
 		return (evt) -> {
-			cardRepository.save(new Card(alice));
-			cardRepository.save(new Card(bob));
-			cardRepository.save(new Card(chris));
+			for (String user : Arrays.asList(alice, bob, chris)) {
+				if (topology.isLocalUser(user) && !cardRepository.existsCardByUserId(user)) {
+					cardRepository.save(new Card(topology.newLocalCardId(), user));
+				}
+			}
 		};
 	}
 
+	/**
+	 * The preconfigured transactions are written straight to the transaction table, from which the
+	 * ledger replays them; balances kept in the database would not see them, so they are left out.
+	 */
 	@Bean
-	CommandLineRunner persistPreconfiguredTransactions(CardRepository cardRepository, TransactionRepository transactionRepository) {
+	CommandLineRunner persistPreconfiguredTransactions(CardRepository cardRepository, TransactionRepository transactionRepository,
+													   VersionedBalanceStore versionedBalanceStore) {
 		return (evt) -> {
 			Card aliceCard = cardRepository.getCardByUserIdEquals(alice);
+			if (aliceCard == null || versionedBalanceStore.isEnabled() || !transactionRepository.findByTransactionKeyCardId(aliceCard.getId()).isEmpty()) {
+				return;
+			}
 			transactionRepository.save(loadMoney(aliceCard.getId(), 1000L));
 			transactionRepository.save(loadMoney(aliceCard.getId(), 3000L));
 			transactionRepository.saveAll(createTransaction(aliceCard.getId(), "Tesco", 2000, 2000, 0, 0));
@@ -53,12 +70,12 @@ public class PrepaidcardApplication {
 		};
 	}
 
-	private Transaction loadMoney(String cardId, long amount) {
+	private Transaction loadMoney(UUID cardId, long amount) {
 		String transactionId = UUID.randomUUID().toString();
 		return transaction(key(transactionId, cardId), "user", amount, TransactionType.LOAD_FUNDS);
 	}
 
-	private List<Transaction> createTransaction(String cardId, String merchant, long authorised, long captured, long reversed, long refunded) {
+	private List<Transaction> createTransaction(UUID cardId, String merchant, long authorised, long captured, long reversed, long refunded) {
 		String transactionId = UUID.randomUUID().toString();
 
 		List<Transaction> transactions = new ArrayList<>();
@@ -83,7 +100,7 @@ public class PrepaidcardApplication {
 		return new Transaction(key, merchant, amount, type);
 	}
 
-	private TransactionKey key(String transactionId, String cardId) {
+	private TransactionKey key(String transactionId, UUID cardId) {
 		return new TransactionKey(transactionId, cardId);
 	}
 
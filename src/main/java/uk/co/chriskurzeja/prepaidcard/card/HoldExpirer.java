@@ -0,0 +1,62 @@
+package uk.co.chriskurzeja.prepaidcard.card;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Releases expired holds in the background, moving every partition's hold timers on to the
+ * current time once per interval.
+ */
+@Component
+public class HoldExpirer {
+
+    private static final Logger log = LoggerFactory.getLogger(HoldExpirer.class);
+
+    private final TransactionService transactionService;
+    private final long intervalMs;
+    private ScheduledExecutorService scheduler;
+
+    @Autowired
+    public HoldExpirer(TransactionService transactionService,
+                       @Value("${ledger.holds.check-interval-ms:1000}") long intervalMs) {
+        this.transactionService = transactionService;
+        this.intervalMs = intervalMs;
+    }
+
+    @PostConstruct
+    public void start() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "hold-expiry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::expireHolds, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void expireHolds() {
+        try {
+            int released = transactionService.expireHolds(System.currentTimeMillis());
+            if (released > 0) {
+                log.info("Released {} expired holds", released);
+            }
+        } catch (RuntimeException e) {
+            log.warn("Failed to release expired holds", e);
+        }
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        scheduler.shutdown();
+        scheduler.awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+}
@@ -0,0 +1,61 @@
+package uk.co.chriskurzeja.prepaidcard.card;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import uk.co.chriskurzeja.prepaidcard.ledger.LedgerPartition;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long an authorisation may hold funds before they are given back to the card. Every merchant
+ * gets the default unless it has a time of its own, and a time of 0 keeps its holds until they are
+ * captured or reversed.
+ */
+@Component
+public class HoldExpiryPolicy {
+
+    private final long defaultTtlMs;
+    private final Map<String, Long> merchantTtlMs;
+
+    @Autowired
+    public HoldExpiryPolicy(@Value("${ledger.holds.ttl-seconds:604800}") long ttlSeconds,
+                            @Value("${ledger.holds.merchant-ttl-seconds:}") String merchantTtlSeconds) {
+        this.defaultTtlMs = TimeUnit.SECONDS.toMillis(ttlSeconds);
+        this.merchantTtlMs = parseMerchantTtls(merchantTtlSeconds);
+    }
+
+    /**
+     * Reads a list of {@code merchant=seconds} pairs separated by commas.
+     */
+    static Map<String, Long> parseMerchantTtls(String merchantTtlSeconds) {
+        Map<String, Long> parsed = new HashMap<>();
+        for (String merchant : merchantTtlSeconds.split(",")) {
+            if (merchant.trim().isEmpty()) {
+                continue;
+            }
+
+            int separator = merchant.lastIndexOf('=');
+            if (separator <= 0 || separator == merchant.length() - 1) {
+                throw new IllegalArgumentException("Hold expiry '" + merchant.trim() + "' is not of the form merchant=seconds");
+            }
+            parsed.put(merchant.substring(0, separator).trim(),
+                    TimeUnit.SECONDS.toMillis(Long.parseLong(merchant.substring(separator + 1).trim())));
+        }
+        return Collections.unmodifiableMap(parsed);
+    }
+
+    /**
+     * @return when a hold the merchant takes now expires, in milliseconds since the epoch, or
+     * {@link LedgerPartition#NO_EXPIRY}
+     */
+    public long expiresAt(String merchant, long now) {
+        Long merchantTtl = merchant == null ? null : merchantTtlMs.get(merchant);
+        long ttl = merchantTtl == null ? defaultTtlMs : merchantTtl;
+        return ttl > 0 ? now + ttl : LedgerPartition.NO_EXPIRY;
+    }
+
+}
@@ -0,0 +1,160 @@
+package uk.co.chriskurzeja.prepaidcard.card;
+
+import io.atlassian.fugue.Either;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import uk.co.chriskurzeja.prepaidcard.metrics.TransactionMetrics;
+import uk.co.chriskurzeja.prepaidcard.model.MerchantSummary;
+import uk.co.chriskurzeja.prepaidcard.model.SpendPeriod;
+import uk.co.chriskurzeja.prepaidcard.model.SpendRollup;
+import uk.co.chriskurzeja.prepaidcard.model.Transaction;
+import uk.co.chriskurzeja.prepaidcard.model.TransactionPage;
+import uk.co.chriskurzeja.prepaidcard.projection.ProjectionStore;
+
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * The query side: card histories and merchant summaries, read from the projections rather than
+ * from the tables the ledger writes to. What it returns can be behind the ledger by as much as the
+ * projections' lag; see {@link uk.co.chriskurzeja.prepaidcard.projection.LedgerProjector}.
+ * <p>
+ * Pages are keyset paginated on the transaction id, so every page costs the same however far into
+ * the history it is. Streaming reads row by row as the consumer takes them, so memory stays flat
+ * however long the history is. Spend is read from rollups kept up to date as operations are
+ * projected, so a breakdown costs one lookup per merchant or day returned.
+ */
+@Service
+public class TransactionHistoryService {
+
+    private final ProjectionStore projectionStore;
+    private final UserService userService;
+    private final ExecutorService queryExecutor;
+    private final TransactionMetrics metrics;
+    private final int maxPageSize;
+    private final int maxVolumeDays;
+
+    @Autowired
+    public TransactionHistoryService(ProjectionStore projectionStore,
+                                     UserService userService,
+                                     @Qualifier("queryExecutor") ExecutorService queryExecutor,
+                                     TransactionMetrics metrics,
+                                     @Value("${card.history.max-page-size:1000}") int maxPageSize,
+                                     @Value("${merchant.volume.max-days:366}") int maxVolumeDays) {
+        this.projectionStore = projectionStore;
+        this.userService = userService;
+        this.queryExecutor = queryExecutor;
+        this.metrics = metrics;
+        this.maxPageSize = maxPageSize;
+        this.maxVolumeDays = maxVolumeDays;
+    }
+
+    public Either<String, List<Transaction>> getTransactions(UUID cardId) {
+        List<Transaction> transactions = projectionStore.findAfter(cardId, 0L, Integer.MAX_VALUE);
+        if (transactions.isEmpty()) {
+            return Either.left("Could not retrieve transactions for cardId: " + cardId);
+        } else {
+            return Either.right(transactions);
+        }
+    }
+
+    public CompletableFuture<Either<String, List<Transaction>>> getTransactionsAsync(UUID cardId) {
+        return supplyOnQueryExecutor(() -> getTransactions(cardId));
+    }
+
+    /**
+     * Returns up to {@code size} of the card's transactions with ids after the cursor, oldest
+     * first. Pass 0 for the first page.
+     */
+    public Either<String, TransactionPage> getPage(UUID cardId, long after, int size) {
+        if (size < 1 || size > maxPageSize) {
+            return Either.left("Page size must be between 1 and " + maxPageSize);
+        }
+
+        return userService.getCard(cardId).map(card -> {
+            List<Transaction> transactions = projectionStore.findAfter(cardId, after, size + 1);
+            if (transactions.size() <= size) {
+                return new TransactionPage(transactions, null);
+            }
+            List<Transaction> page = transactions.subList(0, size);
+            return new TransactionPage(page, page.get(size - 1).getId());
+        });
+    }
+
+    public CompletableFuture<Either<String, TransactionPage>> getPageAsync(UUID cardId, long after, int size) {
+        return supplyOnQueryExecutor(() -> getPage(cardId, after, size));
+    }
+
+    /**
+     * Hands every one of the card's transactions to the consumer, oldest first.
+     *
+     * @return the number of transactions read
+     */
+    public long forEachTransaction(UUID cardId, Consumer<Transaction> consumer) {
+        return projectionStore.forEach(cardId, consumer);
+    }
+
+    public Either<String, MerchantSummary> getMerchantSummary(String merchant) {
+        return projectionStore.findMerchantSummary(merchant)
+                .map(Either::<String, MerchantSummary>right)
+                .orElseGet(() -> Either.left("No transactions have been recorded for merchant " + merchant));
+    }
+
+    public CompletableFuture<Either<String, MerchantSummary>> getMerchantSummaryAsync(String merchant) {
+        return supplyOnQueryExecutor(() -> getMerchantSummary(merchant));
+    }
+
+    /**
+     * What the card spent with each merchant in the period containing the given time, in
+     * milliseconds since the epoch.
+     */
+    public Either<String, List<SpendRollup>> getCardSpend(UUID cardId, SpendPeriod period, long at) {
+        return userService.getCard(cardId).map(card -> projectionStore.findCardSpend(cardId, period, period.startOf(at)));
+    }
+
+    public CompletableFuture<Either<String, List<SpendRollup>>> getCardSpendAsync(UUID cardId, SpendPeriod period, long at) {
+        return supplyOnQueryExecutor(() -> getCardSpend(cardId, period, at));
+    }
+
+    /**
+     * The merchant's totals for each UTC day from {@code from} to {@code to}, both included, that
+     * it had anything accepted on.
+     */
+    public Either<String, List<SpendRollup>> getMerchantVolume(String merchant, LocalDate from, LocalDate to) {
+        long days = ChronoUnit.DAYS.between(from, to) + 1;
+        if (days < 1 || days > maxVolumeDays) {
+            return Either.left("Volume can be read for between 1 and " + maxVolumeDays + " days at a time");
+        }
+        return Either.right(projectionStore.findMerchantVolume(merchant, startOf(from), startOf(to)));
+    }
+
+    public CompletableFuture<Either<String, List<SpendRollup>>> getMerchantVolumeAsync(String merchant, LocalDate from, LocalDate to) {
+        return supplyOnQueryExecutor(() -> getMerchantVolume(merchant, from, to));
+    }
+
+    private static long startOf(LocalDate day) {
+        return TimeUnit.DAYS.toMillis(day.toEpochDay());
+    }
+
+    private <T> CompletableFuture<T> supplyOnQueryExecutor(Supplier<T> supplier) {
+        try {
+            return CompletableFuture.supplyAsync(supplier, queryExecutor);
+        } catch (RejectedExecutionException e) {
+            metrics.recordExecutorRejection();
+            CompletableFuture<T> rejected = new CompletableFuture<>();
+            rejected.completeExceptionally(e);
+            return rejected;
+        }
+    }
+
+}
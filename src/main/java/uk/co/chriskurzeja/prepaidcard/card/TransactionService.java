@@ -1,188 +1,588 @@
 package uk.co.chriskurzeja.prepaidcard.card;
 
 import io.atlassian.fugue.Either;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Service;
 import uk.co.chriskurzeja.prepaidcard.data.jpa.repository.TransactionRepository;
-import uk.co.chriskurzeja.prepaidcard.model.CardBalance;
+import uk.co.chriskurzeja.prepaidcard.ledger.LedgerEngine;
+import uk.co.chriskurzeja.prepaidcard.ledger.LedgerPartition;
+import uk.co.chriskurzeja.prepaidcard.ledger.OperationResult;
+import uk.co.chriskurzeja.prepaidcard.ledger.TransactionJournal;
+import uk.co.chriskurzeja.prepaidcard.metrics.TransactionMetrics;
+import uk.co.chriskurzeja.prepaidcard.metrics.TransactionMetrics.RepositoryOperation;
+import uk.co.chriskurzeja.prepaidcard.model.BalanceSummary;
+import uk.co.chriskurzeja.prepaidcard.model.Card;
 import uk.co.chriskurzeja.prepaidcard.model.MerchantTransactionResult;
 import uk.co.chriskurzeja.prepaidcard.model.Transaction;
-import uk.co.chriskurzeja.prepaidcard.model.TransactionBalance;
 import uk.co.chriskurzeja.prepaidcard.model.TransactionKey;
 import uk.co.chriskurzeja.prepaidcard.model.TransactionType;
+import uk.co.chriskurzeja.prepaidcard.projection.LedgerEventLog;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 @Service
 public class TransactionService {
 
+    private static final Logger log = LoggerFactory.getLogger(TransactionService.class);
+
+    private static final Either<String, Object> INVALID_AMOUNT = Either.left("Amount for transaction must be positive and non-zero");
+    static final Either<String, Object> LOADED = Either.right("Successfully loaded funds");
+
     private final TransactionRepository transactionRepository;
     private final UserService userService;
-    private final Map<String, CardBalance> cardBalances = new HashMap<>();
-    private final Map<TransactionKey, TransactionBalance> transactionBalance = new HashMap<>();
+    private final LedgerEngine ledgerEngine;
+    private final TransactionJournal transactionJournal;
+    private final ExecutorService persistenceExecutor;
+    private final TransactionMetrics metrics;
+    private final LedgerEventLog eventLog;
+    private final HoldExpiryPolicy holdExpiryPolicy;
+    private final VersionedBalanceStore versionedBalanceStore;
+    private final TransactionWriter defaultWriter;
 
     @Autowired
-    public TransactionService(TransactionRepository transactionRepository, UserService userService) {
+    public TransactionService(TransactionRepository transactionRepository, UserService userService, LedgerEngine ledgerEngine,
+                              TransactionJournal transactionJournal, @Qualifier("persistenceExecutor") ExecutorService persistenceExecutor,
+                              TransactionMetrics metrics, LedgerEventLog eventLog, HoldExpiryPolicy holdExpiryPolicy,
+                              VersionedBalanceStore versionedBalanceStore) {
         this.transactionRepository = transactionRepository;
         this.userService = userService;
+        this.ledgerEngine = ledgerEngine;
+        this.transactionJournal = transactionJournal;
+        this.persistenceExecutor = persistenceExecutor;
+        this.metrics = metrics;
+        this.eventLog = eventLog;
+        this.holdExpiryPolicy = holdExpiryPolicy;
+        this.versionedBalanceStore = versionedBalanceStore;
+        this.defaultWriter = transactionJournal.isEnabled() ? new JournalWriter() : new ImmediateWriter();
+        transactionJournal.onDurable(eventLog::publish);
     }
 
     public Either<String, Object> handleTransaction(Transaction transaction) {
-        return userService.getCard(transaction.getTransactionKey().getCardId())
-            .flatMap(card -> processTransaction(transaction));
+        long started = System.nanoTime();
+        if (versionedBalanceStore.isEnabled()) {
+            return finished(transaction, started, handleVersioned(transaction));
+        }
+        if (!ledgerEngine.awaitRecovery()) {
+            return finished(transaction, started, Either.left("Ledger recovery is still in progress"));
+        }
+
+        TransactionKey key = transaction.getTransactionKey();
+        Either<String, Object> result = userService.getCard(key.getCardId())
+            .flatMap(card -> {
+                long queued = System.nanoTime();
+                return gatherIfShort(transaction, ledgerEngine.execute(key, partition -> processQueued(partition, transaction, queued)));
+            })
+            .flatMap(this::whenDurable);
+        return finished(transaction, started, result);
+    }
+
+    /**
+     * As {@link #handleTransaction(Transaction)}, without holding the calling thread. The card
+     * lookup and the wait for durability run on the persistence executor and the transaction itself
+     * on its ledger worker, so no thread is tied up while the request is waiting its turn. If the
+     * persistence executor is saturated the future fails with a
+     * {@link java.util.concurrent.RejectedExecutionException}.
+     */
+    public CompletableFuture<Either<String, Object>> handleTransactionAsync(Transaction transaction) {
+        if (versionedBalanceStore.isEnabled()) {
+            return supplyOnPersistenceExecutor(() -> handleTransaction(transaction));
+        }
+
+        long started = System.nanoTime();
+        TransactionKey key = transaction.getTransactionKey();
+        UUID cardId = key.getCardId();
+        boolean journalled = transactionJournal.isEnabled();
+        CompletableFuture<Either<String, Object>> handled = supplyOnPersistenceExecutor(() -> ledgerEngine.awaitRecovery() ?
+                    userService.getCard(cardId) :
+                    Either.<String, Card>left("Ledger recovery is still in progress"))
+                .thenCompose(card -> {
+                    if (card.isLeft()) {
+                        Either<String, Object> rejected = Either.left(card.left().get());
+                        return CompletableFuture.completedFuture(journalled ? rejected : finished(transaction, started, rejected));
+                    }
+
+                    long queued = System.nanoTime();
+                    if (ledgerEngine.getStripes().isStriped(cardId)) {
+                        return ledgerEngine.submit(key, partition -> processQueued(partition, transaction, queued))
+                                .thenCompose(result -> isShort(transaction, result) ?
+                                        supplyOnPersistenceExecutor(() -> gather(transaction)) :
+                                        CompletableFuture.completedFuture(result))
+                                .thenApply(result -> journalled ? result : finished(transaction, started, result));
+                    }
+                    return ledgerEngine.submit(key, partition -> {
+                        Either<String, Object> result = processQueued(partition, transaction, queued);
+                        return journalled ? result : finished(transaction, started, result);
+                    });
+                });
+
+        return journalled ?
+                handled.thenApplyAsync(result -> finished(transaction, started, result.flatMap(this::whenDurable)), persistenceExecutor) :
+                handled;
+    }
+
+    public CompletableFuture<List<Either<String, Object>>> handleBatchAsync(List<Transaction> transactions) {
+        return supplyOnPersistenceExecutor(() -> handleBatch(transactions));
+    }
+
+    private <T> CompletableFuture<T> supplyOnPersistenceExecutor(Supplier<T> supplier) {
+        try {
+            return CompletableFuture.supplyAsync(supplier, persistenceExecutor);
+        } catch (RejectedExecutionException e) {
+            metrics.recordExecutorRejection();
+            CompletableFuture<T> rejected = new CompletableFuture<>();
+            rejected.completeExceptionally(e);
+            return rejected;
+        }
+    }
+
+    /**
+     * Handles a batch of transactions, returning one result per transaction in the order given.
+     * Transactions for the same card are applied in the order they appear in the batch. Each
+     * partition's share of the batch is applied on its worker and the accepted rows are saved
+     * together, so a burst costs one database round trip per partition rather than one per row.
+     * An authorisation on a striped card that its slice could not cover is then gathered and
+     * decided again on its own.
+     */
+    public List<Either<String, Object>> handleBatch(List<Transaction> transactions) {
+        long started = System.nanoTime();
+        if (versionedBalanceStore.isEnabled()) {
+            return finished(transactions, started, transactions.stream().map(this::handleVersioned).collect(Collectors.toList()));
+        }
+        if (!ledgerEngine.awaitRecovery()) {
+            return finished(transactions, started, Collections.nCopies(transactions.size(), Either.left("Ledger recovery is still in progress")));
+        }
+
+        List<Either<String, Object>> results = new ArrayList<>(Collections.nCopies(transactions.size(), null));
+        Map<Integer, List<Integer>> itemsByPartition = new LinkedHashMap<>();
+        for (int i = 0; i < transactions.size(); i++) {
+            TransactionKey key = transactions.get(i).getTransactionKey();
+            Either<String, Card> card = userService.getCard(key.getCardId());
+            if (card.isLeft()) {
+                results.set(i, Either.left(card.left().get()));
+            } else {
+                itemsByPartition.computeIfAbsent(ledgerEngine.partitionFor(key), k -> new ArrayList<>()).add(i);
+            }
+        }
+
+        Map<Integer, CompletableFuture<List<Either<String, Object>>>> pending = new HashMap<>();
+        itemsByPartition.forEach((partitionIndex, items) -> {
+            List<Transaction> slice = items.stream().map(transactions::get).collect(Collectors.toList());
+            pending.put(partitionIndex, ledgerEngine.submit(slice.get(0).getTransactionKey(), partition -> processBatch(partition, slice)));
+        });
+
+        itemsByPartition.forEach((partitionIndex, items) -> {
+            List<Either<String, Object>> completed = pending.get(partitionIndex).join();
+            for (int i = 0; i < items.size(); i++) {
+                results.set(items.get(i), completed.get(i));
+            }
+        });
+        for (int i = 0; i < transactions.size(); i++) {
+            results.set(i, gatherIfShort(transactions.get(i), results.get(i)));
+        }
+
+        if (!transactionJournal.awaitDurable()) {
+            results.replaceAll(result -> result.flatMap(this::whenDurable));
+        }
+        return finished(transactions, started, results);
+    }
+
+    /**
+     * Releases every hold whose expiry has passed by reversing whatever is still blocked on it. Each
+     * partition decides and records its reversals on its own worker, in one batch, exactly as it
+     * would a merchant's; a capture queued behind the expiry finds the funds already released.
+     *
+     * @return the number of holds released
+     */
+    public int expireHolds(long now) {
+        if (!ledgerEngine.isRecovered() || versionedBalanceStore.isEnabled()) {
+            return 0;
+        }
+
+        int released = 0;
+        for (List<Either<String, Object>> results : ledgerEngine.executeOnAll(partition -> expireHolds(partition, now))) {
+            released += results.stream().filter(Either::isRight).count();
+        }
+        if (released > 0 && !transactionJournal.awaitDurable()) {
+            log.warn("Released {} expired holds that could not yet be made durable", released);
+        }
+        return released;
+    }
 
+    private List<Either<String, Object>> expireHolds(LedgerPartition partition, long now) {
+        List<Transaction> reversals = partition.expireHolds(now);
+        return reversals.isEmpty() ? Collections.emptyList() : processBatch(partition, reversals);
+    }
+
+    private List<Either<String, Object>> processBatch(LedgerPartition partition, List<Transaction> transactions) {
+        if (transactionJournal.isEnabled()) {
+            return transactions.stream()
+                    .map(transaction -> processIsolated(partition, transaction))
+                    .collect(Collectors.toList());
+        }
+
+        LedgerPartition.Checkpoint checkpoint = partition.checkpoint(transactions);
+        BatchWriter writer = new BatchWriter();
+        List<Either<String, Object>> results = transactions.stream()
+                .map(transaction -> processTransaction(partition, writer, transaction))
+                .collect(Collectors.toList());
+
+        try {
+            writer.flush(partition);
+            return results;
+        } catch (RuntimeException e) {
+            log.warn("Could not save a batch of {} transactions, retrying them one at a time", writer.size(), e);
+            partition.rollback(checkpoint);
+            return transactions.stream()
+                    .map(transaction -> processIsolated(partition, transaction))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private Either<String, Object> processIsolated(LedgerPartition partition, Transaction transaction) {
+        partition.mark(transaction.getTransactionKey());
+        try {
+            return processTransaction(partition, defaultWriter, transaction);
+        } catch (RuntimeException e) {
+            partition.undo();
+            return Either.left("Could not save transaction");
+        }
     }
 
-    private Either<String,Object> processTransaction(Transaction transaction) {
+    private Either<String, Object> gatherIfShort(Transaction transaction, Either<String, Object> result) {
+        return isShort(transaction, result) ? gather(transaction) : result;
+    }
+
+    /**
+     * Whether the transaction is an authorisation on a striped card that was declined for want
+     * of funds on its own slice, which does not yet mean the card as a whole is short.
+     */
+    private boolean isShort(Transaction transaction, Either<String, Object> result) {
+        return result.isLeft() && ledgerEngine.getStripes().isStriped(transaction.getTransactionKey().getCardId())
+                && LedgerPartition.INSUFFICIENT_FUNDS.equals(result.left().get());
+    }
+
+    /**
+     * Decides the authorisation again with all of the card's available funds gathered onto its
+     * slice, so that it is declined only if the whole card cannot cover it.
+     */
+    private Either<String, Object> gather(Transaction transaction) {
+        return ledgerEngine.gather(transaction.getTransactionKey(), partition -> processIsolated(partition, transaction));
+    }
+
+    /**
+     * Decides a single request on its worker. Like every other path onto a partition it is
+     * marked first, so a request whose write fails leaves no trace in the tables that later
+     * operations are decided from.
+     */
+    private Either<String, Object> processQueued(LedgerPartition partition, Transaction transaction, long queued) {
+        metrics.recordQueued(transaction.getTransactionType(), System.nanoTime() - queued);
+        return processIsolated(partition, transaction);
+    }
+
+    private Either<String, Object> processTransaction(LedgerPartition partition, TransactionWriter writer, Transaction transaction) {
+        long started = System.nanoTime();
+        partition.recordActivity(transaction.getTransactionKey().getCardId());
+        Either<String, Object> result = applyTransaction(partition, writer, transaction);
+        metrics.recordProcessed(transaction.getTransactionType(), System.nanoTime() - started);
+        return result;
+    }
+
+    private Either<String,Object> applyTransaction(LedgerPartition partition, TransactionWriter writer, Transaction transaction) {
+        if (transaction.getAmount() <= 0) {
+            return INVALID_AMOUNT;
+        }
+
         switch(transaction.getTransactionType()) {
             case LOAD_FUNDS:
-                return loadFunds(transaction);
+                return loadFunds(partition, writer, transaction);
             case AUTHORISE_TRANSACTION:
-                return authoriseTransaction(transaction);
+                return authoriseTransaction(partition, writer, transaction);
             case CAPTURE_TRANSACTION_FUNDS:
-                return captureFunds(transaction);
+                return captureFunds(partition, writer, transaction);
             case REVERSE_TRANSACTION:
-                return reverseAuthorisation(transaction);
+                return reverseAuthorisation(partition, writer, transaction);
             case REFUND_CAPTURED_FUNDS:
-                return refundAuthorisation(transaction);
+                return refundAuthorisation(partition, writer, transaction);
             default:
                 return Either.left("Unknown transaction of type " + transaction.getTransactionType());
         }
     }
 
-    public Either<String, List<Transaction>> getTransactions(String cardId) {
-        List<Transaction> transactionList = transactionRepository.findByTransactionKeyCardId(cardId);
-        if (transactionList.isEmpty()) {
-            return Either.left("Could not retrieve transactions for cardId: " + cardId);
-        } else {
-            return Either.right(transactionList);
+    public Either<String, BalanceSummary> getBalance(UUID cardId) {
+        Optional<BalanceSummary> balance = versionedBalanceStore.isEnabled() ?
+                versionedBalanceStore.getBalance(cardId) :
+                ledgerEngine.getBalance(cardId);
+        return balance
+                .map(Either::<String, BalanceSummary>right)
+                .orElseGet(() -> userService.getCard(cardId).map(card -> BalanceSummary.EMPTY));
+    }
+
+    /**
+     * Hands the transaction to the balances kept in the database, which decide it themselves. No
+     * ledger partition is involved, so any instance can take any card.
+     */
+    private Either<String, Object> handleVersioned(Transaction transaction) {
+        if (transaction.getAmount() <= 0) {
+            return INVALID_AMOUNT;
+        }
+        if (transaction.getTransactionType() == TransactionType.AUTHORISE_TRANSACTION) {
+            transaction.setExpiresAt(holdExpiryPolicy.expiresAt(transaction.getMerchant(), System.currentTimeMillis()));
         }
+        return userService.getCard(transaction.getTransactionKey().getCardId())
+                .flatMap(card -> versionedBalanceStore.handle(transaction));
     }
 
-    private Either<String, Object> loadFunds(Transaction transaction) {
-        return ifValidAmount(transaction, () -> {
-            if (transactionRepository.findTransactionByTransactionKeyAndTransactionType(transaction.getTransactionKey(), transaction.getTransactionType()) != null) {
-                return Either.left("Transaction has already been handled");
-            }
+    private Either<String, Object> loadFunds(LedgerPartition partition, TransactionWriter writer, Transaction transaction) {
+        if (transactionAlreadyHandled(writer, transaction)) {
+            return Either.left("Transaction has already been handled");
+        }
 
-            getBalanceForCard(transaction).load(transaction.getAmount());
-            transactionRepository.save(transaction);
-            return Either.right("Successfully loaded funds");
-        });
+        partition.getCardBalances().load(cardOf(partition, transaction), transaction.getAmount());
+        writer.write(partition, transaction);
+        return LOADED;
     }
 
-    private Either<String, Object> authoriseTransaction(Transaction transaction) {
-        return ifValidAmount(transaction, () -> {
-           if (transactionAlreadyHandled(transaction)) {
-               return Either.left("Transaction has already been handled");
-           }
-
-           CardBalance cardBalance = getBalanceForCard(transaction);
-           TransactionBalance transactionBalance = getTransactionBalance(transaction);
-           if (!cardBalance.canBlock(transaction.getAmount())) {
-               return Either.left("Insufficient funds on the card");
-           }
+    /**
+     * Authorises the transaction with a hold that lasts as long as the merchant's policy allows.
+     * The expiry is recorded with the authorisation so it is restored when the log is replayed.
+     */
+    private Either<String, Object> authoriseTransaction(LedgerPartition partition, TransactionWriter writer, Transaction transaction) {
+        transaction.setExpiresAt(holdExpiryPolicy.expiresAt(transaction.getMerchant(), System.currentTimeMillis()));
+        return merchantResult(partition, writer, transaction, decide(partition, transaction));
+    }
 
-           cardBalance.block(transaction.getAmount());
-           transactionBalance.block(transaction.getAmount());
-           transactionRepository.save(transaction);
-           return Either.right(new MerchantTransactionResult(transaction, transactionBalance));
-        });
+    private Either<String, Object> captureFunds(LedgerPartition partition, TransactionWriter writer, Transaction transaction) {
+        return merchantResult(partition, writer, transaction, decide(partition, transaction));
     }
 
-    private Either<String, Object> captureFunds(Transaction transaction) {
-        return ifValidAmount(transaction, () -> {
-            if (fundsWereNotAuthorisedForTransaction(transaction)) {
-                return Either.left("Funds were not authorised for transaction");
-            }
+    private Either<String, Object> reverseAuthorisation(LedgerPartition partition, TransactionWriter writer, Transaction transaction) {
+        return merchantResult(partition, writer, transaction, decide(partition, transaction));
+    }
 
-            CardBalance balance = getBalanceForCard(transaction);
-            TransactionBalance transactionBalance = getTransactionBalance(transaction);
+    private Either<String, Object> refundAuthorisation(LedgerPartition partition, TransactionWriter writer, Transaction transaction) {
+        return merchantResult(partition, writer, transaction, decide(partition, transaction));
+    }
 
-            if (!balance.canCapture(transaction.getAmount()) || !transactionBalance.canCapture(transaction.getAmount()) ) {
-                return Either.left("Insufficient amount available to capture");
-            }
+    /**
+     * Decides a merchant operation on its authorisation. Settled authorisations are evicted from
+     * the partition, so an operation that finds its authorisation evicted, such as a late refund,
+     * reads it back from the transaction table and is decided again.
+     */
+    private OperationResult decide(LedgerPartition partition, Transaction transaction) {
+        OperationResult result = apply(partition, transaction);
+        if (!result.isEvicted()) {
+            return result;
+        }
 
-            balance.capture(transaction.getAmount());
-            transactionBalance.capture(transaction.getAmount());
-            transactionRepository.save(transaction);
-            return Either.right(new MerchantTransactionResult(transaction, transactionBalance));
-        });
+        TransactionKey key = transaction.getTransactionKey();
+        long started = System.nanoTime();
+        List<Transaction> history = new ArrayList<>(transactionRepository.findByTransactionKey(key));
+        metrics.recordRepository(RepositoryOperation.FIND_AUTHORISATION, System.nanoTime() - started);
+        history.sort(Comparator.comparing(Transaction::getId));
+        partition.rehydrate(key, history);
+        return apply(partition, transaction);
     }
 
-    private Either<String, Object> reverseAuthorisation(Transaction transaction) {
-        return ifValidAmount(transaction, () -> {
-            if (fundsWereNotAuthorisedForTransaction(transaction)) {
-                return Either.left("Funds were not authorised for transaction");
-            }
+    private OperationResult apply(LedgerPartition partition, Transaction transaction) {
+        TransactionKey key = transaction.getTransactionKey();
+        long amount = transaction.getAmount();
+        switch (transaction.getTransactionType()) {
+            case AUTHORISE_TRANSACTION:
+                return partition.authorise(key, amount, transaction.getMerchant(), transaction.getExpiresAt());
+            case CAPTURE_TRANSACTION_FUNDS:
+                return partition.capture(key, amount);
+            case REVERSE_TRANSACTION:
+                return partition.reverse(key, amount);
+            case REFUND_CAPTURED_FUNDS:
+                return partition.refund(key, amount);
+            default:
+                throw new IllegalArgumentException(transaction.getTransactionType() + " is not a merchant operation");
+        }
+    }
 
-            CardBalance balance = getBalanceForCard(transaction);
-            TransactionBalance transactionBalance = getTransactionBalance(transaction);
+    /**
+     * Records a merchant operation the partition has accepted and builds the response. The
+     * partition decides from its balance tables alone, so the database is not consulted and
+     * nothing is allocated before this point.
+     */
+    private Either<String, Object> merchantResult(LedgerPartition partition, TransactionWriter writer, Transaction transaction, OperationResult result) {
+        if (!result.isAccepted()) {
+            return Either.left(result.getRejection());
+        }
 
-            if (!balance.canReverse(transaction.getAmount()) || !transactionBalance.canReverse(transaction.getAmount())) {
-                return Either.left("Insufficient amount available to reverse");
-            }
+        MerchantTransactionResult response = new MerchantTransactionResult(transaction, result.getBlocked(), result.getCaptured());
+        transaction.setSequenceNumber(result.getSequenceNumber());
+        writer.write(partition, transaction);
+        return Either.right(response);
+    }
 
-            balance.reverse(transaction.getAmount());
-            transactionBalance.reverse(transaction.getAmount());
-            transactionRepository.save(transaction);
-            return Either.right(new MerchantTransactionResult(transaction, transactionBalance));
-        });
+    private int cardOf(LedgerPartition partition, Transaction transaction) {
+        return partition.getCardBalances().findOrAdd(transaction.getTransactionKey().getCardId());
     }
 
-    private Either<String, Object> refundAuthorisation(Transaction transaction) {
-        return ifValidAmount(transaction, () -> {
-            if (fundsWereNotAuthorisedForTransaction(transaction)) {
-                return Either.left("Funds were not authorised for transaction");
-            }
+    private Either<String, Object> finished(Transaction transaction, long started, Either<String, Object> result) {
+        metrics.recordTransaction(transaction.getTransactionType(), System.nanoTime() - started, result);
+        return result;
+    }
 
-            CardBalance balance = getBalanceForCard(transaction);
-            TransactionBalance transactionBalance = getTransactionBalance(transaction);
+    /**
+     * Records every item of a batch as taking as long as the whole batch, which is what its
+     * caller waited.
+     */
+    private List<Either<String, Object>> finished(List<Transaction> transactions, long started, List<Either<String, Object>> results) {
+        long elapsed = System.nanoTime() - started;
+        for (int i = 0; i < transactions.size(); i++) {
+            metrics.recordTransaction(transactions.get(i).getTransactionType(), elapsed, results.get(i));
+        }
+        return results;
+    }
 
-            if (!balance.canRefund(transaction.getAmount()) || !transactionBalance.canRefund(transaction.getAmount())) {
-                return Either.left("Insufficient amount available to refund");
-            }
+    /**
+     * Holds back an accepted result until the journal has it on disk. A no-op unless the journal
+     * is enabled.
+     */
+    private Either<String, Object> whenDurable(Object result) {
+        return transactionJournal.awaitDurable() ?
+                Either.right(result) :
+                Either.left("Transaction could not be made durable");
+    }
 
-            balance.refund(transaction.getAmount());
-            transactionBalance.refund(transaction.getAmount());
-            transactionRepository.save(transaction);
-            return Either.right(new MerchantTransactionResult(transaction, transactionBalance));
-        });
+    private boolean transactionAlreadyHandled(TransactionWriter writer, Transaction transaction) {
+        return writer.contains(transaction.getTransactionKey(), transaction.getTransactionType());
     }
 
-    private CardBalance getBalanceForCard(Transaction transaction) {
-        return cardBalances.computeIfAbsent(transaction.getTransactionKey().getCardId(), k -> new CardBalance());
+    private boolean isPersisted(TransactionKey key, TransactionType type) {
+        long started = System.nanoTime();
+        Transaction persisted = transactionRepository.findTransactionByTransactionKeyAndTransactionType(key, type);
+        metrics.recordRepository(RepositoryOperation.FIND_BY_KEY, System.nanoTime() - started);
+        return persisted != null;
     }
 
-    private TransactionBalance getTransactionBalance(Transaction transaction) {
-        return transactionBalance.computeIfAbsent(transaction.getTransactionKey(), k -> new TransactionBalance());
+    /**
+     * Where accepted transactions go, and the record consulted when deciding whether a
+     * transaction has already been handled or authorised. Once a transaction is durably recorded
+     * it is published as a ledger event for the query side to project.
+     */
+    private interface TransactionWriter {
+
+        boolean contains(TransactionKey key, TransactionType type);
+
+        void write(LedgerPartition partition, Transaction transaction);
+
     }
 
-    private boolean transactionAlreadyHandled(Transaction transaction) {
-        TransactionKey key = transaction.getTransactionKey();
-        TransactionType type = transaction.getTransactionType();
+    /**
+     * Saves each transaction as soon as it is accepted and publishes the new balance.
+     */
+    private class ImmediateWriter implements TransactionWriter {
+
+        @Override
+        public boolean contains(TransactionKey key, TransactionType type) {
+            return isPersisted(key, type);
+        }
+
+        @Override
+        public void write(LedgerPartition partition, Transaction transaction) {
+            long started = System.nanoTime();
+            transaction.setRecordedAt(System.currentTimeMillis());
+            Transaction persisted = transactionRepository.save(transaction);
+            metrics.recordRepository(RepositoryOperation.SAVE, System.nanoTime() - started);
+            partition.recordApplied(persisted.getId());
+            partition.publish(transaction.getTransactionKey().getCardId());
+            eventLog.publish(persisted);
+        }
 
-        Transaction existingTransaction = transactionRepository.findTransactionByTransactionKeyAndTransactionType(key, type);
-        return existingTransaction != null;
     }
 
-    private boolean fundsWereNotAuthorisedForTransaction(Transaction transaction) {
-        TransactionKey key = transaction.getTransactionKey();
-        TransactionType type = TransactionType.AUTHORISE_TRANSACTION;
+    /**
+     * Appends each transaction to the journal as it is accepted and publishes the new balance. The
+     * journal drains into the database in the background, so transactions it has not yet drained
+     * are looked up there as well. The ledger event is published by the journal once the
+     * transaction is on disk, so nothing is projected that a crash could still lose.
+     */
+    private class JournalWriter implements TransactionWriter {
+
+        @Override
+        public boolean contains(TransactionKey key, TransactionType type) {
+            return transactionJournal.contains(key, type) || isPersisted(key, type);
+        }
+
+        @Override
+        public void write(LedgerPartition partition, Transaction transaction) {
+            long started = System.nanoTime();
+            transaction.setRecordedAt(System.currentTimeMillis());
+            transactionJournal.append(transaction);
+            metrics.recordRepository(RepositoryOperation.JOURNAL_APPEND, System.nanoTime() - started);
+            partition.recordApplied(transaction.getId());
+            partition.publish(transaction.getTransactionKey().getCardId());
+        }
 
-        Transaction existingTransaction = transactionRepository.findTransactionByTransactionKeyAndTransactionType(key, type);
-        return existingTransaction == null;
     }
 
-    private Either<String, Object> ifValidAmount(Transaction transaction, Supplier<Either<String,Object>> supplier) {
-        if (transaction.getAmount() <= 0) {
-            return Either.left("Amount for transaction must be positive and non-zero");
-        } else {
-            return supplier.get();
+    /**
+     * Holds accepted transactions until {@link #flush(LedgerPartition)} saves them in a single
+     * database transaction. Balances are published only once the rows are committed.
+     */
+    private class BatchWriter implements TransactionWriter {
+
+        private final List<Transaction> accepted = new ArrayList<>();
+        private final Map<TransactionKey, Set<TransactionType>> acceptedTypes = new HashMap<>();
+
+        @Override
+        public boolean contains(TransactionKey key, TransactionType type) {
+            Set<TransactionType> types = acceptedTypes.get(key);
+            return (types != null && types.contains(type)) || isPersisted(key, type);
+        }
+
+        @Override
+        public void write(LedgerPartition partition, Transaction transaction) {
+            transaction.setRecordedAt(System.currentTimeMillis());
+            accepted.add(transaction);
+            acceptedTypes.computeIfAbsent(transaction.getTransactionKey(), k -> EnumSet.noneOf(TransactionType.class))
+                    .add(transaction.getTransactionType());
+        }
+
+        int size() {
+            return accepted.size();
         }
+
+        void flush(LedgerPartition partition) {
+            if (accepted.isEmpty()) {
+                return;
+            }
+
+            long started = System.nanoTime();
+            List<Transaction> saved = transactionRepository.saveAll(accepted);
+            metrics.recordRepository(RepositoryOperation.SAVE_ALL, System.nanoTime() - started);
+
+            Set<UUID> cardIds = new HashSet<>();
+            for (Transaction persisted : saved) {
+                partition.recordApplied(persisted.getId());
+                cardIds.add(persisted.getTransactionKey().getCardId());
+            }
+            cardIds.forEach(partition::publish);
+            saved.forEach(eventLog::publish);
+        }
+
     }
 
 }
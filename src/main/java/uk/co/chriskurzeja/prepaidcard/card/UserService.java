@@ -1,34 +1,81 @@
 package uk.co.chriskurzeja.prepaidcard.card;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
 import io.atlassian.fugue.Either;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import uk.co.chriskurzeja.prepaidcard.cluster.ClusterTopology;
 import uk.co.chriskurzeja.prepaidcard.data.jpa.repository.CardRepository;
+import uk.co.chriskurzeja.prepaidcard.model.CacheStatistics;
 import uk.co.chriskurzeja.prepaidcard.model.Card;
+import uk.co.chriskurzeja.prepaidcard.model.UserPage;
 
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Objects;
+import java.util.List;
 import java.util.Optional;
-import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 @Service
 public class UserService {
 
     private final CardRepository cardRepository;
+    private final ClusterTopology topology;
+    private final Cache<UUID, Optional<Card>> cards;
+    private final int maxUserPageSize;
+    private final long userCountRefreshNanos;
+    private final AtomicLong userCount = new AtomicLong(-1L);
+    private volatile long userCountedAt;
 
+    /**
+     * Cards are looked up on every transaction but almost never change, so lookups are cached,
+     * bounded in size and expiring after a while. A lookup for a card that does not exist is cached
+     * too, for a much shorter time, so repeated requests for a bad card id don't all reach the
+     * database.
+     * <p>
+     * The number of users is counted once and then kept up to date as cards are created, with a
+     * recount now and then to pick up anything done to the table directly.
+     */
     @Autowired
-    public UserService(CardRepository cardRepository) {
+    public UserService(CardRepository cardRepository,
+                       ClusterTopology topology,
+                       @Value("${card.cache.maximum-size:100000}") long maximumSize,
+                       @Value("${card.cache.ttl-seconds:600}") long ttlSeconds,
+                       @Value("${card.cache.negative-ttl-seconds:5}") long negativeTtlSeconds,
+                       @Value("${admin.users.max-page-size:1000}") int maxUserPageSize,
+                       @Value("${admin.users.count-refresh-seconds:300}") long userCountRefreshSeconds) {
         this.cardRepository = cardRepository;
+        this.topology = topology;
+        this.maxUserPageSize = maxUserPageSize;
+        this.userCountRefreshNanos = TimeUnit.SECONDS.toNanos(userCountRefreshSeconds);
+        this.cards = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfter(new CardExpiry(TimeUnit.SECONDS.toNanos(ttlSeconds), TimeUnit.SECONDS.toNanos(negativeTtlSeconds)))
+                .recordStats()
+                .build();
     }
 
-    public Either<String,String> createCardForUser(String userId) {
+    public Either<String,UUID> createCardForUser(String userId) {
         if (cardRepository.existsCardByUserId(userId)) {
             return Either.left("Cannot create duplicate card for userId");
         }
 
-        Card card = persistCard(new Card(userId));
+        Card card;
+        try {
+            card = persistCard(new Card(topology.newLocalCardId(), userId));
+        } catch (DataIntegrityViolationException e) {
+            return Either.left("Cannot create duplicate card for userId");
+        }
+        cards.invalidate(card.getId());
+        userCount.updateAndGet(count -> count < 0 ? count : count + 1);
         return Either.right(card.getId());
     }
 
@@ -36,22 +83,95 @@ public class UserService {
         return cardRepository.save(card);
     }
 
-    public Set<String> getUserIds() {
-        return cardRepository.findAll().stream()
-                .map(Card::getUserId)
-                .collect(Collectors.toSet());
+    /**
+     * Returns up to {@code size} user ids starting with the prefix that sort after the cursor, in
+     * order. Pass an empty cursor for the first page.
+     */
+    public Either<String, UserPage> getUserPage(String prefix, String after, int size) {
+        if (size < 1 || size > maxUserPageSize) {
+            return Either.left("Page size must be between 1 and " + maxUserPageSize);
+        }
+
+        List<String> userIds = cardRepository.findUserIds(likePrefix(prefix), after, PageRequest.of(0, size + 1));
+        if (userIds.size() <= size) {
+            return Either.right(new UserPage(userIds, null));
+        }
+        List<String> page = userIds.subList(0, size);
+        return Either.right(new UserPage(page, page.get(size - 1)));
+    }
+
+    /**
+     * Hands every user id starting with the prefix to the consumer, in order, as it is read from the
+     * database.
+     *
+     * @return the number of user ids read
+     */
+    @Transactional(readOnly = true)
+    public long forEachUserId(String prefix, Consumer<String> consumer) {
+        long read = 0;
+        try (Stream<String> userIds = cardRepository.streamUserIds(likePrefix(prefix))) {
+            for (String userId : (Iterable<String>) userIds::iterator) {
+                consumer.accept(userId);
+                read++;
+            }
+        }
+        return read;
+    }
+
+    public long getUserCount() {
+        long now = System.nanoTime();
+        if (userCount.get() < 0 || now - userCountedAt > userCountRefreshNanos) {
+            userCountedAt = now;
+            userCount.set(cardRepository.count());
+        }
+        return userCount.get();
     }
 
-    public Either<String,String> getCardIdForUser(String userId) {
+    private static String likePrefix(String prefix) {
+        return prefix.replace("!", "!!").replace("%", "!%").replace("_", "!_") + "%";
+    }
+
+    public Either<String,UUID> getCardIdForUser(String userId) {
         return Optional.ofNullable(cardRepository.getCardByUserIdEquals(userId))
-                .map(c -> Either.<String,String>right(c.getId()))
+                .map(c -> Either.<String,UUID>right(c.getId()))
                 .orElse(Either.left("Card does not exist for supplied userId"));
     }
 
-    public Either<String,Card> getCard(String cardId) {
-        return cardRepository.findById(cardId)
+    public Either<String,Card> getCard(UUID cardId) {
+        return cards.get(cardId, cardRepository::findById)
                 .map(Either::<String, Card>right)
                 .orElse(Either.left("Card does not exist"));
     }
 
+    public CacheStatistics getCardCacheStatistics() {
+        return new CacheStatistics(cards.estimatedSize(), cards.stats());
+    }
+
+    private static class CardExpiry implements Expiry<UUID, Optional<Card>> {
+
+        private final long ttlNanos;
+        private final long negativeTtlNanos;
+
+        CardExpiry(long ttlNanos, long negativeTtlNanos) {
+            this.ttlNanos = ttlNanos;
+            this.negativeTtlNanos = negativeTtlNanos;
+        }
+
+        @Override
+        public long expireAfterCreate(UUID cardId, Optional<Card> card, long currentTime) {
+            return card.isPresent() ? ttlNanos : negativeTtlNanos;
+        }
+
+        @Override
+        public long expireAfterUpdate(UUID cardId, Optional<Card> card, long currentTime, long currentDuration) {
+            return expireAfterCreate(cardId, card, currentTime);
+        }
+
+        @Override
+        public long expireAfterRead(UUID cardId, Optional<Card> card, long currentTime, long currentDuration) {
+            return currentDuration;
+        }
+
+    }
+
 }
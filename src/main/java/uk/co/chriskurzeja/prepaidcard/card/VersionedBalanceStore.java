@@ -0,0 +1,227 @@
+package uk.co.chriskurzeja.prepaidcard.card;
+
+import io.atlassian.fugue.Either;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.ConcurrencyFailureException;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import uk.co.chriskurzeja.prepaidcard.data.jpa.repository.CardBalanceRepository;
+import uk.co.chriskurzeja.prepaidcard.data.jpa.repository.TransactionBalanceRepository;
+import uk.co.chriskurzeja.prepaidcard.data.jpa.repository.TransactionRepository;
+import uk.co.chriskurzeja.prepaidcard.metrics.TransactionMetrics;
+import uk.co.chriskurzeja.prepaidcard.metrics.TransactionMetrics.RepositoryOperation;
+import uk.co.chriskurzeja.prepaidcard.model.BalanceSummary;
+import uk.co.chriskurzeja.prepaidcard.model.MerchantTransactionResult;
+import uk.co.chriskurzeja.prepaidcard.model.Transaction;
+import uk.co.chriskurzeja.prepaidcard.model.TransactionKey;
+import uk.co.chriskurzeja.prepaidcard.model.VersionedCardBalance;
+import uk.co.chriskurzeja.prepaidcard.model.VersionedTransactionBalance;
+
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Balances kept in the database instead of the ledger, for running several instances side by side
+ * behind a load balancer with no card owned by any one of them. Enabled by
+ * {@code ledger.balances=database}; the default, {@code memory}, leaves every decision to the
+ * ledger partitions.
+ * <p>
+ * Each operation is decided and recorded in one database transaction. Card balances change by
+ * conditional updates that check the funds in the same statement; authorisations are read and
+ * written back under their version. An operation that loses a race with another instance, whether
+ * on a version or a row both tried to insert, is rolled back and tried again from the start after
+ * a short random pause, up to {@code ledger.balances.max-attempts} times. Holds are recorded with
+ * their expiry but are not released automatically in this mode.
+ * <p>
+ * Nothing is published to the ledger event log, as each instance would see only its own
+ * transactions; the projections are built by tailing the shared transaction table instead.
+ */
+@Component
+public class VersionedBalanceStore {
+
+    private static final Logger log = LoggerFactory.getLogger(VersionedBalanceStore.class);
+
+    /**
+     * The most an attempt that conflicted waits before the next, times the attempts so far; the
+     * wait is random so that the instances that collided do not collide again.
+     */
+    private static final long BACKOFF_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+
+    public enum Mode {
+        MEMORY,
+        DATABASE
+    }
+
+    private final CardBalanceRepository cardBalanceRepository;
+    private final TransactionBalanceRepository transactionBalanceRepository;
+    private final TransactionRepository transactionRepository;
+    private final TransactionTemplate transactionTemplate;
+    private final TransactionMetrics metrics;
+    private final Mode mode;
+    private final int maxAttempts;
+
+    @Autowired
+    public VersionedBalanceStore(CardBalanceRepository cardBalanceRepository,
+                                 TransactionBalanceRepository transactionBalanceRepository,
+                                 TransactionRepository transactionRepository,
+                                 PlatformTransactionManager transactionManager,
+                                 TransactionMetrics metrics,
+                                 @Value("${ledger.balances:memory}") String mode,
+                                 @Value("${ledger.balances.max-attempts:5}") int maxAttempts) {
+        this.cardBalanceRepository = cardBalanceRepository;
+        this.transactionBalanceRepository = transactionBalanceRepository;
+        this.transactionRepository = transactionRepository;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.metrics = metrics;
+        this.mode = Mode.valueOf(mode.trim().toUpperCase());
+        this.maxAttempts = Math.max(1, maxAttempts);
+    }
+
+    public boolean isEnabled() {
+        return mode == Mode.DATABASE;
+    }
+
+    /**
+     * Decides and records the transaction, which must have a positive amount, retrying it while
+     * it conflicts with another instance's change to the same card or authorisation.
+     */
+    public Either<String, Object> handle(Transaction transaction) {
+        for (int attempt = 1; ; attempt++) {
+            long started = System.nanoTime();
+            try {
+                Either<String, Object> result = transactionTemplate.execute(status -> {
+                    Either<String, Object> decided = decide(transaction);
+                    if (decided.isLeft()) {
+                        status.setRollbackOnly();
+                    }
+                    return decided;
+                });
+                metrics.recordRepository(RepositoryOperation.UPDATE_BALANCE, System.nanoTime() - started);
+                return result;
+            } catch (ConcurrencyFailureException | DataIntegrityViolationException e) {
+                metrics.recordBalanceConflict();
+                transaction.setId(null);
+                if (attempt == maxAttempts) {
+                    log.warn("Giving up on {} after {} conflicting attempts: {}", transaction, attempt, e.getMessage());
+                    return Either.left("Transaction conflicted with concurrent changes to the card");
+                }
+                LockSupport.parkNanos(ThreadLocalRandom.current().nextLong(attempt * BACKOFF_NANOS));
+            } catch (RuntimeException e) {
+                log.warn("Could not save {}", transaction, e);
+                transaction.setId(null);
+                return Either.left("Could not save transaction");
+            }
+        }
+    }
+
+    public Optional<BalanceSummary> getBalance(UUID cardId) {
+        return cardBalanceRepository.findById(cardId).map(VersionedCardBalance::summary);
+    }
+
+    private Either<String, Object> decide(Transaction transaction) {
+        switch (transaction.getTransactionType()) {
+            case LOAD_FUNDS:
+                return load(transaction);
+            case AUTHORISE_TRANSACTION:
+                return authorise(transaction);
+            case CAPTURE_TRANSACTION_FUNDS:
+            case REVERSE_TRANSACTION:
+            case REFUND_CAPTURED_FUNDS:
+                return settle(transaction);
+            default:
+                return Either.left("Unknown transaction of type " + transaction.getTransactionType());
+        }
+    }
+
+    private Either<String, Object> load(Transaction transaction) {
+        TransactionKey key = transaction.getTransactionKey();
+        if (transactionRepository.findTransactionByTransactionKeyAndTransactionType(key, transaction.getTransactionType()) != null) {
+            return Either.left("Transaction has already been handled");
+        }
+
+        if (cardBalanceRepository.load(key.getCardId(), transaction.getAmount()) == 0) {
+            cardBalanceRepository.saveAndFlush(new VersionedCardBalance(key.getCardId()));
+            cardBalanceRepository.load(key.getCardId(), transaction.getAmount());
+        }
+        record(transaction);
+        return TransactionService.LOADED;
+    }
+
+    private Either<String, Object> authorise(Transaction transaction) {
+        TransactionKey key = transaction.getTransactionKey();
+        if (transactionBalanceRepository.existsById(key)) {
+            return Either.left("Transaction has already been handled");
+        }
+        if (cardBalanceRepository.block(key.getCardId(), transaction.getAmount()) == 0) {
+            return Either.left("Insufficient funds on the card");
+        }
+
+        transactionBalanceRepository.saveAndFlush(new VersionedTransactionBalance(key, transaction.getAmount()));
+        transaction.setSequenceNumber(0);
+        record(transaction);
+        return Either.right(new MerchantTransactionResult(transaction, transaction.getAmount(), 0L));
+    }
+
+    /**
+     * Captures, reverses or refunds against the authorisation. The authorisation's version check
+     * is what serialises instances; the card's own conditional update cannot then fail, as a card
+     * always has at least as much blocked and captured as any one of its authorisations.
+     */
+    private Either<String, Object> settle(Transaction transaction) {
+        TransactionKey key = transaction.getTransactionKey();
+        VersionedTransactionBalance authorisation = transactionBalanceRepository.findById(key).orElse(null);
+        if (authorisation == null) {
+            return Either.left("Funds were not authorised for transaction");
+        }
+
+        long amount = transaction.getAmount();
+        int updated;
+        switch (transaction.getTransactionType()) {
+            case CAPTURE_TRANSACTION_FUNDS:
+                if (!authorisation.canCapture(amount)) {
+                    return Either.left("Insufficient amount available to capture");
+                }
+                authorisation.capture(amount);
+                transactionBalanceRepository.saveAndFlush(authorisation);
+                updated = cardBalanceRepository.capture(key.getCardId(), amount);
+                break;
+            case REVERSE_TRANSACTION:
+                if (!authorisation.canReverse(amount)) {
+                    return Either.left("Insufficient amount available to reverse");
+                }
+                authorisation.reverse(amount);
+                transactionBalanceRepository.saveAndFlush(authorisation);
+                updated = cardBalanceRepository.reverse(key.getCardId(), amount);
+                break;
+            default:
+                if (!authorisation.canRefund(amount)) {
+                    return Either.left("Insufficient amount available to refund");
+                }
+                authorisation.refund(amount);
+                transactionBalanceRepository.saveAndFlush(authorisation);
+                updated = cardBalanceRepository.refund(key.getCardId(), amount);
+                break;
+        }
+        if (updated == 0) {
+            throw new IllegalStateException("Card balances for " + key.getCardId() + " do not cover authorisation " + key.getRequestId());
+        }
+
+        transaction.setSequenceNumber(authorisation.getOperations());
+        record(transaction);
+        return Either.right(new MerchantTransactionResult(transaction, authorisation.getBlocked(), authorisation.getCaptured()));
+    }
+
+    private void record(Transaction transaction) {
+        transaction.setRecordedAt(System.currentTimeMillis());
+        transactionRepository.saveAndFlush(transaction);
+    }
+
+}
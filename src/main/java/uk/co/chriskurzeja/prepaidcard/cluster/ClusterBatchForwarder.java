@@ -0,0 +1,88 @@
+package uk.co.chriskurzeja.prepaidcard.cluster;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.atlassian.fugue.Either;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.util.UriUtils;
+import uk.co.chriskurzeja.prepaidcard.model.MerchantOperation;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Hands the items of a merchant batch that belong to another node's cards to that node, as a
+ * batch of their own, and reads back a result for each. The call runs on the persistence executor
+ * so the request thread is not held while the other node works.
+ */
+@Component
+public class ClusterBatchForwarder {
+
+    private static final Logger log = LoggerFactory.getLogger(ClusterBatchForwarder.class);
+
+    private final ClusterTopology topology;
+    private final ClusterForwarder forwarder;
+    private final ObjectMapper objectMapper;
+    private final ExecutorService persistenceExecutor;
+
+    @Autowired
+    public ClusterBatchForwarder(ClusterTopology topology, ClusterForwarder forwarder, ObjectMapper objectMapper,
+                                 @Qualifier("persistenceExecutor") ExecutorService persistenceExecutor) {
+        this.topology = topology;
+        this.forwarder = forwarder;
+        this.objectMapper = objectMapper;
+        this.persistenceExecutor = persistenceExecutor;
+    }
+
+    /**
+     * @return a result for each operation, in the order given. If the owner cannot be reached or
+     * does not answer with a result for an item, that item is rejected.
+     */
+    public CompletableFuture<List<Either<String, Object>>> forward(String owner, String merchant, List<MerchantOperation> operations) {
+        try {
+            return CompletableFuture.supplyAsync(() -> send(owner, merchant, operations), persistenceExecutor);
+        } catch (RejectedExecutionException e) {
+            CompletableFuture<List<Either<String, Object>>> rejected = new CompletableFuture<>();
+            rejected.completeExceptionally(e);
+            return rejected;
+        }
+    }
+
+    private List<Either<String, Object>> send(String owner, String merchant, List<MerchantOperation> operations) {
+        Either<String, Object> unreachable = Either.left("Node " + owner + ", which owns the card, could not be reached");
+        List<Either<String, Object>> results = new ArrayList<>(Collections.nCopies(operations.size(), unreachable));
+        String url = topology.urlOf(owner) + "/api/merchant/" + UriUtils.encodePathSegment(merchant, StandardCharsets.UTF_8) + "/batch";
+        try {
+            ClusterForwarder.Response response = forwarder.forward(url, "POST", MediaType.APPLICATION_JSON_UTF8_VALUE,
+                    objectMapper.writeValueAsBytes(operations), topology.getNodeId());
+            if (response.getStatus() != 200) {
+                log.warn("Node {} answered a forwarded batch with status {}", owner, response.getStatus());
+                return results;
+            }
+
+            for (JsonNode item : objectMapper.readTree(response.getBody())) {
+                int index = item.path("index").asInt(-1);
+                if (index >= 0 && index < results.size()) {
+                    results.set(index, item.path("accepted").asBoolean() ?
+                            Either.right(item.get("result")) :
+                            Either.left(item.path("error").asText()));
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Could not forward a batch of {} items to node {}", operations.size(), owner, e);
+        }
+        return results;
+    }
+
+}
@@ -0,0 +1,119 @@
+package uk.co.chriskurzeja.prepaidcard.cluster;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Sends a request on to another node, or from the router to a node, and reads back its response
+ * whole. Redirects are passed back rather than followed. Requests a node forwards carry
+ * {@link #FORWARDED_BY} so the receiving node never forwards them again, even if the two disagree
+ * about who owns the card.
+ */
+@Component
+public class ClusterForwarder {
+
+    public static final String FORWARDED_BY = "X-Cluster-Forwarded-By";
+
+    private final int timeoutMillis;
+
+    @Autowired
+    public ClusterForwarder(@Value("${cluster.forward.timeout-ms:5000}") int timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public Response forward(String url, String method, String contentType, byte[] body, String forwardedBy) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod(method);
+        connection.setInstanceFollowRedirects(false);
+        connection.setConnectTimeout(timeoutMillis);
+        connection.setReadTimeout(timeoutMillis);
+        if (forwardedBy != null) {
+            connection.setRequestProperty(FORWARDED_BY, forwardedBy);
+        }
+        if (contentType != null) {
+            connection.setRequestProperty("Content-Type", contentType);
+        }
+        if (body != null && body.length > 0) {
+            connection.setDoOutput(true);
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(body);
+            }
+        }
+
+        int status = connection.getResponseCode();
+        InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        for (Map.Entry<String, List<String>> header : connection.getHeaderFields().entrySet()) {
+            if (header.getKey() != null && !header.getValue().isEmpty()) {
+                headers.put(header.getKey(), header.getValue().get(0));
+            }
+        }
+        return new Response(status, connection.getContentType(), headers, readFully(in));
+    }
+
+    public static byte[] readFully(InputStream in) throws IOException {
+        if (in == null) {
+            return new byte[0];
+        }
+
+        try (InputStream input = in) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            for (int read = input.read(buffer); read >= 0; read = input.read(buffer)) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    public static final class Response {
+
+        private final int status;
+        private final String contentType;
+        private final Map<String, String> headers;
+        private final byte[] body;
+
+        private Response(int status, String contentType, Map<String, String> headers, byte[] body) {
+            this.status = status;
+            this.contentType = contentType;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        public String getLocation() {
+            return getHeader("Location");
+        }
+
+        /**
+         * The first value of the header, whatever its case, or null if there is none.
+         */
+        public String getHeader(String name) {
+            return headers.get(name);
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+
+    }
+
+}
@@ -0,0 +1,183 @@
+package uk.co.chriskurzeja.prepaidcard.cluster;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.atlassian.fugue.Either;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+import org.springframework.web.util.UriUtils;
+import uk.co.chriskurzeja.prepaidcard.controllers.utils.ProjectionHeaders;
+import uk.co.chriskurzeja.prepaidcard.model.MerchantSummary;
+import uk.co.chriskurzeja.prepaidcard.model.SpendRollup;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.stream.Collectors;
+
+/**
+ * Reads a merchant's totals from every other node of the cluster. Each node projects only the
+ * transactions on the cards it owns, so the totals for the whole cluster are the sum of every
+ * node's. The other nodes are asked at once, on the persistence executor, with
+ * {@link ClusterForwarder#FORWARDED_BY} set so each answers from its own projections alone. If
+ * any of them cannot be read the whole read fails, rather than answering with part of the cluster.
+ */
+@Component
+public class ClusterMerchantReader {
+
+    private static final Logger log = LoggerFactory.getLogger(ClusterMerchantReader.class);
+
+    private final ClusterTopology topology;
+    private final ClusterForwarder forwarder;
+    private final ObjectMapper objectMapper;
+    private final ExecutorService persistenceExecutor;
+
+    @Autowired
+    public ClusterMerchantReader(ClusterTopology topology, ClusterForwarder forwarder, ObjectMapper objectMapper,
+                                 @Qualifier("persistenceExecutor") ExecutorService persistenceExecutor) {
+        this.topology = topology;
+        this.forwarder = forwarder;
+        this.objectMapper = objectMapper;
+        this.persistenceExecutor = persistenceExecutor;
+    }
+
+    /**
+     * @return the summary from each other node that has recorded anything for the merchant
+     */
+    public CompletableFuture<Either<String, Read<List<MerchantSummary>>>> getSummaries(String merchant) {
+        return readOthers("/api/merchant/" + encode(merchant) + "/summary", response -> {
+            if (response.getStatus() == 400) {
+                return Either.right(new ArrayList<>());
+            }
+            List<MerchantSummary> summaries = new ArrayList<>();
+            summaries.add(summaryFrom(objectMapper.readTree(response.getBody())));
+            return Either.right(summaries);
+        });
+    }
+
+    /**
+     * @return the daily totals from every other node, in no particular order
+     */
+    public CompletableFuture<Either<String, Read<List<SpendRollup>>>> getVolumes(String merchant, LocalDate from, LocalDate to) {
+        return readOthers("/api/merchant/" + encode(merchant) + "/volume?from=" + from + "&to=" + to, response -> {
+            if (response.getStatus() == 400) {
+                return Either.left(new String(response.getBody(), StandardCharsets.UTF_8));
+            }
+            List<SpendRollup> volumes = new ArrayList<>();
+            for (JsonNode day : objectMapper.readTree(response.getBody())) {
+                volumes.add(rollupFrom(day));
+            }
+            return Either.right(volumes);
+        });
+    }
+
+    private <T> CompletableFuture<Either<String, Read<List<T>>>> readOthers(String path, Parser<T> parser) {
+        List<CompletableFuture<Either<String, Read<List<T>>>>> reads = topology.getNodes().stream()
+                .filter(node -> !node.equals(topology.getNodeId()))
+                .map(node -> read(node, path, parser))
+                .collect(Collectors.toList());
+
+        return CompletableFuture.allOf(reads.toArray(new CompletableFuture[0])).thenApply(ignored -> {
+            List<T> values = new ArrayList<>();
+            long watermark = Long.MAX_VALUE;
+            for (CompletableFuture<Either<String, Read<List<T>>>> read : reads) {
+                Either<String, Read<List<T>>> result = read.join();
+                if (result.isLeft()) {
+                    return result;
+                }
+                values.addAll(result.right().get().getValue());
+                watermark = Math.min(watermark, result.right().get().getWatermark());
+            }
+            return Either.right(new Read<>(values, watermark));
+        });
+    }
+
+    private <T> CompletableFuture<Either<String, Read<List<T>>>> read(String node, String path, Parser<T> parser) {
+        try {
+            return CompletableFuture.supplyAsync(() -> send(node, path, parser), persistenceExecutor);
+        } catch (RejectedExecutionException e) {
+            CompletableFuture<Either<String, Read<List<T>>>> rejected = new CompletableFuture<>();
+            rejected.completeExceptionally(e);
+            return rejected;
+        }
+    }
+
+    private <T> Either<String, Read<List<T>>> send(String node, String path, Parser<T> parser) {
+        Either<String, Read<List<T>>> unreadable = Either.left("Node " + node + " could not be read, so the totals would be incomplete");
+        try {
+            ClusterForwarder.Response response = forwarder.forward(topology.urlOf(node) + path, "GET", null, null, topology.getNodeId());
+            if (response.getStatus() != 200 && response.getStatus() != 400) {
+                log.warn("Node {} answered {} with status {}", node, path, response.getStatus());
+                return unreadable;
+            }
+
+            long watermark = ProjectionHeaders.watermarkOf(response.getHeader(ProjectionHeaders.WATERMARK));
+            return parser.parse(response).map(values -> new Read<>(values, watermark));
+        } catch (IOException e) {
+            log.warn("Could not read {} from node {}", path, node, e);
+            return unreadable;
+        }
+    }
+
+    private static MerchantSummary summaryFrom(JsonNode summary) {
+        return new MerchantSummary(
+                summary.path("merchant").asText(),
+                summary.path("transactions").asLong(),
+                summary.path("authorised").asLong(),
+                summary.path("captured").asLong(),
+                summary.path("reversed").asLong(),
+                summary.path("refunded").asLong());
+    }
+
+    private static SpendRollup rollupFrom(JsonNode rollup) {
+        return new SpendRollup(
+                rollup.path("merchant").asText(),
+                rollup.path("period_start").asLong(),
+                rollup.path("transactions").asLong(),
+                rollup.path("authorised").asLong(),
+                rollup.path("captured").asLong(),
+                rollup.path("reversed").asLong(),
+                rollup.path("refunded").asLong());
+    }
+
+    private static String encode(String merchant) {
+        return UriUtils.encodePathSegment(merchant, StandardCharsets.UTF_8);
+    }
+
+    @FunctionalInterface
+    private interface Parser<T> {
+        Either<String, List<T>> parse(ClusterForwarder.Response response) throws IOException;
+    }
+
+    /**
+     * What the other nodes answered, and the lowest of their watermarks.
+     */
+    public static final class Read<T> {
+
+        private final T value;
+        private final long watermark;
+
+        private Read(T value, long watermark) {
+            this.value = value;
+            this.watermark = watermark;
+        }
+
+        public T getValue() {
+            return value;
+        }
+
+        public long getWatermark() {
+            return watermark;
+        }
+
+    }
+
+}
@@ -0,0 +1,131 @@
+package uk.co.chriskurzeja.prepaidcard.cluster;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A small standalone HTTP router to put in front of a cluster, so clients need only one address.
+ * It places cards on the same {@link ConsistentHashRing} as the nodes, sends each request straight
+ * to the node that owns its card, and spreads requests that name no card across the nodes in turn.
+ * It holds no state of its own, so any number can run side by side.
+ * <p>
+ * Run with {@code mvn -Pcluster-router compile exec:java -Dexec.args="--router.port=9000
+ * --cluster.nodes=a=http://localhost:9001,b=http://localhost:9002"}, after starting each node with
+ * the same {@code cluster.nodes} and its own {@code cluster.node-id} and {@code server.port}.
+ */
+public class ClusterRouter {
+
+    private static final Logger log = LoggerFactory.getLogger(ClusterRouter.class);
+
+    private final Map<String, String> nodes;
+    private final List<String> nodeNames;
+    private final ConsistentHashRing ring;
+    private final ClusterForwarder forwarder;
+    private final AtomicInteger nextNode = new AtomicInteger();
+    private HttpServer server;
+    private ExecutorService executor;
+
+    public ClusterRouter(String nodes, int pointsPerNode, int timeoutMillis) {
+        this.nodes = ClusterTopology.parseNodes(nodes);
+        if (this.nodes.isEmpty()) {
+            throw new IllegalArgumentException("The router needs cluster.nodes to route to");
+        }
+        this.nodeNames = new ArrayList<>(this.nodes.keySet());
+        this.ring = new ConsistentHashRing(nodeNames, pointsPerNode);
+        this.forwarder = new ClusterForwarder(timeoutMillis);
+    }
+
+    public static void main(String[] args) throws IOException {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (arg.startsWith("--") && separator > 2) {
+                options.put(arg.substring(2, separator), arg.substring(separator + 1));
+            }
+        }
+
+        ClusterRouter router = new ClusterRouter(
+                option(options, "cluster.nodes", ""),
+                Integer.parseInt(option(options, "cluster.points-per-node", "128")),
+                Integer.parseInt(option(options, "cluster.forward.timeout-ms", "5000")));
+        router.start(Integer.parseInt(option(options, "router.port", "9000")), Integer.parseInt(option(options, "router.threads", "64")));
+        Runtime.getRuntime().addShutdownHook(new Thread(router::stop, "router-shutdown"));
+    }
+
+    private static String option(Map<String, String> options, String name, String defaultValue) {
+        return options.getOrDefault(name, System.getProperty(name, defaultValue));
+    }
+
+    public void start(int port, int threads) throws IOException {
+        executor = Executors.newFixedThreadPool(threads);
+        server = HttpServer.create(new InetSocketAddress(port), 1024);
+        server.createContext("/", this::route);
+        server.setExecutor(executor);
+        server.start();
+        log.info("Routing port {} to {}", getPort(), nodes);
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdown();
+    }
+
+    private void route(HttpExchange exchange) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getRawPath();
+            String query = exchange.getRequestURI().getRawQuery();
+            String owner = ClusterRoutes.ownerOf(ring, path, query);
+            String node = owner != null ? owner : nodeNames.get(Math.floorMod(nextNode.getAndIncrement(), nodeNames.size()));
+            String target = nodes.get(node) + path + (query == null ? "" : "?" + query);
+
+            ClusterForwarder.Response response;
+            try {
+                response = forwarder.forward(target, exchange.getRequestMethod(), exchange.getRequestHeaders().getFirst("Content-Type"),
+                        ClusterForwarder.readFully(exchange.getRequestBody()), null);
+            } catch (IOException e) {
+                log.warn("Could not route {} {} to node {}", exchange.getRequestMethod(), path, node, e);
+                respond(exchange, 502, "text/plain;charset=UTF-8", ("Node " + node + " could not be reached").getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+
+            if (response.getLocation() != null) {
+                exchange.getResponseHeaders().set("Location", response.getLocation());
+            }
+            if (owner != null) {
+                exchange.getResponseHeaders().set(ClusterRoutingFilter.OWNER, owner);
+            }
+            respond(exchange, response.getStatus(), response.getContentType(), response.getBody());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+        if (contentType != null) {
+            exchange.getResponseHeaders().set("Content-Type", contentType);
+        }
+        exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+}
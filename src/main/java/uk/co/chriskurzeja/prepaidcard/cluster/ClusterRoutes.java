@@ -0,0 +1,97 @@
+package uk.co.chriskurzeja.prepaidcard.cluster;
+
+import io.atlassian.fugue.Either;
+import uk.co.chriskurzeja.prepaidcard.controllers.utils.CardIds;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.UUID;
+
+/**
+ * Works out from a request's path which node it belongs to, the same way on the nodes and on the
+ * router. Routes naming a card go to the card's owner and card creation goes to the owner of the
+ * user id. Anything else, including a card id that does not parse, can be handled anywhere; a
+ * malformed id is turned away wherever it lands.
+ */
+final class ClusterRoutes {
+
+    private ClusterRoutes() {
+
+    }
+
+    static String ownerOf(ConsistentHashRing ring, String path, String query) {
+        String[] segments = path.startsWith("/") ? path.substring(1).split("/") : path.split("/");
+        if (segments.length < 3 || !"api".equals(segments[0])) {
+            return null;
+        }
+
+        switch (segments[1]) {
+            case "card":
+                return cardRoute(ring, segments);
+            case "merchant":
+                // {merchant}/{action}/{cardId}/{transactionId}/{amount}; batches are split by the node that receives them
+                return segments.length == 7 ? byCard(ring, segments[4]) : null;
+            case "admin":
+                return segments.length >= 5 && "user".equals(segments[3]) ? byUser(ring, queryParameter(query, "userId")) : null;
+            default:
+                return null;
+        }
+    }
+
+    private static String cardRoute(ConsistentHashRing ring, String[] segments) {
+        if (segments.length < 4) {
+            return null;
+        }
+
+        switch (segments[2]) {
+            case "create":
+                return byUser(ring, decode(segments[3]));
+            case "load":
+            case "transactions":
+                return byCard(ring, segments[3]);
+            case "balance":
+                return byCard(ring, segments[segments.length == 4 ? 3 : 4]);
+            default:
+                return null;
+        }
+    }
+
+    private static String byCard(ConsistentHashRing ring, String cardId) {
+        Either<String, UUID> card = CardIds.parse(cardId);
+        return card.isRight() ? ring.nodeFor(card.right().get()) : null;
+    }
+
+    private static String byUser(ConsistentHashRing ring, String userId) {
+        return userId == null ? null : ring.nodeFor(userId);
+    }
+
+    private static String queryParameter(String query, String name) {
+        if (query == null) {
+            return null;
+        }
+
+        for (String parameter : query.split("&")) {
+            int separator = parameter.indexOf('=');
+            if (separator > 0 && name.equals(parameter.substring(0, separator))) {
+                try {
+                    return URLDecoder.decode(parameter.substring(separator + 1), "UTF-8");
+                } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Decodes a path segment as the controllers see it, where a plus is a plus rather than a space.
+     */
+    private static String decode(String segment) {
+        try {
+            return URLDecoder.decode(segment.replace("+", "%2B"), "UTF-8");
+        } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+            return segment;
+        }
+    }
+
+}
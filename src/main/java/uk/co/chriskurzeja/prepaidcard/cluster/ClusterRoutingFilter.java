@@ -0,0 +1,98 @@
+package uk.co.chriskurzeja.prepaidcard.cluster;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Sends requests for cards this node does not own to the node that does, by forwarding or
+ * redirecting as {@code cluster.routing} says. A request that has already been forwarded once is
+ * refused with 421 rather than passed on again. Does nothing unless the node is part of a cluster.
+ */
+@Component
+public class ClusterRoutingFilter extends OncePerRequestFilter {
+
+    private static final Logger log = LoggerFactory.getLogger(ClusterRoutingFilter.class);
+
+    static final String OWNER = "X-Cluster-Owner";
+    private static final int MISDIRECTED_REQUEST = 421;
+
+    private final ClusterTopology topology;
+    private final ClusterForwarder forwarder;
+
+    @Autowired
+    public ClusterRoutingFilter(ClusterTopology topology, ClusterForwarder forwarder) {
+        this.topology = topology;
+        this.forwarder = forwarder;
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        return !topology.isEnabled();
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain) throws ServletException, IOException {
+        String path = request.getRequestURI().substring(request.getContextPath().length());
+        String query = request.getQueryString();
+        String owner = topology.ownerOfRequest(path, query);
+        if (owner == null || owner.equals(topology.getNodeId())) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        response.setHeader(OWNER, owner);
+        if (request.getHeader(ClusterForwarder.FORWARDED_BY) != null) {
+            text(response, MISDIRECTED_REQUEST, "Card is owned by node " + owner);
+            return;
+        }
+
+        String target = topology.urlOf(owner) + path + (query == null ? "" : "?" + query);
+        if (topology.getRouting() == ClusterTopology.Routing.REDIRECT) {
+            response.setStatus(HttpStatus.TEMPORARY_REDIRECT.value());
+            response.setHeader(HttpHeaders.LOCATION, target);
+            return;
+        }
+
+        ClusterForwarder.Response forwarded;
+        try {
+            forwarded = forwarder.forward(target, request.getMethod(), request.getContentType(),
+                    ClusterForwarder.readFully(request.getInputStream()), topology.getNodeId());
+        } catch (IOException e) {
+            log.warn("Could not forward {} {} to node {}", request.getMethod(), path, owner, e);
+            text(response, HttpStatus.BAD_GATEWAY.value(), "Node " + owner + ", which owns the card, could not be reached");
+            return;
+        }
+
+        response.setStatus(forwarded.getStatus());
+        if (forwarded.getContentType() != null) {
+            response.setContentType(forwarded.getContentType());
+        }
+        if (forwarded.getLocation() != null) {
+            response.setHeader(HttpHeaders.LOCATION, forwarded.getLocation());
+        }
+        response.setContentLength(forwarded.getBody().length);
+        response.getOutputStream().write(forwarded.getBody());
+    }
+
+    private static void text(HttpServletResponse response, int status, String message) throws IOException {
+        byte[] body = message.getBytes(StandardCharsets.UTF_8);
+        response.setStatus(status);
+        response.setContentType(MediaType.TEXT_PLAIN_VALUE + ";charset=UTF-8");
+        response.setContentLength(body.length);
+        response.getOutputStream().write(body);
+    }
+
+}
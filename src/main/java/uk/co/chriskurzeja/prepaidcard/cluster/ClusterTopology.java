@@ -0,0 +1,140 @@
+package uk.co.chriskurzeja.prepaidcard.cluster;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Which node of the cluster owns each card. Nodes are listed in {@code cluster.nodes} as
+ * {@code name=url} pairs, and every node, and any router in front of them, is given the same list;
+ * {@code cluster.node-id} names this one. Cards are placed on a {@link ConsistentHashRing} by id,
+ * and each node holds the balances and history of only the cards it owns.
+ * <p>
+ * A user's card is created by the node that owns the user id, which picks an id it also owns.
+ * That node then sees every card a user has, so a user still has at most one card across the
+ * cluster. The membership is fixed for the life of the process; changing it moves cards, and
+ * their state has to be moved with them.
+ * <p>
+ * With no nodes listed the application runs on its own and owns every card.
+ */
+@Component
+public class ClusterTopology {
+
+    public enum Routing {
+        /** Requests for another node's cards are proxied to it and its response relayed. */
+        FORWARD,
+        /** Requests for another node's cards are answered with a redirect to it. */
+        REDIRECT
+    }
+
+    private final String nodeId;
+    private final Map<String, String> nodes;
+    private final ConsistentHashRing ring;
+    private final Routing routing;
+
+    @Autowired
+    public ClusterTopology(@Value("${cluster.node-id:}") String nodeId,
+                           @Value("${cluster.nodes:}") String nodes,
+                           @Value("${cluster.points-per-node:128}") int pointsPerNode,
+                           @Value("${cluster.routing:forward}") String routing) {
+        this.nodes = parseNodes(nodes);
+        this.routing = Routing.valueOf(routing.trim().toUpperCase());
+        if (this.nodes.isEmpty()) {
+            this.nodeId = nodeId;
+            this.ring = null;
+        } else if (!this.nodes.containsKey(nodeId)) {
+            throw new IllegalStateException("cluster.node-id '" + nodeId + "' is not one of cluster.nodes " + this.nodes.keySet());
+        } else {
+            this.nodeId = nodeId;
+            this.ring = new ConsistentHashRing(this.nodes.keySet(), pointsPerNode);
+        }
+    }
+
+    public static ClusterTopology standalone() {
+        return new ClusterTopology("", "", 1, Routing.FORWARD.name());
+    }
+
+    /**
+     * Reads a list of {@code name=url} pairs separated by commas, keeping their order.
+     */
+    public static Map<String, String> parseNodes(String nodes) {
+        Map<String, String> parsed = new LinkedHashMap<>();
+        for (String node : nodes.split(",")) {
+            if (node.trim().isEmpty()) {
+                continue;
+            }
+
+            int separator = node.indexOf('=');
+            if (separator <= 0 || separator == node.length() - 1) {
+                throw new IllegalArgumentException("Cluster node '" + node.trim() + "' is not of the form name=url");
+            }
+            String url = node.substring(separator + 1).trim();
+            parsed.put(node.substring(0, separator).trim(), url.endsWith("/") ? url.substring(0, url.length() - 1) : url);
+        }
+        return Collections.unmodifiableMap(parsed);
+    }
+
+    public boolean isEnabled() {
+        return ring != null;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public Routing getRouting() {
+        return routing;
+    }
+
+    /**
+     * Every node of the cluster, this one included, in the order they are listed.
+     */
+    public Set<String> getNodes() {
+        return nodes.keySet();
+    }
+
+    public String urlOf(String node) {
+        return nodes.get(node);
+    }
+
+    public String ownerOf(UUID cardId) {
+        return isEnabled() ? ring.nodeFor(cardId) : nodeId;
+    }
+
+    public String ownerOfUser(String userId) {
+        return isEnabled() ? ring.nodeFor(userId) : nodeId;
+    }
+
+    public boolean isLocal(UUID cardId) {
+        return ownerOf(cardId).equals(nodeId);
+    }
+
+    public boolean isLocalUser(String userId) {
+        return ownerOfUser(userId).equals(nodeId);
+    }
+
+    /**
+     * @return the node that should handle a request to the given path, or null if any node can
+     */
+    public String ownerOfRequest(String path, String query) {
+        return isEnabled() ? ClusterRoutes.ownerOf(ring, path, query) : null;
+    }
+
+    /**
+     * A new random card id that this node owns. With n nodes this takes n tries on average.
+     */
+    public UUID newLocalCardId() {
+        UUID cardId = UUID.randomUUID();
+        while (!isLocal(cardId)) {
+            cardId = UUID.randomUUID();
+        }
+        return cardId;
+    }
+
+}
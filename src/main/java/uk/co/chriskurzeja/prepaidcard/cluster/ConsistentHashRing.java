@@ -0,0 +1,84 @@
+package uk.co.chriskurzeja.prepaidcard.cluster;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.UUID;
+
+/**
+ * Assigns keys to nodes by consistent hashing. Each node is placed on a 64-bit ring at a number
+ * of points hashed from its name, and a key belongs to the node at the first point at or after
+ * the key's own hash. Adding or removing a node only moves the keys between it and its
+ * neighbours, roughly one node's share of them, and every process given the same node names
+ * agrees on where every key lives.
+ */
+public final class ConsistentHashRing {
+
+    private final long[] points;
+    private final String[] owners;
+
+    public ConsistentHashRing(Collection<String> nodes, int pointsPerNode) {
+        if (nodes.isEmpty() || pointsPerNode < 1) {
+            throw new IllegalArgumentException("A ring needs at least one node and one point per node");
+        }
+
+        long[][] placed = new long[nodes.size() * pointsPerNode][];
+        String[] names = nodes.toArray(new String[0]);
+        int next = 0;
+        for (int node = 0; node < names.length; node++) {
+            for (int point = 0; point < pointsPerNode; point++) {
+                placed[next++] = new long[]{hash(names[node] + "#" + point), node};
+            }
+        }
+        // Ties between nodes are vanishingly unlikely, but are broken by name so that every process agrees
+        Arrays.sort(placed, (a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : names[(int) a[1]].compareTo(names[(int) b[1]]));
+
+        points = new long[placed.length];
+        owners = new String[placed.length];
+        for (int i = 0; i < placed.length; i++) {
+            points[i] = placed[i][0];
+            owners[i] = names[(int) placed[i][1]];
+        }
+    }
+
+    public String nodeFor(UUID key) {
+        return nodeAt(mix(key.getMostSignificantBits() ^ mix(key.getLeastSignificantBits())));
+    }
+
+    public String nodeFor(String key) {
+        return nodeAt(hash(key));
+    }
+
+    private String nodeAt(long hash) {
+        int i = Arrays.binarySearch(points, hash);
+        if (i < 0) {
+            i = -i - 1;
+        }
+        return owners[i == points.length ? 0 : i];
+    }
+
+    /**
+     * FNV-1a over the UTF-8 bytes, then mixed so that similar strings land far apart.
+     */
+    private static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+
+    /**
+     * The finalisation step of MurmurHash3, which spreads every input bit across the output.
+     */
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+
+}
@@ -0,0 +1,61 @@
+package uk.co.chriskurzeja.prepaidcard.config;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The executor that asynchronous requests run their blocking database work on, so that request
+ * threads are handed back to the container while a transaction is in flight. It is bounded in
+ * both threads and queued work; once both are full new work is rejected rather than queued
+ * without limit.
+ * <p>
+ * On a JVM with virtual threads the pool can be backed by them, which makes a much larger thread
+ * count affordable. They are looked up reflectively so the application still builds and runs on
+ * Java 8, where the setting falls back to platform threads.
+ */
+@Configuration
+public class PersistenceExecutorConfig {
+
+    private static final Logger log = LoggerFactory.getLogger(PersistenceExecutorConfig.class);
+
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService persistenceExecutor(@Value("${persistence.executor.threads:32}") int threads,
+                                               @Value("${persistence.executor.queue-capacity:10000}") int queueCapacity,
+                                               @Value("${persistence.executor.virtual-threads:false}") boolean virtualThreads) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), threadFactory(virtualThreads));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    static ThreadFactory threadFactory(boolean virtualThreads) {
+        if (virtualThreads) {
+            try {
+                Class<?> builder = Class.forName("java.lang.Thread$Builder");
+                Object virtual = Thread.class.getMethod("ofVirtual").invoke(null);
+                virtual = builder.getMethod("name", String.class, long.class).invoke(virtual, "persistence-", 0L);
+                return (ThreadFactory) builder.getMethod("factory").invoke(virtual);
+            } catch (ReflectiveOperationException e) {
+                log.warn("Virtual threads are not available on this JVM, using platform threads for persistence");
+            }
+        }
+
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, "persistence-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+}
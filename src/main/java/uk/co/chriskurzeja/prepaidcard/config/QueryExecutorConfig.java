@@ -0,0 +1,35 @@
+package uk.co.chriskurzeja.prepaidcard.config;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The executor that asynchronous reads of the projections run on. It is kept apart from the
+ * persistence executor so that a flood of history queries fills this pool and is turned away here,
+ * rather than taking the threads transactions are waiting for.
+ */
+@Configuration
+public class QueryExecutorConfig {
+
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService queryExecutor(@Value("${query.executor.threads:8}") int threads,
+                                         @Value("${query.executor.queue-capacity:1000}") int queueCapacity) {
+        AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+                    Thread thread = new Thread(runnable, "query-" + count.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+}
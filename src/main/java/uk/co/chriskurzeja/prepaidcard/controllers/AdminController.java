@@ -1,12 +1,25 @@
 package uk.co.chriskurzeja.prepaidcard.controllers;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.atlassian.fugue.Either;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 import uk.co.chriskurzeja.prepaidcard.card.UserService;
+import uk.co.chriskurzeja.prepaidcard.metrics.MetricsExporter;
+import uk.co.chriskurzeja.prepaidcard.model.UserPage;
+import uk.co.chriskurzeja.prepaidcard.projection.LedgerProjector;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.UUID;
 
 import static uk.co.chriskurzeja.prepaidcard.controllers.utils.EitherUtils.eitherToResponse;
 
@@ -14,21 +27,101 @@ import static uk.co.chriskurzeja.prepaidcard.controllers.utils.EitherUtils.eithe
 @RequestMapping("/api/admin")
 public class AdminController {
 
+    /**
+     * The cursor for the page after this one, on a page of users that is not the last.
+     */
+    static final String NEXT_CURSOR = "X-Next-Cursor";
+
     private final UserService userService;
+    private final MetricsExporter metricsExporter;
+    private final LedgerProjector ledgerProjector;
+    private final ObjectMapper objectMapper;
 
     @Autowired
-    public AdminController(UserService userService) {
+    public AdminController(UserService userService, MetricsExporter metricsExporter, LedgerProjector ledgerProjector,
+                           ObjectMapper objectMapper) {
         this.userService = userService;
+        this.metricsExporter = metricsExporter;
+        this.ledgerProjector = ledgerProjector;
+        this.objectMapper = objectMapper;
+    }
+
+    /**
+     * Every user id starting with {@code prefix} as a JSON array, in order, written as
+     * {@link #exportUsers} writes it. In a cluster each node lists the users whose cards it holds.
+     */
+    @RequestMapping(path = "users", method = RequestMethod.GET, params = {"!after", "!size"})
+    ResponseEntity<StreamingResponseBody> getUsers(@RequestParam(defaultValue = "") String prefix) {
+        return exportUsers(prefix);
     }
 
+    /**
+     * As {@link #getUsers(String)}, a page at a time. The page is a JSON array like the full list,
+     * and the cursor for the next page is in the {@value #NEXT_CURSOR} header.
+     */
     @RequestMapping(path = "users", method = RequestMethod.GET)
-    ResponseEntity<?> getUsers() {
-        return ResponseEntity.ok(userService.getUserIds());
+    ResponseEntity<?> getUserPage(@RequestParam(defaultValue = "") String prefix,
+                                  @RequestParam(defaultValue = "") String after,
+                                  @RequestParam(defaultValue = "100") int size) {
+        Either<String, UserPage> page = userService.getUserPage(prefix, after, size);
+        if (page.isLeft() || page.right().get().getNextCursor() == null) {
+            return eitherToResponse(page.map(UserPage::getUserIds));
+        }
+        return ResponseEntity.ok()
+                .header(NEXT_CURSOR, page.right().get().getNextCursor())
+                .body(page.right().get().getUserIds());
+    }
+
+    @RequestMapping(path = "users/count", method = RequestMethod.GET)
+    ResponseEntity<?> getUserCount() {
+        return ResponseEntity.ok(userService.getUserCount());
+    }
+
+    /**
+     * Writes every user id starting with {@code prefix} as a JSON array, as it is read from the
+     * database, so the response is never held in memory.
+     */
+    @RequestMapping(path = "users/export", method = RequestMethod.GET)
+    ResponseEntity<StreamingResponseBody> exportUsers(@RequestParam(defaultValue = "") String prefix) {
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON_UTF8).body(out -> writeUserIds(prefix, out));
+    }
+
+    @RequestMapping(path = "cache/cards", method = RequestMethod.GET)
+    ResponseEntity<?> getCardCacheStatistics() {
+        return ResponseEntity.ok(userService.getCardCacheStatistics());
+    }
+
+    @RequestMapping(path = "metrics", method = RequestMethod.GET, produces = MetricsExporter.CONTENT_TYPE)
+    ResponseEntity<String> getMetrics(@RequestParam(defaultValue = "10") int hottestCards) {
+        return ResponseEntity.ok(metricsExporter.scrape(hottestCards));
+    }
+
+    @RequestMapping(path = "projections", method = RequestMethod.GET)
+    ResponseEntity<?> getProjectionStatus() {
+        return ResponseEntity.ok(ledgerProjector.getStatus());
     }
 
     @RequestMapping(path = "users/user/cardId/{userId}", method = RequestMethod.GET)
     ResponseEntity<?> getCardIdForUser(@RequestParam String userId) {
-        return eitherToResponse(userService.getCardIdForUser(userId));
+        return eitherToResponse(userService.getCardIdForUser(userId).map(UUID::toString));
+    }
+
+    private void writeUserIds(String prefix, OutputStream out) throws IOException {
+        JsonGenerator json = objectMapper.getFactory().createGenerator(out);
+        json.writeStartArray();
+        try {
+            userService.forEachUserId(prefix, userId -> {
+                try {
+                    json.writeString(userId);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        json.writeEndArray();
+        json.flush();
     }
 
 }
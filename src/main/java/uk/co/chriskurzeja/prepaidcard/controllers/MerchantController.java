@@ -2,63 +2,265 @@ package uk.co.chriskurzeja.prepaidcard.controllers;
 
 import io.atlassian.fugue.Either;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import uk.co.chriskurzeja.prepaidcard.card.TransactionHistoryService;
 import uk.co.chriskurzeja.prepaidcard.card.TransactionService;
+import uk.co.chriskurzeja.prepaidcard.cluster.ClusterBatchForwarder;
+import uk.co.chriskurzeja.prepaidcard.cluster.ClusterForwarder;
+import uk.co.chriskurzeja.prepaidcard.cluster.ClusterMerchantReader;
+import uk.co.chriskurzeja.prepaidcard.cluster.ClusterTopology;
+import uk.co.chriskurzeja.prepaidcard.controllers.utils.CardIds;
+import uk.co.chriskurzeja.prepaidcard.model.BatchItemResult;
+import uk.co.chriskurzeja.prepaidcard.model.MerchantOperation;
+import uk.co.chriskurzeja.prepaidcard.model.MerchantSummary;
+import uk.co.chriskurzeja.prepaidcard.model.SpendRollup;
 import uk.co.chriskurzeja.prepaidcard.model.Transaction;
 import uk.co.chriskurzeja.prepaidcard.model.TransactionKey;
 import uk.co.chriskurzeja.prepaidcard.model.TransactionType;
+import uk.co.chriskurzeja.prepaidcard.projection.LedgerProjector;
+
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
 
 import static uk.co.chriskurzeja.prepaidcard.controllers.utils.EitherUtils.eitherToResponse;
+import static uk.co.chriskurzeja.prepaidcard.controllers.utils.EitherUtils.futureToResponse;
+import static uk.co.chriskurzeja.prepaidcard.controllers.utils.ProjectionHeaders.withWatermark;
 
 @RestController
 @RequestMapping("/api/merchant/{merchantName}")
 public class MerchantController {
 
+    private static final Either<String,TransactionType> AUTHORISE = Either.right(TransactionType.AUTHORISE_TRANSACTION);
+    private static final Either<String,TransactionType> CAPTURE = Either.right(TransactionType.CAPTURE_TRANSACTION_FUNDS);
+    private static final Either<String,TransactionType> REVERSE = Either.right(TransactionType.REVERSE_TRANSACTION);
+    private static final Either<String,TransactionType> REFUND = Either.right(TransactionType.REFUND_CAPTURED_FUNDS);
+
     private final TransactionService transactionService;
+    private final ClusterTopology topology;
+    private final ClusterBatchForwarder batchForwarder;
+    private final ClusterMerchantReader merchantReader;
+    private final TransactionHistoryService transactionHistoryService;
+    private final LedgerProjector ledgerProjector;
 
     @Autowired
-    public MerchantController(TransactionService transactionService) {
+    public MerchantController(TransactionService transactionService, ClusterTopology topology, ClusterBatchForwarder batchForwarder,
+                              ClusterMerchantReader merchantReader, TransactionHistoryService transactionHistoryService,
+                              LedgerProjector ledgerProjector) {
         this.transactionService = transactionService;
+        this.topology = topology;
+        this.batchForwarder = batchForwarder;
+        this.merchantReader = merchantReader;
+        this.transactionHistoryService = transactionHistoryService;
+        this.ledgerProjector = ledgerProjector;
+    }
+
+    /**
+     * The merchant's totals from the projections, with their watermark. In a cluster every node is
+     * asked for the totals on the cards it owns and they are added up, the watermark being the
+     * lowest of theirs; unless this request was itself forwarded, in which case only this node's
+     * are given.
+     */
+    @RequestMapping(path = "summary", method = RequestMethod.GET)
+    public CompletableFuture<ResponseEntity<?>> getSummary(
+            @PathVariable String merchantName,
+            @RequestHeader(name = ClusterForwarder.FORWARDED_BY, required = false) String forwardedBy) {
+        long watermark = ledgerProjector.getWatermark();
+        CompletableFuture<Either<String, MerchantSummary>> summary = transactionHistoryService.getMerchantSummaryAsync(merchantName);
+        if (!topology.isEnabled() || forwardedBy != null) {
+            return withWatermark(watermark, eitherToResponse(summary));
+        }
+
+        return futureToResponse(summary.thenCombine(merchantReader.getSummaries(merchantName), (local, others) -> {
+            if (others.isLeft()) {
+                return withWatermark(0L, unavailable(others.left().get()));
+            }
+
+            List<MerchantSummary> summaries = new ArrayList<>(others.right().get().getValue());
+            if (local.isRight()) {
+                summaries.add(local.right().get());
+            }
+            long clusterWatermark = Math.min(watermark, others.right().get().getWatermark());
+            return withWatermark(clusterWatermark, summaries.stream().reduce(MerchantSummary::plus)
+                    .<ResponseEntity<?>>map(ResponseEntity::ok)
+                    .orElseGet(() -> eitherToResponse(local)));
+        }), response -> response);
+    }
+
+    /**
+     * The merchant's totals for each UTC day from {@code from} to {@code to}, given as ISO dates
+     * and both defaulting to today, from the projections with their watermark. In a cluster every
+     * node's totals are added up, as for the summary.
+     */
+    @RequestMapping(path = "volume", method = RequestMethod.GET)
+    public CompletableFuture<ResponseEntity<?>> getVolume(@PathVariable String merchantName,
+                                                          @RequestParam(required = false) String from,
+                                                          @RequestParam(required = false) String to,
+                                                          @RequestHeader(name = ClusterForwarder.FORWARDED_BY, required = false) String forwardedBy) {
+        long watermark = ledgerProjector.getWatermark();
+        LocalDate today = LocalDate.now(ZoneOffset.UTC);
+        Either<String, LocalDate> fromDay = dayFromString(from, today);
+        Either<String, LocalDate> toDay = dayFromString(to, today);
+        if (fromDay.isLeft()) {
+            return CompletableFuture.completedFuture(eitherToResponse(fromDay));
+        } else if (toDay.isLeft()) {
+            return CompletableFuture.completedFuture(eitherToResponse(toDay));
+        }
+
+        CompletableFuture<Either<String, List<SpendRollup>>> volume =
+                transactionHistoryService.getMerchantVolumeAsync(merchantName, fromDay.right().get(), toDay.right().get());
+        if (!topology.isEnabled() || forwardedBy != null) {
+            return withWatermark(watermark, eitherToResponse(volume));
+        }
+
+        return futureToResponse(volume.thenCombine(merchantReader.getVolumes(merchantName, fromDay.right().get(), toDay.right().get()), (local, others) -> {
+            if (local.isLeft()) {
+                return withWatermark(watermark, eitherToResponse(local));
+            } else if (others.isLeft()) {
+                return withWatermark(0L, unavailable(others.left().get()));
+            }
+
+            Map<Long, SpendRollup> days = new TreeMap<>();
+            local.right().get().forEach(day -> days.merge(day.getPeriodStart(), day, SpendRollup::plus));
+            others.right().get().getValue().forEach(day -> days.merge(day.getPeriodStart(), day, SpendRollup::plus));
+            long clusterWatermark = Math.min(watermark, others.right().get().getWatermark());
+            return withWatermark(clusterWatermark, ResponseEntity.ok(new ArrayList<>(days.values())));
+        }), response -> response);
     }
 
     @RequestMapping(path = "{action}/{cardId}/{transactionId}/{amountInPence}", method = RequestMethod.POST)
-    public ResponseEntity<?> authoriseTransaction(
+    public CompletableFuture<ResponseEntity<?>> authoriseTransaction(
             @PathVariable String merchantName,
             @PathVariable String action,
             @PathVariable String cardId,
             @PathVariable String transactionId,
             @PathVariable long amountInPence) {
 
-        Either<String,TransactionType> transactionType = transactionTypeFromString(action);
-        if (transactionType.isRight()) {
-            Transaction transaction = buildTransaction(merchantName, cardId, transactionId, amountInPence, transactionType.right().get());
-            return eitherToResponse(transactionService.handleTransaction(transaction));
+        Either<String,Transaction> transaction = transactionTypeFromString(action)
+                .flatMap(type -> CardIds.parse(cardId).map(card -> buildTransaction(merchantName, card, transactionId, amountInPence, type)));
+        if (transaction.isRight()) {
+            return eitherToResponse(transactionService.handleTransactionAsync(transaction.right().get()));
         } else {
-            return eitherToResponse(transactionType);
+            return CompletableFuture.completedFuture(eitherToResponse(transaction));
+        }
+    }
+
+    /**
+     * Handles each item of the batch, returning a result for every one in the order given. In a
+     * cluster, items for cards another node owns are sent on to it as a batch of their own, unless
+     * this batch was itself forwarded, in which case they are rejected.
+     */
+    @RequestMapping(path = "batch", method = RequestMethod.POST)
+    public CompletableFuture<ResponseEntity<?>> handleBatch(
+            @PathVariable String merchantName,
+            @RequestBody List<MerchantOperation> operations,
+            @RequestHeader(name = ClusterForwarder.FORWARDED_BY, required = false) String forwardedBy) {
+
+        List<Either<String, Object>> results = new ArrayList<>(Collections.nCopies(operations.size(), null));
+        List<Integer> handledItems = new ArrayList<>(operations.size());
+        List<Transaction> transactions = new ArrayList<>(operations.size());
+        Map<String, List<Integer>> remoteItems = new LinkedHashMap<>();
+        for (int i = 0; i < operations.size(); i++) {
+            MerchantOperation operation = operations.get(i);
+            Either<String,TransactionType> transactionType = transactionTypeFromString(operation.getAction());
+            Either<String,UUID> card = CardIds.parse(operation.getCardId());
+            if (operation.getCardId() == null || operation.getTransactionId() == null) {
+                results.set(i, Either.left("Batch item must have a card_id and a transaction_id"));
+            } else if (transactionType.isLeft()) {
+                results.set(i, Either.left(transactionType.left().get()));
+            } else if (card.isLeft()) {
+                results.set(i, Either.left(card.left().get()));
+            } else if (!topology.isLocal(card.right().get())) {
+                String owner = topology.ownerOf(card.right().get());
+                if (forwardedBy != null) {
+                    results.set(i, Either.left("Card is owned by node " + owner));
+                } else {
+                    remoteItems.computeIfAbsent(owner, k -> new ArrayList<>()).add(i);
+                }
+            } else {
+                handledItems.add(i);
+                transactions.add(buildTransaction(merchantName, card.right().get(), operation.getTransactionId(), operation.getAmountInPence(), transactionType.right().get()));
+            }
         }
+
+        CompletableFuture<?>[] forwarded = remoteItems.entrySet().stream()
+                .map(remote -> {
+                    List<Integer> items = remote.getValue();
+                    return batchForwarder.forward(remote.getKey(), merchantName, items.stream().map(operations::get).collect(Collectors.toList()))
+                            .thenAccept(handled -> {
+                                for (int i = 0; i < items.size(); i++) {
+                                    results.set(items.get(i), handled.get(i));
+                                }
+                            });
+                })
+                .toArray(CompletableFuture[]::new);
+
+        return futureToResponse(transactionService.handleBatchAsync(transactions).thenCombine(CompletableFuture.allOf(forwarded), (handled, ignored) -> handled), handled -> {
+            for (int i = 0; i < handledItems.size(); i++) {
+                results.set(handledItems.get(i), handled.get(i));
+            }
+
+            List<BatchItemResult> response = new ArrayList<>(results.size());
+            for (int i = 0; i < results.size(); i++) {
+                response.add(new BatchItemResult(i, results.get(i)));
+            }
+            return ResponseEntity.ok(response);
+        });
+    }
+
+    private static ResponseEntity<?> unavailable(String reason) {
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(reason);
     }
 
     private Either<String,TransactionType> transactionTypeFromString(String action) {
+        if (action == null) {
+            return Either.left("Missing transaction type");
+        }
+
         switch (action) {
             case "authorise":
-                return Either.right(TransactionType.AUTHORISE_TRANSACTION);
+                return AUTHORISE;
             case "capture":
-                return Either.right(TransactionType.CAPTURE_TRANSACTION_FUNDS);
+                return CAPTURE;
             case "reverse":
-                return Either.right(TransactionType.REVERSE_TRANSACTION);
+                return REVERSE;
             case "refund":
-                return Either.right(TransactionType.REFUND_CAPTURED_FUNDS);
+                return REFUND;
             default:
                 return Either.left("Unknown transaction type " + action);
         }
     }
 
-    private Transaction buildTransaction(String merchant, String cardId, String transactionId, long amountInPence, TransactionType type) {
+    private Either<String,LocalDate> dayFromString(String day, LocalDate defaultDay) {
+        if (day == null) {
+            return Either.right(defaultDay);
+        }
+
+        try {
+            return Either.right(LocalDate.parse(day));
+        } catch (DateTimeParseException e) {
+            return Either.left("Invalid date " + day);
+        }
+    }
+
+    private Transaction buildTransaction(String merchant, UUID cardId, String transactionId, long amountInPence, TransactionType type) {
         return new Transaction(
                 new TransactionKey(transactionId, cardId),
                 merchant,
@@ -1,23 +1,40 @@
 package uk.co.chriskurzeja.prepaidcard.controllers;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.atlassian.fugue.Either;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import uk.co.chriskurzeja.prepaidcard.card.TransactionHistoryService;
 import uk.co.chriskurzeja.prepaidcard.card.TransactionService;
 import uk.co.chriskurzeja.prepaidcard.card.UserService;
+import uk.co.chriskurzeja.prepaidcard.controllers.utils.CardIds;
+import uk.co.chriskurzeja.prepaidcard.controllers.utils.ProjectionHeaders;
+import uk.co.chriskurzeja.prepaidcard.model.BalanceSummary;
+import uk.co.chriskurzeja.prepaidcard.model.Card;
+import uk.co.chriskurzeja.prepaidcard.model.SpendPeriod;
 import uk.co.chriskurzeja.prepaidcard.model.Transaction;
 import uk.co.chriskurzeja.prepaidcard.model.TransactionKey;
 import uk.co.chriskurzeja.prepaidcard.model.TransactionType;
-
-import java.util.List;
+import uk.co.chriskurzeja.prepaidcard.projection.LedgerProjector;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Function;
-import java.util.function.Predicate;
 
 import static uk.co.chriskurzeja.prepaidcard.controllers.utils.EitherUtils.eitherToResponse;
+import static uk.co.chriskurzeja.prepaidcard.controllers.utils.ProjectionHeaders.withWatermark;
 
 @RestController
 @RequestMapping("/api/card")
@@ -25,75 +42,154 @@ public class UserCardController {
 
     private final UserService userService;
     private final TransactionService transactionService;
+    private final TransactionHistoryService transactionHistoryService;
+    private final LedgerProjector ledgerProjector;
+    private final ObjectMapper objectMapper;
 
     @Autowired
-    public UserCardController(UserService userService, TransactionService transactionService) {
+    public UserCardController(UserService userService, TransactionService transactionService,
+                              TransactionHistoryService transactionHistoryService, LedgerProjector ledgerProjector,
+                              ObjectMapper objectMapper) {
         this.userService = userService;
         this.transactionService = transactionService;
+        this.transactionHistoryService = transactionHistoryService;
+        this.ledgerProjector = ledgerProjector;
+        this.objectMapper = objectMapper;
     }
 
     @RequestMapping(path = "create/{userId}", method = RequestMethod.GET)
     ResponseEntity<?> createCard(@PathVariable String userId) {
-        return eitherToResponse(userService.createCardForUser(userId));
+        return eitherToResponse(userService.createCardForUser(userId).map(UUID::toString));
     }
 
     @RequestMapping(path = "load/{cardId}/{requestId}/{amountInPence}", method = RequestMethod.GET)
-    ResponseEntity<?> loadMoney(@PathVariable String cardId, @PathVariable String requestId, @PathVariable long amountInPence) {
-        Transaction transaction = new Transaction(
-                new TransactionKey(requestId, cardId),
-                "user",
-                amountInPence,
-                TransactionType.LOAD_FUNDS
-        );
-
-        return eitherToResponse(transactionService.handleTransaction(transaction));
+    CompletableFuture<ResponseEntity<?>> loadMoney(@PathVariable String cardId, @PathVariable String requestId, @PathVariable long amountInPence) {
+        return forCard(cardId, card -> {
+            Transaction transaction = new Transaction(
+                    new TransactionKey(requestId, card),
+                    "user",
+                    amountInPence,
+                    TransactionType.LOAD_FUNDS
+            );
+
+            return eitherToResponse(transactionService.handleTransactionAsync(transaction));
+        });
     }
 
+    /**
+     * The history routes read from the projections, which trail the ledger slightly; each response
+     * carries the projections' watermark.
+     */
     @RequestMapping(path = "transactions/{cardId}", method = RequestMethod.GET)
-    ResponseEntity<?> getTransactions(@PathVariable String cardId) {
-        return eitherToResponse(transactionService.getTransactions(cardId));
+    CompletableFuture<ResponseEntity<?>> getTransactions(@PathVariable String cardId) {
+        long watermark = ledgerProjector.getWatermark();
+        return withWatermark(watermark, forCard(cardId, card -> eitherToResponse(transactionHistoryService.getTransactionsAsync(card))));
+    }
+
+    @RequestMapping(path = "transactions/{cardId}/page", method = RequestMethod.GET)
+    CompletableFuture<ResponseEntity<?>> getTransactionPage(@PathVariable String cardId,
+                                                            @RequestParam(defaultValue = "0") long after,
+                                                            @RequestParam(defaultValue = "100") int size) {
+        long watermark = ledgerProjector.getWatermark();
+        return withWatermark(watermark, forCard(cardId, card -> eitherToResponse(transactionHistoryService.getPageAsync(card, after, size))));
+    }
+
+    /**
+     * What the card spent with each merchant in the hour, day or, by default, all time up to
+     * {@code at}, which defaults to now.
+     */
+    @RequestMapping(path = "transactions/{cardId}/spend", method = RequestMethod.GET)
+    CompletableFuture<ResponseEntity<?>> getSpend(@PathVariable String cardId,
+                                                  @RequestParam(defaultValue = "all") String period,
+                                                  @RequestParam(required = false) Long at) {
+        long watermark = ledgerProjector.getWatermark();
+        Either<String, SpendPeriod> spendPeriod = spendPeriodFromString(period);
+        if (spendPeriod.isLeft()) {
+            return CompletableFuture.completedFuture(eitherToResponse(spendPeriod));
+        }
+        long time = at == null ? System.currentTimeMillis() : at;
+        return withWatermark(watermark, forCard(cardId, card -> eitherToResponse(transactionHistoryService.getCardSpendAsync(card, spendPeriod.right().get(), time))));
+    }
+
+    /**
+     * Writes the card's whole history as a JSON array, a row at a time as it is read from the
+     * projections, so the response is never held in memory.
+     */
+    @RequestMapping(path = "transactions/{cardId}/stream", method = RequestMethod.GET)
+    ResponseEntity<StreamingResponseBody> streamTransactions(@PathVariable String cardId) {
+        Either<String, Card> card = CardIds.parse(cardId).flatMap(userService::getCard);
+        if (card.isLeft()) {
+            byte[] reason = card.left().get().getBytes(StandardCharsets.UTF_8);
+            return ResponseEntity.badRequest().contentType(MediaType.TEXT_PLAIN).body(out -> out.write(reason));
+        }
+
+        UUID id = card.right().get().getId();
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON_UTF8)
+                .header(ProjectionHeaders.WATERMARK, Long.toString(ledgerProjector.getWatermark()))
+                .body(out -> writeTransactions(id, out));
+    }
+
+    @RequestMapping(path = "balance/{cardId}", method = RequestMethod.GET)
+    ResponseEntity<?> getBalance(@PathVariable String cardId) {
+        return eitherToResponse(balanceOf(cardId));
     }
 
     @RequestMapping(path = "balance/loaded/{cardId}", method = RequestMethod.GET)
     ResponseEntity<?> getLoadedAmount(@PathVariable String cardId) {
-        return eitherToResponse(transactionService.getTransactions(cardId).map(this::getAmountLoaded));
+        return eitherToResponse(balanceOf(cardId).map(BalanceSummary::getLoaded));
     }
 
     @RequestMapping(path = "balance/available/{cardId}", method = RequestMethod.GET)
     ResponseEntity<?> getAvailableAmount(@PathVariable String cardId)  {
-        return eitherToResponse(transactionService.getTransactions(cardId).map(this::getAmountAvailable));
+        return eitherToResponse(balanceOf(cardId).map(BalanceSummary::getAvailable));
     }
 
     @RequestMapping(path = "balance/blocked/{cardId}", method = RequestMethod.GET)
     ResponseEntity<?> getBlockedAmount(@PathVariable String cardId)  {
-        return eitherToResponse(transactionService.getTransactions(cardId).map(this::getAmountBlocked));
+        return eitherToResponse(balanceOf(cardId).map(BalanceSummary::getBlocked));
     }
 
-    private long getAmountLoaded(List<Transaction> transactions) {
-        Predicate<Transaction> filter = t -> t.getTransactionType() == TransactionType.LOAD_FUNDS;
-        return filterMapReduceTransactions(transactions, filter, Transaction::getAmount);
+    private Either<String, BalanceSummary> balanceOf(String cardId) {
+        return CardIds.parse(cardId).flatMap(transactionService::getBalance);
     }
 
-    private long getAmountAvailable(List<Transaction> transactions) {
-        Predicate<Transaction> filter = t -> t.getTransactionType() != TransactionType.CAPTURE_TRANSACTION_FUNDS;
-        Function<Transaction,Long> map = t -> (t.getTransactionType() == TransactionType.AUTHORISE_TRANSACTION) ? -t.getAmount() : t.getAmount();
-
-        return filterMapReduceTransactions(transactions, filter, map);
+    private static Either<String, SpendPeriod> spendPeriodFromString(String period) {
+        switch (period) {
+            case "hour":
+                return Either.right(SpendPeriod.HOUR);
+            case "day":
+                return Either.right(SpendPeriod.DAY);
+            case "all":
+                return Either.right(SpendPeriod.ALL);
+            default:
+                return Either.left("Unknown spend period " + period);
+        }
     }
 
-    private long getAmountBlocked(List<Transaction> transactions) {
-        Predicate<Transaction> filter = t -> t.getTransactionType() != TransactionType.LOAD_FUNDS;
-        Function<Transaction, Long> map = t -> (t.getTransactionType() == TransactionType.AUTHORISE_TRANSACTION) ? t.getAmount() : -t.getAmount();
-
-        return filterMapReduceTransactions(transactions, filter, map);
+    private static CompletableFuture<ResponseEntity<?>> forCard(String cardId, Function<UUID, CompletableFuture<ResponseEntity<?>>> operation) {
+        Either<String, UUID> card = CardIds.parse(cardId);
+        return card.isRight() ?
+                operation.apply(card.right().get()) :
+                CompletableFuture.completedFuture(eitherToResponse(card));
     }
 
-    private long filterMapReduceTransactions(List<Transaction> transactions, Predicate<Transaction> filter, Function<Transaction,Long> map) {
-        return transactions.stream()
-                .filter(filter)
-                .map(map)
-                .reduce((a,b) -> a + b)
-                .orElse(0L);
+    private void writeTransactions(UUID cardId, OutputStream out) throws IOException {
+        JsonGenerator json = objectMapper.getFactory().createGenerator(out);
+        json.writeStartArray();
+        try {
+            transactionHistoryService.forEachTransaction(cardId, transaction -> {
+                try {
+                    json.writeObject(transaction);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        json.writeEndArray();
+        json.flush();
     }
 
 }
@@ -0,0 +1,57 @@
+package uk.co.chriskurzeja.prepaidcard.controllers.utils;
+
+import io.atlassian.fugue.Either;
+
+import java.util.UUID;
+
+/**
+ * Turns the card ids clients send into the {@link UUID}s used everywhere behind the controllers.
+ * Only the canonical 36 character form is accepted: {@link UUID#fromString(String)} also takes
+ * shortened groups, which would let two different strings name the same card.
+ */
+public class CardIds {
+
+    private static final int LENGTH = 36;
+
+    public static Either<String, UUID> parse(String cardId) {
+        if (cardId == null || cardId.length() != LENGTH) {
+            return Either.left("Card does not exist");
+        }
+
+        long mostSigBits = 0L;
+        long leastSigBits = 0L;
+        int digits = 0;
+        for (int i = 0; i < LENGTH; i++) {
+            char c = cardId.charAt(i);
+            if (i == 8 || i == 13 || i == 18 || i == 23) {
+                if (c != '-') {
+                    return Either.left("Card does not exist");
+                }
+                continue;
+            }
+
+            int digit = hexDigit(c);
+            if (digit < 0) {
+                return Either.left("Card does not exist");
+            }
+            if (digits++ < 16) {
+                mostSigBits = mostSigBits << 4 | digit;
+            } else {
+                leastSigBits = leastSigBits << 4 | digit;
+            }
+        }
+        return Either.right(new UUID(mostSigBits, leastSigBits));
+    }
+
+    private static int hexDigit(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        } else if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        } else if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        return -1;
+    }
+
+}
@@ -1,8 +1,14 @@
 package uk.co.chriskurzeja.prepaidcard.controllers.utils;
 
 import io.atlassian.fugue.Either;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
+
 public class EitherUtils {
 
     public static <L,R> ResponseEntity<?> eitherToResponse(Either<L,R> result) {
@@ -11,4 +17,29 @@ public class EitherUtils {
                 ResponseEntity.badRequest().body(result.left().get());
     }
 
+    /**
+     * As {@link #eitherToResponse(Either)}, once the result is ready.
+     */
+    public static <L,R> CompletableFuture<ResponseEntity<?>> eitherToResponse(CompletableFuture<Either<L,R>> result) {
+        return futureToResponse(result, either -> eitherToResponse(either));
+    }
+
+    /**
+     * Builds the response once the result is ready. Work turned away because the server is
+     * saturated is reported as unavailable so the client knows to retry.
+     */
+    public static <T> CompletableFuture<ResponseEntity<?>> futureToResponse(CompletableFuture<T> result, Function<T, ResponseEntity<?>> toResponse) {
+        return result.handle((value, error) -> {
+            if (error == null) {
+                return toResponse.apply(value);
+            }
+
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            if (cause instanceof RejectedExecutionException) {
+                return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body("Server is busy, please retry");
+            }
+            throw error instanceof CompletionException ? (CompletionException) error : new CompletionException(error);
+        });
+    }
+
 }
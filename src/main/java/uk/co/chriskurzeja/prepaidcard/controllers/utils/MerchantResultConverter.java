@@ -0,0 +1,47 @@
+package uk.co.chriskurzeja.prepaidcard.controllers.utils;
+
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+import org.springframework.stereotype.Component;
+import uk.co.chriskurzeja.prepaidcard.model.MerchantTransactionResult;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes {@link MerchantTransactionResult} responses, the most frequent the service sends, with a
+ * {@link MerchantResultWriter} kept per thread rather than through Jackson. The JSON is the same.
+ */
+@Component
+public class MerchantResultConverter extends AbstractHttpMessageConverter<MerchantTransactionResult> {
+
+    private final ThreadLocal<MerchantResultWriter> writers = ThreadLocal.withInitial(MerchantResultWriter::new);
+
+    public MerchantResultConverter() {
+        super(StandardCharsets.UTF_8, MediaType.APPLICATION_JSON);
+    }
+
+    @Override
+    protected boolean supports(Class<?> clazz) {
+        return MerchantTransactionResult.class == clazz;
+    }
+
+    @Override
+    protected boolean canRead(MediaType mediaType) {
+        return false;
+    }
+
+    @Override
+    protected MerchantTransactionResult readInternal(Class<? extends MerchantTransactionResult> clazz, HttpInputMessage inputMessage) {
+        throw new HttpMessageNotReadableException("Merchant results are only ever written");
+    }
+
+    @Override
+    protected void writeInternal(MerchantTransactionResult result, HttpOutputMessage outputMessage) throws IOException {
+        writers.get().write(result).writeTo(outputMessage.getBody());
+    }
+
+}
@@ -0,0 +1,200 @@
+package uk.co.chriskurzeja.prepaidcard.controllers.utils;
+
+import uk.co.chriskurzeja.prepaidcard.model.MerchantTransactionResult;
+import uk.co.chriskurzeja.prepaidcard.model.TransactionType;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Writes the result of a merchant operation as the same JSON Jackson produces for a
+ * {@link MerchantTransactionResult}, into a byte array that is sized up front and reused for
+ * every result. Once the array is large enough for the longest ids seen, writing a result
+ * allocates nothing. Not thread safe; each thread keeps its own.
+ */
+public final class MerchantResultWriter {
+
+    private static final int INITIAL_CAPACITY = 512;
+    private static final int LONG_DIGITS = 20;
+
+    private static final byte[] CARD_ID = ascii("{\"card_id\":\"");
+    private static final byte[] MERCHANT = ascii("\",\"merchant\":");
+    private static final byte[] TRANSACTION_ID = ascii(",\"transaction_id\":");
+    private static final byte[] BLOCKED = ascii(",\"blocked\":");
+    private static final byte[] CAPTURED = ascii(",\"captured\":");
+    private static final byte[] TRANSACTION_TYPE = ascii(",\"transaction_type\":\"");
+    private static final byte[] END = ascii("\"}");
+    private static final byte[] NULL = ascii("null");
+    private static final byte[] HEX = ascii("0123456789abcdef");
+    private static final byte[] ESCAPE_HEX = ascii("0123456789ABCDEF");
+    private static final byte[][] TYPES = Arrays.stream(TransactionType.values()).map(type -> ascii(type.name())).toArray(byte[][]::new);
+
+    private byte[] buffer = new byte[INITIAL_CAPACITY];
+    private int length = 0;
+
+    public MerchantResultWriter write(MerchantTransactionResult result) {
+        return write(result.getCardId(), result.getMerchant(), result.getTransactionId(), result.getBlocked(), result.getCaptured(),
+                result.getTransactionType());
+    }
+
+    public MerchantResultWriter write(UUID cardId, String merchant, String transactionId, long blocked, long captured, TransactionType type) {
+        length = 0;
+        put(CARD_ID);
+        putUuid(cardId);
+        put(MERCHANT);
+        putString(merchant);
+        put(TRANSACTION_ID);
+        putString(transactionId);
+        put(BLOCKED);
+        putLong(blocked);
+        put(CAPTURED);
+        putLong(captured);
+        put(TRANSACTION_TYPE);
+        put(TYPES[type.ordinal()]);
+        put(END);
+        return this;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(buffer, 0, length);
+    }
+
+    @Override
+    public String toString() {
+        return new String(buffer, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private void put(byte[] bytes) {
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buffer, length, bytes.length);
+        length += bytes.length;
+    }
+
+    private void putUuid(UUID uuid) {
+        ensure(36);
+        long mostSigBits = uuid.getMostSignificantBits();
+        long leastSigBits = uuid.getLeastSignificantBits();
+        putHex(mostSigBits >>> 32, 8);
+        buffer[length++] = '-';
+        putHex(mostSigBits >>> 16, 4);
+        buffer[length++] = '-';
+        putHex(mostSigBits, 4);
+        buffer[length++] = '-';
+        putHex(leastSigBits >>> 48, 4);
+        buffer[length++] = '-';
+        putHex(leastSigBits, 12);
+    }
+
+    private void putHex(long value, int digits) {
+        for (int i = digits - 1; i >= 0; i--) {
+            buffer[length + i] = HEX[(int) (value & 0xF)];
+            value >>>= 4;
+        }
+        length += digits;
+    }
+
+    private void putLong(long value) {
+        ensure(LONG_DIGITS);
+        if (value < 0) {
+            buffer[length++] = '-';
+        } else {
+            value = -value;
+        }
+
+        int digits = 1;
+        for (long rest = value / 10; rest != 0; rest /= 10) {
+            digits++;
+        }
+        for (int i = length + digits - 1; i >= length; i--) {
+            buffer[i] = (byte) ('0' - value % 10);
+            value /= 10;
+        }
+        length += digits;
+    }
+
+    /**
+     * Writes a quoted string, escaped as Jackson escapes it: quotes, backslashes and control
+     * characters, with everything else as UTF-8.
+     */
+    private void putString(String value) {
+        if (value == null) {
+            put(NULL);
+            return;
+        }
+
+        ensure(2 + value.length() * 6);
+        buffer[length++] = '"';
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                buffer[length++] = '\\';
+                buffer[length++] = (byte) c;
+            } else if (c < 0x20) {
+                putEscaped(c);
+            } else if (c < 0x80) {
+                buffer[length++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[length++] = (byte) (0xC0 | c >> 6);
+                buffer[length++] = (byte) (0x80 | c & 0x3F);
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                buffer[length++] = (byte) (0xF0 | codePoint >> 18);
+                buffer[length++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+                buffer[length++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+                buffer[length++] = (byte) (0x80 | codePoint & 0x3F);
+            } else if (Character.isSurrogate(c)) {
+                buffer[length++] = '?';
+            } else {
+                buffer[length++] = (byte) (0xE0 | c >> 12);
+                buffer[length++] = (byte) (0x80 | c >> 6 & 0x3F);
+                buffer[length++] = (byte) (0x80 | c & 0x3F);
+            }
+        }
+        buffer[length++] = '"';
+    }
+
+    private void putEscaped(char c) {
+        buffer[length++] = '\\';
+        switch (c) {
+            case '\b':
+                buffer[length++] = 'b';
+                return;
+            case '\t':
+                buffer[length++] = 't';
+                return;
+            case '\n':
+                buffer[length++] = 'n';
+                return;
+            case '\f':
+                buffer[length++] = 'f';
+                return;
+            case '\r':
+                buffer[length++] = 'r';
+                return;
+            default:
+                buffer[length++] = 'u';
+                buffer[length++] = '0';
+                buffer[length++] = '0';
+                buffer[length++] = ESCAPE_HEX[c >> 4];
+                buffer[length++] = ESCAPE_HEX[c & 0xF];
+        }
+    }
+
+    private void ensure(int bytes) {
+        if (length + bytes > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + bytes));
+        }
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+
+}
@@ -0,0 +1,49 @@
+package uk.co.chriskurzeja.prepaidcard.controllers.utils;
+
+import org.springframework.http.ResponseEntity;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Marks responses read from the projections with how current they are, so a client can tell
+ * whether a write it has just made could be in them.
+ */
+public final class ProjectionHeaders {
+
+    /**
+     * Every transaction the ledger recorded before this time, in milliseconds since the epoch, is
+     * in the response; 0 while the projections are being rebuilt.
+     */
+    public static final String WATERMARK = "X-Projection-Watermark";
+
+    private ProjectionHeaders() {
+
+    }
+
+    /**
+     * @param watermark the projections' watermark as it was before they were read
+     */
+    public static CompletableFuture<ResponseEntity<?>> withWatermark(long watermark, CompletableFuture<ResponseEntity<?>> response) {
+        return response.thenApply(entity -> withWatermark(watermark, entity));
+    }
+
+    public static ResponseEntity<?> withWatermark(long watermark, ResponseEntity<?> entity) {
+        return ResponseEntity.status(entity.getStatusCode())
+                .headers(entity.getHeaders())
+                .header(WATERMARK, Long.toString(watermark))
+                .body(entity.getBody());
+    }
+
+    /**
+     * The watermark a response from another node carries, or 0 if it has none, so that nothing
+     * is claimed for it.
+     */
+    public static long watermarkOf(String header) {
+        try {
+            return header == null ? 0L : Long.parseLong(header);
+        } catch (NumberFormatException e) {
+            return 0L;
+        }
+    }
+
+}
@@ -0,0 +1,44 @@
+package uk.co.chriskurzeja.prepaidcard.data.jpa.repository;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import uk.co.chriskurzeja.prepaidcard.model.VersionedCardBalance;
+
+import java.util.UUID;
+
+/**
+ * Changes a card's balances with single conditional updates, so the check and the change are one
+ * statement in the database and no instance acts on a balance another has already moved. Each
+ * returns the number of rows changed; none means the card has no row yet or, for a block, that the
+ * funds were not there.
+ */
+public interface CardBalanceRepository extends JpaRepository<VersionedCardBalance, UUID> {
+
+    @Modifying
+    @Query("update VersionedCardBalance b set b.loaded = b.loaded + :amount, b.balance = b.balance + :amount, " +
+            "b.version = b.version + 1 where b.cardId = :cardId")
+    int load(@Param("cardId") UUID cardId, @Param("amount") long amount);
+
+    @Modifying
+    @Query("update VersionedCardBalance b set b.balance = b.balance - :amount, b.blocked = b.blocked + :amount, " +
+            "b.version = b.version + 1 where b.cardId = :cardId and b.balance >= :amount")
+    int block(@Param("cardId") UUID cardId, @Param("amount") long amount);
+
+    @Modifying
+    @Query("update VersionedCardBalance b set b.blocked = b.blocked - :amount, b.captured = b.captured + :amount, " +
+            "b.version = b.version + 1 where b.cardId = :cardId and b.blocked >= :amount")
+    int capture(@Param("cardId") UUID cardId, @Param("amount") long amount);
+
+    @Modifying
+    @Query("update VersionedCardBalance b set b.blocked = b.blocked - :amount, b.balance = b.balance + :amount, " +
+            "b.version = b.version + 1 where b.cardId = :cardId and b.blocked >= :amount")
+    int reverse(@Param("cardId") UUID cardId, @Param("amount") long amount);
+
+    @Modifying
+    @Query("update VersionedCardBalance b set b.captured = b.captured - :amount, b.balance = b.balance + :amount, " +
+            "b.version = b.version + 1 where b.cardId = :cardId and b.captured >= :amount")
+    int refund(@Param("cardId") UUID cardId, @Param("amount") long amount);
+
+}
@@ -1,14 +1,34 @@
 package uk.co.chriskurzeja.prepaidcard.data.jpa.repository;
 
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
 import uk.co.chriskurzeja.prepaidcard.model.Card;
 
+import javax.persistence.QueryHint;
 import java.util.List;
+import java.util.UUID;
+import java.util.stream.Stream;
 
-public interface CardRepository extends JpaRepository<Card, String> {
+import static org.hibernate.jpa.QueryHints.HINT_FETCH_SIZE;
+
+public interface CardRepository extends JpaRepository<Card, UUID> {
 
     Card getCardByUserIdEquals(String userId);
 
     boolean existsCardByUserId(String userId);
 
+    /**
+     * User ids matching the pattern that sort after {@code after}, in order, read from the user id
+     * index alone. The pattern is for {@code like} with {@code !} as its escape character.
+     */
+    @Query("select c.userId from Card c where c.userId like :pattern escape '!' and c.userId > :after order by c.userId")
+    List<String> findUserIds(@Param("pattern") String pattern, @Param("after") String after, Pageable pageable);
+
+    @QueryHints(@QueryHint(name = HINT_FETCH_SIZE, value = "1000"))
+    @Query("select c.userId from Card c where c.userId like :pattern escape '!' order by c.userId")
+    Stream<String> streamUserIds(@Param("pattern") String pattern);
+
 }
@@ -0,0 +1,9 @@
+package uk.co.chriskurzeja.prepaidcard.data.jpa.repository;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import uk.co.chriskurzeja.prepaidcard.model.TransactionKey;
+import uk.co.chriskurzeja.prepaidcard.model.VersionedTransactionBalance;
+
+public interface TransactionBalanceRepository extends JpaRepository<VersionedTransactionBalance, TransactionKey> {
+
+}
@@ -1,18 +1,27 @@
 package uk.co.chriskurzeja.prepaidcard.data.jpa.repository;
 
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.QueryHints;
 import uk.co.chriskurzeja.prepaidcard.model.Transaction;
 import uk.co.chriskurzeja.prepaidcard.model.TransactionKey;
 import uk.co.chriskurzeja.prepaidcard.model.TransactionType;
 
+import javax.persistence.QueryHint;
 import java.util.List;
+import java.util.UUID;
+import java.util.stream.Stream;
 
-public interface TransactionRepository extends JpaRepository<Transaction, TransactionKey> {
+import static org.hibernate.jpa.QueryHints.HINT_FETCH_SIZE;
+
+public interface TransactionRepository extends JpaRepository<Transaction, Long> {
 
     Transaction findTransactionByTransactionKeyAndTransactionType(TransactionKey transactionKey, TransactionType transactionType);
 
-    List<Transaction> findByTransactionKeyCardId(String cardId);
+    List<Transaction> findByTransactionKeyCardId(UUID cardId);
 
     List<Transaction> findByTransactionKey(TransactionKey transactionKey);
 
+    @QueryHints(@QueryHint(name = HINT_FETCH_SIZE, value = "1000"))
+    Stream<Transaction> streamByIdGreaterThanOrderByIdAsc(Long id);
+
 }
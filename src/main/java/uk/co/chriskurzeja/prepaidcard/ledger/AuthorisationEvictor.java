@@ -0,0 +1,82 @@
+package uk.co.chriskurzeja.prepaidcard.ledger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically evicts settled authorisations from every partition, each partition on its own
+ * worker between two operations. An authorisation is settled once nothing is blocked or captured
+ * on it, or once nothing has been blocked on it for the length of the refund window; a refund
+ * arriving after that is still honoured, at the cost of rehydrating the authorisation first.
+ */
+@Component
+public class AuthorisationEvictor {
+
+    private static final Logger log = LoggerFactory.getLogger(AuthorisationEvictor.class);
+
+    private final LedgerEngine ledgerEngine;
+    private final TransactionJournal transactionJournal;
+    private final long intervalSeconds;
+    private final long refundWindowMs;
+    private ScheduledExecutorService scheduler;
+
+    @Autowired
+    public AuthorisationEvictor(LedgerEngine ledgerEngine,
+                                TransactionJournal transactionJournal,
+                                @Value("${ledger.eviction.interval-seconds:60}") long intervalSeconds,
+                                @Value("${ledger.eviction.refund-window-seconds:7776000}") long refundWindowSeconds) {
+        this.ledgerEngine = ledgerEngine;
+        this.transactionJournal = transactionJournal;
+        this.intervalSeconds = intervalSeconds;
+        this.refundWindowMs = TimeUnit.SECONDS.toMillis(refundWindowSeconds);
+    }
+
+    @PostConstruct
+    public void start() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ledger-eviction");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> evictSettled(System.currentTimeMillis()), intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Evicts what is settled as of the given time, in milliseconds since the epoch.
+     *
+     * @return the number of authorisations evicted
+     */
+    public int evictSettled(long now) {
+        if (!ledgerEngine.isRecovered()) {
+            return 0;
+        }
+
+        try {
+            int evicted = ledgerEngine.executeOnAll(partition -> partition.evictSettled(now, refundWindowMs, key -> !transactionJournal.containsAny(key)))
+                    .stream().mapToInt(Integer::intValue).sum();
+            if (evicted > 0) {
+                log.info("Evicted {} settled authorisations", evicted);
+            }
+            return evicted;
+        } catch (RuntimeException e) {
+            log.warn("Failed to evict settled authorisations", e);
+            return 0;
+        }
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        scheduler.shutdown();
+        scheduler.awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+}
@@ -0,0 +1,71 @@
+package uk.co.chriskurzeja.prepaidcard.ledger;
+
+import uk.co.chriskurzeja.prepaidcard.model.BalanceSummary;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Every card's balances as last published by the partitions that own them, readable from any
+ * thread. A striped card is published a slice at a time and read as the sum of its slices; while
+ * funds are being moved between slices they are briefly on neither, so its available balance
+ * can read low for that moment.
+ */
+final class BalanceReadModel {
+
+    private final Map<UUID, BalanceSummary> balances = new ConcurrentHashMap<>();
+    private final Map<UUID, AtomicReferenceArray<BalanceSummary>> slices = new HashMap<>();
+    private final int partitionCount;
+
+    BalanceReadModel(CardStripes stripes, int partitionCount) {
+        this.partitionCount = partitionCount;
+        for (UUID cardId : stripes.getCards()) {
+            slices.put(cardId, new AtomicReferenceArray<>(stripes.getSlices()));
+        }
+    }
+
+    void publish(UUID cardId, int partition, BalanceSummary summary) {
+        AtomicReferenceArray<BalanceSummary> cardSlices = slices.isEmpty() ? null : slices.get(cardId);
+        if (cardSlices == null) {
+            balances.put(cardId, summary);
+        } else {
+            cardSlices.set(Math.floorMod(partition - LedgerEngine.partitionFor(cardId, partitionCount), partitionCount), summary);
+        }
+    }
+
+    Optional<BalanceSummary> get(UUID cardId) {
+        AtomicReferenceArray<BalanceSummary> cardSlices = slices.get(cardId);
+        if (cardSlices == null) {
+            return Optional.ofNullable(balances.get(cardId));
+        }
+
+        BalanceSummary total = null;
+        for (int slice = 0; slice < cardSlices.length(); slice++) {
+            BalanceSummary summary = cardSlices.get(slice);
+            if (summary != null) {
+                total = total == null ? summary : new BalanceSummary(total.getLoaded() + summary.getLoaded(),
+                        total.getAvailable() + summary.getAvailable(), total.getBlocked() + summary.getBlocked(),
+                        total.getCaptured() + summary.getCaptured());
+            }
+        }
+        return Optional.ofNullable(total);
+    }
+
+    /**
+     * The available balance of each of a striped card's slices, zero for a slice not yet published.
+     */
+    long[] getAvailableBySlice(UUID cardId) {
+        AtomicReferenceArray<BalanceSummary> cardSlices = slices.get(cardId);
+        long[] available = new long[cardSlices.length()];
+        for (int slice = 0; slice < available.length; slice++) {
+            BalanceSummary summary = cardSlices.get(slice);
+            available[slice] = summary == null ? 0L : summary.getAvailable();
+        }
+        return available;
+    }
+
+}
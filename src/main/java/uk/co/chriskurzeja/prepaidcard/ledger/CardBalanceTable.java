@@ -0,0 +1,228 @@
+package uk.co.chriskurzeja.prepaidcard.ledger;
+
+import uk.co.chriskurzeja.prepaidcard.model.BalanceSummary;
+import uk.co.chriskurzeja.prepaidcard.model.CardBalance;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * The card balances of one partition, held in primitive arrays rather than a map of objects. A
+ * card is given a dense ordinal the first time it is seen and its four balances sit side by side
+ * in a single long array at that ordinal. The card id is kept as its two halves in long arrays too,
+ * so each card costs well under a hundred bytes, and the collector traces a handful of arrays
+ * instead of a node, an id and a balance object per card.
+ * <p>
+ * Ordinals are never moved or reused, so they are a compact way to refer to a card for as long
+ * as the table lives. The checks and updates mirror {@link CardBalance}. Like the rest of the
+ * partition the table is only touched by the owning worker.
+ */
+public final class CardBalanceTable {
+
+    public static final int ABSENT = -1;
+
+    private static final int LOADED = 0;
+    private static final int BALANCE = 1;
+    private static final int BLOCKED = 2;
+    private static final int CAPTURED = 3;
+    private static final int FIELDS = 4;
+
+    private long[] mostSignificantBits;
+    private long[] leastSignificantBits;
+    private int[] hashes;
+    private long[] values;
+    private int[] index;
+    private int size = 0;
+
+    public CardBalanceTable() {
+        this(1024);
+    }
+
+    public CardBalanceTable(int expectedCards) {
+        this.index = new int[OpenAddressing.indexSizeFor(expectedCards)];
+        this.mostSignificantBits = new long[index.length / 2];
+        this.leastSignificantBits = new long[index.length / 2];
+        this.hashes = new int[index.length / 2];
+        this.values = new long[index.length / 2 * FIELDS];
+    }
+
+    private CardBalanceTable(CardBalanceTable other) {
+        this.mostSignificantBits = other.mostSignificantBits.clone();
+        this.leastSignificantBits = other.leastSignificantBits.clone();
+        this.hashes = other.hashes.clone();
+        this.values = other.values.clone();
+        this.index = other.index.clone();
+        this.size = other.size;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the card's ordinal, or {@link #ABSENT} if the table has never seen it
+     */
+    public int find(UUID cardId) {
+        return find(cardId.getMostSignificantBits(), cardId.getLeastSignificantBits());
+    }
+
+    public int find(long mostSigBits, long leastSigBits) {
+        int hash = hash(mostSigBits, leastSigBits);
+        int mask = index.length - 1;
+        for (int slot = OpenAddressing.home(hash, mask); index[slot] != OpenAddressing.EMPTY; slot = OpenAddressing.next(slot, mask)) {
+            int card = index[slot] - 1;
+            if (matches(card, hash, mostSigBits, leastSigBits)) {
+                return card;
+            }
+        }
+        return ABSENT;
+    }
+
+    /**
+     * @return the card's ordinal, adding the card with empty balances if the table has not seen it
+     */
+    public int findOrAdd(UUID cardId) {
+        return findOrAdd(cardId.getMostSignificantBits(), cardId.getLeastSignificantBits());
+    }
+
+    public int findOrAdd(long mostSigBits, long leastSigBits) {
+        if (size == hashes.length) {
+            grow();
+        }
+
+        int hash = hash(mostSigBits, leastSigBits);
+        int mask = index.length - 1;
+        int slot = OpenAddressing.home(hash, mask);
+        for (; index[slot] != OpenAddressing.EMPTY; slot = OpenAddressing.next(slot, mask)) {
+            int card = index[slot] - 1;
+            if (matches(card, hash, mostSigBits, leastSigBits)) {
+                return card;
+            }
+        }
+
+        int card = size++;
+        mostSignificantBits[card] = mostSigBits;
+        leastSignificantBits[card] = leastSigBits;
+        hashes[card] = hash;
+        index[slot] = card + 1;
+        return card;
+    }
+
+    public UUID getCardId(int card) {
+        return new UUID(mostSignificantBits[card], leastSignificantBits[card]);
+    }
+
+    public long getLoaded(int card) {
+        return values[card * FIELDS + LOADED];
+    }
+
+    public long getBalance(int card) {
+        return values[card * FIELDS + BALANCE];
+    }
+
+    public long getBlocked(int card) {
+        return values[card * FIELDS + BLOCKED];
+    }
+
+    public long getCaptured(int card) {
+        return values[card * FIELDS + CAPTURED];
+    }
+
+    public void load(int card, long amount) {
+        values[card * FIELDS + LOADED] += amount;
+        values[card * FIELDS + BALANCE] += amount;
+    }
+
+    /**
+     * Takes back funds that were loaded, for moving them to another slice of a striped card,
+     * which {@link #load(int, long)}s them.
+     */
+    public void withdraw(int card, long amount) {
+        values[card * FIELDS + LOADED] -= amount;
+        values[card * FIELDS + BALANCE] -= amount;
+    }
+
+    public void block(int card, long amount) {
+        values[card * FIELDS + BLOCKED] += amount;
+        values[card * FIELDS + BALANCE] -= amount;
+    }
+
+    public void capture(int card, long amount) {
+        values[card * FIELDS + BLOCKED] -= amount;
+        values[card * FIELDS + CAPTURED] += amount;
+    }
+
+    public void refund(int card, long amount) {
+        values[card * FIELDS + CAPTURED] -= amount;
+        values[card * FIELDS + BALANCE] += amount;
+    }
+
+    public void reverse(int card, long amount) {
+        values[card * FIELDS + BLOCKED] -= amount;
+        values[card * FIELDS + BALANCE] += amount;
+    }
+
+    public boolean canBlock(int card, long amount) {
+        return getBalance(card) >= amount;
+    }
+
+    public boolean canCapture(int card, long amount) {
+        return getBlocked(card) >= amount;
+    }
+
+    public boolean canRefund(int card, long amount) {
+        return getCaptured(card) >= amount;
+    }
+
+    public boolean canReverse(int card, long amount) {
+        return getBlocked(card) >= amount;
+    }
+
+    public BalanceSummary summary(int card) {
+        return new BalanceSummary(getLoaded(card), getBalance(card), getBlocked(card), getCaptured(card));
+    }
+
+    /**
+     * Copies the card's balances out of the table.
+     */
+    public CardBalance get(int card) {
+        return new CardBalance(getLoaded(card), getBalance(card), getBlocked(card), getCaptured(card));
+    }
+
+    public void set(int card, CardBalance balance) {
+        set(card, balance.getLoaded(), balance.getBalance(), balance.getBlocked(), balance.getCaptured());
+    }
+
+    public void set(int card, long loaded, long balance, long blocked, long captured) {
+        values[card * FIELDS + LOADED] = loaded;
+        values[card * FIELDS + BALANCE] = balance;
+        values[card * FIELDS + BLOCKED] = blocked;
+        values[card * FIELDS + CAPTURED] = captured;
+    }
+
+    public CardBalanceTable copy() {
+        return new CardBalanceTable(this);
+    }
+
+    private boolean matches(int card, int hash, long mostSigBits, long leastSigBits) {
+        return hashes[card] == hash && mostSignificantBits[card] == mostSigBits && leastSignificantBits[card] == leastSigBits;
+    }
+
+    private void grow() {
+        int capacity = hashes.length * 2;
+        mostSignificantBits = Arrays.copyOf(mostSignificantBits, capacity);
+        leastSignificantBits = Arrays.copyOf(leastSignificantBits, capacity);
+        hashes = Arrays.copyOf(hashes, capacity);
+        values = Arrays.copyOf(values, capacity * FIELDS);
+        index = OpenAddressing.rebuild(hashes, size, capacity * 2);
+    }
+
+    /**
+     * The same hash as {@link UUID#hashCode()}, so a card hashes alike whichever form it is in.
+     */
+    private static int hash(long mostSigBits, long leastSigBits) {
+        long bits = mostSigBits ^ leastSigBits;
+        return (int) (bits >> 32) ^ (int) bits;
+    }
+
+}
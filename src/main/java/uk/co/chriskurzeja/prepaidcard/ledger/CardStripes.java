@@ -0,0 +1,83 @@
+package uk.co.chriskurzeja.prepaidcard.ledger;
+
+import uk.co.chriskurzeja.prepaidcard.model.TransactionKey;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+/**
+ * The cards whose balances are split into slices, each slice held by a different partition so
+ * that a card too busy for one worker is served by several. A striped card's slices sit on the
+ * partitions following its own, and each request id always lands on the same slice, so every
+ * operation on an authorisation is decided where it was authorised.
+ */
+public final class CardStripes {
+
+    public static final CardStripes NONE = new CardStripes(Collections.emptySet(), 1);
+
+    private final Set<UUID> cards;
+    private final int slices;
+
+    public CardStripes(Set<UUID> cards, int slices) {
+        this.cards = Collections.unmodifiableSet(new HashSet<>(cards));
+        this.slices = cards.isEmpty() ? 1 : Math.max(1, slices);
+    }
+
+    /**
+     * Parses a comma-separated list of card ids, giving each at most one slice per partition.
+     */
+    static CardStripes parse(String cards, int slices, int partitionCount) {
+        Set<UUID> cardIds = Arrays.stream(cards.split(","))
+                .map(String::trim)
+                .filter(cardId -> !cardId.isEmpty())
+                .map(UUID::fromString)
+                .collect(Collectors.toSet());
+        return new CardStripes(cardIds, Math.min(slices, partitionCount));
+    }
+
+    public Set<UUID> getCards() {
+        return cards;
+    }
+
+    public int getSlices() {
+        return slices;
+    }
+
+    public boolean isStriped(UUID cardId) {
+        return !cards.isEmpty() && cards.contains(cardId);
+    }
+
+    /**
+     * The slice the request is decided on, counted from the card's own partition.
+     */
+    int sliceFor(TransactionKey key) {
+        if (!isStriped(key.getCardId())) {
+            return 0;
+        }
+        int hash = key.getRequestId().hashCode();
+        return Math.floorMod(hash ^ (hash >>> 16), slices);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        CardStripes that = (CardStripes) o;
+        return slices == that.slices && cards.equals(that.cards);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(cards, slices);
+    }
+
+}
@@ -0,0 +1,160 @@
+package uk.co.chriskurzeja.prepaidcard.ledger;
+
+import java.util.Arrays;
+
+/**
+ * The authorisations a partition has evicted from its {@link TransactionBalanceTable} once they
+ * were settled. Their balances are in the transaction table and can be rebuilt from there; all
+ * the partition keeps is enough to know it must, so that a request id cannot be authorised twice
+ * and a late refund still finds what was captured.
+ * <p>
+ * An entry is the card's ordinal and a 64-bit hash of the request id, a few primitives in place
+ * of the request id string and the balances, indexed in the same way as the balance tables. Two
+ * request ids on one card sharing a hash is vanishingly unlikely; should it happen, the later
+ * request is rejected as if it had been evicted and could not be rehydrated. Only the owning
+ * worker touches it.
+ */
+public final class EvictedAuthorisations {
+
+    public static final int ABSENT = -1;
+
+    private int[] cards;
+    private long[] requestHashes;
+    private int[] hashes;
+    private int[] index;
+    private int size = 0;
+
+    public EvictedAuthorisations() {
+        this(1024);
+    }
+
+    public EvictedAuthorisations(int expectedAuthorisations) {
+        this.index = new int[OpenAddressing.indexSizeFor(expectedAuthorisations)];
+        int capacity = index.length / 2;
+        this.cards = new int[capacity];
+        this.requestHashes = new long[capacity];
+        this.hashes = new int[capacity];
+    }
+
+    private EvictedAuthorisations(EvictedAuthorisations other) {
+        this.cards = other.cards.clone();
+        this.requestHashes = other.requestHashes.clone();
+        this.hashes = other.hashes.clone();
+        this.index = other.index.clone();
+        this.size = other.size;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean contains(int card, String requestId) {
+        return find(card, hash(requestId)) != ABSENT;
+    }
+
+    public void add(int card, String requestId) {
+        add(card, hash(requestId));
+    }
+
+    /**
+     * Adds an entry by its card ordinal and request id hash, as read back from a snapshot.
+     */
+    public void add(int card, long requestHash) {
+        if (find(card, requestHash) != ABSENT) {
+            return;
+        }
+        if (size == cards.length) {
+            grow();
+        }
+
+        int hash = hash(card, requestHash);
+        int mask = index.length - 1;
+        int slot = OpenAddressing.home(hash, mask);
+        while (index[slot] != OpenAddressing.EMPTY) {
+            slot = OpenAddressing.next(slot, mask);
+        }
+
+        int entry = size++;
+        cards[entry] = card;
+        requestHashes[entry] = requestHash;
+        hashes[entry] = hash;
+        index[slot] = entry + 1;
+    }
+
+    public void remove(int card, String requestId) {
+        int entry = find(card, hash(requestId));
+        if (entry == ABSENT) {
+            return;
+        }
+
+        OpenAddressing.clear(index, hashes, slotOf(entry));
+        int last = --size;
+        if (entry != last) {
+            index[slotOf(last)] = entry + 1;
+            cards[entry] = cards[last];
+            requestHashes[entry] = requestHashes[last];
+            hashes[entry] = hashes[last];
+        }
+    }
+
+    /**
+     * The ordinal of the entry's card in the partition's {@link CardBalanceTable}.
+     */
+    public int getCard(int entry) {
+        return cards[entry];
+    }
+
+    public long getRequestHash(int entry) {
+        return requestHashes[entry];
+    }
+
+    public EvictedAuthorisations copy() {
+        return new EvictedAuthorisations(this);
+    }
+
+    private int find(int card, long requestHash) {
+        int hash = hash(card, requestHash);
+        int mask = index.length - 1;
+        for (int slot = OpenAddressing.home(hash, mask); index[slot] != OpenAddressing.EMPTY; slot = OpenAddressing.next(slot, mask)) {
+            int entry = index[slot] - 1;
+            if (hashes[entry] == hash && cards[entry] == card && requestHashes[entry] == requestHash) {
+                return entry;
+            }
+        }
+        return ABSENT;
+    }
+
+    private int slotOf(int entry) {
+        int mask = index.length - 1;
+        int slot = OpenAddressing.home(hashes[entry], mask);
+        while (index[slot] != entry + 1) {
+            slot = OpenAddressing.next(slot, mask);
+        }
+        return slot;
+    }
+
+    private void grow() {
+        int capacity = cards.length * 2;
+        cards = Arrays.copyOf(cards, capacity);
+        requestHashes = Arrays.copyOf(requestHashes, capacity);
+        hashes = Arrays.copyOf(hashes, capacity);
+        index = OpenAddressing.rebuild(hashes, size, capacity * 2);
+    }
+
+    private static int hash(int card, long requestHash) {
+        return 31 * card + (int) (requestHash ^ (requestHash >>> 32));
+    }
+
+    /**
+     * FNV-1a over the request id's characters, read in place so hashing allocates nothing.
+     */
+    static long hash(String requestId) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < requestId.length(); i++) {
+            hash ^= requestId.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+}
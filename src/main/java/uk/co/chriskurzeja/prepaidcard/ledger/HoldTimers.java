@@ -0,0 +1,214 @@
+package uk.co.chriskurzeja.prepaidcard.ledger;
+
+import java.util.Arrays;
+
+/**
+ * The expiry deadlines of one partition's holds, on a hierarchical timing wheel. There are four
+ * wheels of 256 slots: a slot of the first is one tick, and a slot of each wheel above is a whole
+ * turn of the one below. A timer waits in the lowest wheel that reaches its deadline and drops a
+ * wheel each time the wheel above turns to its slot, so scheduling and cancelling are a constant
+ * time list operation however many holds are pending, and advancing costs a slot per elapsed tick
+ * plus the timers that move or fire.
+ * <p>
+ * Timers live in primitive arrays as doubly linked lists threaded through their ids, so millions
+ * of pending holds are a handful of arrays rather than millions of objects. A timer names its
+ * authorisation by card ordinal and request id, which never change, rather than by the
+ * authorisation's ordinal, which can. Only the owning worker touches the wheel.
+ */
+final class HoldTimers {
+
+    static final int NONE = -1;
+
+    private static final int SLOT_BITS = 8;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+    private static final long RANGE = 1L << (SLOT_BITS * LEVELS);
+
+    private final long tickMs;
+    private final int[] heads = new int[LEVELS * SLOTS];
+    private long[] deadlines;
+    private int[] next;
+    private int[] previous;
+    private int[] slots;
+    private int[] cards;
+    private String[] requestIds;
+    private int allocated = 0;
+    private int free = NONE;
+    private int size = 0;
+    private long currentTick;
+
+    HoldTimers(long tickMs, long nowMs) {
+        this(tickMs, nowMs, 1024);
+    }
+
+    HoldTimers(long tickMs, long nowMs, int expectedTimers) {
+        this.tickMs = tickMs;
+        this.currentTick = nowMs / tickMs;
+        Arrays.fill(heads, NONE);
+        this.deadlines = new long[expectedTimers];
+        this.next = new int[expectedTimers];
+        this.previous = new int[expectedTimers];
+        this.slots = new int[expectedTimers];
+        this.cards = new int[expectedTimers];
+        this.requestIds = new String[expectedTimers];
+    }
+
+    /**
+     * The number of timers waiting to fire.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Schedules the authorisation to expire once the deadline, in milliseconds since the epoch,
+     * has passed. A deadline already passed fires on the next tick.
+     *
+     * @return the timer's id, which stays the same until it fires or is cancelled
+     */
+    int schedule(int card, String requestId, long deadlineMs) {
+        int timer = allocate();
+        cards[timer] = card;
+        requestIds[timer] = requestId;
+        // Rounded up, so a timer never fires before its deadline.
+        deadlines[timer] = Math.max((deadlineMs + tickMs - 1) / tickMs, currentTick + 1);
+        place(timer);
+        size++;
+        return timer;
+    }
+
+    void cancel(int timer) {
+        if (timer == NONE) {
+            return;
+        }
+
+        unlink(timer);
+        release(timer);
+    }
+
+    /**
+     * Moves the wheel on to the given time, handing every timer whose deadline has passed to the
+     * consumer as it fires. The consumer may schedule new timers but must not cancel any.
+     *
+     * @return the number of timers fired
+     */
+    int advance(long nowMs, Expiry expiry) {
+        long target = nowMs / tickMs;
+        if (size == 0) {
+            currentTick = Math.max(currentTick, target);
+            return 0;
+        }
+
+        int fired = 0;
+        while (currentTick < target) {
+            currentTick++;
+            for (int level = 1; level < LEVELS && (currentTick & ((1L << (SLOT_BITS * level)) - 1)) == 0; level++) {
+                cascade(level * SLOTS + (int) ((currentTick >>> (SLOT_BITS * level)) & SLOT_MASK));
+            }
+
+            int slot = (int) (currentTick & SLOT_MASK);
+            int timer = heads[slot];
+            heads[slot] = NONE;
+            while (timer != NONE) {
+                int following = next[timer];
+                int card = cards[timer];
+                String requestId = requestIds[timer];
+                release(timer);
+                fired++;
+                expiry.expired(card, requestId);
+                timer = following;
+            }
+        }
+        return fired;
+    }
+
+    /**
+     * Re-files every timer in a slot of an upper wheel now that the wheel below has come round to
+     * it; each lands in a lower wheel, or in the current tick's slot if it is due now.
+     */
+    private void cascade(int slot) {
+        int timer = heads[slot];
+        heads[slot] = NONE;
+        while (timer != NONE) {
+            int following = next[timer];
+            place(timer);
+            timer = following;
+        }
+    }
+
+    private void place(int timer) {
+        long deadline = deadlines[timer];
+        long delta = deadline - currentTick;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << (SLOT_BITS * (level + 1))) {
+            level++;
+        }
+        long position = delta >= RANGE ? currentTick + RANGE - 1 : deadline;
+        link(timer, level * SLOTS + (int) ((position >>> (SLOT_BITS * level)) & SLOT_MASK));
+    }
+
+    private void link(int timer, int slot) {
+        int head = heads[slot];
+        slots[timer] = slot;
+        previous[timer] = NONE;
+        next[timer] = head;
+        if (head != NONE) {
+            previous[head] = timer;
+        }
+        heads[slot] = timer;
+    }
+
+    private void unlink(int timer) {
+        int before = previous[timer];
+        int after = next[timer];
+        if (before == NONE) {
+            heads[slots[timer]] = after;
+        } else {
+            next[before] = after;
+        }
+        if (after != NONE) {
+            previous[after] = before;
+        }
+    }
+
+    private int allocate() {
+        if (free != NONE) {
+            int timer = free;
+            free = next[timer];
+            return timer;
+        }
+        if (allocated == deadlines.length) {
+            grow();
+        }
+        return allocated++;
+    }
+
+    private void release(int timer) {
+        requestIds[timer] = null;
+        slots[timer] = NONE;
+        next[timer] = free;
+        free = timer;
+        size--;
+    }
+
+    private void grow() {
+        int capacity = deadlines.length * 2;
+        deadlines = Arrays.copyOf(deadlines, capacity);
+        next = Arrays.copyOf(next, capacity);
+        previous = Arrays.copyOf(previous, capacity);
+        slots = Arrays.copyOf(slots, capacity);
+        cards = Arrays.copyOf(cards, capacity);
+        requestIds = Arrays.copyOf(requestIds, capacity);
+    }
+
+    /**
+     * Told about each hold as its timer fires.
+     */
+    interface Expiry {
+
+        void expired(int card, String requestId);
+
+    }
+
+}
@@ -0,0 +1,58 @@
+package uk.co.chriskurzeja.prepaidcard.ledger;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * An approximate count of the busiest cards in a partition, using the space-saving algorithm: a
+ * fixed number of slots, and a card not already tracked takes over the slot with the lowest count,
+ * inheriting that count. Any card that accounts for more than one in {@code capacity} of the
+ * operations is guaranteed a slot, and a count is never under the true figure.
+ * <p>
+ * The slots are plain arrays searched in place, so recording an operation allocates nothing.
+ * Like the rest of the partition it is only touched by the owning worker.
+ */
+class HotCards {
+
+    private final UUID[] cardIds;
+    private final int[] hashes;
+    private final long[] counts;
+    private int size = 0;
+
+    HotCards(int capacity) {
+        this.cardIds = new UUID[capacity];
+        this.hashes = new int[capacity];
+        this.counts = new long[capacity];
+    }
+
+    void record(UUID cardId) {
+        int hash = cardId.hashCode();
+        int lowest = 0;
+        for (int i = 0; i < size; i++) {
+            if (hashes[i] == hash && cardIds[i].equals(cardId)) {
+                counts[i]++;
+                return;
+            }
+            if (counts[i] < counts[lowest]) {
+                lowest = i;
+            }
+        }
+
+        int slot = size < cardIds.length ? size++ : lowest;
+        cardIds[slot] = cardId;
+        hashes[slot] = hash;
+        counts[slot]++;
+    }
+
+    List<PartitionStatistics.CardActivity> top() {
+        List<PartitionStatistics.CardActivity> top = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            top.add(new PartitionStatistics.CardActivity(cardIds[i], counts[i]));
+        }
+        top.sort(Comparator.comparingLong(PartitionStatistics.CardActivity::getOperations).reversed());
+        return top;
+    }
+
+}
@@ -0,0 +1,451 @@
+package uk.co.chriskurzeja.prepaidcard.ledger;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import uk.co.chriskurzeja.prepaidcard.model.BalanceSummary;
+import uk.co.chriskurzeja.prepaidcard.model.Transaction;
+import uk.co.chriskurzeja.prepaidcard.model.TransactionKey;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * Partitions cards by cardId across a fixed set of single-writer workers. Every operation on
+ * a card runs on the worker that owns it, so operations on the same card are applied one at a
+ * time and in order, while operations on cards in different partitions run in parallel.
+ * <p>
+ * Until {@link #markRecovered()} is called the partitions are still being rebuilt from the
+ * transaction log and callers should not be admitted.
+ * <p>
+ * Alongside the partitions the engine keeps a read model of every card's balances, published by
+ * the owning worker whenever a card changes, so balances can be read from any thread without
+ * queueing behind the card's worker.
+ * <p>
+ * A card listed in {@code ledger.striping.cards} is instead split into {@code ledger.striping.slices}
+ * slices on consecutive partitions, and each of its requests is routed by request id to one
+ * slice, so a card busier than one worker can keep up with is served by several. Every slice
+ * authorises against its own share of the available balance; an authorisation its slice cannot
+ * cover is {@link #gather gathered} onto one slice before it is declined, so a striped card
+ * declines exactly when the card as a whole cannot cover it. Funds moved between slices are not
+ * transactions and are not recorded, so replay can leave a slice short or overdrawn; every
+ * striped card is {@link #rebalance rebalanced} before traffic is admitted, and gathering always
+ * nets a slice's shortfall against the others, so the card as a whole never goes below zero.
+ */
+@Component
+public class LedgerEngine {
+
+    private final LedgerWorker[] workers;
+    private final CardStripes stripes;
+    private final BalanceReadModel balances;
+    private final Map<UUID, ReentrantLock> stripeLocks = new TreeMap<>();
+    private final long admissionTimeoutMs;
+    private final CountDownLatch recovered = new CountDownLatch(1);
+
+    public LedgerEngine(int partitions, long admissionTimeoutMs) {
+        this(partitions, admissionTimeoutMs, "", 1);
+    }
+
+    @Autowired
+    public LedgerEngine(@Value("${ledger.partitions:0}") int partitions,
+                        @Value("${ledger.recovery.admission-timeout-ms:30000}") long admissionTimeoutMs,
+                        @Value("${ledger.striping.cards:}") String stripedCards,
+                        @Value("${ledger.striping.slices:4}") int slices) {
+        int count = partitions > 0 ? partitions : Runtime.getRuntime().availableProcessors();
+        this.admissionTimeoutMs = admissionTimeoutMs;
+        this.stripes = CardStripes.parse(stripedCards, slices, count);
+        this.balances = new BalanceReadModel(stripes, count);
+        for (UUID cardId : stripes.getCards()) {
+            stripeLocks.put(cardId, new ReentrantLock());
+        }
+        this.workers = new LedgerWorker[count];
+        for (int i = 0; i < count; i++) {
+            workers[i] = new LedgerWorker(i, balances);
+        }
+    }
+
+    public int getPartitionCount() {
+        return workers.length;
+    }
+
+    public CardStripes getStripes() {
+        return stripes;
+    }
+
+    /**
+     * The partition that owns the card, or for a striped card the partition with its first slice.
+     */
+    public int partitionFor(UUID cardId) {
+        return partitionFor(cardId, workers.length);
+    }
+
+    /**
+     * The partition that decides the request: its card's, or for a striped card the partition
+     * with the request's slice.
+     */
+    public int partitionFor(TransactionKey key) {
+        return partitionFor(key, stripes, workers.length);
+    }
+
+    static int partitionFor(UUID cardId, int partitionCount) {
+        int hash = cardId.hashCode();
+        return Math.floorMod(hash ^ (hash >>> 16), partitionCount);
+    }
+
+    static int partitionFor(TransactionKey key, CardStripes stripes, int partitionCount) {
+        return (partitionFor(key.getCardId(), partitionCount) + stripes.sliceFor(key)) % partitionCount;
+    }
+
+    public Optional<BalanceSummary> getBalance(UUID cardId) {
+        return balances.get(cardId);
+    }
+
+    public boolean isRecovered() {
+        return recovered.getCount() == 0;
+    }
+
+    public void markRecovered() {
+        recovered.countDown();
+    }
+
+    /**
+     * Admits traffic once recovery has replayed the log up to the given transaction id. Every
+     * partition has then applied all of its transactions up to that id, whichever partition its
+     * cards were restored from. Striped cards are rebalanced first, as replay puts each of their
+     * operations back on its own slice without the funds that were moved there to cover it.
+     */
+    public void markRecovered(long highWaterMark) {
+        for (LedgerWorker worker : workers) {
+            worker.getPartition().recordApplied(highWaterMark);
+            worker.getPartition().publishAll();
+        }
+        stripes.getCards().forEach(this::rebalance);
+        markRecovered();
+    }
+
+    /**
+     * Waits up to the configured admission timeout for recovery to finish.
+     *
+     * @return true if the ledger is ready to accept traffic
+     */
+    public boolean awaitRecovery() {
+        try {
+            return recovered.await(admissionTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Replays a chunk of persisted transactions, ordered by id, into the partitions that
+     * decide them. Each partition's share of the chunk is replayed as a separate task on the
+     * supplied pool. Only valid before {@link #markRecovered()}, while no worker is touching
+     * its partition.
+     */
+    public void replay(List<Transaction> chunk, ForkJoinPool pool) {
+        if (isRecovered()) {
+            throw new IllegalStateException("Cannot replay transactions once the ledger has recovered");
+        }
+
+        List<List<Transaction>> buckets = new ArrayList<>(workers.length);
+        for (int i = 0; i < workers.length; i++) {
+            buckets.add(new ArrayList<>());
+        }
+        for (Transaction transaction : chunk) {
+            buckets.get(partitionFor(transaction.getTransactionKey())).add(transaction);
+        }
+
+        List<ForkJoinTask<?>> tasks = new ArrayList<>(workers.length);
+        for (int i = 0; i < workers.length; i++) {
+            List<Transaction> bucket = buckets.get(i);
+            LedgerPartition partition = workers[i].getPartition();
+            if (!bucket.isEmpty()) {
+                tasks.add(ForkJoinTask.adapt(() -> bucket.forEach(partition::replay)));
+            }
+        }
+        pool.invoke(ForkJoinTask.adapt(() -> { ForkJoinTask.invokeAll(tasks); }));
+    }
+
+    /**
+     * Loads the balances in a snapshot into the partitions that now own their cards, each slice of
+     * a striped card into the partition that now holds that slice. The snapshot must have been
+     * taken with the same cards striped the same way. Only valid before {@link #markRecovered()}.
+     */
+    public void restore(LedgerSnapshot snapshot) {
+        if (isRecovered()) {
+            throw new IllegalStateException("Cannot restore a snapshot once the ledger has recovered");
+        }
+        if (!snapshot.getStripes().equals(stripes)) {
+            throw new IllegalArgumentException("Cannot restore a snapshot taken with different cards striped");
+        }
+
+        List<PartitionSnapshot> partitions = snapshot.getPartitions();
+        for (int p = 0; p < partitions.size(); p++) {
+            PartitionSnapshot partition = partitions.get(p);
+            CardBalanceTable cards = partition.getCardBalances();
+            for (int card = 0; card < cards.size(); card++) {
+                UUID cardId = cards.getCardId(card);
+                restoredPartition(cardId, p, partitions.size()).restore(cardId,
+                        cards.getLoaded(card), cards.getBalance(card), cards.getBlocked(card), cards.getCaptured(card));
+            }
+
+            TransactionBalanceTable transactions = partition.getTransactionBalances();
+            for (int transaction = 0; transaction < transactions.size(); transaction++) {
+                UUID cardId = cards.getCardId(transactions.getCard(transaction));
+                restoredPartition(cardId, p, partitions.size()).restore(cardId, transactions.getRequestId(transaction),
+                        transactions.getBlocked(transaction), transactions.getCaptured(transaction), transactions.getOperations(transaction),
+                        transactions.getMerchant(transaction), transactions.getExpiresAt(transaction), transactions.getSettledAt(transaction));
+            }
+
+            EvictedAuthorisations evicted = partition.getEvictedAuthorisations();
+            for (int entry = 0; entry < evicted.size(); entry++) {
+                UUID cardId = cards.getCardId(evicted.getCard(entry));
+                restoredPartition(cardId, p, partitions.size()).restoreEvicted(cardId, evicted.getRequestHash(entry));
+            }
+        }
+    }
+
+    private LedgerPartition restoredPartition(UUID cardId, int snapshotPartition, int snapshotPartitionCount) {
+        int partition = partitionFor(cardId);
+        if (stripes.isStriped(cardId)) {
+            int slice = Math.floorMod(snapshotPartition - partitionFor(cardId, snapshotPartitionCount), snapshotPartitionCount);
+            partition = (partition + slice) % workers.length;
+        }
+        return workers[partition].getPartition();
+    }
+
+    /**
+     * Rehydrates every authorisation that recovery replayed operations onto while the snapshot had
+     * it evicted, reading each one's full history with the given function. Only valid before
+     * {@link #markRecovered()}.
+     *
+     * @return the number of authorisations rehydrated
+     */
+    public int rehydrateReplayed(Function<TransactionKey, List<Transaction>> history) {
+        if (isRecovered()) {
+            throw new IllegalStateException("Cannot rehydrate replayed authorisations once the ledger has recovered");
+        }
+
+        int rehydrated = 0;
+        for (LedgerWorker worker : workers) {
+            LedgerPartition partition = worker.getPartition();
+            for (TransactionKey key : partition.takeReplayedWhileEvicted()) {
+                partition.rehydrate(key, history.apply(key));
+                rehydrated++;
+            }
+        }
+        return rehydrated;
+    }
+
+    /**
+     * Copies every partition's balances. Each worker takes its own copy between two operations,
+     * so a snapshot never stops the whole ledger; only one partition is briefly busy at a time.
+     * Funds are not moved between the slices of a striped card meanwhile, so none are missed
+     * while on their way from one slice to another.
+     */
+    public LedgerSnapshot snapshot() {
+        stripeLocks.values().forEach(ReentrantLock::lock);
+        try {
+            return new LedgerSnapshot(stripes, executeOnAll(LedgerPartition::snapshot));
+        } finally {
+            stripeLocks.values().forEach(ReentrantLock::unlock);
+        }
+    }
+
+    /**
+     * Moves everything available on the striped card's other slices onto the slice that decides
+     * the request, then runs the operation there in the same turn of that slice's worker. Used
+     * when the request's own slice cannot cover it: with the whole card's available balance on
+     * the slice, the operation sees what the card as a whole can cover. An overdrawn slice moves
+     * its shortfall along with the rest, so the balance gathered is the net of every slice. Must
+     * not be called from a ledger worker, as it waits on several.
+     */
+    public <T> T gather(TransactionKey key, Function<LedgerPartition, T> operation) {
+        UUID cardId = key.getCardId();
+        ReentrantLock lock = stripeLock(cardId);
+        lock.lock();
+        try {
+            int target = partitionFor(key);
+            long gathered = 0L;
+            for (Future<Long> withdrawn : withdrawAll(cardId, target)) {
+                gathered += await(withdrawn);
+            }
+
+            long deposit = gathered;
+            return await(workers[target].submit(partition -> {
+                partition.deposit(cardId, deposit);
+                return operation.apply(partition);
+            }));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Spreads the striped card's available balance evenly over its slices again.
+     */
+    public void rebalance(UUID cardId) {
+        ReentrantLock lock = stripeLock(cardId);
+        lock.lock();
+        try {
+            long total = 0L;
+            for (Future<Long> withdrawn : withdrawAll(cardId, -1)) {
+                total += await(withdrawn);
+            }
+
+            int slices = stripes.getSlices();
+            List<Future<Void>> deposited = new ArrayList<>(slices);
+            for (int slice = 0; slice < slices; slice++) {
+                long share = Math.floorDiv(total, slices) + (slice < Math.floorMod(total, slices) ? 1 : 0);
+                deposited.add(workers[sliceOf(cardId, slice)].submit(partition -> {
+                    partition.deposit(cardId, share);
+                    return null;
+                }));
+            }
+            deposited.forEach(LedgerEngine::await);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Whether any slice of the striped card has less than half its even share of the card's
+     * available balance, judging by the read model.
+     */
+    public boolean isUnbalanced(UUID cardId) {
+        long[] available = balances.getAvailableBySlice(cardId);
+        long total = 0L;
+        for (long slice : available) {
+            total += slice;
+        }
+        for (long slice : available) {
+            if (slice < total / available.length / 2) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private List<Future<Long>> withdrawAll(UUID cardId, int exceptPartition) {
+        List<Future<Long>> withdrawn = new ArrayList<>(stripes.getSlices());
+        for (int slice = 0; slice < stripes.getSlices(); slice++) {
+            int partition = sliceOf(cardId, slice);
+            if (partition != exceptPartition) {
+                withdrawn.add(workers[partition].submit(p -> p.withdrawAll(cardId)));
+            }
+        }
+        return withdrawn;
+    }
+
+    private int sliceOf(UUID cardId, int slice) {
+        return (partitionFor(cardId) + slice) % workers.length;
+    }
+
+    private ReentrantLock stripeLock(UUID cardId) {
+        ReentrantLock lock = stripeLocks.get(cardId);
+        if (lock == null) {
+            throw new IllegalArgumentException("Card " + cardId + " is not striped");
+        }
+        for (LedgerWorker worker : workers) {
+            if (worker.isCurrentThread()) {
+                throw new IllegalStateException("Cannot move funds between slices from a ledger worker");
+            }
+        }
+        return lock;
+    }
+
+    /**
+     * Reads each partition's statistics on its own worker, in the same way as {@link #snapshot()}.
+     */
+    public List<PartitionStatistics> statistics() {
+        return executeOnAll(LedgerPartition::statistics);
+    }
+
+    /**
+     * Runs the operation on every partition, each on its own worker, and waits for them all. The
+     * results are in partition order.
+     */
+    public <T> List<T> executeOnAll(Function<LedgerPartition, T> operation) {
+        List<Future<T>> pending = new ArrayList<>(workers.length);
+        for (LedgerWorker worker : workers) {
+            pending.add(worker.submit(operation));
+        }
+
+        List<T> results = new ArrayList<>(workers.length);
+        for (Future<T> result : pending) {
+            results.add(await(result));
+        }
+        return results;
+    }
+
+    public <T> T execute(UUID cardId, Function<LedgerPartition, T> operation) {
+        return execute(workers[partitionFor(cardId)], operation);
+    }
+
+    /**
+     * Runs the operation on the partition that decides the request, which for a striped card is
+     * the partition with the request's slice.
+     */
+    public <T> T execute(TransactionKey key, Function<LedgerPartition, T> operation) {
+        return execute(workers[partitionFor(key)], operation);
+    }
+
+    private static <T> T execute(LedgerWorker worker, Function<LedgerPartition, T> operation) {
+        if (worker.isCurrentThread()) {
+            return operation.apply(worker.getPartition());
+        }
+
+        return await(worker.submit(operation));
+    }
+
+    /**
+     * Queues the operation on the partition that decides the request without waiting for it, so
+     * a caller can have several partitions working on its behalf at once.
+     */
+    public <T> CompletableFuture<T> submit(TransactionKey key, Function<LedgerPartition, T> operation) {
+        LedgerWorker worker = workers[partitionFor(key)];
+        if (worker.isCurrentThread()) {
+            return CompletableFuture.completedFuture(operation.apply(worker.getPartition()));
+        }
+
+        return worker.submitAsync(operation);
+    }
+
+    private static <T> T await(Future<T> result) {
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the ledger", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        for (LedgerWorker worker : workers) {
+            worker.shutdown();
+        }
+    }
+
+}
@@ -0,0 +1,575 @@
+package uk.co.chriskurzeja.prepaidcard.ledger;
+
+import uk.co.chriskurzeja.prepaidcard.model.CardBalance;
+import uk.co.chriskurzeja.prepaidcard.model.Transaction;
+import uk.co.chriskurzeja.prepaidcard.model.TransactionBalance;
+import uk.co.chriskurzeja.prepaidcard.model.TransactionKey;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Predicate;
+
+import static uk.co.chriskurzeja.prepaidcard.model.TransactionType.REVERSE_TRANSACTION;
+
+/**
+ * The balances owned by a single ledger worker. Only the owning worker thread reads or
+ * writes a partition, so none of the state below needs to be synchronised. The one exception
+ * is the shared balance read model, which the partition publishes into for other threads to read.
+ * <p>
+ * Every authorisation whose hold can expire has a timer on the partition's {@link HoldTimers}
+ * while anything is still blocked on it. Settling the hold, by capturing or reversing all of it,
+ * cancels the timer.
+ * <p>
+ * Authorisations that can no longer change are evicted from the table to
+ * {@link EvictedAuthorisations}, so the table grows with the authorisations still open rather
+ * than with every one ever made. An operation on an evicted authorisation is turned away as
+ * {@link OperationResult#isEvicted() evicted} until the caller {@link #rehydrate rehydrates} it
+ * from its transactions.
+ * <p>
+ * A {@link CardStripes striped} card is held by several partitions, each holding a slice of its
+ * balances as though it were a card of its own; only the engine knows they add up to one card.
+ */
+public class LedgerPartition {
+
+    /**
+     * The expiry of a hold that is kept until it is captured or reversed.
+     */
+    public static final long NO_EXPIRY = 0L;
+
+    public static final String INSUFFICIENT_FUNDS = "Insufficient funds on the card";
+
+    private static final int HOT_CARD_SLOTS = 64;
+    private static final long HOLD_TICK_MS = 1000L;
+
+    private final int index;
+    private final CardBalanceTable cardBalances = new CardBalanceTable();
+    private final TransactionBalanceTable transactionBalances = new TransactionBalanceTable();
+    private final EvictedAuthorisations evictedAuthorisations = new EvictedAuthorisations();
+    private final Set<TransactionKey> replayedWhileEvicted = new HashSet<>();
+    private final BalanceReadModel balances;
+    private final HotCards hotCards = new HotCards(HOT_CARD_SLOTS);
+    private final HoldTimers holdTimers = new HoldTimers(HOLD_TICK_MS, System.currentTimeMillis());
+    private final OperationResult result = new OperationResult();
+    private long highWaterMark = 0L;
+
+    // The one request last marked, as it was before it was decided. See mark(TransactionKey).
+    private TransactionKey markedKey;
+    private long markedLoaded;
+    private long markedBalance;
+    private long markedCardBlocked;
+    private long markedCardCaptured;
+    private boolean markedAuthorised;
+    private long markedBlocked;
+    private long markedCaptured;
+    private int markedOperations;
+    private long markedSettledAt;
+    private boolean markedEvicted;
+
+    LedgerPartition(int index, BalanceReadModel balances) {
+        this.index = index;
+        this.balances = balances;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * The id of the last persisted transaction applied to this partition. Every transaction for
+     * this partition's cards with an id at or below the mark is reflected in its balances.
+     */
+    public long getHighWaterMark() {
+        return highWaterMark;
+    }
+
+    public void recordApplied(long transactionId) {
+        highWaterMark = Math.max(highWaterMark, transactionId);
+    }
+
+    public CardBalanceTable getCardBalances() {
+        return cardBalances;
+    }
+
+    public TransactionBalanceTable getTransactionBalances() {
+        return transactionBalances;
+    }
+
+    /**
+     * Counts an operation against the card, accepted or not, towards the partition's busiest cards.
+     */
+    public void recordActivity(UUID cardId) {
+        hotCards.record(cardId);
+    }
+
+    /**
+     * Blocks the amount on the card against a new authorisation. This and the other merchant
+     * operations below check and update the balance tables in place and report into the
+     * partition's one {@link OperationResult}, so deciding an operation allocates nothing.
+     * <p>
+     * Every accepted authorisation is in the transaction balance table from the moment it is
+     * accepted, or replayed, so the table alone says whether a request has been authorised.
+     */
+    public OperationResult authorise(TransactionKey key, long amount) {
+        return authorise(key, amount, null, NO_EXPIRY);
+    }
+
+    /**
+     * As {@link #authorise(TransactionKey, long)}, holding the funds only until the given time in
+     * milliseconds since the epoch, after which {@link #expireHolds(long)} gives them back.
+     */
+    public OperationResult authorise(TransactionKey key, long amount, String merchant, long expiresAt) {
+        int card = cardBalances.findOrAdd(key.getCardId());
+        if (transactionBalances.find(card, key.getRequestId()) != TransactionBalanceTable.ABSENT) {
+            return result.reject("Transaction has already been handled");
+        }
+        if (evictedAuthorisations.contains(card, key.getRequestId())) {
+            return result.evicted();
+        }
+        if (!cardBalances.canBlock(card, amount)) {
+            return result.reject(INSUFFICIENT_FUNDS);
+        }
+
+        int authorisation = transactionBalances.findOrAdd(card, key.getRequestId());
+        cardBalances.block(card, amount);
+        transactionBalances.block(authorisation, amount);
+        hold(authorisation, merchant, expiresAt);
+        return accepted(authorisation);
+    }
+
+    public OperationResult capture(TransactionKey key, long amount) {
+        int card = cardBalances.findOrAdd(key.getCardId());
+        int authorisation = transactionBalances.find(card, key.getRequestId());
+        if (authorisation == TransactionBalanceTable.ABSENT) {
+            return notAuthorised(card, key);
+        }
+        if (!cardBalances.canCapture(card, amount) || !transactionBalances.canCapture(authorisation, amount)) {
+            return result.reject("Insufficient amount available to capture");
+        }
+
+        cardBalances.capture(card, amount);
+        transactionBalances.capture(authorisation, amount);
+        settleIfReleased(authorisation);
+        return accepted(authorisation);
+    }
+
+    public OperationResult reverse(TransactionKey key, long amount) {
+        int card = cardBalances.findOrAdd(key.getCardId());
+        int authorisation = transactionBalances.find(card, key.getRequestId());
+        if (authorisation == TransactionBalanceTable.ABSENT) {
+            return notAuthorised(card, key);
+        }
+        if (!cardBalances.canReverse(card, amount) || !transactionBalances.canReverse(authorisation, amount)) {
+            return result.reject("Insufficient amount available to reverse");
+        }
+
+        cardBalances.reverse(card, amount);
+        transactionBalances.reverse(authorisation, amount);
+        settleIfReleased(authorisation);
+        return accepted(authorisation);
+    }
+
+    public OperationResult refund(TransactionKey key, long amount) {
+        int card = cardBalances.findOrAdd(key.getCardId());
+        int authorisation = transactionBalances.find(card, key.getRequestId());
+        if (authorisation == TransactionBalanceTable.ABSENT) {
+            return notAuthorised(card, key);
+        }
+        if (!cardBalances.canRefund(card, amount) || !transactionBalances.canRefund(authorisation, amount)) {
+            return result.reject("Insufficient amount available to refund");
+        }
+
+        cardBalances.refund(card, amount);
+        transactionBalances.refund(authorisation, amount);
+        return accepted(authorisation);
+    }
+
+    private OperationResult notAuthorised(int card, TransactionKey key) {
+        return evictedAuthorisations.contains(card, key.getRequestId()) ?
+                result.evicted() :
+                result.reject("Funds were not authorised for transaction");
+    }
+
+    private OperationResult accepted(int authorisation) {
+        return result.accept(transactionBalances.getBlocked(authorisation), transactionBalances.getCaptured(authorisation),
+                transactionBalances.getOperations(authorisation));
+    }
+
+    /**
+     * Fires the timers of every hold whose expiry has passed and returns, for each one still
+     * blocking funds, a reversal of everything left on it. The reversals are not applied here;
+     * the caller handles them as it would any other reversal, so that they are recorded and
+     * replayed like one. A reversal that fails to persist is rolled back, which puts the hold
+     * back on the wheel to be tried again on the next tick.
+     */
+    public List<Transaction> expireHolds(long now) {
+        List<Transaction> reversals = new ArrayList<>();
+        holdTimers.advance(now, (card, requestId) -> {
+            int authorisation = transactionBalances.find(card, requestId);
+            transactionBalances.setTimer(authorisation, HoldTimers.NONE);
+            long blocked = transactionBalances.getBlocked(authorisation);
+            if (blocked > 0) {
+                reversals.add(new Transaction(new TransactionKey(requestId, cardBalances.getCardId(card)),
+                        transactionBalances.getMerchant(authorisation), blocked, REVERSE_TRANSACTION));
+            }
+        });
+        return reversals;
+    }
+
+    /**
+     * The number of holds waiting to expire.
+     */
+    public int getPendingHolds() {
+        return holdTimers.size();
+    }
+
+    private void hold(int authorisation, String merchant, long expiresAt) {
+        transactionBalances.setHold(authorisation, merchant, expiresAt);
+        armIfHeld(authorisation);
+    }
+
+    /**
+     * Puts the hold on the wheel if it can expire, still blocks funds and is not already there.
+     */
+    private void armIfHeld(int authorisation) {
+        long expiresAt = transactionBalances.getExpiresAt(authorisation);
+        if (expiresAt != NO_EXPIRY && transactionBalances.getBlocked(authorisation) > 0
+                && transactionBalances.getTimer(authorisation) == HoldTimers.NONE) {
+            transactionBalances.setTimer(authorisation, holdTimers.schedule(transactionBalances.getCard(authorisation),
+                    transactionBalances.getRequestId(authorisation), expiresAt));
+        }
+    }
+
+    private void settleIfReleased(int authorisation) {
+        if (transactionBalances.getBlocked(authorisation) <= 0) {
+            holdTimers.cancel(transactionBalances.getTimer(authorisation));
+            transactionBalances.setTimer(authorisation, HoldTimers.NONE);
+            transactionBalances.setSettledAt(authorisation, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Evicts every authorisation that can no longer change: nothing blocked and nothing captured,
+     * or nothing blocked for longer than the refund window. An authorisation with operations not
+     * yet in the transaction table is kept, as that is where it would be rehydrated from.
+     *
+     * @param persisted whether every operation on an authorisation is in the transaction table
+     * @return the number of authorisations evicted
+     */
+    int evictSettled(long now, long refundWindowMs, Predicate<TransactionKey> persisted) {
+        int evicted = 0;
+        // Backwards, as removing an authorisation moves the last one into its place.
+        for (int authorisation = transactionBalances.size() - 1; authorisation >= 0; authorisation--) {
+            if (transactionBalances.getBlocked(authorisation) > 0) {
+                continue;
+            }
+            if (transactionBalances.getCaptured(authorisation) > 0 && now - transactionBalances.getSettledAt(authorisation) < refundWindowMs) {
+                continue;
+            }
+
+            int card = transactionBalances.getCard(authorisation);
+            String requestId = transactionBalances.getRequestId(authorisation);
+            if (persisted.test(new TransactionKey(requestId, cardBalances.getCardId(card)))) {
+                evictedAuthorisations.add(card, requestId);
+                transactionBalances.remove(authorisation);
+                evicted++;
+            }
+        }
+        transactionBalances.shrink();
+        return evicted;
+    }
+
+    /**
+     * Brings an evicted authorisation back from its transactions, oldest first, so operations on
+     * it can be decided again. The card's balances already include them and are left alone. With
+     * no transactions there is nothing to bring back and the authorisation stays evicted.
+     */
+    public void rehydrate(TransactionKey key, List<Transaction> history) {
+        if (history.isEmpty()) {
+            // Another request id on the card shares the hash; its mark stays.
+            return;
+        }
+
+        int card = cardBalances.findOrAdd(key.getCardId());
+        evictedAuthorisations.remove(card, key.getRequestId());
+        int authorisation = transactionBalances.find(card, key.getRequestId());
+        if (authorisation != TransactionBalanceTable.ABSENT) {
+            holdTimers.cancel(transactionBalances.getTimer(authorisation));
+            transactionBalances.remove(authorisation);
+        }
+
+        authorisation = transactionBalances.findOrAdd(card, key.getRequestId());
+        for (Transaction transaction : history) {
+            replay(authorisation, transaction);
+        }
+    }
+
+    /**
+     * The authorisations that recovery replayed operations onto while they were evicted in the
+     * snapshot it restored. Their balances are not in the table; each must be
+     * {@link #rehydrate rehydrated} from its full history before traffic is admitted.
+     */
+    Set<TransactionKey> takeReplayedWhileEvicted() {
+        Set<TransactionKey> keys = new HashSet<>(replayedWhileEvicted);
+        replayedWhileEvicted.clear();
+        return keys;
+    }
+
+    /**
+     * Re-applies a transaction that was accepted and persisted before a restart. The checks were
+     * made when it was first handled, so the balances are updated unconditionally. A replayed
+     * authorisation keeps the expiry it was given when it was accepted, so holds still expire when
+     * they would have had the application not restarted.
+     */
+    public void replay(Transaction transaction) {
+        recordApplied(transaction.getId());
+        TransactionKey key = transaction.getTransactionKey();
+        int card = cardBalances.findOrAdd(key.getCardId());
+        long amount = transaction.getAmount();
+
+        switch (transaction.getTransactionType()) {
+            case LOAD_FUNDS:
+                cardBalances.load(card, amount);
+                return;
+            case AUTHORISE_TRANSACTION:
+                cardBalances.block(card, amount);
+                break;
+            case CAPTURE_TRANSACTION_FUNDS:
+                cardBalances.capture(card, amount);
+                break;
+            case REVERSE_TRANSACTION:
+                cardBalances.reverse(card, amount);
+                break;
+            case REFUND_CAPTURED_FUNDS:
+                cardBalances.refund(card, amount);
+                break;
+        }
+
+        if (transactionBalances.find(card, key.getRequestId()) == TransactionBalanceTable.ABSENT
+                && evictedAuthorisations.contains(card, key.getRequestId())) {
+            replayedWhileEvicted.add(key);
+        } else {
+            replay(transactionBalances.findOrAdd(card, key.getRequestId()), transaction);
+        }
+    }
+
+    private void replay(int authorisation, Transaction transaction) {
+        long amount = transaction.getAmount();
+        switch (transaction.getTransactionType()) {
+            case AUTHORISE_TRANSACTION:
+                transactionBalances.block(authorisation, amount);
+                hold(authorisation, transaction.getMerchant(), transaction.getExpiresAt());
+                break;
+            case CAPTURE_TRANSACTION_FUNDS:
+                transactionBalances.capture(authorisation, amount);
+                settleIfReleased(authorisation);
+                break;
+            case REVERSE_TRANSACTION:
+                transactionBalances.reverse(authorisation, amount);
+                settleIfReleased(authorisation);
+                break;
+            case REFUND_CAPTURED_FUNDS:
+                transactionBalances.refund(authorisation, amount);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Publishes the card's current balances to the read model. Called as part of every accepted
+     * change to the card so readers always see a consistent, up to date summary.
+     */
+    public void publish(UUID cardId) {
+        balances.publish(cardId, index, cardBalances.summary(cardBalances.findOrAdd(cardId)));
+    }
+
+    void publishAll() {
+        for (int card = 0; card < cardBalances.size(); card++) {
+            balances.publish(cardBalances.getCardId(card), index, cardBalances.summary(card));
+        }
+    }
+
+    /**
+     * Takes everything available on this partition's slice of a striped card, for moving to
+     * another slice. A slice left overdrawn by replay, with less than nothing available, gives up
+     * its shortfall, so whatever the taken amounts are added to is the net of the slices.
+     *
+     * @return the amount taken, negative for an overdrawn slice
+     */
+    long withdrawAll(UUID cardId) {
+        int card = cardBalances.findOrAdd(cardId);
+        long amount = cardBalances.getBalance(card);
+        if (amount != 0) {
+            cardBalances.withdraw(card, amount);
+            publish(cardId);
+        }
+        return amount;
+    }
+
+    /**
+     * Adds funds moved from another slice of a striped card to this partition's slice, or a
+     * shortfall moved from one when the amount is negative.
+     */
+    void deposit(UUID cardId, long amount) {
+        if (amount != 0) {
+            cardBalances.load(cardBalances.findOrAdd(cardId), amount);
+            publish(cardId);
+        }
+    }
+
+    /**
+     * Remembers the balances a single request could change, its card's and its authorisation's,
+     * so that the request can be undone with {@link #undo()} if its write fails. The partition
+     * keeps one such record in its own fields and each mark overwrites the last, so deciding a
+     * request one at a time allocates nothing to make it undoable.
+     */
+    public void mark(TransactionKey key) {
+        markedKey = key;
+        int card = cardBalances.find(key.getCardId());
+        if (card == CardBalanceTable.ABSENT) {
+            markedLoaded = markedBalance = markedCardBlocked = markedCardCaptured = 0L;
+            markedAuthorised = false;
+            markedEvicted = false;
+            return;
+        }
+
+        markedLoaded = cardBalances.getLoaded(card);
+        markedBalance = cardBalances.getBalance(card);
+        markedCardBlocked = cardBalances.getBlocked(card);
+        markedCardCaptured = cardBalances.getCaptured(card);
+        int authorisation = transactionBalances.find(card, key.getRequestId());
+        markedAuthorised = authorisation != TransactionBalanceTable.ABSENT;
+        if (markedAuthorised) {
+            markedBlocked = transactionBalances.getBlocked(authorisation);
+            markedCaptured = transactionBalances.getCaptured(authorisation);
+            markedOperations = transactionBalances.getOperations(authorisation);
+            markedSettledAt = transactionBalances.getSettledAt(authorisation);
+        }
+        markedEvicted = !markedAuthorised && evictedAuthorisations.contains(card, key.getRequestId());
+    }
+
+    /**
+     * Puts the card and authorisation of the last {@link #mark marked} request back as they were,
+     * in the same way as {@link #rollback(Checkpoint)}.
+     */
+    public void undo() {
+        TransactionKey key = markedKey;
+        int card = cardBalances.findOrAdd(key.getCardId());
+        cardBalances.set(card, markedLoaded, markedBalance, markedCardBlocked, markedCardCaptured);
+        int authorisation = transactionBalances.find(card, key.getRequestId());
+        if (markedAuthorised) {
+            authorisation = transactionBalances.findOrAdd(card, key.getRequestId());
+            transactionBalances.set(authorisation, markedBlocked, markedCaptured, markedOperations);
+            transactionBalances.setSettledAt(authorisation, markedSettledAt);
+            armIfHeld(authorisation);
+            return;
+        }
+
+        if (authorisation != TransactionBalanceTable.ABSENT) {
+            holdTimers.cancel(transactionBalances.getTimer(authorisation));
+            transactionBalances.remove(authorisation);
+        }
+        if (markedEvicted) {
+            evictedAuthorisations.add(card, key.getRequestId());
+        }
+    }
+
+    /**
+     * Copies the balances the given transactions could change, so that a group of changes which
+     * later fails to persist can be undone with {@link #rollback(Checkpoint)}. A single request is
+     * {@link #mark marked} instead.
+     */
+    public Checkpoint checkpoint(Collection<Transaction> transactions) {
+        Checkpoint checkpoint = new Checkpoint();
+        for (Transaction transaction : transactions) {
+            TransactionKey key = transaction.getTransactionKey();
+            int card = cardBalances.find(key.getCardId());
+            int authorisation = card == CardBalanceTable.ABSENT ?
+                    TransactionBalanceTable.ABSENT :
+                    transactionBalances.find(card, key.getRequestId());
+            checkpoint.cards.putIfAbsent(key.getCardId(), card == CardBalanceTable.ABSENT ? null : cardBalances.get(card));
+            checkpoint.transactions.putIfAbsent(key, authorisation == TransactionBalanceTable.ABSENT ? null : transactionBalances.get(authorisation));
+            if (authorisation == TransactionBalanceTable.ABSENT && card != CardBalanceTable.ABSENT
+                    && evictedAuthorisations.contains(card, key.getRequestId())) {
+                checkpoint.evicted.add(key);
+            }
+        }
+        return checkpoint;
+    }
+
+    public void rollback(Checkpoint checkpoint) {
+        checkpoint.cards.forEach((cardId, balance) ->
+                cardBalances.set(cardBalances.findOrAdd(cardId), balance == null ? new CardBalance() : balance));
+        checkpoint.transactions.forEach((key, balance) -> {
+            int card = cardBalances.findOrAdd(key.getCardId());
+            if (balance == null) {
+                int authorisation = transactionBalances.find(card, key.getRequestId());
+                if (authorisation != TransactionBalanceTable.ABSENT) {
+                    holdTimers.cancel(transactionBalances.getTimer(authorisation));
+                    transactionBalances.remove(authorisation);
+                }
+                if (checkpoint.evicted.contains(key)) {
+                    evictedAuthorisations.add(card, key.getRequestId());
+                }
+            } else {
+                int authorisation = transactionBalances.findOrAdd(card, key.getRequestId());
+                transactionBalances.set(authorisation, balance);
+                armIfHeld(authorisation);
+            }
+        });
+    }
+
+    /**
+     * Copies the balance tables. Their state is a few flat arrays, so this is a handful of array
+     * copies however many cards the partition holds.
+     */
+    PartitionSnapshot snapshot() {
+        return new PartitionSnapshot(highWaterMark, cardBalances.copy(), transactionBalances.copy(), evictedAuthorisations.copy());
+    }
+
+    PartitionStatistics statistics() {
+        return new PartitionStatistics(index, cardBalances.size(), transactionBalances.size(), holdTimers.size(),
+                evictedAuthorisations.size(), hotCards.top());
+    }
+
+    void restore(UUID cardId, long loaded, long balance, long blocked, long captured) {
+        cardBalances.set(cardBalances.findOrAdd(cardId), loaded, balance, blocked, captured);
+    }
+
+    void restore(UUID cardId, String requestId, long blocked, long captured, int operations, String merchant, long expiresAt, long settledAt) {
+        int card = cardBalances.findOrAdd(cardId);
+        int authorisation = transactionBalances.findOrAdd(card, requestId);
+        transactionBalances.set(authorisation, blocked, captured, operations);
+        transactionBalances.setSettledAt(authorisation, settledAt);
+        hold(authorisation, merchant, expiresAt);
+    }
+
+    void restoreEvicted(UUID cardId, long requestHash) {
+        evictedAuthorisations.add(cardBalances.findOrAdd(cardId), requestHash);
+    }
+
+    /**
+     * The balances of a set of cards and authorisations as they were when it was taken. A
+     * missing authorisation is recorded as null so that rolling back removes it again, and evicts
+     * it again if it was evicted; a missing card is rolled back to empty balances, as cards keep
+     * their place in the table once added.
+     */
+    public static final class Checkpoint {
+
+        private final Map<UUID, CardBalance> cards = new HashMap<>();
+        private final Map<TransactionKey, TransactionBalance> transactions = new HashMap<>();
+        private final Set<TransactionKey> evicted = new HashSet<>();
+
+        private Checkpoint() {
+
+        }
+
+    }
+
+}
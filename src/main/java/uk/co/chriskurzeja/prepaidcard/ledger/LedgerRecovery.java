@@ -0,0 +1,159 @@
+package uk.co.chriskurzeja.prepaidcard.ledger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+import uk.co.chriskurzeja.prepaidcard.data.jpa.repository.TransactionRepository;
+import uk.co.chriskurzeja.prepaidcard.model.Transaction;
+import uk.co.chriskurzeja.prepaidcard.model.TransactionKey;
+
+import javax.persistence.EntityManager;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+/**
+ * Rebuilds the ledger's in-memory balances from the latest snapshot and the persisted transaction
+ * log once the application has started. Only transactions the snapshot does not already include
+ * are replayed. Transactions are streamed in id order and replayed in chunks; within
+ * a chunk every partition is replayed in parallel on a fork-join pool, and chunks are applied one
+ * after another so each card still sees its transactions in order. Traffic is admitted once the
+ * whole log has been replayed.
+ */
+@Component
+public class LedgerRecovery {
+
+    private static final Logger log = LoggerFactory.getLogger(LedgerRecovery.class);
+
+    private final TransactionRepository transactionRepository;
+    private final LedgerEngine ledgerEngine;
+    private final EntityManager entityManager;
+    private final LedgerSnapshotStore snapshotStore;
+    private final int chunkSize;
+    private final int parallelism;
+    private final long progressIntervalMs;
+
+    @Autowired
+    public LedgerRecovery(TransactionRepository transactionRepository,
+                          LedgerEngine ledgerEngine,
+                          EntityManager entityManager,
+                          LedgerSnapshotStore snapshotStore,
+                          @Value("${ledger.recovery.chunk-size:10000}") int chunkSize,
+                          @Value("${ledger.recovery.parallelism:0}") int parallelism,
+                          @Value("${ledger.recovery.progress-interval-ms:5000}") long progressIntervalMs) {
+        this.transactionRepository = transactionRepository;
+        this.ledgerEngine = ledgerEngine;
+        this.entityManager = entityManager;
+        this.snapshotStore = snapshotStore;
+        this.chunkSize = chunkSize;
+        this.parallelism = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+        this.progressIntervalMs = progressIntervalMs;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    @Transactional(readOnly = true)
+    public void recover() {
+        if (ledgerEngine.isRecovered()) {
+            return;
+        }
+
+        Optional<LedgerSnapshot> snapshot = snapshotStore.read().filter(this::isRestorable);
+        snapshot.ifPresent(s -> {
+            ledgerEngine.restore(s);
+            log.info("Restored ledger snapshot up to transaction {}", s.getHighWaterMark());
+        });
+
+        long lowWaterMark = snapshot.map(LedgerSnapshot::getLowWaterMark).orElse(0L);
+        Predicate<Transaction> notInSnapshot = snapshot
+                .<Predicate<Transaction>>map(s -> t -> t.getId() > s.getHighWaterMarkFor(t.getTransactionKey()))
+                .orElse(t -> true);
+
+        long highWaterMark = Math.max(replayAfter(lowWaterMark, notInSnapshot), snapshot.map(LedgerSnapshot::getHighWaterMark).orElse(0L));
+        int rehydrated = ledgerEngine.rehydrateReplayed(this::history);
+        if (rehydrated > 0) {
+            log.info("Rehydrated {} evicted authorisations that changed after the snapshot", rehydrated);
+        }
+        ledgerEngine.markRecovered(highWaterMark);
+        log.info("Ledger recovered up to transaction {}, admitting traffic", highWaterMark);
+    }
+
+    /**
+     * @return the id of the last transaction in the log
+     */
+    private long replayAfter(long transactionId, Predicate<Transaction> filter) {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        long started = System.nanoTime();
+        long lastReport = started;
+        long streamed = 0;
+        long replayed = 0;
+        long lastTransactionId = transactionId;
+
+        try (Stream<Transaction> transactions = transactionRepository.streamByIdGreaterThanOrderByIdAsc(transactionId)) {
+            Iterator<Transaction> iterator = transactions.iterator();
+            List<Transaction> chunk = new ArrayList<>(chunkSize);
+
+            while (iterator.hasNext()) {
+                Transaction transaction = iterator.next();
+                lastTransactionId = transaction.getId();
+                if (filter.test(transaction)) {
+                    chunk.add(transaction);
+                }
+                if (++streamed % chunkSize == 0) {
+                    entityManager.clear();
+                }
+                if (chunk.size() == chunkSize || !iterator.hasNext()) {
+                    ledgerEngine.replay(chunk, pool);
+                    replayed += chunk.size();
+                    chunk.clear();
+
+                    long now = System.nanoTime();
+                    if (TimeUnit.NANOSECONDS.toMillis(now - lastReport) >= progressIntervalMs) {
+                        log.info("Ledger recovery replayed {} transactions ({} per second)", replayed, rate(replayed, now - started));
+                        lastReport = now;
+                    }
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        long elapsed = System.nanoTime() - started;
+        log.info("Ledger recovery replayed {} transactions in {} ms ({} per second)",
+                replayed, TimeUnit.NANOSECONDS.toMillis(elapsed), rate(replayed, elapsed));
+        return lastTransactionId;
+    }
+
+    /**
+     * A snapshot taken with cards striped differently holds their slices in the wrong places, so
+     * it is passed over in favour of the full log.
+     */
+    private boolean isRestorable(LedgerSnapshot snapshot) {
+        if (snapshot.getStripes().equals(ledgerEngine.getStripes())) {
+            return true;
+        }
+        log.warn("Ignoring ledger snapshot taken with different cards striped, the full transaction log will be replayed");
+        return false;
+    }
+
+    private List<Transaction> history(TransactionKey key) {
+        List<Transaction> history = new ArrayList<>(transactionRepository.findByTransactionKey(key));
+        history.sort(Comparator.comparing(Transaction::getId));
+        return history;
+    }
+
+    private static long rate(long count, long elapsedNanos) {
+        return elapsedNanos == 0 ? count : count * TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+    }
+
+}
@@ -0,0 +1,47 @@
+package uk.co.chriskurzeja.prepaidcard.ledger;
+
+import uk.co.chriskurzeja.prepaidcard.model.TransactionKey;
+
+import java.util.List;
+
+/**
+ * A checkpoint of every partition in the ledger. Partitions are copied independently, so each
+ * one carries its own high-water mark; a transaction is already reflected in the snapshot if its
+ * id is at or below the mark of the partition that decided it, which for a striped card depends on
+ * how the card was striped when the snapshot was taken.
+ */
+public class LedgerSnapshot {
+
+    private final CardStripes stripes;
+    private final List<PartitionSnapshot> partitions;
+
+    public LedgerSnapshot(List<PartitionSnapshot> partitions) {
+        this(CardStripes.NONE, partitions);
+    }
+
+    public LedgerSnapshot(CardStripes stripes, List<PartitionSnapshot> partitions) {
+        this.stripes = stripes;
+        this.partitions = partitions;
+    }
+
+    public CardStripes getStripes() {
+        return stripes;
+    }
+
+    public List<PartitionSnapshot> getPartitions() {
+        return partitions;
+    }
+
+    public long getLowWaterMark() {
+        return partitions.stream().mapToLong(PartitionSnapshot::getHighWaterMark).min().orElse(0L);
+    }
+
+    public long getHighWaterMark() {
+        return partitions.stream().mapToLong(PartitionSnapshot::getHighWaterMark).max().orElse(0L);
+    }
+
+    public long getHighWaterMarkFor(TransactionKey key) {
+        return partitions.get(LedgerEngine.partitionFor(key, stripes, partitions.size())).getHighWaterMark();
+    }
+
+}
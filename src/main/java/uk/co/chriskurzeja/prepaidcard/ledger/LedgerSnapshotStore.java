@@ -0,0 +1,310 @@
+package uk.co.chriskurzeja.prepaidcard.ledger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Reads and writes ledger snapshots as a compact binary file through memory-mapped windows.
+ * <p>
+ * Layout: a header of magic, version, slice count, striped card count followed by the striped
+ * card ids, and partition count, then for every partition its
+ * high-water mark, card count, transaction count and evicted count followed by the card records
+ * (cardId, loaded, balance, blocked, captured) in ordinal order, transaction records (card
+ * ordinal, requestId, blocked, captured, operations, merchant, hold expiry, settled at) and
+ * evicted authorisation records (card ordinal, request id hash). Card ids are their two
+ * 64-bit halves and request ids and merchants are length-prefixed UTF-8, a merchant the empty
+ * string if the authorisation has none. A snapshot is written to a
+ * temporary file and moved into place, so a crash mid-write leaves the previous snapshot intact.
+ */
+@Component
+public class LedgerSnapshotStore {
+
+    private static final Logger log = LoggerFactory.getLogger(LedgerSnapshotStore.class);
+
+    private static final int MAGIC = 0x50434C53;
+    private static final int VERSION = 7;
+    private static final long WINDOW_SIZE = 64L * 1024 * 1024;
+
+    private final boolean enabled;
+    private final Path path;
+
+    @Autowired
+    public LedgerSnapshotStore(@Value("${ledger.snapshot.enabled:false}") boolean enabled,
+                               @Value("${ledger.snapshot.path:ledger.snapshot}") String path) {
+        this.enabled = enabled;
+        this.path = Paths.get(path);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public Optional<LedgerSnapshot> read() {
+        if (!enabled || !Files.exists(path)) {
+            return Optional.empty();
+        }
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return Optional.of(read(new MappedReader(channel)));
+        } catch (IOException | RuntimeException e) {
+            log.warn("Ignoring unreadable ledger snapshot {}, the full transaction log will be replayed", path, e);
+            return Optional.empty();
+        }
+    }
+
+    public void write(LedgerSnapshot snapshot) {
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+                 MappedWriter writer = new MappedWriter(channel, sizeOf(snapshot))) {
+                write(snapshot, writer);
+            }
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not write ledger snapshot to " + path, e);
+        }
+    }
+
+    private static LedgerSnapshot read(MappedReader reader) throws IOException {
+        if (reader.getInt() != MAGIC || reader.getInt() != VERSION) {
+            throw new IOException("Not a ledger snapshot");
+        }
+
+        int slices = reader.getInt();
+        int stripedCount = reader.getInt();
+        Set<UUID> striped = new HashSet<>(stripedCount);
+        for (int i = 0; i < stripedCount; i++) {
+            striped.add(new UUID(reader.getLong(), reader.getLong()));
+        }
+
+        int partitionCount = reader.getInt();
+        List<PartitionSnapshot> partitions = new ArrayList<>(partitionCount);
+        for (int p = 0; p < partitionCount; p++) {
+            long highWaterMark = reader.getLong();
+            int cardCount = reader.getInt();
+            int transactionCount = reader.getInt();
+            int evictedCount = reader.getInt();
+
+            CardBalanceTable cards = new CardBalanceTable(cardCount);
+            for (int i = 0; i < cardCount; i++) {
+                int card = cards.findOrAdd(reader.getLong(), reader.getLong());
+                cards.set(card, reader.getLong(), reader.getLong(), reader.getLong(), reader.getLong());
+            }
+
+            TransactionBalanceTable transactions = new TransactionBalanceTable(transactionCount);
+            for (int i = 0; i < transactionCount; i++) {
+                int card = reader.getInt();
+                if (card < 0 || card >= cards.size()) {
+                    throw new IOException("Ledger snapshot refers to an unknown card");
+                }
+                int transaction = transactions.findOrAdd(card, reader.getString());
+                transactions.set(transaction, reader.getLong(), reader.getLong(), reader.getInt());
+                String merchant = reader.getString();
+                transactions.setHold(transaction, merchant.isEmpty() ? null : merchant, reader.getLong());
+                transactions.setSettledAt(transaction, reader.getLong());
+            }
+
+            EvictedAuthorisations evicted = new EvictedAuthorisations(evictedCount);
+            for (int i = 0; i < evictedCount; i++) {
+                int card = reader.getInt();
+                if (card < 0 || card >= cards.size()) {
+                    throw new IOException("Ledger snapshot refers to an unknown card");
+                }
+                evicted.add(card, reader.getLong());
+            }
+
+            partitions.add(new PartitionSnapshot(highWaterMark, cards, transactions, evicted));
+        }
+        return new LedgerSnapshot(new CardStripes(striped, slices), partitions);
+    }
+
+    private static void write(LedgerSnapshot snapshot, MappedWriter writer) throws IOException {
+        writer.putInt(MAGIC);
+        writer.putInt(VERSION);
+        writer.putInt(snapshot.getStripes().getSlices());
+        writer.putInt(snapshot.getStripes().getCards().size());
+        for (UUID cardId : snapshot.getStripes().getCards()) {
+            writer.putLong(cardId.getMostSignificantBits());
+            writer.putLong(cardId.getLeastSignificantBits());
+        }
+        writer.putInt(snapshot.getPartitions().size());
+
+        for (PartitionSnapshot partition : snapshot.getPartitions()) {
+            writer.putLong(partition.getHighWaterMark());
+            writer.putInt(partition.getCardBalances().size());
+            writer.putInt(partition.getTransactionBalances().size());
+            writer.putInt(partition.getEvictedAuthorisations().size());
+
+            CardBalanceTable cards = partition.getCardBalances();
+            for (int card = 0; card < cards.size(); card++) {
+                UUID cardId = cards.getCardId(card);
+                writer.putLong(cardId.getMostSignificantBits());
+                writer.putLong(cardId.getLeastSignificantBits());
+                writer.putLong(cards.getLoaded(card));
+                writer.putLong(cards.getBalance(card));
+                writer.putLong(cards.getBlocked(card));
+                writer.putLong(cards.getCaptured(card));
+            }
+
+            TransactionBalanceTable transactions = partition.getTransactionBalances();
+            for (int transaction = 0; transaction < transactions.size(); transaction++) {
+                writer.putInt(transactions.getCard(transaction));
+                writer.putString(transactions.getRequestId(transaction));
+                writer.putLong(transactions.getBlocked(transaction));
+                writer.putLong(transactions.getCaptured(transaction));
+                writer.putInt(transactions.getOperations(transaction));
+                writer.putString(merchantOf(transactions, transaction));
+                writer.putLong(transactions.getExpiresAt(transaction));
+                writer.putLong(transactions.getSettledAt(transaction));
+            }
+
+            EvictedAuthorisations evicted = partition.getEvictedAuthorisations();
+            for (int entry = 0; entry < evicted.size(); entry++) {
+                writer.putInt(evicted.getCard(entry));
+                writer.putLong(evicted.getRequestHash(entry));
+            }
+        }
+    }
+
+    private static long sizeOf(LedgerSnapshot snapshot) {
+        long size = 5 * Integer.BYTES + (long) snapshot.getStripes().getCards().size() * 2 * Long.BYTES;
+        for (PartitionSnapshot partition : snapshot.getPartitions()) {
+            size += Long.BYTES + 3 * Integer.BYTES;
+            CardBalanceTable cards = partition.getCardBalances();
+            size += (long) cards.size() * 6 * Long.BYTES;
+            TransactionBalanceTable transactions = partition.getTransactionBalances();
+            for (int transaction = 0; transaction < transactions.size(); transaction++) {
+                size += Integer.BYTES + sizeOf(transactions.getRequestId(transaction)) + 2 * Long.BYTES + Integer.BYTES
+                        + sizeOf(merchantOf(transactions, transaction)) + 2 * Long.BYTES;
+            }
+            size += (long) partition.getEvictedAuthorisations().size() * (Integer.BYTES + Long.BYTES);
+        }
+        return size;
+    }
+
+    private static String merchantOf(TransactionBalanceTable transactions, int transaction) {
+        String merchant = transactions.getMerchant(transaction);
+        return merchant == null ? "" : merchant;
+    }
+
+    private static int sizeOf(String value) {
+        return Short.BYTES + value.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    /**
+     * Sequential writer over a file of known size, mapping it a window at a time so snapshots
+     * larger than a single mapping can still be written.
+     */
+    private static final class MappedWriter implements Closeable {
+
+        private final FileChannel channel;
+        private final long size;
+        private long windowStart = 0L;
+        private MappedByteBuffer window;
+
+        MappedWriter(FileChannel channel, long size) {
+            this.channel = channel;
+            this.size = size;
+        }
+
+        void putInt(int value) throws IOException {
+            ensure(Integer.BYTES).putInt(value);
+        }
+
+        void putLong(long value) throws IOException {
+            ensure(Long.BYTES).putLong(value);
+        }
+
+        void putString(String value) throws IOException {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > 0xFFFF) {
+                throw new IllegalArgumentException("Identifier too long for a ledger snapshot: " + value.length() + " characters");
+            }
+            ensure(Short.BYTES + bytes.length).putShort((short) bytes.length).put(bytes);
+        }
+
+        private MappedByteBuffer ensure(int bytes) throws IOException {
+            if (window == null || window.remaining() < bytes) {
+                if (window != null) {
+                    window.force();
+                    windowStart += window.position();
+                }
+                window = channel.map(FileChannel.MapMode.READ_WRITE, windowStart, Math.min(WINDOW_SIZE, size - windowStart));
+            }
+            return window;
+        }
+
+        @Override
+        public void close() {
+            if (window != null) {
+                window.force();
+            }
+        }
+
+    }
+
+    private static final class MappedReader {
+
+        private final FileChannel channel;
+        private final long size;
+        private long windowStart = 0L;
+        private MappedByteBuffer window;
+
+        MappedReader(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.size = channel.size();
+        }
+
+        int getInt() throws IOException {
+            return ensure(Integer.BYTES).getInt();
+        }
+
+        long getLong() throws IOException {
+            return ensure(Long.BYTES).getLong();
+        }
+
+        String getString() throws IOException {
+            int length = ensure(Short.BYTES).getShort() & 0xFFFF;
+            byte[] bytes = new byte[length];
+            ensure(length).get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private MappedByteBuffer ensure(int bytes) throws IOException {
+            if (window == null || window.remaining() < bytes) {
+                if (window != null) {
+                    windowStart += window.position();
+                }
+                if (size - windowStart < bytes) {
+                    throw new IOException("Ledger snapshot is truncated");
+                }
+                window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(WINDOW_SIZE, size - windowStart));
+            }
+            return window;
+        }
+
+    }
+
+}
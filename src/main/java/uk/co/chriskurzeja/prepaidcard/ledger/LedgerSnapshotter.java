@@ -0,0 +1,88 @@
+package uk.co.chriskurzeja.prepaidcard.ledger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically checkpoints the ledger in the background, and once more on shutdown, so that
+ * recovery only has to replay the transactions written since the last snapshot.
+ */
+@Component
+public class LedgerSnapshotter {
+
+    private static final Logger log = LoggerFactory.getLogger(LedgerSnapshotter.class);
+
+    private final LedgerEngine ledgerEngine;
+    private final LedgerSnapshotStore snapshotStore;
+    private final TransactionJournal transactionJournal;
+    private final long intervalSeconds;
+    private ScheduledExecutorService scheduler;
+
+    @Autowired
+    public LedgerSnapshotter(LedgerEngine ledgerEngine,
+                             LedgerSnapshotStore snapshotStore,
+                             TransactionJournal transactionJournal,
+                             @Value("${ledger.snapshot.interval-seconds:300}") long intervalSeconds) {
+        this.ledgerEngine = ledgerEngine;
+        this.snapshotStore = snapshotStore;
+        this.transactionJournal = transactionJournal;
+        this.intervalSeconds = intervalSeconds;
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!snapshotStore.isEnabled()) {
+            return;
+        }
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ledger-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::takeSnapshot, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    public void takeSnapshot() {
+        if (!ledgerEngine.isRecovered()) {
+            return;
+        }
+
+        try {
+            long started = System.nanoTime();
+            LedgerSnapshot snapshot = ledgerEngine.snapshot();
+            // The snapshot may include journalled transactions that are not yet on disk; it must
+            // not outlive them if the process stops before they are.
+            if (!transactionJournal.awaitDurable()) {
+                log.warn("Skipping ledger snapshot, the transaction journal is not durable");
+                return;
+            }
+            snapshotStore.write(snapshot);
+            log.info("Wrote ledger snapshot up to transaction {} in {} ms",
+                    snapshot.getHighWaterMark(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+        } catch (RuntimeException e) {
+            log.warn("Failed to write ledger snapshot", e);
+        }
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        if (scheduler == null) {
+            return;
+        }
+
+        scheduler.shutdown();
+        scheduler.awaitTermination(30, TimeUnit.SECONDS);
+        takeSnapshot();
+    }
+
+}
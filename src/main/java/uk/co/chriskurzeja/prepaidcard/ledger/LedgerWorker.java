@@ -0,0 +1,51 @@
+package uk.co.chriskurzeja.prepaidcard.ledger;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * A single thread that owns one {@link LedgerPartition} and applies operations to it in
+ * submission order.
+ */
+class LedgerWorker {
+
+    private final LedgerPartition partition;
+    private final ExecutorService executor;
+    private volatile Thread thread;
+
+    LedgerWorker(int index, BalanceReadModel balances) {
+        this.partition = new LedgerPartition(index, balances);
+        this.executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread t = new Thread(runnable, "ledger-worker-" + index);
+            t.setDaemon(true);
+            thread = t;
+            return t;
+        });
+    }
+
+    boolean isCurrentThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    LedgerPartition getPartition() {
+        return partition;
+    }
+
+    <T> Future<T> submit(Function<LedgerPartition, T> operation) {
+        return executor.submit(() -> operation.apply(partition));
+    }
+
+    <T> CompletableFuture<T> submitAsync(Function<LedgerPartition, T> operation) {
+        return CompletableFuture.supplyAsync(() -> operation.apply(partition), executor);
+    }
+
+    void shutdown() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+}
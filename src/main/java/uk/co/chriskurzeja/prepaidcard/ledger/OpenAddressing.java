@@ -0,0 +1,71 @@
+package uk.co.chriskurzeja.prepaidcard.ledger;
+
+/**
+ * The index shared by the balance tables: a power-of-two array of ordinals, stored plus one so
+ * that zero marks an empty slot, probed linearly from a slot picked by Fibonacci hashing. The index
+ * is kept at most half full, so probes stay short.
+ */
+final class OpenAddressing {
+
+    static final int EMPTY = 0;
+
+    private static final int GOLDEN_RATIO = 0x9E3779B9;
+
+    private OpenAddressing() {
+
+    }
+
+    /**
+     * The smallest index that holds the expected number of entries at most half full.
+     */
+    static int indexSizeFor(int expectedEntries) {
+        int size = 16;
+        while (size < 2L * expectedEntries) {
+            size <<= 1;
+        }
+        return size;
+    }
+
+    static int home(int hash, int mask) {
+        return (hash * GOLDEN_RATIO) >>> Integer.numberOfLeadingZeros(mask) & mask;
+    }
+
+    static int next(int slot, int mask) {
+        return (slot + 1) & mask;
+    }
+
+    /**
+     * Builds an index of the given size over the first {@code size} ordinals.
+     */
+    static int[] rebuild(int[] hashes, int size, int indexSize) {
+        int[] index = new int[indexSize];
+        int mask = indexSize - 1;
+        for (int ordinal = 0; ordinal < size; ordinal++) {
+            int slot = home(hashes[ordinal], mask);
+            while (index[slot] != EMPTY) {
+                slot = next(slot, mask);
+            }
+            index[slot] = ordinal + 1;
+        }
+        return index;
+    }
+
+    /**
+     * Empties a slot, shifting back any later entry in the same run that would otherwise no
+     * longer be found from its home slot.
+     */
+    static void clear(int[] index, int[] hashes, int slot) {
+        int mask = index.length - 1;
+        int hole = slot;
+        for (int i = next(slot, mask); index[i] != EMPTY; i = next(i, mask)) {
+            int home = home(hashes[index[i] - 1], mask);
+            boolean reachable = hole <= i ? (home > hole && home <= i) : (home > hole || home <= i);
+            if (!reachable) {
+                index[hole] = index[i];
+                hole = i;
+            }
+        }
+        index[hole] = EMPTY;
+    }
+
+}
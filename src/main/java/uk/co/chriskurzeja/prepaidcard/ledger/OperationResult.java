@@ -0,0 +1,86 @@
+package uk.co.chriskurzeja.prepaidcard.ledger;
+
+/**
+ * The outcome of a merchant operation applied by a {@link LedgerPartition}: either the reason it
+ * was rejected, or the authorisation's balances once it was applied. Each partition owns one and
+ * fills it in place on every operation, so it is only valid on the partition's worker until the
+ * next operation there; read what is needed straight away.
+ * <p>
+ * An operation on an authorisation the partition has evicted is neither: the partition cannot
+ * decide it until the authorisation is rehydrated, after which it can be applied again.
+ */
+public final class OperationResult {
+
+    private static final String EVICTED = "Authorisation must be rehydrated before it can be changed";
+
+    private String rejection;
+    private boolean evicted;
+    private long blocked;
+    private long captured;
+    private int sequenceNumber;
+
+    OperationResult() {
+
+    }
+
+    public boolean isAccepted() {
+        return rejection == null;
+    }
+
+    /**
+     * Whether the operation was turned away because its authorisation has been evicted; see
+     * {@link LedgerPartition#rehydrate}.
+     */
+    public boolean isEvicted() {
+        return evicted;
+    }
+
+    /**
+     * @return why the operation was rejected, or null if it was accepted
+     */
+    public String getRejection() {
+        return rejection;
+    }
+
+    public long getBlocked() {
+        return blocked;
+    }
+
+    public long getCaptured() {
+        return captured;
+    }
+
+    /**
+     * The number of captures, reversals and refunds applied to the authorisation, this one
+     * included, which is the sequence number the operation is recorded under. Zero for the
+     * authorisation itself.
+     */
+    public int getSequenceNumber() {
+        return sequenceNumber;
+    }
+
+    OperationResult accept(long blocked, long captured, int sequenceNumber) {
+        this.rejection = null;
+        this.evicted = false;
+        this.blocked = blocked;
+        this.captured = captured;
+        this.sequenceNumber = sequenceNumber;
+        return this;
+    }
+
+    OperationResult reject(String reason) {
+        this.rejection = reason;
+        this.evicted = false;
+        this.blocked = 0L;
+        this.captured = 0L;
+        this.sequenceNumber = 0;
+        return this;
+    }
+
+    OperationResult evicted() {
+        reject(EVICTED);
+        this.evicted = true;
+        return this;
+    }
+
+}
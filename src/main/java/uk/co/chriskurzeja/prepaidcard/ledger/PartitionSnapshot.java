@@ -0,0 +1,44 @@
+package uk.co.chriskurzeja.prepaidcard.ledger;
+
+/**
+ * A point-in-time copy of one partition's balances together with the id of the last
+ * transaction they include.
+ */
+public class PartitionSnapshot {
+
+    private final long highWaterMark;
+    private final CardBalanceTable cardBalances;
+    private final TransactionBalanceTable transactionBalances;
+    private final EvictedAuthorisations evictedAuthorisations;
+
+    public PartitionSnapshot(long highWaterMark, CardBalanceTable cardBalances, TransactionBalanceTable transactionBalances,
+                             EvictedAuthorisations evictedAuthorisations) {
+        this.highWaterMark = highWaterMark;
+        this.cardBalances = cardBalances;
+        this.transactionBalances = transactionBalances;
+        this.evictedAuthorisations = evictedAuthorisations;
+    }
+
+    public long getHighWaterMark() {
+        return highWaterMark;
+    }
+
+    public CardBalanceTable getCardBalances() {
+        return cardBalances;
+    }
+
+    /**
+     * Authorisation balances, whose card ordinals refer to {@link #getCardBalances()}.
+     */
+    public TransactionBalanceTable getTransactionBalances() {
+        return transactionBalances;
+    }
+
+    /**
+     * Evicted authorisations, whose card ordinals also refer to {@link #getCardBalances()}.
+     */
+    public EvictedAuthorisations getEvictedAuthorisations() {
+        return evictedAuthorisations;
+    }
+
+}
@@ -0,0 +1,82 @@
+package uk.co.chriskurzeja.prepaidcard.ledger;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * How much one partition is holding and which of its cards are busiest, as read by its worker.
+ */
+public class PartitionStatistics {
+
+    private final int index;
+    private final int cardBalances;
+    private final int transactionBalances;
+    private final int pendingHolds;
+    private final int evictedAuthorisations;
+    private final List<CardActivity> hottestCards;
+
+    public PartitionStatistics(int index, int cardBalances, int transactionBalances, int pendingHolds, int evictedAuthorisations,
+                               List<CardActivity> hottestCards) {
+        this.index = index;
+        this.cardBalances = cardBalances;
+        this.transactionBalances = transactionBalances;
+        this.pendingHolds = pendingHolds;
+        this.evictedAuthorisations = evictedAuthorisations;
+        this.hottestCards = hottestCards;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public int getCardBalances() {
+        return cardBalances;
+    }
+
+    public int getTransactionBalances() {
+        return transactionBalances;
+    }
+
+    /**
+     * Authorisations still blocking funds that will be released if they are not settled in time.
+     */
+    public int getPendingHolds() {
+        return pendingHolds;
+    }
+
+    /**
+     * Settled authorisations no longer held in the transaction balances, only remembered.
+     */
+    public int getEvictedAuthorisations() {
+        return evictedAuthorisations;
+    }
+
+    /**
+     * The busiest cards since the application started, busiest first. Counts are approximate and
+     * may overstate a card's operations, never understate them.
+     */
+    public List<CardActivity> getHottestCards() {
+        return hottestCards;
+    }
+
+    public static final class CardActivity {
+
+        private final UUID cardId;
+        private final long operations;
+
+        public CardActivity(UUID cardId, long operations) {
+            this.cardId = cardId;
+            this.operations = operations;
+        }
+
+        public UUID getCardId() {
+            return cardId;
+        }
+
+        public long getOperations() {
+            return operations;
+        }
+
+    }
+
+}
@@ -0,0 +1,81 @@
+package uk.co.chriskurzeja.prepaidcard.ledger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically evens out the slices of every striped card that has one running low, so that
+ * authorisations rarely find their own slice short and have to gather funds from the others.
+ * Does nothing unless some card is striped.
+ */
+@Component
+public class StripeRebalancer {
+
+    private static final Logger log = LoggerFactory.getLogger(StripeRebalancer.class);
+
+    private final LedgerEngine ledgerEngine;
+    private final long intervalMs;
+    private ScheduledExecutorService scheduler;
+
+    @Autowired
+    public StripeRebalancer(LedgerEngine ledgerEngine,
+                            @Value("${ledger.striping.rebalance-interval-ms:100}") long intervalMs) {
+        this.ledgerEngine = ledgerEngine;
+        this.intervalMs = intervalMs;
+    }
+
+    @PostConstruct
+    public void start() {
+        if (ledgerEngine.getStripes().getCards().isEmpty()) {
+            return;
+        }
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ledger-rebalance");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::rebalanceUnbalanced, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the number of cards rebalanced
+     */
+    public int rebalanceUnbalanced() {
+        if (!ledgerEngine.isRecovered()) {
+            return 0;
+        }
+
+        int rebalanced = 0;
+        for (UUID cardId : ledgerEngine.getStripes().getCards()) {
+            try {
+                if (ledgerEngine.isUnbalanced(cardId)) {
+                    ledgerEngine.rebalance(cardId);
+                    rebalanced++;
+                }
+            } catch (RuntimeException e) {
+                log.warn("Failed to rebalance the slices of card {}", cardId, e);
+            }
+        }
+        return rebalanced;
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        if (scheduler != null) {
+            scheduler.shutdown();
+            scheduler.awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+
+}
@@ -0,0 +1,314 @@
+package uk.co.chriskurzeja.prepaidcard.ledger;
+
+import uk.co.chriskurzeja.prepaidcard.model.TransactionBalance;
+
+import java.util.Arrays;
+
+/**
+ * The authorisation balances of one partition, held in primitive arrays in the same way as
+ * {@link CardBalanceTable}. An authorisation is keyed by its card's ordinal in that table and its
+ * request id, so the card id is not held again and no key object is built to find it.
+ * <p>
+ * Unlike cards, authorisations can be removed. The last authorisation moves into the freed
+ * ordinal, so an ordinal is only valid until the next removal. The checks and updates mirror
+ * {@link TransactionBalance}. Only the owning worker touches the table.
+ * <p>
+ * Alongside its balances an authorisation keeps its merchant and when its hold expires, so an
+ * expired hold can be reversed as the merchant would have, the id of its pending expiry timer, and
+ * when it last stopped blocking funds, from which the partition decides when to evict it.
+ */
+public final class TransactionBalanceTable {
+
+    public static final int ABSENT = -1;
+
+    private static final int BLOCKED = 0;
+    private static final int CAPTURED = 1;
+    private static final int FIELDS = 2;
+    private static final int MIN_CAPACITY = 1024;
+
+    private int[] cards;
+    private String[] requestIds;
+    private int[] hashes;
+    private long[] values;
+    private int[] operations;
+    private String[] merchants;
+    private long[] expiries;
+    private int[] timers;
+    private long[] settledAt;
+    private int[] index;
+    private int size = 0;
+
+    public TransactionBalanceTable() {
+        this(1024);
+    }
+
+    public TransactionBalanceTable(int expectedTransactions) {
+        this.index = new int[OpenAddressing.indexSizeFor(expectedTransactions)];
+        int capacity = index.length / 2;
+        this.cards = new int[capacity];
+        this.requestIds = new String[capacity];
+        this.hashes = new int[capacity];
+        this.values = new long[capacity * FIELDS];
+        this.operations = new int[capacity];
+        this.merchants = new String[capacity];
+        this.expiries = new long[capacity];
+        this.timers = new int[capacity];
+        this.settledAt = new long[capacity];
+    }
+
+    private TransactionBalanceTable(TransactionBalanceTable other) {
+        this.cards = other.cards.clone();
+        this.requestIds = other.requestIds.clone();
+        this.hashes = other.hashes.clone();
+        this.values = other.values.clone();
+        this.operations = other.operations.clone();
+        this.merchants = other.merchants.clone();
+        this.expiries = other.expiries.clone();
+        this.timers = other.timers.clone();
+        this.settledAt = other.settledAt.clone();
+        this.index = other.index.clone();
+        this.size = other.size;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the authorisation's ordinal, or {@link #ABSENT} if it is not in the table
+     */
+    public int find(int card, String requestId) {
+        int hash = hash(card, requestId);
+        int mask = index.length - 1;
+        for (int slot = OpenAddressing.home(hash, mask); index[slot] != OpenAddressing.EMPTY; slot = OpenAddressing.next(slot, mask)) {
+            int transaction = index[slot] - 1;
+            if (matches(transaction, hash, card, requestId)) {
+                return transaction;
+            }
+        }
+        return ABSENT;
+    }
+
+    /**
+     * @return the authorisation's ordinal, adding it with empty balances if it is not in the table
+     */
+    public int findOrAdd(int card, String requestId) {
+        if (size == cards.length) {
+            grow();
+        }
+
+        int hash = hash(card, requestId);
+        int mask = index.length - 1;
+        int slot = OpenAddressing.home(hash, mask);
+        for (; index[slot] != OpenAddressing.EMPTY; slot = OpenAddressing.next(slot, mask)) {
+            int transaction = index[slot] - 1;
+            if (matches(transaction, hash, card, requestId)) {
+                return transaction;
+            }
+        }
+
+        int transaction = size++;
+        cards[transaction] = card;
+        requestIds[transaction] = requestId;
+        hashes[transaction] = hash;
+        timers[transaction] = HoldTimers.NONE;
+        index[slot] = transaction + 1;
+        return transaction;
+    }
+
+    /**
+     * Removes an authorisation, moving the last one into its ordinal.
+     */
+    public void remove(int transaction) {
+        OpenAddressing.clear(index, hashes, slotOf(transaction));
+
+        int last = --size;
+        if (transaction != last) {
+            index[slotOf(last)] = transaction + 1;
+            cards[transaction] = cards[last];
+            requestIds[transaction] = requestIds[last];
+            hashes[transaction] = hashes[last];
+            values[transaction * FIELDS + BLOCKED] = values[last * FIELDS + BLOCKED];
+            values[transaction * FIELDS + CAPTURED] = values[last * FIELDS + CAPTURED];
+            operations[transaction] = operations[last];
+            merchants[transaction] = merchants[last];
+            expiries[transaction] = expiries[last];
+            timers[transaction] = timers[last];
+            settledAt[transaction] = settledAt[last];
+        }
+
+        requestIds[last] = null;
+        merchants[last] = null;
+        expiries[last] = 0L;
+        settledAt[last] = 0L;
+        values[last * FIELDS + BLOCKED] = 0L;
+        values[last * FIELDS + CAPTURED] = 0L;
+        operations[last] = 0;
+    }
+
+    /**
+     * The ordinal of the authorisation's card in the partition's {@link CardBalanceTable}.
+     */
+    public int getCard(int transaction) {
+        return cards[transaction];
+    }
+
+    public String getRequestId(int transaction) {
+        return requestIds[transaction];
+    }
+
+    public long getBlocked(int transaction) {
+        return values[transaction * FIELDS + BLOCKED];
+    }
+
+    public long getCaptured(int transaction) {
+        return values[transaction * FIELDS + CAPTURED];
+    }
+
+    /**
+     * The number of captures, reversals and refunds applied to the authorisation so far.
+     */
+    public int getOperations(int transaction) {
+        return operations[transaction];
+    }
+
+    /**
+     * The merchant the funds were authorised for, if the authorisation's hold can expire.
+     */
+    public String getMerchant(int transaction) {
+        return merchants[transaction];
+    }
+
+    /**
+     * When the authorisation's hold expires, in milliseconds since the epoch, or
+     * {@link LedgerPartition#NO_EXPIRY}.
+     */
+    public long getExpiresAt(int transaction) {
+        return expiries[transaction];
+    }
+
+    public void setHold(int transaction, String merchant, long expiresAt) {
+        merchants[transaction] = merchant;
+        expiries[transaction] = expiresAt;
+    }
+
+    int getTimer(int transaction) {
+        return timers[transaction];
+    }
+
+    void setTimer(int transaction, int timer) {
+        timers[transaction] = timer;
+    }
+
+    /**
+     * When the authorisation last stopped blocking funds, in milliseconds since the epoch.
+     */
+    public long getSettledAt(int transaction) {
+        return settledAt[transaction];
+    }
+
+    public void setSettledAt(int transaction, long settledAt) {
+        this.settledAt[transaction] = settledAt;
+    }
+
+    public void block(int transaction, long amount) {
+        values[transaction * FIELDS + BLOCKED] += amount;
+    }
+
+    public void capture(int transaction, long amount) {
+        values[transaction * FIELDS + BLOCKED] -= amount;
+        values[transaction * FIELDS + CAPTURED] += amount;
+        operations[transaction]++;
+    }
+
+    public void refund(int transaction, long amount) {
+        values[transaction * FIELDS + CAPTURED] -= amount;
+        operations[transaction]++;
+    }
+
+    public void reverse(int transaction, long amount) {
+        values[transaction * FIELDS + BLOCKED] -= amount;
+        operations[transaction]++;
+    }
+
+    public boolean canCapture(int transaction, long amount) {
+        return getBlocked(transaction) >= amount;
+    }
+
+    public boolean canRefund(int transaction, long amount) {
+        return getCaptured(transaction) >= amount;
+    }
+
+    public boolean canReverse(int transaction, long amount) {
+        return getBlocked(transaction) >= amount;
+    }
+
+    /**
+     * Copies the authorisation's balances out of the table.
+     */
+    public TransactionBalance get(int transaction) {
+        return new TransactionBalance(getBlocked(transaction), getCaptured(transaction), getOperations(transaction));
+    }
+
+    public void set(int transaction, TransactionBalance balance) {
+        set(transaction, balance.getBlocked(), balance.getCaptured(), balance.getOperations());
+    }
+
+    public void set(int transaction, long blocked, long captured, int operations) {
+        values[transaction * FIELDS + BLOCKED] = blocked;
+        values[transaction * FIELDS + CAPTURED] = captured;
+        this.operations[transaction] = operations;
+    }
+
+    public TransactionBalanceTable copy() {
+        return new TransactionBalanceTable(this);
+    }
+
+    private boolean matches(int transaction, int hash, int card, String requestId) {
+        return hashes[transaction] == hash && cards[transaction] == card && requestIds[transaction].equals(requestId);
+    }
+
+    private int slotOf(int transaction) {
+        int mask = index.length - 1;
+        int slot = OpenAddressing.home(hashes[transaction], mask);
+        while (index[slot] != transaction + 1) {
+            slot = OpenAddressing.next(slot, mask);
+        }
+        return slot;
+    }
+
+    /**
+     * Gives back the space of removed authorisations once the table is less than a quarter full.
+     */
+    public void shrink() {
+        int capacity = cards.length;
+        while (capacity > MIN_CAPACITY && size * 4 < capacity) {
+            capacity >>>= 1;
+        }
+        if (capacity < cards.length) {
+            resize(capacity);
+        }
+    }
+
+    private void grow() {
+        resize(cards.length * 2);
+    }
+
+    private void resize(int capacity) {
+        cards = Arrays.copyOf(cards, capacity);
+        requestIds = Arrays.copyOf(requestIds, capacity);
+        hashes = Arrays.copyOf(hashes, capacity);
+        values = Arrays.copyOf(values, capacity * FIELDS);
+        operations = Arrays.copyOf(operations, capacity);
+        merchants = Arrays.copyOf(merchants, capacity);
+        expiries = Arrays.copyOf(expiries, capacity);
+        timers = Arrays.copyOf(timers, capacity);
+        settledAt = Arrays.copyOf(settledAt, capacity);
+        index = OpenAddressing.rebuild(hashes, size, capacity * 2);
+    }
+
+    private static int hash(int card, String requestId) {
+        return 31 * card + requestId.hashCode();
+    }
+
+}
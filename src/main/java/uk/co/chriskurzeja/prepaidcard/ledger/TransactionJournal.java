@@ -0,0 +1,522 @@
+package uk.co.chriskurzeja.prepaidcard.ledger;
+
+import org.hibernate.StatelessSession;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.id.IdentifierGenerator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import uk.co.chriskurzeja.prepaidcard.model.Transaction;
+import uk.co.chriskurzeja.prepaidcard.model.TransactionKey;
+import uk.co.chriskurzeja.prepaidcard.model.TransactionType;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.persistence.EntityManagerFactory;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of accepted transactions, used in place of saving each transaction to the
+ * database as it is accepted. Appends from every ledger worker are queued and a single writer
+ * thread writes whatever has queued up since its last write and forces it to disk once, so
+ * concurrent requests share one fsync. A request is acknowledged only after
+ * {@link #awaitDurable()} has seen its group reach the disk.
+ * <p>
+ * Once on disk, each transaction is handed to the listener set with {@link #onDurable(Consumer)}
+ * and its entry to the {@link TransactionJournalDrainer}, which copies them into the
+ * transaction table; once everything written has been drained the file is truncated. Ids are
+ * taken from the transaction table's own sequence when an entry is appended, so the ledger's
+ * high-water marks mean the same thing whether a transaction reached the table directly or
+ * through the journal.
+ * <p>
+ * Each record is its payload length and CRC32 followed by the payload: id, amount, sequence
+ * number, the two halves of the cardId, then the type, requestId and merchant as length-prefixed
+ * UTF-8, and last the hold expiry and the time it was accepted, which records written before they
+ * existed do without. Reading stops at the first record that is incomplete or fails its checksum,
+ * which is where a crash mid-write leaves the file, and the file is cut back to the last good record.
+ */
+@Component
+public class TransactionJournal {
+
+    private static final Logger log = LoggerFactory.getLogger(TransactionJournal.class);
+
+    private static final int HEADER_SIZE = Integer.BYTES * 2;
+    private static final int MAX_RECORD_SIZE = 64 * 1024;
+
+    private final boolean enabled;
+    private final Path path;
+    private final ToLongFunction<Transaction> idAllocator;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition appended = lock.newCondition();
+    private final Condition synced = lock.newCondition();
+    private List<Entry> pending = new ArrayList<>();
+    private long appendedCount = 0L;
+    private long durableCount = 0L;
+    private boolean running = false;
+    private IOException failure;
+
+    private final Map<Map.Entry<TransactionKey, TransactionType>, Integer> undrained = new ConcurrentHashMap<>();
+    private final BlockingQueue<Entry> durable = new LinkedBlockingQueue<>();
+    private final AtomicLong drainedPosition = new AtomicLong();
+    private final AtomicLong syncs = new AtomicLong();
+    private volatile Consumer<Transaction> durableListener = transaction -> { };
+    private List<Entry> recovered = Collections.emptyList();
+    private FileChannel channel;
+    private long position;
+    private Thread writer;
+
+    @Autowired
+    public TransactionJournal(EntityManagerFactory entityManagerFactory,
+                              @Value("${ledger.journal.enabled:false}") boolean enabled,
+                              @Value("${ledger.journal.path:ledger.journal}") String path) {
+        this(enabled ? sequenceAllocator(entityManagerFactory) : transaction -> 0L, enabled, Paths.get(path));
+    }
+
+    TransactionJournal(ToLongFunction<Transaction> idAllocator, boolean enabled, Path path) {
+        this.idAllocator = idAllocator;
+        this.enabled = enabled;
+        this.path = path;
+    }
+
+    /**
+     * Allocates ids through Hibernate's own generator for the transaction table, so journalled
+     * ids come from the same pooled sequence as rows saved through JPA.
+     */
+    private static ToLongFunction<Transaction> sequenceAllocator(EntityManagerFactory entityManagerFactory) {
+        SessionFactoryImplementor sessionFactory = entityManagerFactory.unwrap(SessionFactoryImplementor.class);
+        IdentifierGenerator generator = sessionFactory.getMetamodel().entityPersister(Transaction.class).getIdentifierGenerator();
+        return transaction -> {
+            StatelessSession session = sessionFactory.openStatelessSession();
+            try {
+                return (Long) generator.generate((SharedSessionContractImplementor) session, transaction);
+            } finally {
+                session.close();
+            }
+        };
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Sets what is told of each appended transaction once it is on disk, in the order they were
+     * appended. Called on the journal's writer thread, before {@link #awaitDurable()} returns for
+     * the transaction.
+     */
+    public void onDurable(Consumer<Transaction> listener) {
+        this.durableListener = listener;
+    }
+
+    @PostConstruct
+    public void open() throws IOException {
+        if (!enabled) {
+            return;
+        }
+
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        recovered = readAll();
+        channel.position(position);
+        drainedPosition.set(0L);
+
+        running = true;
+        writer = new Thread(this::writeGroups, "ledger-journal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * The entries found in the journal when it was opened; they are durable but may not have been
+     * drained into the transaction table before the last shutdown.
+     */
+    public List<Entry> getRecovered() {
+        return recovered;
+    }
+
+    /**
+     * Assigns the transaction its id and queues it to be written. Called on the ledger worker that
+     * accepted the transaction; the caller must {@link #awaitDurable()} before acknowledging it.
+     */
+    public void append(Transaction transaction) {
+        transaction.setId(idAllocator.applyAsLong(transaction));
+        Entry entry = new Entry(transaction, encode(transaction));
+        undrained.merge(keyOf(transaction), 1, Integer::sum);
+
+        lock.lock();
+        try {
+            if (failure != null || !running) {
+                forget(transaction);
+                throw new IllegalStateException("The transaction journal is not accepting writes", failure);
+            }
+            pending.add(entry);
+            appendedCount++;
+            appended.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until every transaction appended before the call is on disk.
+     *
+     * @return false if the journal failed or the wait was interrupted
+     */
+    public boolean awaitDurable() {
+        if (!enabled) {
+            return true;
+        }
+
+        lock.lock();
+        try {
+            long target = appendedCount;
+            while (durableCount < target) {
+                if (failure != null) {
+                    return false;
+                }
+                synced.await();
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Whether a transaction of this type has been journalled but not yet drained, and so cannot
+     * be found in the transaction table yet.
+     */
+    public boolean contains(TransactionKey key, TransactionType type) {
+        return undrained.containsKey(new AbstractMap.SimpleImmutableEntry<>(key, type));
+    }
+
+    /**
+     * Whether any operation on the authorisation has been journalled but not yet drained.
+     */
+    public boolean containsAny(TransactionKey key) {
+        if (undrained.isEmpty()) {
+            return false;
+        }
+        for (TransactionType type : TransactionType.values()) {
+            if (contains(key, type)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public List<Entry> takeDurable(int max, long timeout, TimeUnit unit) throws InterruptedException {
+        List<Entry> entries = new ArrayList<>(Math.min(max, 1024));
+        Entry first = durable.poll(timeout, unit);
+        if (first != null) {
+            entries.add(first);
+            durable.drainTo(entries, max - 1);
+        }
+        return entries;
+    }
+
+    /**
+     * Records that the entries, which must be the oldest not yet drained, are now in the
+     * transaction table.
+     */
+    public void markDrained(List<Entry> entries) {
+        if (entries.isEmpty()) {
+            return;
+        }
+
+        for (Entry entry : entries) {
+            forget(entry.getTransaction());
+        }
+        drainedPosition.set(entries.get(entries.size() - 1).endPosition);
+        lock.lock();
+        try {
+            appended.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The number of times the journal has been forced to disk, each covering a group of appends.
+     */
+    public long getSyncCount() {
+        return syncs.get();
+    }
+
+    private void writeGroups() {
+        List<Entry> spare = new ArrayList<>();
+        while (true) {
+            List<Entry> group;
+            lock.lock();
+            try {
+                truncateIfDrained();
+                while (pending.isEmpty() && running) {
+                    appended.await();
+                    truncateIfDrained();
+                }
+                if (pending.isEmpty()) {
+                    return;
+                }
+                group = pending;
+                pending = spare;
+            } catch (InterruptedException | IOException e) {
+                fail(e instanceof IOException ? (IOException) e : new IOException(e));
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                write(group);
+            } catch (IOException e) {
+                lock.lock();
+                try {
+                    fail(e);
+                } finally {
+                    lock.unlock();
+                }
+                return;
+            }
+
+            for (Entry entry : group) {
+                durableListener.accept(entry.getTransaction());
+            }
+            lock.lock();
+            try {
+                durableCount += group.size();
+                synced.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            durable.addAll(group);
+            group.clear();
+            spare = group;
+        }
+    }
+
+    private void write(List<Entry> group) throws IOException {
+        ByteBuffer[] buffers = new ByteBuffer[group.size()];
+        for (int i = 0; i < group.size(); i++) {
+            Entry entry = group.get(i);
+            position += entry.record.remaining();
+            entry.endPosition = position;
+            buffers[i] = entry.record;
+        }
+
+        int first = 0;
+        while (first < buffers.length) {
+            channel.write(buffers, first, buffers.length - first);
+            while (first < buffers.length && !buffers[first].hasRemaining()) {
+                first++;
+            }
+        }
+        channel.force(false);
+        syncs.incrementAndGet();
+    }
+
+    /**
+     * Called on the writer thread with the lock held: once everything written has been drained the
+     * journal holds nothing that isn't in the transaction table, so it can start again from empty.
+     */
+    private void truncateIfDrained() throws IOException {
+        if (position > 0 && drainedPosition.get() == position) {
+            channel.truncate(0L);
+            channel.position(0L);
+            position = 0L;
+            drainedPosition.set(0L);
+        }
+    }
+
+    private void fail(IOException e) {
+        log.error("The transaction journal {} failed, no further transactions will be accepted", path, e);
+        failure = e;
+        running = false;
+        synced.signalAll();
+    }
+
+    private List<Entry> readAll() throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        long size = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        position = 0L;
+
+        while (position + HEADER_SIZE <= size) {
+            header.clear();
+            readFully(header, position);
+            header.flip();
+            int length = header.getInt();
+            int checksum = header.getInt();
+            if (length <= 0 || length > MAX_RECORD_SIZE || position + HEADER_SIZE + length > size) {
+                break;
+            }
+
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            readFully(payload, position + HEADER_SIZE);
+            payload.flip();
+            if (checksum(payload) != checksum) {
+                break;
+            }
+
+            position += HEADER_SIZE + length;
+            Entry entry = new Entry(decode(payload), null);
+            entry.endPosition = position;
+            entries.add(entry);
+        }
+
+        if (position < size) {
+            log.warn("Discarding {} bytes of incomplete records at the end of the transaction journal {}", size - position, path);
+            channel.truncate(position);
+            channel.force(false);
+        }
+        log.info("Read {} transactions from the transaction journal {}", entries.size(), path);
+        return Collections.unmodifiableList(entries);
+    }
+
+    private void readFully(ByteBuffer buffer, long from) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, from + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of the transaction journal");
+            }
+        }
+    }
+
+    @PreDestroy
+    public void close() throws IOException, InterruptedException {
+        if (channel == null) {
+            return;
+        }
+
+        lock.lock();
+        try {
+            running = false;
+            appended.signal();
+        } finally {
+            lock.unlock();
+        }
+        writer.join(TimeUnit.SECONDS.toMillis(5));
+        channel.close();
+    }
+
+    private static ByteBuffer encode(Transaction transaction) {
+        byte[] type = transaction.getTransactionType().name().getBytes(StandardCharsets.UTF_8);
+        UUID cardId = transaction.getTransactionKey().getCardId();
+        byte[] requestId = transaction.getTransactionKey().getRequestId().getBytes(StandardCharsets.UTF_8);
+        byte[] merchant = transaction.getMerchant() == null ? new byte[0] : transaction.getMerchant().getBytes(StandardCharsets.UTF_8);
+        int length = Long.BYTES * 6 + Integer.BYTES + Short.BYTES * 3 + type.length + requestId.length + merchant.length;
+        if (length > MAX_RECORD_SIZE) {
+            throw new IllegalArgumentException("Transaction is too large to journal: " + transaction);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + length);
+        buffer.position(HEADER_SIZE);
+        buffer.putLong(transaction.getId());
+        buffer.putLong(transaction.getAmount());
+        buffer.putInt(transaction.getSequenceNumber());
+        buffer.putLong(cardId.getMostSignificantBits());
+        buffer.putLong(cardId.getLeastSignificantBits());
+        putString(buffer, type);
+        putString(buffer, requestId);
+        putString(buffer, merchant);
+        buffer.putLong(transaction.getExpiresAt());
+        buffer.putLong(transaction.getRecordedAt());
+
+        buffer.flip();
+        ByteBuffer payload = buffer.duplicate();
+        payload.position(HEADER_SIZE);
+        buffer.putInt(0, length);
+        buffer.putInt(Integer.BYTES, checksum(payload));
+        return buffer;
+    }
+
+    private static Transaction decode(ByteBuffer payload) {
+        long id = payload.getLong();
+        long amount = payload.getLong();
+        int sequenceNumber = payload.getInt();
+        UUID cardId = new UUID(payload.getLong(), payload.getLong());
+        TransactionType type = TransactionType.valueOf(getString(payload));
+        String requestId = getString(payload);
+        String merchant = getString(payload);
+        long expiresAt = payload.remaining() >= Long.BYTES ? payload.getLong() : 0L;
+        long recordedAt = payload.remaining() >= Long.BYTES ? payload.getLong() : 0L;
+
+        Transaction transaction = new Transaction(new TransactionKey(requestId, cardId), merchant, amount, type);
+        transaction.setId(id);
+        transaction.setSequenceNumber(sequenceNumber);
+        transaction.setExpiresAt(expiresAt);
+        transaction.setRecordedAt(recordedAt);
+        return transaction;
+    }
+
+    private static void putString(ByteBuffer buffer, byte[] bytes) {
+        buffer.putShort((short) bytes.length).put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int checksum(ByteBuffer payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload.duplicate());
+        return (int) crc.getValue();
+    }
+
+    private void forget(Transaction transaction) {
+        undrained.computeIfPresent(keyOf(transaction), (key, count) -> count == 1 ? null : count - 1);
+    }
+
+    private static Map.Entry<TransactionKey, TransactionType> keyOf(Transaction transaction) {
+        return new AbstractMap.SimpleImmutableEntry<>(transaction.getTransactionKey(), transaction.getTransactionType());
+    }
+
+    /**
+     * A journalled transaction and the position in the file just after its record.
+     */
+    public static final class Entry {
+
+        private final Transaction transaction;
+        private final ByteBuffer record;
+        private long endPosition;
+
+        private Entry(Transaction transaction, ByteBuffer record) {
+            this.transaction = transaction;
+            this.record = record;
+        }
+
+        public Transaction getTransaction() {
+            return transaction;
+        }
+
+    }
+
+}
@@ -0,0 +1,166 @@
+package uk.co.chriskurzeja.prepaidcard.ledger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import uk.co.chriskurzeja.prepaidcard.model.Transaction;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Copies durable journal entries into the transaction table in batches, one database
+ * transaction per batch, and tells the journal once they are there. Entries left in the journal
+ * by the last shutdown are copied across before the application starts, so ledger recovery can
+ * rebuild the balances from the table alone.
+ */
+@Component
+public class TransactionJournalDrainer {
+
+    private static final Logger log = LoggerFactory.getLogger(TransactionJournalDrainer.class);
+
+    private static final String INSERT_SQL = "insert into transaction " +
+            "(id, card_id, request_id, merchant, amount_in_pence, transaction_type, sequence_number, expires_at, recorded_at) " +
+            "values (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private final TransactionJournal journal;
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final int batchSize;
+    private final long retryDelayMs;
+    private volatile boolean running = false;
+    private Thread drainer;
+
+    @Autowired
+    public TransactionJournalDrainer(TransactionJournal journal,
+                                     JdbcTemplate jdbcTemplate,
+                                     PlatformTransactionManager transactionManager,
+                                     @Value("${ledger.journal.drain-batch-size:1000}") int batchSize,
+                                     @Value("${ledger.journal.drain-retry-delay-ms:1000}") long retryDelayMs) {
+        this.journal = journal;
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.batchSize = batchSize;
+        this.retryDelayMs = retryDelayMs;
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!journal.isEnabled()) {
+            return;
+        }
+
+        drainRecovered();
+
+        running = true;
+        drainer = new Thread(this::drain, "ledger-journal-drain");
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    /**
+     * The journal is only truncated after a drain has been recorded, so entries from before the
+     * last shutdown may already be in the table; only the missing ones are inserted.
+     */
+    private void drainRecovered() {
+        List<TransactionJournal.Entry> recovered = journal.getRecovered();
+        if (recovered.isEmpty()) {
+            return;
+        }
+
+        long lowestId = recovered.stream().mapToLong(entry -> entry.getTransaction().getId()).min().getAsLong();
+        Set<Long> existing = new HashSet<>(jdbcTemplate.queryForList("select id from transaction where id >= ?", Long.class, lowestId));
+        List<TransactionJournal.Entry> missing = recovered.stream()
+                .filter(entry -> !existing.contains(entry.getTransaction().getId()))
+                .collect(Collectors.toList());
+
+        for (int from = 0; from < missing.size(); from += batchSize) {
+            insert(missing.subList(from, Math.min(missing.size(), from + batchSize)));
+        }
+        journal.markDrained(recovered);
+        log.info("Drained {} of {} transactions left in the journal into the transaction table", missing.size(), recovered.size());
+    }
+
+    private void drain() {
+        List<TransactionJournal.Entry> entries = new ArrayList<>();
+        while (running || !entries.isEmpty()) {
+            try {
+                if (entries.isEmpty()) {
+                    entries = journal.takeDurable(batchSize, 100, TimeUnit.MILLISECONDS);
+                    continue;
+                }
+
+                insert(entries);
+                journal.markDrained(entries);
+                entries = new ArrayList<>();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                log.warn("Failed to drain {} journalled transactions, retrying in {} ms", entries.size(), retryDelayMs, e);
+                if (!pause()) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void insert(List<TransactionJournal.Entry> entries) {
+        transactionTemplate.execute(status -> jdbcTemplate.batchUpdate(INSERT_SQL, entries, entries.size(), (statement, entry) -> {
+            Transaction transaction = entry.getTransaction();
+            statement.setLong(1, transaction.getId());
+            statement.setBytes(2, toBytes(transaction.getTransactionKey().getCardId()));
+            statement.setString(3, transaction.getTransactionKey().getRequestId());
+            statement.setString(4, transaction.getMerchant());
+            statement.setLong(5, transaction.getAmount());
+            statement.setString(6, transaction.getTransactionType().name());
+            statement.setInt(7, transaction.getSequenceNumber());
+            statement.setLong(8, transaction.getExpiresAt());
+            statement.setLong(9, transaction.getRecordedAt());
+        }));
+    }
+
+    /**
+     * The card id in the sixteen-byte, most significant half first form Hibernate stores it in.
+     */
+    private static byte[] toBytes(UUID cardId) {
+        return ByteBuffer.allocate(16)
+                .putLong(cardId.getMostSignificantBits())
+                .putLong(cardId.getLeastSignificantBits())
+                .array();
+    }
+
+    private boolean pause() {
+        try {
+            Thread.sleep(retryDelayMs);
+            return running;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        if (drainer == null) {
+            return;
+        }
+
+        running = false;
+        drainer.join(TimeUnit.SECONDS.toMillis(10));
+    }
+
+}
@@ -0,0 +1,45 @@
+package uk.co.chriskurzeja.prepaidcard.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts latencies into buckets whose upper bounds double from about a microsecond to about a
+ * minute, with a final bucket for anything slower. Recording finds the bucket from the position of
+ * the highest set bit and is two atomic additions, so it neither allocates nor locks.
+ */
+public final class LatencyHistogram {
+
+    static final int BOUNDED_BUCKETS = 27;
+    private static final int SMALLEST_BOUND_SHIFT = 10;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BOUNDED_BUCKETS + 1);
+    private final LongAdder sumNanos = new LongAdder();
+
+    public void record(long nanos) {
+        long value = Math.max(1L, nanos);
+        int bucket = 64 - Long.numberOfLeadingZeros(value - 1) - SMALLEST_BOUND_SHIFT;
+        counts.incrementAndGet(Math.max(0, Math.min(BOUNDED_BUCKETS, bucket)));
+        sumNanos.add(value);
+    }
+
+    /**
+     * The number of values recorded in each bucket, the last being those above every bound.
+     */
+    public long[] getCounts() {
+        long[] copy = new long[counts.length()];
+        for (int i = 0; i < copy.length; i++) {
+            copy[i] = counts.get(i);
+        }
+        return copy;
+    }
+
+    public long getSumNanos() {
+        return sumNanos.sum();
+    }
+
+    public static long getUpperBoundNanos(int bucket) {
+        return 1L << (bucket + SMALLEST_BOUND_SHIFT);
+    }
+
+}
@@ -0,0 +1,181 @@
+package uk.co.chriskurzeja.prepaidcard.metrics;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import uk.co.chriskurzeja.prepaidcard.card.UserService;
+import uk.co.chriskurzeja.prepaidcard.ledger.LedgerEngine;
+import uk.co.chriskurzeja.prepaidcard.ledger.PartitionStatistics;
+import uk.co.chriskurzeja.prepaidcard.metrics.TransactionMetrics.RepositoryOperation;
+import uk.co.chriskurzeja.prepaidcard.model.CacheStatistics;
+import uk.co.chriskurzeja.prepaidcard.model.ProjectionStatus;
+import uk.co.chriskurzeja.prepaidcard.model.TransactionType;
+import uk.co.chriskurzeja.prepaidcard.projection.LedgerProjector;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Writes the application's metrics in the Prometheus text exposition format. Everything is read
+ * when scraped; the ledger's figures come from each partition's worker, the same way a snapshot
+ * is taken.
+ */
+@Component
+public class MetricsExporter {
+
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final double NANOS_PER_SECOND = 1_000_000_000.0;
+
+    private final TransactionMetrics metrics;
+    private final LedgerEngine ledgerEngine;
+    private final UserService userService;
+    private final LedgerProjector ledgerProjector;
+
+    @Autowired
+    public MetricsExporter(TransactionMetrics metrics, LedgerEngine ledgerEngine, UserService userService, LedgerProjector ledgerProjector) {
+        this.metrics = metrics;
+        this.ledgerEngine = ledgerEngine;
+        this.userService = userService;
+        this.ledgerProjector = ledgerProjector;
+    }
+
+    public String scrape(int hottestCards) {
+        StringBuilder out = new StringBuilder(16 * 1024);
+
+        header(out, "prepaidcard_transaction_seconds", "histogram",
+                "Time from a transaction being handed to the service until its result is ready.");
+        for (TransactionType type : TransactionType.values()) {
+            histogram(out, "prepaidcard_transaction_seconds", typeLabel(type), metrics.getTransactions(type));
+        }
+
+        header(out, "prepaidcard_ledger_queue_seconds", "histogram",
+                "Time a transaction waits for its partition's ledger worker.");
+        for (TransactionType type : TransactionType.values()) {
+            histogram(out, "prepaidcard_ledger_queue_seconds", typeLabel(type), metrics.getQueued(type));
+        }
+
+        header(out, "prepaidcard_ledger_process_seconds", "histogram",
+                "Time a ledger worker spends on a transaction, including saving it.");
+        for (TransactionType type : TransactionType.values()) {
+            histogram(out, "prepaidcard_ledger_process_seconds", typeLabel(type), metrics.getProcessed(type));
+        }
+
+        header(out, "prepaidcard_repository_seconds", "histogram",
+                "Time spent in calls to the transaction repository and journal.");
+        for (RepositoryOperation operation : RepositoryOperation.values()) {
+            histogram(out, "prepaidcard_repository_seconds", label("operation", lowerCase(operation)), metrics.getRepository(operation));
+        }
+
+        header(out, "prepaidcard_transaction_rejections_total", "counter", "Transactions rejected, by reason.");
+        for (TransactionType type : TransactionType.values()) {
+            Map<String, LongAdder> reasons = new TreeMap<>(metrics.getRejections(type));
+            reasons.forEach((reason, count) -> sample(out, "prepaidcard_transaction_rejections_total",
+                    typeLabel(type) + "," + label("reason", reason), count.sum()));
+        }
+
+        header(out, "prepaidcard_executor_rejections_total", "counter",
+                "Requests turned away because the persistence or query executor was saturated.");
+        sample(out, "prepaidcard_executor_rejections_total", "", metrics.getExecutorRejections());
+
+        header(out, "prepaidcard_balance_conflicts_total", "counter",
+                "Attempts to change balances kept in the database that lost to a concurrent change and were retried.");
+        sample(out, "prepaidcard_balance_conflicts_total", "", metrics.getBalanceConflicts());
+
+        List<PartitionStatistics> partitions = ledgerEngine.statistics();
+        header(out, "prepaidcard_ledger_card_balances", "gauge", "Card balances held by each ledger partition.");
+        for (PartitionStatistics partition : partitions) {
+            sample(out, "prepaidcard_ledger_card_balances", partitionLabel(partition), partition.getCardBalances());
+        }
+
+        header(out, "prepaidcard_ledger_transaction_balances", "gauge", "Authorisation balances held by each ledger partition.");
+        for (PartitionStatistics partition : partitions) {
+            sample(out, "prepaidcard_ledger_transaction_balances", partitionLabel(partition), partition.getTransactionBalances());
+        }
+
+        header(out, "prepaidcard_ledger_pending_holds", "gauge", "Holds waiting to expire in each ledger partition.");
+        for (PartitionStatistics partition : partitions) {
+            sample(out, "prepaidcard_ledger_pending_holds", partitionLabel(partition), partition.getPendingHolds());
+        }
+
+        header(out, "prepaidcard_ledger_evicted_authorisations", "gauge", "Settled authorisations evicted from each ledger partition.");
+        for (PartitionStatistics partition : partitions) {
+            sample(out, "prepaidcard_ledger_evicted_authorisations", partitionLabel(partition), partition.getEvictedAuthorisations());
+        }
+
+        header(out, "prepaidcard_hot_card_operations", "gauge",
+                "Approximate operations since startup on the busiest cards; may overstate, never understates.");
+        List<PartitionStatistics.CardActivity> hottest = new ArrayList<>();
+        partitions.forEach(partition -> hottest.addAll(partition.getHottestCards()));
+        hottest.sort(Comparator.comparingLong(PartitionStatistics.CardActivity::getOperations).reversed());
+        hottest.stream().limit(hottestCards).forEach(card ->
+                sample(out, "prepaidcard_hot_card_operations", label("card", card.getCardId().toString()), card.getOperations()));
+
+        CacheStatistics cards = userService.getCardCacheStatistics();
+        header(out, "prepaidcard_card_cache_size", "gauge", "Card lookups currently cached.");
+        sample(out, "prepaidcard_card_cache_size", "", cards.getSize());
+        header(out, "prepaidcard_card_cache_requests_total", "counter", "Card lookups, by whether they were served from the cache.");
+        sample(out, "prepaidcard_card_cache_requests_total", label("result", "hit"), cards.getHits());
+        sample(out, "prepaidcard_card_cache_requests_total", label("result", "miss"), cards.getMisses());
+
+        ProjectionStatus projections = ledgerProjector.getStatus();
+        header(out, "prepaidcard_projection_pending_events", "gauge", "Ledger events published but not yet projected.");
+        sample(out, "prepaidcard_projection_pending_events", "", projections.getPendingEvents());
+        header(out, "prepaidcard_projection_dropped_events_total", "counter",
+                "Ledger events dropped because the projections were too far behind, and read back from the transaction table.");
+        sample(out, "prepaidcard_projection_dropped_events_total", "", projections.getDroppedEvents());
+        header(out, "prepaidcard_projection_lag_milliseconds", "gauge",
+                "How far the projections trail the ledger; -1 while they are being rebuilt.");
+        sample(out, "prepaidcard_projection_lag_milliseconds", "", projections.getLagMillis());
+
+        return out.toString();
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void histogram(StringBuilder out, String name, String labels, LatencyHistogram histogram) {
+        long[] counts = histogram.getCounts();
+        long cumulative = 0;
+        for (int bucket = 0; bucket < counts.length; bucket++) {
+            cumulative += counts[bucket];
+            String bound = bucket < LatencyHistogram.BOUNDED_BUCKETS ?
+                    Double.toString(LatencyHistogram.getUpperBoundNanos(bucket) / NANOS_PER_SECOND) :
+                    "+Inf";
+            sample(out, name + "_bucket", labels + "," + label("le", bound), cumulative);
+        }
+        out.append(name).append("_sum{").append(labels).append("} ").append(histogram.getSumNanos() / NANOS_PER_SECOND).append('\n');
+        sample(out, name + "_count", labels, cumulative);
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, long value) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(value).append('\n');
+    }
+
+    private static String typeLabel(TransactionType type) {
+        return label("type", lowerCase(type));
+    }
+
+    private static String partitionLabel(PartitionStatistics partition) {
+        return label("partition", Integer.toString(partition.getIndex()));
+    }
+
+    private static String label(String name, String value) {
+        String escaped = value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+        return name + "=\"" + escaped + "\"";
+    }
+
+    private static String lowerCase(Enum<?> value) {
+        return value.name().toLowerCase();
+    }
+
+}
@@ -0,0 +1,133 @@
+package uk.co.chriskurzeja.prepaidcard.metrics;
+
+import io.atlassian.fugue.Either;
+import org.springframework.stereotype.Component;
+import uk.co.chriskurzeja.prepaidcard.model.TransactionType;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latencies and rejections recorded by the transaction path. Every series is created up front or,
+ * for rejection reasons, on the first rejection with that reason, so recording an outcome that has
+ * been seen before only touches existing counters.
+ */
+@Component
+public class TransactionMetrics {
+
+    public enum RepositoryOperation {
+        FIND_BY_KEY,
+        FIND_AUTHORISATION,
+        UPDATE_BALANCE,
+        SAVE,
+        SAVE_ALL,
+        JOURNAL_APPEND
+    }
+
+    /**
+     * Rejection reasons are fixed messages, but a cap keeps a message that did carry request
+     * data from creating a series per request.
+     */
+    private static final int MAX_REASONS_PER_TYPE = 64;
+    private static final String OTHER_REASON = "other";
+
+    private final LatencyHistogram[] transactions = histograms(TransactionType.values().length);
+    private final LatencyHistogram[] queued = histograms(TransactionType.values().length);
+    private final LatencyHistogram[] processed = histograms(TransactionType.values().length);
+    private final LatencyHistogram[] repository = histograms(RepositoryOperation.values().length);
+    private final Map<String, LongAdder>[] rejections = rejectionCounters();
+    private final LongAdder executorRejections = new LongAdder();
+    private final LongAdder balanceConflicts = new LongAdder();
+
+    /**
+     * Records a transaction the service has finished with, from the moment it was handed over to
+     * the moment its result was ready, and the reason if it was rejected.
+     */
+    public void recordTransaction(TransactionType type, long nanos, Either<String, ?> result) {
+        transactions[type.ordinal()].record(nanos);
+        if (result.isLeft()) {
+            recordRejection(type, result.fold(reason -> reason, accepted -> OTHER_REASON));
+        }
+    }
+
+    public void recordQueued(TransactionType type, long nanos) {
+        queued[type.ordinal()].record(nanos);
+    }
+
+    public void recordProcessed(TransactionType type, long nanos) {
+        processed[type.ordinal()].record(nanos);
+    }
+
+    public void recordRepository(RepositoryOperation operation, long nanos) {
+        repository[operation.ordinal()].record(nanos);
+    }
+
+    public void recordExecutorRejection() {
+        executorRejections.increment();
+    }
+
+    /**
+     * Records an attempt to change balances kept in the database that lost to a concurrent change
+     * and was rolled back.
+     */
+    public void recordBalanceConflict() {
+        balanceConflicts.increment();
+    }
+
+    private void recordRejection(TransactionType type, String reason) {
+        Map<String, LongAdder> reasons = rejections[type.ordinal()];
+        LongAdder counter = reasons.get(reason);
+        if (counter == null) {
+            counter = reasons.computeIfAbsent(reasons.size() < MAX_REASONS_PER_TYPE ? reason : OTHER_REASON, r -> new LongAdder());
+        }
+        counter.increment();
+    }
+
+    public LatencyHistogram getTransactions(TransactionType type) {
+        return transactions[type.ordinal()];
+    }
+
+    public LatencyHistogram getQueued(TransactionType type) {
+        return queued[type.ordinal()];
+    }
+
+    public LatencyHistogram getProcessed(TransactionType type) {
+        return processed[type.ordinal()];
+    }
+
+    public LatencyHistogram getRepository(RepositoryOperation operation) {
+        return repository[operation.ordinal()];
+    }
+
+    public Map<String, LongAdder> getRejections(TransactionType type) {
+        return Collections.unmodifiableMap(rejections[type.ordinal()]);
+    }
+
+    public long getExecutorRejections() {
+        return executorRejections.sum();
+    }
+
+    public long getBalanceConflicts() {
+        return balanceConflicts.sum();
+    }
+
+    private static LatencyHistogram[] histograms(int count) {
+        LatencyHistogram[] histograms = new LatencyHistogram[count];
+        for (int i = 0; i < count; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+        return histograms;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, LongAdder>[] rejectionCounters() {
+        Map<String, LongAdder>[] counters = new Map[TransactionType.values().length];
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new ConcurrentHashMap<>();
+        }
+        return counters;
+    }
+
+}
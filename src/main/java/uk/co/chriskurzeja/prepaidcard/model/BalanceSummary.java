@@ -0,0 +1,47 @@
+package uk.co.chriskurzeja.prepaidcard.model;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.io.Serializable;
+
+/**
+ * An immutable view of a card's balances, published by the ledger after every change so that
+ * balance reads never have to go near the ledger workers or the transaction history.
+ */
+public class BalanceSummary implements Serializable {
+
+    public static final BalanceSummary EMPTY = new BalanceSummary(0L, 0L, 0L, 0L);
+
+    @JsonProperty("loaded")
+    private final long loaded;
+    @JsonProperty("available")
+    private final long available;
+    @JsonProperty("blocked")
+    private final long blocked;
+    @JsonProperty("captured")
+    private final long captured;
+
+    public BalanceSummary(long loaded, long available, long blocked, long captured) {
+        this.loaded = loaded;
+        this.available = available;
+        this.blocked = blocked;
+        this.captured = captured;
+    }
+
+    public long getLoaded() {
+        return loaded;
+    }
+
+    public long getAvailable() {
+        return available;
+    }
+
+    public long getBlocked() {
+        return blocked;
+    }
+
+    public long getCaptured() {
+        return captured;
+    }
+
+}
@@ -0,0 +1,44 @@
+package uk.co.chriskurzeja.prepaidcard.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import io.atlassian.fugue.Either;
+
+/**
+ * The outcome of one item of a merchant batch. Exactly one of result and error is set.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class BatchItemResult {
+
+    @JsonProperty("index")
+    private final int index;
+    @JsonProperty("accepted")
+    private final boolean accepted;
+    @JsonProperty("result")
+    private final Object result;
+    @JsonProperty("error")
+    private final String error;
+
+    public BatchItemResult(int index, Either<String, ?> outcome) {
+        this.index = index;
+        this.accepted = outcome.isRight();
+        this.result = outcome.isRight() ? outcome.right().get() : null;
+        this.error = outcome.isLeft() ? outcome.left().get() : null;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public boolean isAccepted() {
+        return accepted;
+    }
+
+    public Object getResult() {
+        return result;
+    }
+
+    public String getError() {
+        return error;
+    }
+}
@@ -0,0 +1,46 @@
+package uk.co.chriskurzeja.prepaidcard.model;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+
+public class CacheStatistics {
+
+    @JsonProperty("size")
+    private final long size;
+    @JsonProperty("hits")
+    private final long hits;
+    @JsonProperty("misses")
+    private final long misses;
+    @JsonProperty("hit_rate")
+    private final double hitRate;
+    @JsonProperty("evictions")
+    private final long evictions;
+
+    public CacheStatistics(long size, CacheStats stats) {
+        this.size = size;
+        this.hits = stats.hitCount();
+        this.misses = stats.missCount();
+        this.hitRate = stats.hitRate();
+        this.evictions = stats.evictionCount();
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public double getHitRate() {
+        return hitRate;
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+}
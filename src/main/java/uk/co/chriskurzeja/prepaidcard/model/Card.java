@@ -1,15 +1,25 @@
 package uk.co.chriskurzeja.prepaidcard.model;
 
+import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
 import java.io.Serializable;
 import java.util.UUID;
 
+/**
+ * A user's card. Its id is a random UUID, kept as two longs in memory and sixteen bytes in the
+ * database; the usual string form only appears at the REST boundary. A user has at most one card,
+ * which the unique index on the user id enforces and which lets users be listed from the index.
+ */
 @Entity
+@Table(indexes = @Index(name = "uk_card_user_id", columnList = "userId", unique = true))
 public class Card implements Serializable {
 
     @Id
-    private String id;
+    @Column(length = 16)
+    private UUID id;
 
     private String userId;
 
@@ -18,11 +28,15 @@ public class Card implements Serializable {
     }
 
     public Card(String userId) {
-        id = UUID.randomUUID().toString();
+        this(UUID.randomUUID(), userId);
+    }
+
+    public Card(UUID id, String userId) {
+        this.id = id;
         this.userId = userId;
     }
 
-    public String getId() {
+    public UUID getId() {
         return id;
     }
 
@@ -2,6 +2,7 @@ package uk.co.chriskurzeja.prepaidcard.model;
 
 public class CardBalance {
 
+    private long loaded = 0L;
     private long balance = 0L;
     private long blocked = 0L;
     private long captured = 0L;
@@ -10,7 +11,31 @@ public class CardBalance {
 
     }
 
+    public CardBalance(long loaded, long balance, long blocked, long captured) {
+        this.loaded = loaded;
+        this.balance = balance;
+        this.blocked = blocked;
+        this.captured = captured;
+    }
+
+    public long getLoaded() {
+        return loaded;
+    }
+
+    public long getBalance() {
+        return balance;
+    }
+
+    public long getBlocked() {
+        return blocked;
+    }
+
+    public long getCaptured() {
+        return captured;
+    }
+
     public void load(long amount) {
+        loaded += amount;
         balance += amount;
     }
 
@@ -34,6 +59,14 @@ public class CardBalance {
         balance += amount;
     }
 
+    public CardBalance copy() {
+        return new CardBalance(loaded, balance, blocked, captured);
+    }
+
+    public BalanceSummary summary() {
+        return new BalanceSummary(loaded, balance, blocked, captured);
+    }
+
     public boolean canBlock(long amount) {
         return balance >= amount;
     }
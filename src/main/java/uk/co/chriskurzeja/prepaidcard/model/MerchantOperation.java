@@ -0,0 +1,46 @@
+package uk.co.chriskurzeja.prepaidcard.model;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * One item of a merchant batch: the same action, card, transaction and amount that the single
+ * transaction endpoint takes as path variables.
+ */
+public class MerchantOperation {
+
+    @JsonProperty("action")
+    private String action;
+    @JsonProperty("card_id")
+    private String cardId;
+    @JsonProperty("transaction_id")
+    private String transactionId;
+    @JsonProperty("amount_in_pence")
+    private long amountInPence;
+
+    public MerchantOperation() {
+
+    }
+
+    public MerchantOperation(String action, String cardId, String transactionId, long amountInPence) {
+        this.action = action;
+        this.cardId = cardId;
+        this.transactionId = transactionId;
+        this.amountInPence = amountInPence;
+    }
+
+    public String getAction() {
+        return action;
+    }
+
+    public String getCardId() {
+        return cardId;
+    }
+
+    public String getTransactionId() {
+        return transactionId;
+    }
+
+    public long getAmountInPence() {
+        return amountInPence;
+    }
+}
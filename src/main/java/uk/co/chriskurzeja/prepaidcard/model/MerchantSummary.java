@@ -0,0 +1,65 @@
+package uk.co.chriskurzeja.prepaidcard.model;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * The totals of every operation a merchant has had accepted, in pence, as projected from the
+ * ledger's events.
+ */
+public class MerchantSummary {
+
+    @JsonProperty("merchant")
+    private final String merchant;
+    @JsonProperty("transactions")
+    private final long transactions;
+    @JsonProperty("authorised")
+    private final long authorised;
+    @JsonProperty("captured")
+    private final long captured;
+    @JsonProperty("reversed")
+    private final long reversed;
+    @JsonProperty("refunded")
+    private final long refunded;
+
+    public MerchantSummary(String merchant, long transactions, long authorised, long captured, long reversed, long refunded) {
+        this.merchant = merchant;
+        this.transactions = transactions;
+        this.authorised = authorised;
+        this.captured = captured;
+        this.reversed = reversed;
+        this.refunded = refunded;
+    }
+
+    public String getMerchant() {
+        return merchant;
+    }
+
+    public long getTransactions() {
+        return transactions;
+    }
+
+    public long getAuthorised() {
+        return authorised;
+    }
+
+    public long getCaptured() {
+        return captured;
+    }
+
+    public long getReversed() {
+        return reversed;
+    }
+
+    public long getRefunded() {
+        return refunded;
+    }
+
+    /**
+     * The totals of both, as when each node of a cluster summarises the merchant on its own cards.
+     */
+    public MerchantSummary plus(MerchantSummary other) {
+        return new MerchantSummary(merchant, transactions + other.transactions, authorised + other.authorised,
+                captured + other.captured, reversed + other.reversed, refunded + other.refunded);
+    }
+
+}
@@ -3,11 +3,12 @@ package uk.co.chriskurzeja.prepaidcard.model;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 import java.io.Serializable;
+import java.util.UUID;
 
 public class MerchantTransactionResult implements Serializable {
 
     @JsonProperty("card_id")
-    private final String cardId;
+    private final UUID cardId;
     @JsonProperty("merchant")
     private final String merchant;
     @JsonProperty("transaction_id")
@@ -19,15 +20,27 @@ public class MerchantTransactionResult implements Serializable {
     @JsonProperty("transaction_type")
     private final TransactionType transactionType;
 
-    public MerchantTransactionResult(Transaction transaction, TransactionBalance transactionBalance) {
+    public MerchantTransactionResult(Transaction transaction, long blocked, long captured) {
         this.cardId = transaction.getTransactionKey().getCardId();
         this.merchant = transaction.getMerchant();
         this.transactionId = transaction.getTransactionKey().getRequestId();
-        this.blocked = transactionBalance.getBlocked();
-        this.captured = transactionBalance.getCaptured();
+        this.blocked = blocked;
+        this.captured = captured;
         this.transactionType = transaction.getTransactionType();
     }
 
+    public UUID getCardId() {
+        return cardId;
+    }
+
+    public String getMerchant() {
+        return merchant;
+    }
+
+    public String getTransactionId() {
+        return transactionId;
+    }
+
     public long getBlocked() {
         return blocked;
     }
@@ -35,4 +48,8 @@ public class MerchantTransactionResult implements Serializable {
     public long getCaptured() {
         return captured;
     }
+
+    public TransactionType getTransactionType() {
+        return transactionType;
+    }
 }
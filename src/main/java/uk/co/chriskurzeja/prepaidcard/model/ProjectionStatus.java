@@ -0,0 +1,64 @@
+package uk.co.chriskurzeja.prepaidcard.model;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * How far the query-side projections are behind the ledger. Everything the ledger recorded before
+ * the watermark, in milliseconds since the epoch, can be read from them; while they are being
+ * rebuilt the watermark is 0.
+ */
+public class ProjectionStatus {
+
+    @JsonProperty("rebuilding")
+    private final boolean rebuilding;
+    @JsonProperty("published_events")
+    private final long publishedEvents;
+    @JsonProperty("projected_events")
+    private final long projectedEvents;
+    @JsonProperty("dropped_events")
+    private final long droppedEvents;
+    @JsonProperty("watermark")
+    private final long watermark;
+    @JsonProperty("lag_ms")
+    private final long lagMillis;
+
+    public ProjectionStatus(boolean rebuilding, long publishedEvents, long projectedEvents, long droppedEvents, long watermark,
+                            long lagMillis) {
+        this.rebuilding = rebuilding;
+        this.publishedEvents = publishedEvents;
+        this.projectedEvents = projectedEvents;
+        this.droppedEvents = droppedEvents;
+        this.watermark = watermark;
+        this.lagMillis = lagMillis;
+    }
+
+    public boolean isRebuilding() {
+        return rebuilding;
+    }
+
+    public long getPublishedEvents() {
+        return publishedEvents;
+    }
+
+    public long getProjectedEvents() {
+        return projectedEvents;
+    }
+
+    @JsonProperty("pending_events")
+    public long getPendingEvents() {
+        return publishedEvents - projectedEvents;
+    }
+
+    public long getDroppedEvents() {
+        return droppedEvents;
+    }
+
+    public long getWatermark() {
+        return watermark;
+    }
+
+    public long getLagMillis() {
+        return lagMillis;
+    }
+
+}
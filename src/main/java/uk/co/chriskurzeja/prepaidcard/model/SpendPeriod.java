@@ -0,0 +1,29 @@
+package uk.co.chriskurzeja.prepaidcard.model;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The periods spend is rolled up over. Periods are aligned to UTC and identified by the time
+ * they start, in milliseconds since the epoch; {@link #ALL} is the one period that covers every
+ * operation and starts at 0.
+ */
+public enum SpendPeriod {
+
+    HOUR(TimeUnit.HOURS.toMillis(1)),
+    DAY(TimeUnit.DAYS.toMillis(1)),
+    ALL(0L);
+
+    private final long length;
+
+    SpendPeriod(long length) {
+        this.length = length;
+    }
+
+    /**
+     * The start of the period containing the given time, in milliseconds since the epoch.
+     */
+    public long startOf(long at) {
+        return length == 0L ? 0L : at - Math.floorMod(at, length);
+    }
+
+}
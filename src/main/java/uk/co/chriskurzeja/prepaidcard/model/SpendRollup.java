@@ -0,0 +1,75 @@
+package uk.co.chriskurzeja.prepaidcard.model;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * The totals, in pence, of the operations one merchant had accepted in one {@link SpendPeriod},
+ * either on a single card or across every card.
+ */
+public class SpendRollup {
+
+    @JsonProperty("merchant")
+    private final String merchant;
+    @JsonProperty("period_start")
+    private final long periodStart;
+    @JsonProperty("transactions")
+    private final long transactions;
+    @JsonProperty("authorised")
+    private final long authorised;
+    @JsonProperty("captured")
+    private final long captured;
+    @JsonProperty("reversed")
+    private final long reversed;
+    @JsonProperty("refunded")
+    private final long refunded;
+
+    public SpendRollup(String merchant, long periodStart, long transactions, long authorised, long captured, long reversed, long refunded) {
+        this.merchant = merchant;
+        this.periodStart = periodStart;
+        this.transactions = transactions;
+        this.authorised = authorised;
+        this.captured = captured;
+        this.reversed = reversed;
+        this.refunded = refunded;
+    }
+
+    public String getMerchant() {
+        return merchant;
+    }
+
+    /**
+     * Milliseconds since the epoch.
+     */
+    public long getPeriodStart() {
+        return periodStart;
+    }
+
+    public long getTransactions() {
+        return transactions;
+    }
+
+    public long getAuthorised() {
+        return authorised;
+    }
+
+    public long getCaptured() {
+        return captured;
+    }
+
+    public long getReversed() {
+        return reversed;
+    }
+
+    public long getRefunded() {
+        return refunded;
+    }
+
+    /**
+     * The totals of both, which must be for the same merchant and period.
+     */
+    public SpendRollup plus(SpendRollup other) {
+        return new SpendRollup(merchant, periodStart, transactions + other.transactions, authorised + other.authorised,
+                captured + other.captured, reversed + other.reversed, refunded + other.refunded);
+    }
+
+}
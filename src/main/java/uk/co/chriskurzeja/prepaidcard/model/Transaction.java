@@ -5,14 +5,33 @@ import javax.persistence.Entity;
 import javax.persistence.EnumType;
 import javax.persistence.Enumerated;
 import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
 import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.SequenceGenerator;
+import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
 import java.io.Serializable;
 
+/**
+ * A single accepted operation on a card. Loads and authorisations are unique per transaction key,
+ * while an authorisation can be followed by several captures, reversals and refunds; the
+ * sequence number tells those apart, so the database rejects any operation that is recorded twice.
+ * A card's history is read in id order through its own index, so a page after a cursor is a
+ * range scan rather than a sort of everything the card has done.
+ * <p>
+ * An authorisation also records when its hold expires, so the expiry survives a restart along
+ * with the authorisation itself. Every operation records when it was accepted, which is the
+ * period the spend rollups count it in.
+ */
 @Entity
+@Table(uniqueConstraints = @UniqueConstraint(name = "uk_transaction_operation", columnNames = {"cardId", "requestId", "transactionType", "sequenceNumber"}),
+        indexes = @Index(name = "idx_transaction_card_history", columnList = "cardId, id"))
 public class Transaction implements Serializable {
 
     @Id
-    @GeneratedValue
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "transaction_id_seq")
+    @SequenceGenerator(name = "transaction_id_seq", sequenceName = "transaction_id_seq", allocationSize = 50)
     private Long id;
 
     private TransactionKey transactionKey;
@@ -22,6 +41,12 @@ public class Transaction implements Serializable {
     @Enumerated(EnumType.STRING)
     private TransactionType transactionType;
 
+    private int sequenceNumber;
+
+    private long expiresAt;
+
+    private long recordedAt;
+
     public Transaction() {}
 
     public Transaction(TransactionKey transactionKey, String merchant, long amountInPence, TransactionType transactionType) {
@@ -35,6 +60,10 @@ public class Transaction implements Serializable {
         return id;
     }
 
+    public void setId(Long id) {
+        this.id = id;
+    }
+
     public TransactionKey getTransactionKey() {
         return transactionKey;
     }
@@ -51,6 +80,38 @@ public class Transaction implements Serializable {
         return transactionType;
     }
 
+    public int getSequenceNumber() {
+        return sequenceNumber;
+    }
+
+    public void setSequenceNumber(int sequenceNumber) {
+        this.sequenceNumber = sequenceNumber;
+    }
+
+    /**
+     * When an authorisation's hold is released if it has not been settled, in milliseconds since
+     * the epoch; 0 if it is kept until it is, and for every other kind of transaction.
+     */
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    public void setExpiresAt(long expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+
+    /**
+     * When the ledger accepted the operation, in milliseconds since the epoch; 0 for operations
+     * recorded before this was kept.
+     */
+    public long getRecordedAt() {
+        return recordedAt;
+    }
+
+    public void setRecordedAt(long recordedAt) {
+        this.recordedAt = recordedAt;
+    }
+
     @Override
     public String toString() {
         return "Transaction{" +
@@ -59,6 +120,9 @@ public class Transaction implements Serializable {
                 ", merchant='" + merchant + '\'' +
                 ", amount=" + amountInPence +
                 ", transactionType=" + transactionType +
+                ", sequenceNumber=" + sequenceNumber +
+                ", expiresAt=" + expiresAt +
+                ", recordedAt=" + recordedAt +
                 '}';
     }
 }
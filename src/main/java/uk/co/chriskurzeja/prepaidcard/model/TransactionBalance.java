@@ -4,6 +4,17 @@ public class TransactionBalance {
 
     private long blocked = 0L;
     private long captured = 0L;
+    private int operations = 0;
+
+    public TransactionBalance() {
+
+    }
+
+    public TransactionBalance(long blocked, long captured, int operations) {
+        this.blocked = blocked;
+        this.captured = captured;
+        this.operations = operations;
+    }
 
     public long getBlocked() {
         return blocked;
@@ -13,6 +24,16 @@ public class TransactionBalance {
         return captured;
     }
 
+    /**
+     * The number of captures, reversals and refunds applied to the authorisation so far.
+     */
+    public int getOperations() {
+        return operations;
+    }
+
+    public TransactionBalance copy() {
+        return new TransactionBalance(blocked, captured, operations);
+    }
 
     public void block(long amount) {
         blocked += amount;
@@ -21,14 +42,17 @@ public class TransactionBalance {
     public void capture(long amount) {
         blocked -= amount;
         captured += amount;
+        operations++;
     }
 
     public void refund(long amount) {
         captured -= amount;
+        operations++;
     }
 
     public void reverse(long amount) {
         blocked -= amount;
+        operations++;
     }
 
     public boolean canCapture(long amount) {
@@ -1,18 +1,30 @@
 package uk.co.chriskurzeja.prepaidcard.model;
 
+import javax.persistence.Column;
 import javax.persistence.Embeddable;
+import javax.persistence.Transient;
 import java.io.Serializable;
 import java.util.Objects;
+import java.util.UUID;
 
+/**
+ * Identifies an operation on a card by the request that made it. The hash is worked out once
+ * from the request id's cached hash and the card id's two longs, so hashing a key, even a freshly
+ * built one, allocates nothing.
+ */
 @Embeddable
 public class TransactionKey implements Serializable {
 
     private String requestId;
-    private String cardId;
+    @Column(length = 16)
+    private UUID cardId;
+
+    @Transient
+    private transient int hash;
 
     public TransactionKey() {}
 
-    public TransactionKey(String requestId, String cardId) {
+    public TransactionKey(String requestId, UUID cardId) {
         this.requestId = requestId;
         this.cardId = cardId;
     }
@@ -21,7 +33,7 @@ public class TransactionKey implements Serializable {
         return requestId;
     }
 
-    public String getCardId() {
+    public UUID getCardId() {
         return cardId;
     }
 
@@ -37,7 +49,11 @@ public class TransactionKey implements Serializable {
 
     @Override
     public int hashCode() {
-
-        return Objects.hash(requestId, cardId);
+        int h = hash;
+        if (h == 0) {
+            h = 31 * Objects.hashCode(requestId) + Objects.hashCode(cardId);
+            hash = h;
+        }
+        return h;
     }
 }
@@ -0,0 +1,33 @@
+package uk.co.chriskurzeja.prepaidcard.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.List;
+
+/**
+ * One page of a card's history in id order. The cursor is the id of the last transaction on the
+ * page and is passed back to read the next one; it is absent on the last page.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class TransactionPage {
+
+    @JsonProperty("transactions")
+    private final List<Transaction> transactions;
+    @JsonProperty("next_cursor")
+    private final Long nextCursor;
+
+    public TransactionPage(List<Transaction> transactions, Long nextCursor) {
+        this.transactions = transactions;
+        this.nextCursor = nextCursor;
+    }
+
+    public List<Transaction> getTransactions() {
+        return transactions;
+    }
+
+    public Long getNextCursor() {
+        return nextCursor;
+    }
+
+}
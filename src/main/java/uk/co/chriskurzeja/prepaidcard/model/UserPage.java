@@ -0,0 +1,27 @@
+package uk.co.chriskurzeja.prepaidcard.model;
+
+import java.util.List;
+
+/**
+ * One page of user ids in order. The cursor is the last user id on the page and is passed back to
+ * read the next one; it is absent on the last page.
+ */
+public class UserPage {
+
+    private final List<String> userIds;
+    private final String nextCursor;
+
+    public UserPage(List<String> userIds, String nextCursor) {
+        this.userIds = userIds;
+        this.nextCursor = nextCursor;
+    }
+
+    public List<String> getUserIds() {
+        return userIds;
+    }
+
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+}
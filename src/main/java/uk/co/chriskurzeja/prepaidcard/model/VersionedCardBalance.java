@@ -0,0 +1,52 @@
+package uk.co.chriskurzeja.prepaidcard.model;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.Version;
+import java.io.Serializable;
+import java.util.UUID;
+
+/**
+ * A card's balances kept as a database row rather than in a ledger partition, so that any number
+ * of instances can decide operations on the card. Every change is a conditional update made in the
+ * database and bumps the version, so a reader can tell that the row moved on underneath it.
+ */
+@Entity
+@Table(name = "card_balance")
+public class VersionedCardBalance implements Serializable {
+
+    @Id
+    @Column(length = 16)
+    private UUID cardId;
+
+    private long loaded;
+    private long balance;
+    private long blocked;
+    private long captured;
+
+    @Version
+    private Long version;
+
+    public VersionedCardBalance() {
+
+    }
+
+    public VersionedCardBalance(UUID cardId) {
+        this.cardId = cardId;
+    }
+
+    public UUID getCardId() {
+        return cardId;
+    }
+
+    public Long getVersion() {
+        return version;
+    }
+
+    public BalanceSummary summary() {
+        return new BalanceSummary(loaded, balance, blocked, captured);
+    }
+
+}
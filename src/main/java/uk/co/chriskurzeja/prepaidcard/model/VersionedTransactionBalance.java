@@ -0,0 +1,86 @@
+package uk.co.chriskurzeja.prepaidcard.model;
+
+import javax.persistence.EmbeddedId;
+import javax.persistence.Entity;
+import javax.persistence.Table;
+import javax.persistence.Version;
+import java.io.Serializable;
+
+/**
+ * An authorisation's balances kept as a database row, the counterpart of
+ * {@link VersionedCardBalance}. Captures, reversals and refunds read the row and write it back
+ * under its version, so two instances changing one authorisation at once cannot both succeed;
+ * the one that loses sees the new balances when it tries again.
+ */
+@Entity
+@Table(name = "transaction_balance")
+public class VersionedTransactionBalance implements Serializable {
+
+    @EmbeddedId
+    private TransactionKey transactionKey;
+
+    private long blocked;
+    private long captured;
+    private int operations;
+
+    @Version
+    private Long version;
+
+    public VersionedTransactionBalance() {
+
+    }
+
+    public VersionedTransactionBalance(TransactionKey transactionKey, long blocked) {
+        this.transactionKey = transactionKey;
+        this.blocked = blocked;
+    }
+
+    public TransactionKey getTransactionKey() {
+        return transactionKey;
+    }
+
+    public long getBlocked() {
+        return blocked;
+    }
+
+    public long getCaptured() {
+        return captured;
+    }
+
+    public int getOperations() {
+        return operations;
+    }
+
+    public Long getVersion() {
+        return version;
+    }
+
+    public boolean canCapture(long amount) {
+        return blocked >= amount;
+    }
+
+    public boolean canRefund(long amount) {
+        return captured >= amount;
+    }
+
+    public boolean canReverse(long amount) {
+        return blocked >= amount;
+    }
+
+    public void capture(long amount) {
+        blocked -= amount;
+        captured += amount;
+        operations++;
+    }
+
+    public void refund(long amount) {
+        captured -= amount;
+        operations++;
+    }
+
+    public void reverse(long amount) {
+        blocked -= amount;
+        operations++;
+    }
+
+}
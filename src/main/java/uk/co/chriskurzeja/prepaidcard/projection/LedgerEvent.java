@@ -0,0 +1,30 @@
+package uk.co.chriskurzeja.prepaidcard.projection;
+
+import uk.co.chriskurzeja.prepaidcard.model.Transaction;
+
+/**
+ * A transaction the ledger has accepted and recorded, and when it was published. The transaction
+ * is shared with the command side rather than copied; it is not changed once published.
+ */
+final class LedgerEvent {
+
+    private final Transaction transaction;
+    private final long publishedAt;
+
+    LedgerEvent(Transaction transaction, long publishedAt) {
+        this.transaction = transaction;
+        this.publishedAt = publishedAt;
+    }
+
+    Transaction getTransaction() {
+        return transaction;
+    }
+
+    /**
+     * Milliseconds since the epoch.
+     */
+    long getPublishedAt() {
+        return publishedAt;
+    }
+
+}
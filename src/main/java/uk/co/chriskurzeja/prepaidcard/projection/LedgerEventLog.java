@@ -0,0 +1,187 @@
+package uk.co.chriskurzeja.prepaidcard.projection;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import uk.co.chriskurzeja.prepaidcard.model.Transaction;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The events the command side emits as the ledger records transactions, waiting to be projected.
+ * Publishing never blocks, so a slow projection never slows authorisations down. The log holds at
+ * most {@code projection.max-pending-events}; an event published to a full log is dropped instead,
+ * and the log remembers the range of transaction ids it dropped so the projector can read those
+ * transactions back from the transaction table. The projector reads events in place and removes
+ * them only once they are projected, so the oldest event still queued is always the oldest one the
+ * projections lack, unless some were dropped.
+ */
+@Component
+public class LedgerEventLog {
+
+    private static final int DEFAULT_CAPACITY = 100_000;
+
+    private final int capacity;
+    private final Queue<LedgerEvent> events = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong projected = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final Object overflow = new Object();
+    private long droppedFrom = 0L;
+    private long droppedThrough = 0L;
+    private volatile long overflowedAt = 0L;
+    private volatile Thread waiting;
+
+    public LedgerEventLog() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    @Autowired
+    public LedgerEventLog(@Value("${projection.max-pending-events:100000}") int capacity) {
+        this.capacity = Math.max(1, capacity);
+    }
+
+    /**
+     * Called by a ledger worker, or the journal writer, once the transaction has been recorded.
+     */
+    public void publish(Transaction transaction) {
+        long now = System.currentTimeMillis();
+        if (size.incrementAndGet() > capacity) {
+            size.decrementAndGet();
+            drop(transaction, now);
+            return;
+        }
+
+        events.add(new LedgerEvent(transaction, now));
+        published.incrementAndGet();
+        Thread projector = waiting;
+        if (projector != null) {
+            LockSupport.unpark(projector);
+        }
+    }
+
+    private void drop(Transaction transaction, long now) {
+        dropped.incrementAndGet();
+        long transactionId = transaction.getId() == null ? 0L : transaction.getId();
+        synchronized (overflow) {
+            if (overflowedAt == 0L) {
+                overflowedAt = now;
+                droppedFrom = transactionId;
+                droppedThrough = transactionId;
+            } else {
+                droppedFrom = Math.min(droppedFrom, transactionId);
+                droppedThrough = Math.max(droppedThrough, transactionId);
+            }
+        }
+    }
+
+    /**
+     * Up to {@code max} of the oldest events, oldest first, left in the log, waiting up to the
+     * timeout for one to be published if there are none. Only the projector reads and removes
+     * events.
+     */
+    List<LedgerEvent> peek(int max, long timeout, TimeUnit unit) {
+        if (events.isEmpty() && timeout > 0) {
+            waiting = Thread.currentThread();
+            if (events.isEmpty()) {
+                LockSupport.parkNanos(this, unit.toNanos(timeout));
+            }
+            waiting = null;
+        }
+
+        List<LedgerEvent> oldest = new ArrayList<>(Math.min(max, 1024));
+        Iterator<LedgerEvent> iterator = events.iterator();
+        while (oldest.size() < max && iterator.hasNext()) {
+            oldest.add(iterator.next());
+        }
+        return oldest;
+    }
+
+    List<LedgerEvent> peek(int max) {
+        return peek(max, 0L, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Removes the {@code count} oldest events, which must be the ones just read.
+     */
+    void remove(int count) {
+        for (int i = 0; i < count; i++) {
+            events.poll();
+        }
+        size.addAndGet(-count);
+        projected.addAndGet(count);
+    }
+
+    boolean hasDropped() {
+        return overflowedAt != 0L;
+    }
+
+    /**
+     * The lowest id of a transaction whose event was dropped and has not yet been read back.
+     */
+    long getDroppedFrom() {
+        synchronized (overflow) {
+            return droppedFrom;
+        }
+    }
+
+    /**
+     * The highest id of a transaction whose event was dropped and has not yet been read back.
+     */
+    long getDroppedThrough() {
+        synchronized (overflow) {
+            return droppedThrough;
+        }
+    }
+
+    /**
+     * Records that every transaction up to the given id has been read back from the transaction
+     * table, which covers every dropped event unless more were dropped meanwhile.
+     */
+    void readBackThrough(long transactionId) {
+        synchronized (overflow) {
+            if (droppedThrough <= transactionId) {
+                overflowedAt = 0L;
+            } else {
+                droppedFrom = Math.max(droppedFrom, transactionId);
+            }
+        }
+    }
+
+    /**
+     * When the oldest event not yet projected was published, or now if there is none. Every event
+     * published before the watermark is in the projections.
+     */
+    long getWatermark() {
+        long now = System.currentTimeMillis();
+        LedgerEvent oldest = events.peek();
+        long watermark = oldest == null ? now : oldest.getPublishedAt();
+        long overflowed = overflowedAt;
+        return overflowed == 0L ? watermark : Math.min(watermark, overflowed);
+    }
+
+    long getPublishedCount() {
+        return published.get();
+    }
+
+    long getProjectedCount() {
+        return projected.get();
+    }
+
+    /**
+     * The number of events dropped because the log was full.
+     */
+    long getDroppedCount() {
+        return dropped.get();
+    }
+
+}
@@ -0,0 +1,350 @@
+package uk.co.chriskurzeja.prepaidcard.projection;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import uk.co.chriskurzeja.prepaidcard.data.jpa.repository.TransactionRepository;
+import uk.co.chriskurzeja.prepaidcard.ledger.TransactionJournal;
+import uk.co.chriskurzeja.prepaidcard.model.ProjectionStatus;
+import uk.co.chriskurzeja.prepaidcard.model.Transaction;
+
+import javax.annotation.PreDestroy;
+import javax.persistence.EntityManager;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Keeps the {@link ProjectionStore} up to date from the {@link LedgerEventLog} on a thread of its
+ * own, a batch of events per database transaction. Once the application is ready, so after the
+ * command line runners have written any preconfigured transactions, it first catches the store up
+ * from the transaction table and from anything the journal recovered, while the events published
+ * meanwhile wait in the log; the two overlap, which the store tolerates. When the log is empty
+ * the projector waits on it rather than polling.
+ * <p>
+ * If the projector falls so far behind that the log fills, the log drops events rather than hold
+ * up the ledger, and the projector reads the transactions it dropped back from the transaction
+ * table. Until it has, the watermark stays at the first of them.
+ * <p>
+ * Catching up reads only the transactions after the highest id the store has projected, less
+ * {@code projection.resume-overlap} ids: events are projected as they arrive rather than in id
+ * order, so a transaction recorded just before the last projected one may not have reached the
+ * store before the application stopped. A store ahead of the ledger, whose last projected
+ * transaction the ledger does not have, was built from some other ledger and is rebuilt.
+ * <p>
+ * With {@code ledger.balances=database} every instance records transactions straight into the
+ * shared transaction table and no one instance sees them all, so rather than project its own events
+ * the projector tails the table: every {@code projection.tail-interval-ms} it reads the
+ * transactions after the highest id it has read, less {@code projection.tail-overlap} ids for
+ * those another instance committed out of id order. The watermark is when the last read began.
+ */
+@Component
+public class LedgerProjector {
+
+    private static final Logger log = LoggerFactory.getLogger(LedgerProjector.class);
+
+    private static final long IDLE_WAIT_MS = 100L;
+
+    private final LedgerEventLog eventLog;
+    private final ProjectionStore store;
+    private final TransactionRepository transactionRepository;
+    private final TransactionJournal transactionJournal;
+    private final EntityManager entityManager;
+    private final TransactionTemplate readOnlyTransaction;
+    private final int batchSize;
+    private final long retryDelayMs;
+    private final long resumeOverlap;
+    private final boolean tailing;
+    private final long tailIntervalMs;
+    private final long tailOverlap;
+    private final Object progress = new Object();
+    private volatile boolean rebuilding = true;
+    private volatile boolean running = false;
+    private volatile long tailedAt = 0L;
+    private long tailedThrough = 0L;
+    private Thread projector;
+
+    @Autowired
+    public LedgerProjector(LedgerEventLog eventLog,
+                           ProjectionStore store,
+                           TransactionRepository transactionRepository,
+                           TransactionJournal transactionJournal,
+                           EntityManager entityManager,
+                           PlatformTransactionManager transactionManager,
+                           @Value("${projection.batch-size:1000}") int batchSize,
+                           @Value("${projection.retry-delay-ms:1000}") long retryDelayMs,
+                           @Value("${projection.resume-overlap:10000}") long resumeOverlap,
+                           @Value("${ledger.balances:memory}") String balances,
+                           @Value("${projection.tail-interval-ms:100}") long tailIntervalMs,
+                           @Value("${projection.tail-overlap:1000}") long tailOverlap) {
+        this.eventLog = eventLog;
+        this.store = store;
+        this.transactionRepository = transactionRepository;
+        this.transactionJournal = transactionJournal;
+        this.entityManager = entityManager;
+        this.readOnlyTransaction = new TransactionTemplate(transactionManager);
+        this.readOnlyTransaction.setReadOnly(true);
+        this.batchSize = batchSize;
+        this.retryDelayMs = retryDelayMs;
+        this.resumeOverlap = resumeOverlap;
+        this.tailing = "database".equalsIgnoreCase(balances.trim());
+        this.tailIntervalMs = tailIntervalMs;
+        this.tailOverlap = tailOverlap;
+    }
+
+    /**
+     * Starts once the application is ready, so the catch-up sees whatever the command line runners
+     * wrote straight to the transaction table.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        if (projector != null) {
+            return;
+        }
+
+        running = true;
+        projector = new Thread(this::run, "ledger-projector");
+        projector.setDaemon(true);
+        projector.start();
+    }
+
+    public ProjectionStatus getStatus() {
+        long watermark = getWatermark();
+        return new ProjectionStatus(rebuilding, eventLog.getPublishedCount(), eventLog.getProjectedCount(),
+                eventLog.getDroppedCount(), watermark, rebuilding ? -1L : Math.max(0L, System.currentTimeMillis() - watermark));
+    }
+
+    /**
+     * Everything the ledger recorded before this time, in milliseconds since the epoch, can be
+     * read from the projections; 0 while they are catching up.
+     */
+    public long getWatermark() {
+        if (rebuilding) {
+            return 0L;
+        }
+        return tailing ? tailedAt : eventLog.getWatermark();
+    }
+
+    /**
+     * Waits until every event published before the call has been projected, and any that were
+     * dropped have been read back; or, when tailing the transaction table, until it has been read
+     * from after the call.
+     *
+     * @return false if that did not happen in time
+     */
+    public boolean awaitProjected(long timeout, TimeUnit unit) throws InterruptedException {
+        long target = eventLog.getPublishedCount();
+        long requested = System.currentTimeMillis();
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (progress) {
+            while (rebuilding || (tailing ? tailedAt <= requested : eventLog.getProjectedCount() < target || eventLog.hasDropped())) {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0) {
+                    return false;
+                }
+                progress.wait(remaining);
+            }
+        }
+        return true;
+    }
+
+    private void run() {
+        rebuild();
+        if (tailing) {
+            tail();
+            return;
+        }
+
+        while (running) {
+            if (eventLog.hasDropped()) {
+                readBack();
+                continue;
+            }
+
+            List<LedgerEvent> events = eventLog.peek(batchSize, IDLE_WAIT_MS, TimeUnit.MILLISECONDS);
+            if (events.isEmpty()) {
+                continue;
+            }
+
+            try {
+                store.project(events.stream().map(LedgerEvent::getTransaction).collect(Collectors.toList()));
+                eventLog.remove(events.size());
+                projected();
+            } catch (RuntimeException e) {
+                log.warn("Failed to project {} ledger events, retrying in {} ms", events.size(), retryDelayMs, e);
+                if (!pause(retryDelayMs)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Projects the transaction table from where the store left off.
+     */
+    private void rebuild() {
+        while (running) {
+            try {
+                long started = System.nanoTime();
+                long startedAt = System.currentTimeMillis();
+                long after = resumePoint();
+                List<Transaction> recovered = transactionJournal.getRecovered().stream()
+                        .map(TransactionJournal.Entry::getTransaction)
+                        .filter(transaction -> transaction.getId() > after)
+                        .collect(Collectors.toList());
+                store.project(recovered);
+                long through = projectTableAfter(after);
+                tailedThrough = through;
+                tailedAt = startedAt;
+                log.info("Caught the projections up with the transactions after {} through {} in {} ms",
+                        after, through, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+                rebuilding = false;
+                projected();
+                return;
+            } catch (RuntimeException e) {
+                log.warn("Failed to rebuild the projections, retrying in {} ms", retryDelayMs, e);
+                if (!pause(retryDelayMs)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Projects the transaction table as other instances add to it, for as long as the application
+     * runs.
+     */
+    private void tail() {
+        while (pause(tailIntervalMs)) {
+            long started = System.currentTimeMillis();
+            try {
+                tailedThrough = Math.max(tailedThrough, projectTableAfter(Math.max(0L, tailedThrough - tailOverlap)));
+                tailedAt = started;
+                projected();
+            } catch (RuntimeException e) {
+                log.warn("Failed to project the transaction table after {}, retrying in {} ms", tailedThrough, retryDelayMs, e);
+                if (!pause(retryDelayMs)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the transactions whose events were dropped back from the transaction table, from a
+     * little before the first of them. Those the journal has not yet drained into the table are
+     * not there yet, so the table is read again until it holds the last of them, and once more
+     * from just before that to pick up any committed out of id order.
+     */
+    private void readBack() {
+        long droppedThrough = eventLog.getDroppedThrough();
+        long after = Math.max(0L, eventLog.getDroppedFrom() - resumeOverlap);
+        long started = System.nanoTime();
+        try {
+            long readThrough = after;
+            boolean last = false;
+            while (running) {
+                long through = Math.max(readThrough, projectTableAfter(after));
+                if (last) {
+                    break;
+                }
+                last = through >= droppedThrough;
+                if (!last && through == readThrough && !pause(IDLE_WAIT_MS)) {
+                    return;
+                }
+                readThrough = through;
+                after = Math.max(after, through - resumeOverlap);
+            }
+            eventLog.readBackThrough(droppedThrough);
+            log.info("Read the transactions through {} whose ledger events were dropped back in {} ms",
+                    droppedThrough, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+            projected();
+        } catch (RuntimeException e) {
+            log.warn("Failed to read dropped ledger events back, retrying in {} ms", retryDelayMs, e);
+            pause(retryDelayMs);
+        }
+    }
+
+    /**
+     * Projects the transactions after the given id a batch at a time, reading the table through a
+     * cursor and dropping rows from the persistence context as it goes.
+     *
+     * @return the highest id projected, or the given one if there were none
+     */
+    private long projectTableAfter(long after) {
+        return readOnlyTransaction.execute(status -> {
+            long through = after;
+            try (Stream<Transaction> transactions = transactionRepository.streamByIdGreaterThanOrderByIdAsc(after)) {
+                Iterator<Transaction> iterator = transactions.iterator();
+                List<Transaction> batch = new ArrayList<>(batchSize);
+                while (iterator.hasNext()) {
+                    Transaction transaction = iterator.next();
+                    through = Math.max(through, transaction.getId());
+                    batch.add(transaction);
+                    if (batch.size() == batchSize || !iterator.hasNext()) {
+                        store.project(batch);
+                        batch.clear();
+                        entityManager.clear();
+                    }
+                }
+            }
+            return through;
+        });
+    }
+
+    /**
+     * The id after which the ledger is read again, clearing the store first if it is ahead of
+     * the ledger.
+     */
+    private long resumePoint() {
+        long projectedThrough = store.getProjectedThrough();
+        if (projectedThrough == 0L || isRecorded(projectedThrough)) {
+            return Math.max(0L, projectedThrough - resumeOverlap);
+        }
+
+        log.warn("The projections are ahead of the ledger, which has no transaction {}; rebuilding them", projectedThrough);
+        store.clear();
+        return 0L;
+    }
+
+    private boolean isRecorded(long transactionId) {
+        return transactionJournal.getRecovered().stream().anyMatch(entry -> entry.getTransaction().getId() == transactionId)
+                || transactionRepository.existsById(transactionId);
+    }
+
+    private void projected() {
+        synchronized (progress) {
+            progress.notifyAll();
+        }
+    }
+
+    private boolean pause(long millis) {
+        try {
+            Thread.sleep(millis);
+            return running;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        if (projector == null) {
+            return;
+        }
+        running = false;
+        projector.interrupt();
+        projector.join(TimeUnit.SECONDS.toMillis(10));
+    }
+
+}
@@ -0,0 +1,327 @@
+package uk.co.chriskurzeja.prepaidcard.projection;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+import uk.co.chriskurzeja.prepaidcard.model.MerchantSummary;
+import uk.co.chriskurzeja.prepaidcard.model.SpendPeriod;
+import uk.co.chriskurzeja.prepaidcard.model.SpendRollup;
+import uk.co.chriskurzeja.prepaidcard.model.Transaction;
+import uk.co.chriskurzeja.prepaidcard.model.TransactionKey;
+import uk.co.chriskurzeja.prepaidcard.model.TransactionType;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * The query side's own database, holding card histories, merchant summaries and spend rollups
+ * projected from the ledger's events. It has its own connection pool, so however heavily it is
+ * read the command side's connections are left alone. By default it is an H2 database in the
+ * file {@code projection.mv.db}; an empty {@code projection.url} gives a private in-memory one.
+ * <p>
+ * The store survives restarts and records the highest transaction id it has projected, so the
+ * projector only has to catch up on what came after. Its tables are recreated when they were
+ * written with a different {@link #SCHEMA_VERSION}, or {@link #clear() cleared} when they are
+ * ahead of the ledger they came from.
+ * <p>
+ * Projecting is idempotent on the transaction id, so an event that is seen both while catching up
+ * and as it is published is only counted once.
+ * <p>
+ * Spend is rolled up as it is projected: per card and merchant for every {@link SpendPeriod}, and
+ * per merchant for every day, by the time each operation was accepted. Reading a rollup is a
+ * lookup on its key, whatever the length of the history behind it.
+ */
+@Component
+public class ProjectionStore {
+
+    static final int SCHEMA_VERSION = 2;
+
+    private static final String INSERT_SQL = "insert into card_transaction " +
+            "(id, card_id, request_id, merchant, amount_in_pence, transaction_type, sequence_number, expires_at, recorded_at) " +
+            "values (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    private static final String SELECT_SQL = "select id, card_id, request_id, merchant, amount_in_pence, transaction_type, sequence_number, " +
+            "expires_at, recorded_at from card_transaction where card_id = ? and id > ? order by id";
+    private static final String UPDATE_SUMMARY_SQL = "update merchant_summary set transactions = transactions + ?, " +
+            "authorised = authorised + ?, captured = captured + ?, reversed = reversed + ?, refunded = refunded + ? where merchant = ?";
+    private static final String INSERT_SUMMARY_SQL = "insert into merchant_summary " +
+            "(transactions, authorised, captured, reversed, refunded, merchant) values (?, ?, ?, ?, ?, ?)";
+    private static final String UPDATE_CARD_SPEND_SQL = "update card_spend set transactions = transactions + ?, " +
+            "authorised = authorised + ?, captured = captured + ?, reversed = reversed + ?, refunded = refunded + ? " +
+            "where card_id = ? and period = ? and period_start = ? and merchant = ?";
+    private static final String INSERT_CARD_SPEND_SQL = "insert into card_spend " +
+            "(transactions, authorised, captured, reversed, refunded, card_id, period, period_start, merchant) values (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    private static final String UPDATE_MERCHANT_VOLUME_SQL = "update merchant_daily_volume set transactions = transactions + ?, " +
+            "authorised = authorised + ?, captured = captured + ?, reversed = reversed + ?, refunded = refunded + ? " +
+            "where merchant = ? and period_start = ?";
+    private static final String INSERT_MERCHANT_VOLUME_SQL = "insert into merchant_daily_volume " +
+            "(transactions, authorised, captured, reversed, refunded, merchant, period_start) values (?, ?, ?, ?, ?, ?, ?)";
+
+    private static final RowMapper<Transaction> TRANSACTION_MAPPER = (row, number) -> {
+        Transaction transaction = new Transaction(
+                new TransactionKey(row.getString("request_id"), (UUID) row.getObject("card_id")),
+                row.getString("merchant"),
+                row.getLong("amount_in_pence"),
+                TransactionType.valueOf(row.getString("transaction_type")));
+        transaction.setId(row.getLong("id"));
+        transaction.setSequenceNumber(row.getInt("sequence_number"));
+        transaction.setExpiresAt(row.getLong("expires_at"));
+        transaction.setRecordedAt(row.getLong("recorded_at"));
+        return transaction;
+    };
+    private static final RowMapper<SpendRollup> ROLLUP_MAPPER = (row, number) -> new SpendRollup(
+            row.getString("merchant"),
+            row.getLong("period_start"),
+            row.getLong("transactions"),
+            row.getLong("authorised"),
+            row.getLong("captured"),
+            row.getLong("reversed"),
+            row.getLong("refunded"));
+
+    private final HikariDataSource dataSource;
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+
+    @Autowired
+    public ProjectionStore(@Value("${projection.url:jdbc:h2:file:./projection}") String url,
+                           @Value("${projection.pool-size:8}") int poolSize) {
+        HikariConfig config = new HikariConfig();
+        config.setPoolName("projection");
+        config.setJdbcUrl(url.isEmpty() ? "jdbc:h2:mem:projection-" + UUID.randomUUID() : url);
+        config.setMaximumPoolSize(poolSize);
+        this.dataSource = new HikariDataSource(config);
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+        this.jdbcTemplate.setFetchSize(1000);
+        this.transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+    }
+
+    /**
+     * Creates the tables unless they are already there with the current schema version.
+     */
+    @PostConstruct
+    public void createSchema() {
+        jdbcTemplate.execute("create table if not exists projection_progress (id int primary key, " +
+                "schema_version int not null, projected_through bigint not null)");
+        List<Integer> versions = jdbcTemplate.queryForList("select schema_version from projection_progress where id = 0", Integer.class);
+        if (versions.isEmpty() || versions.get(0) != SCHEMA_VERSION) {
+            clear();
+        }
+    }
+
+    /**
+     * Drops everything projected so far, leaving empty tables to project the ledger into again.
+     */
+    public void clear() {
+        transactionTemplate.execute(status -> {
+            dropAndCreateTables();
+            jdbcTemplate.update("delete from projection_progress");
+            jdbcTemplate.update("insert into projection_progress (id, schema_version, projected_through) values (0, ?, 0)", SCHEMA_VERSION);
+            return null;
+        });
+    }
+
+    /**
+     * The highest transaction id projected so far, or 0 if nothing has been.
+     */
+    public long getProjectedThrough() {
+        return jdbcTemplate.queryForObject("select projected_through from projection_progress where id = 0", Long.class);
+    }
+
+    private void dropAndCreateTables() {
+        jdbcTemplate.execute("drop table if exists card_transaction");
+        jdbcTemplate.execute("drop table if exists merchant_summary");
+        jdbcTemplate.execute("drop table if exists card_spend");
+        jdbcTemplate.execute("drop table if exists merchant_daily_volume");
+        jdbcTemplate.execute("create table card_transaction (id bigint primary key, card_id uuid not null, " +
+                "request_id varchar(255), merchant varchar(255), amount_in_pence bigint not null, " +
+                "transaction_type varchar(32) not null, sequence_number int not null, expires_at bigint not null, " +
+                "recorded_at bigint not null)");
+        jdbcTemplate.execute("create index idx_card_transaction_history on card_transaction (card_id, id)");
+        jdbcTemplate.execute("create table merchant_summary (merchant varchar(255) primary key, transactions bigint not null, " +
+                "authorised bigint not null, captured bigint not null, reversed bigint not null, refunded bigint not null)");
+        jdbcTemplate.execute("create table card_spend (card_id uuid not null, period varchar(8) not null, period_start bigint not null, " +
+                "merchant varchar(255) not null, transactions bigint not null, authorised bigint not null, captured bigint not null, " +
+                "reversed bigint not null, refunded bigint not null, primary key (card_id, period, period_start, merchant))");
+        jdbcTemplate.execute("create table merchant_daily_volume (merchant varchar(255) not null, period_start bigint not null, " +
+                "transactions bigint not null, authorised bigint not null, captured bigint not null, reversed bigint not null, " +
+                "refunded bigint not null, primary key (merchant, period_start))");
+    }
+
+    /**
+     * Adds the transactions to the card histories, merchant summaries and spend rollups in one
+     * database transaction, skipping any already projected, and moves the projected id on past
+     * them. Each total touched is updated once for the whole batch.
+     *
+     * @return the number that were new
+     */
+    public int project(List<Transaction> transactions) {
+        if (transactions.isEmpty()) {
+            return 0;
+        }
+
+        long highest = transactions.stream().mapToLong(Transaction::getId).max().getAsLong();
+        return transactionTemplate.execute(status -> {
+            List<Transaction> missing = missing(transactions);
+            jdbcTemplate.batchUpdate(INSERT_SQL, missing, missing.size(), (statement, transaction) -> {
+                statement.setLong(1, transaction.getId());
+                statement.setObject(2, transaction.getTransactionKey().getCardId());
+                statement.setString(3, transaction.getTransactionKey().getRequestId());
+                statement.setString(4, transaction.getMerchant());
+                statement.setLong(5, transaction.getAmount());
+                statement.setString(6, transaction.getTransactionType().name());
+                statement.setInt(7, transaction.getSequenceNumber());
+                statement.setLong(8, transaction.getExpiresAt());
+                statement.setLong(9, transaction.getRecordedAt());
+            });
+
+            Map<String, long[]> totals = new LinkedHashMap<>();
+            Map<List<Object>, long[]> cardSpend = new LinkedHashMap<>();
+            Map<List<Object>, long[]> merchantVolume = new LinkedHashMap<>();
+            for (Transaction transaction : missing) {
+                if (transaction.getTransactionType() != TransactionType.LOAD_FUNDS) {
+                    String merchant = transaction.getMerchant();
+                    long at = transaction.getRecordedAt();
+                    count(totals.computeIfAbsent(merchant, k -> new long[5]), transaction);
+                    for (SpendPeriod period : SpendPeriod.values()) {
+                        count(cardSpend.computeIfAbsent(Arrays.asList(transaction.getTransactionKey().getCardId(), period.name(), period.startOf(at), merchant),
+                                k -> new long[5]), transaction);
+                    }
+                    count(merchantVolume.computeIfAbsent(Arrays.asList(merchant, SpendPeriod.DAY.startOf(at)), k -> new long[5]), transaction);
+                }
+            }
+            totals.forEach((merchant, merchantTotals) ->
+                    add(UPDATE_SUMMARY_SQL, INSERT_SUMMARY_SQL, merchantTotals, Collections.singletonList(merchant)));
+            cardSpend.forEach((key, spend) -> add(UPDATE_CARD_SPEND_SQL, INSERT_CARD_SPEND_SQL, spend, key));
+            merchantVolume.forEach((key, volume) -> add(UPDATE_MERCHANT_VOLUME_SQL, INSERT_MERCHANT_VOLUME_SQL, volume, key));
+            jdbcTemplate.update("update projection_progress set projected_through = ? where id = 0 and projected_through < ?",
+                    highest, highest);
+            return missing.size();
+        });
+    }
+
+    private List<Transaction> missing(List<Transaction> transactions) {
+        long lowest = Long.MAX_VALUE;
+        long highest = Long.MIN_VALUE;
+        for (Transaction transaction : transactions) {
+            lowest = Math.min(lowest, transaction.getId());
+            highest = Math.max(highest, transaction.getId());
+        }
+
+        Set<Long> projected = new HashSet<>(jdbcTemplate.queryForList(
+                "select id from card_transaction where id between ? and ?", Long.class, lowest, highest));
+        List<Transaction> missing = new ArrayList<>(transactions.size());
+        for (Transaction transaction : transactions) {
+            if (projected.add(transaction.getId())) {
+                missing.add(transaction);
+            }
+        }
+        return missing;
+    }
+
+    private static int column(TransactionType type) {
+        switch (type) {
+            case AUTHORISE_TRANSACTION:
+                return 1;
+            case CAPTURE_TRANSACTION_FUNDS:
+                return 2;
+            case REVERSE_TRANSACTION:
+                return 3;
+            case REFUND_CAPTURED_FUNDS:
+                return 4;
+            default:
+                throw new IllegalArgumentException("No merchant total for " + type);
+        }
+    }
+
+    private static void count(long[] totals, Transaction transaction) {
+        totals[0]++;
+        totals[column(transaction.getTransactionType())] += transaction.getAmount();
+    }
+
+    /**
+     * Adds the totals to the row with the given key, creating it if it is not there yet.
+     */
+    private void add(String updateSql, String insertSql, long[] totals, List<Object> key) {
+        Object[] arguments = new Object[totals.length + key.size()];
+        for (int i = 0; i < totals.length; i++) {
+            arguments[i] = totals[i];
+        }
+        for (int i = 0; i < key.size(); i++) {
+            arguments[totals.length + i] = key.get(i);
+        }
+        if (jdbcTemplate.update(updateSql, arguments) == 0) {
+            jdbcTemplate.update(insertSql, arguments);
+        }
+    }
+
+    /**
+     * Up to {@code limit} of the card's transactions with ids after {@code after}, oldest first.
+     */
+    public List<Transaction> findAfter(UUID cardId, long after, int limit) {
+        return jdbcTemplate.query(SELECT_SQL + " limit ?", TRANSACTION_MAPPER, cardId, after, limit);
+    }
+
+    /**
+     * Hands every one of the card's transactions to the consumer, oldest first, as they are read.
+     *
+     * @return the number of transactions read
+     */
+    public long forEach(UUID cardId, Consumer<Transaction> consumer) {
+        long[] read = {0L};
+        jdbcTemplate.query(SELECT_SQL, (RowCallbackHandler) row -> {
+            consumer.accept(TRANSACTION_MAPPER.mapRow(row, (int) read[0]));
+            read[0]++;
+        }, cardId, 0L);
+        return read[0];
+    }
+
+    public Optional<MerchantSummary> findMerchantSummary(String merchant) {
+        return jdbcTemplate.query("select * from merchant_summary where merchant = ?", (row, number) -> new MerchantSummary(
+                row.getString("merchant"),
+                row.getLong("transactions"),
+                row.getLong("authorised"),
+                row.getLong("captured"),
+                row.getLong("reversed"),
+                row.getLong("refunded")), merchant).stream().findFirst();
+    }
+
+    /**
+     * What the card spent with each merchant in the period starting at the given time.
+     */
+    public List<SpendRollup> findCardSpend(UUID cardId, SpendPeriod period, long periodStart) {
+        return jdbcTemplate.query("select * from card_spend where card_id = ? and period = ? and period_start = ? order by merchant",
+                ROLLUP_MAPPER, cardId, period.name(), periodStart);
+    }
+
+    /**
+     * The merchant's totals for each day starting between the given times, oldest first. Days with
+     * nothing accepted are left out.
+     */
+    public List<SpendRollup> findMerchantVolume(String merchant, long fromDay, long toDay) {
+        return jdbcTemplate.query("select * from merchant_daily_volume where merchant = ? and period_start between ? and ? order by period_start",
+                ROLLUP_MAPPER, merchant, fromDay, toDay);
+    }
+
+    @PreDestroy
+    public void close() {
+        dataSource.close();
+    }
+
+}
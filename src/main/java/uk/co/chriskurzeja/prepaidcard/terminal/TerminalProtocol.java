@@ -0,0 +1,129 @@
+package uk.co.chriskurzeja.prepaidcard.terminal;
+
+import uk.co.chriskurzeja.prepaidcard.model.TransactionType;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+/**
+ * The binary frames merchant terminals exchange with the {@link TerminalServer}. Every number is
+ * big-endian and every frame starts with the length of the rest of it, so frames can be sent back
+ * to back on one connection without waiting for replies. A request is a fixed 33 byte header
+ * followed by its two strings:
+ * <pre>
+ *   0  u16  length of the rest of the frame
+ *   2  u8   operation: 1 authorise, 2 capture, 3 reverse, 4 refund
+ *   3  i32  correlation id, echoed in the response
+ *   7  i64  card id, most significant bits
+ *  15  i64  card id, least significant bits
+ *  23  i64  amount in pence
+ *  31  u8   merchant length in bytes
+ *  32  u8   transaction id length in bytes
+ *  33       merchant then transaction id, UTF-8
+ * </pre>
+ * A response is a 7 byte header followed by either the authorisation's balances or the reason it
+ * was turned down:
+ * <pre>
+ *   0  u16  length of the rest of the frame
+ *   2  u8   status: 0 accepted, 1 rejected, 2 busy, 3 moved
+ *   3  i32  correlation id
+ *   7  i64  blocked, then i64 captured, when accepted; otherwise the reason, UTF-8
+ * </pre>
+ * A moved response's reason is the name of the cluster node that owns the card.
+ * Responses are sent as each operation completes, which for operations on different cards need
+ * not be the order they were sent in.
+ */
+public final class TerminalProtocol {
+
+    public static final int ACCEPTED = 0;
+    public static final int REJECTED = 1;
+    public static final int BUSY = 2;
+    public static final int MOVED = 3;
+
+    static final int LENGTH_FIELD = 2;
+    static final int REQUEST_HEADER = 33;
+    static final int RESPONSE_HEADER = 7;
+    static final int MAX_STRING = 255;
+    static final int MAX_REQUEST = REQUEST_HEADER + 2 * MAX_STRING;
+    static final int MAX_REASON = 1024;
+
+    private static final TransactionType[] OPERATIONS = {
+            null,
+            TransactionType.AUTHORISE_TRANSACTION,
+            TransactionType.CAPTURE_TRANSACTION_FUNDS,
+            TransactionType.REVERSE_TRANSACTION,
+            TransactionType.REFUND_CAPTURED_FUNDS
+    };
+
+    private TerminalProtocol() {
+
+    }
+
+    /**
+     * @return the merchant operation with the given code, or null if there is none
+     */
+    public static TransactionType operation(int code) {
+        return code > 0 && code < OPERATIONS.length ? OPERATIONS[code] : null;
+    }
+
+    public static int code(TransactionType type) {
+        for (int code = 1; code < OPERATIONS.length; code++) {
+            if (OPERATIONS[code] == type) {
+                return code;
+            }
+        }
+        throw new IllegalArgumentException(type + " is not a merchant operation");
+    }
+
+    public static void writeRequest(ByteBuffer out, TransactionType type, int correlationId, UUID cardId, String merchant,
+                                    String transactionId, long amountInPence) {
+        byte[] merchantBytes = utf8(merchant, "Merchant");
+        byte[] transactionIdBytes = utf8(transactionId, "Transaction id");
+        out.putShort((short) (REQUEST_HEADER - LENGTH_FIELD + merchantBytes.length + transactionIdBytes.length))
+                .put((byte) code(type))
+                .putInt(correlationId)
+                .putLong(cardId.getMostSignificantBits())
+                .putLong(cardId.getLeastSignificantBits())
+                .putLong(amountInPence)
+                .put((byte) merchantBytes.length)
+                .put((byte) transactionIdBytes.length)
+                .put(merchantBytes)
+                .put(transactionIdBytes);
+    }
+
+    static ByteBuffer accepted(int correlationId, long blocked, long captured) {
+        ByteBuffer response = ByteBuffer.allocate(RESPONSE_HEADER + 16);
+        response.putShort((short) (response.capacity() - LENGTH_FIELD))
+                .put((byte) ACCEPTED)
+                .putInt(correlationId)
+                .putLong(blocked)
+                .putLong(captured);
+        response.flip();
+        return response;
+    }
+
+    /**
+     * A rejected, busy or moved response. Reasons longer than {@value #MAX_REASON} bytes are cut short.
+     */
+    static ByteBuffer rejected(int status, int correlationId, String reason) {
+        byte[] reasonBytes = reason.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(reasonBytes.length, MAX_REASON);
+        ByteBuffer response = ByteBuffer.allocate(RESPONSE_HEADER + length);
+        response.putShort((short) (response.capacity() - LENGTH_FIELD))
+                .put((byte) status)
+                .putInt(correlationId)
+                .put(reasonBytes, 0, length);
+        response.flip();
+        return response;
+    }
+
+    private static byte[] utf8(String value, String name) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_STRING) {
+            throw new IllegalArgumentException(name + " must be at most " + MAX_STRING + " bytes of UTF-8");
+        }
+        return bytes;
+    }
+
+}
@@ -0,0 +1,432 @@
+package uk.co.chriskurzeja.prepaidcard.terminal;
+
+import io.atlassian.fugue.Either;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import uk.co.chriskurzeja.prepaidcard.card.TransactionService;
+import uk.co.chriskurzeja.prepaidcard.cluster.ClusterTopology;
+import uk.co.chriskurzeja.prepaidcard.model.MerchantTransactionResult;
+import uk.co.chriskurzeja.prepaidcard.model.Transaction;
+import uk.co.chriskurzeja.prepaidcard.model.TransactionKey;
+import uk.co.chriskurzeja.prepaidcard.model.TransactionType;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static uk.co.chriskurzeja.prepaidcard.terminal.TerminalProtocol.LENGTH_FIELD;
+import static uk.co.chriskurzeja.prepaidcard.terminal.TerminalProtocol.MAX_REQUEST;
+import static uk.co.chriskurzeja.prepaidcard.terminal.TerminalProtocol.REQUEST_HEADER;
+
+/**
+ * Accepts merchant operations from terminals over TCP in the {@link TerminalProtocol} frames, as a
+ * lighter alternative to the merchant REST API. One thread reads and writes every connection; the
+ * operations themselves go through {@link TransactionService#handleBatchAsync}, so they are decided
+ * exactly as they are over HTTP.
+ * <p>
+ * A terminal can pipeline many requests on one connection, and they are applied in the order they
+ * were sent: whatever arrives while one batch is with the ledger is sent on as the next, so an
+ * authorisation and its capture can go back to back without waiting for the first reply. Once
+ * {@code terminal.max-in-flight} requests on a connection are waiting for their replies to be
+ * written, including those turned away without reaching the ledger, no more are read from it until
+ * some are; a terminal that stops reading its replies stops being read from.
+ * <p>
+ * A terminal that shuts down its side of the connection is still sent the replies it is owed, and
+ * the connection closed once they are written.
+ * <p>
+ * In a cluster, requests for cards another node owns are answered as moved, naming the owner, for
+ * the terminal to send to it instead.
+ * <p>
+ * Off unless {@code terminal.port} is set; a port of zero listens on any free port.
+ */
+@Component
+public class TerminalServer {
+
+    private static final Logger log = LoggerFactory.getLogger(TerminalServer.class);
+
+    private static final int READ_BUFFER = 64 * 1024;
+    private static final int WRITE_BUFFER = 64 * 1024;
+
+    private final TransactionService transactionService;
+    private final ClusterTopology topology;
+    private final int port;
+    private final int maxInFlight;
+    private final Queue<Connection> pendingWrites = new ConcurrentLinkedQueue<>();
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Thread listener;
+    private volatile boolean running;
+
+    @Autowired
+    public TerminalServer(TransactionService transactionService,
+                          ClusterTopology topology,
+                          @Value("${terminal.port:-1}") int port,
+                          @Value("${terminal.max-in-flight:1024}") int maxInFlight) {
+        this.transactionService = transactionService;
+        this.topology = topology;
+        this.port = port;
+        this.maxInFlight = maxInFlight;
+    }
+
+    public boolean isEnabled() {
+        return port >= 0;
+    }
+
+    /**
+     * @return the port terminals connect to, or -1 if the server is not listening
+     */
+    public int getPort() {
+        return serverChannel == null ? -1 : serverChannel.socket().getLocalPort();
+    }
+
+    @PostConstruct
+    public void start() throws IOException {
+        if (!isEnabled()) {
+            return;
+        }
+
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        running = true;
+        listener = new Thread(this::listen, "terminal-listener");
+        listener.setDaemon(true);
+        listener.start();
+        log.info("Listening for merchant terminals on port {}", getPort());
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException, IOException {
+        if (listener == null) {
+            return;
+        }
+
+        running = false;
+        selector.wakeup();
+        listener.join(TimeUnit.SECONDS.toMillis(5));
+        for (SelectionKey key : selector.keys()) {
+            key.channel().close();
+        }
+        selector.close();
+    }
+
+    private void listen() {
+        while (running) {
+            try {
+                selector.select();
+                flushPendingWrites();
+
+                Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                while (selected.hasNext()) {
+                    SelectionKey key = selected.next();
+                    selected.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else {
+                        ((Connection) key.attachment()).ready(key);
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                log.warn("Terminal listener failed, carrying on", e);
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        key.attach(new Connection(channel, key));
+    }
+
+    private void flushPendingWrites() {
+        Connection connection;
+        while ((connection = pendingWrites.poll()) != null) {
+            connection.flushScheduled();
+        }
+    }
+
+    /**
+     * A terminal's connection. Its buffers and waiting requests are only touched by the listener
+     * thread; responses completed on other threads are queued and the listener woken to write
+     * them.
+     */
+    private final class Connection {
+
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final ByteBuffer in = ByteBuffer.allocate(READ_BUFFER);
+        private final ByteBuffer out = ByteBuffer.allocateDirect(WRITE_BUFFER);
+        private final Queue<ByteBuffer> responses = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final List<Transaction> waiting = new ArrayList<>();
+        private final List<Integer> waitingCorrelationIds = new ArrayList<>();
+        private volatile boolean open = true;
+        private volatile boolean batchCompleted = false;
+        private boolean inputClosed = false;
+        private boolean batchInFlight = false;
+        private boolean paused = false;
+
+        private Connection(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+            out.flip();
+        }
+
+        private void ready(SelectionKey key) {
+            try {
+                if (key.isReadable()) {
+                    read();
+                }
+                if (open && key.isWritable()) {
+                    flush();
+                    carryOn();
+                }
+            } catch (IOException e) {
+                log.debug("Closing terminal connection {}", channel, e);
+                close();
+            }
+        }
+
+        private void flushScheduled() {
+            scheduled.set(false);
+            if (!open) {
+                return;
+            }
+
+            if (batchCompleted) {
+                batchCompleted = false;
+                batchInFlight = false;
+            }
+
+            try {
+                flush();
+                carryOn();
+            } catch (IOException e) {
+                log.debug("Closing terminal connection {}", channel, e);
+                close();
+            }
+        }
+
+        private void read() throws IOException {
+            if (channel.read(in) < 0) {
+                inputClosed = true;
+                updateInterest();
+                carryOn();
+                return;
+            }
+            process();
+        }
+
+        /**
+         * Reads on if replies have been written since the connection paused, sends on whatever is
+         * waiting, and closes the connection once a terminal that has stopped sending has had
+         * every reply.
+         */
+        private void carryOn() throws IOException {
+            if (paused && inFlight.get() < maxInFlight) {
+                process();
+            }
+            dispatch();
+            if (inputClosed && inFlight.get() == 0 && !out.hasRemaining()) {
+                close();
+            }
+        }
+
+        /**
+         * Handles every complete frame that has been read, until the connection has as many
+         * requests in flight as it may.
+         */
+        private void process() throws IOException {
+            in.flip();
+            while (inFlight.get() < maxInFlight && in.remaining() >= LENGTH_FIELD) {
+                int start = in.position();
+                int length = in.getShort(start) & 0xFFFF;
+                if (length < REQUEST_HEADER - LENGTH_FIELD || length > MAX_REQUEST - LENGTH_FIELD) {
+                    throw new IOException("Malformed frame of length " + length);
+                }
+                if (in.remaining() < LENGTH_FIELD + length) {
+                    break;
+                }
+
+                int merchantLength = in.get(start + 31) & 0xFF;
+                int transactionIdLength = in.get(start + 32) & 0xFF;
+                if (merchantLength + transactionIdLength != length - (REQUEST_HEADER - LENGTH_FIELD)) {
+                    throw new IOException("Malformed frame, its strings do not fill it");
+                }
+                handle(start, merchantLength, transactionIdLength);
+                in.position(start + LENGTH_FIELD + length);
+            }
+            paused = inFlight.get() >= maxInFlight;
+            in.compact();
+            updateInterest();
+            dispatch();
+        }
+
+        private void handle(int start, int merchantLength, int transactionIdLength) {
+            int correlationId = in.getInt(start + 3);
+            int code = in.get(start + 2) & 0xFF;
+            TransactionType type = TerminalProtocol.operation(code);
+            inFlight.incrementAndGet();
+            if (type == null) {
+                send(TerminalProtocol.rejected(TerminalProtocol.REJECTED, correlationId, "Unknown transaction type " + code));
+                return;
+            }
+            if (merchantLength == 0 || transactionIdLength == 0) {
+                send(TerminalProtocol.rejected(TerminalProtocol.REJECTED, correlationId, "Merchant and transaction id must not be empty"));
+                return;
+            }
+
+            UUID cardId = new UUID(in.getLong(start + 7), in.getLong(start + 15));
+            if (!topology.isLocal(cardId)) {
+                send(TerminalProtocol.rejected(TerminalProtocol.MOVED, correlationId, topology.ownerOf(cardId)));
+                return;
+            }
+            long amountInPence = in.getLong(start + 23);
+            int strings = in.arrayOffset() + start + REQUEST_HEADER;
+            String merchant = new String(in.array(), strings, merchantLength, StandardCharsets.UTF_8);
+            String transactionId = new String(in.array(), strings + merchantLength, transactionIdLength, StandardCharsets.UTF_8);
+
+            waiting.add(new Transaction(new TransactionKey(transactionId, cardId), merchant, amountInPence, type));
+            waitingCorrelationIds.add(correlationId);
+        }
+
+        /**
+         * Sends the requests read since the last batch as the next one, unless that batch is still
+         * with the ledger.
+         */
+        private void dispatch() {
+            if (batchInFlight || waiting.isEmpty()) {
+                return;
+            }
+
+            List<Transaction> batch = new ArrayList<>(waiting);
+            List<Integer> correlationIds = new ArrayList<>(waitingCorrelationIds);
+            waiting.clear();
+            waitingCorrelationIds.clear();
+            batchInFlight = true;
+            transactionService.handleBatchAsync(batch).whenComplete((results, error) -> {
+                for (int i = 0; i < correlationIds.size(); i++) {
+                    responses.add(response(correlationIds.get(i), error == null ? results.get(i) : null, error));
+                }
+                batchCompleted = true;
+                schedule();
+            });
+        }
+
+        private ByteBuffer response(int correlationId, Either<String, Object> result, Throwable error) {
+            if (error != null) {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                if (cause instanceof RejectedExecutionException) {
+                    return TerminalProtocol.rejected(TerminalProtocol.BUSY, correlationId, "Server is busy, please retry");
+                }
+                log.warn("Could not handle a terminal request", cause);
+                return TerminalProtocol.rejected(TerminalProtocol.REJECTED, correlationId, "Could not handle transaction");
+            }
+
+            if (result.isLeft()) {
+                return TerminalProtocol.rejected(TerminalProtocol.REJECTED, correlationId, result.left().get());
+            }
+            MerchantTransactionResult accepted = (MerchantTransactionResult) result.right().get();
+            return TerminalProtocol.accepted(correlationId, accepted.getBlocked(), accepted.getCaptured());
+        }
+
+        private void send(ByteBuffer response) {
+            responses.add(response);
+            schedule();
+        }
+
+        /**
+         * Has the listener write the queued responses, and carry on with the connection's requests
+         * if a batch has completed.
+         */
+        private void schedule() {
+            if (open && scheduled.compareAndSet(false, true)) {
+                pendingWrites.add(this);
+                selector.wakeup();
+            }
+        }
+
+        /**
+         * Writes as many queued responses as the socket will take, gathering them into one buffer
+         * so a burst of pipelined responses goes out in as few writes as possible. A request stops
+         * counting as in flight once its response is in that buffer.
+         */
+        private void flush() throws IOException {
+            while (true) {
+                if (!out.hasRemaining()) {
+                    out.clear();
+                    ByteBuffer response;
+                    while ((response = responses.peek()) != null && response.remaining() <= out.remaining()) {
+                        out.put(response);
+                        responses.poll();
+                        inFlight.decrementAndGet();
+                    }
+                    out.flip();
+                    if (!out.hasRemaining()) {
+                        break;
+                    }
+                }
+
+                channel.write(out);
+                if (out.hasRemaining()) {
+                    break;
+                }
+            }
+            updateInterest();
+        }
+
+        private void updateInterest() {
+            if (key.isValid()) {
+                key.interestOps((paused || inputClosed ? 0 : SelectionKey.OP_READ) | (out.hasRemaining() ? SelectionKey.OP_WRITE : 0));
+            }
+        }
+
+        private void close() {
+            open = false;
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.debug("Could not close terminal connection {}", channel, e);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,409 @@
+package uk.co.chriskurzeja.prepaidcard.benchmark;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import uk.co.chriskurzeja.prepaidcard.PrepaidcardApplication;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Drives the merchant API over HTTP the way a card scheme would: each journey authorises an
+ * amount, captures some or all of it, then sometimes refunds part of the capture and sometimes
+ * reverses what is left of the authorisation. A share of the journeys go to a few hot cards.
+ * <p>
+ * Run with {@code mvn -Pload-test test-compile exec:java -Dloadtest.duration-seconds=60}. The
+ * application is started on a free port unless {@code loadtest.url} points at one already
+ * running; arguments in {@code -Dexec.args} are passed to the application it starts. Every
+ * accepted request is mirrored in a local model of each card, and at the end the balances the
+ * API reports are checked against it.
+ */
+public class MerchantLoadGenerator {
+
+    private enum Action {
+        AUTHORISE, CAPTURE, REFUND, REVERSE;
+
+        private String path() {
+            return name().toLowerCase();
+        }
+    }
+
+    private static final String MERCHANT = "loadtest";
+    private static final long FUNDS = 1_000_000_000L;
+    private static final int MAX_AMOUNT = 5_000;
+
+    public static void main(String[] args) throws Exception {
+        String url = System.getProperty("loadtest.url");
+        if (url != null) {
+            new MerchantLoadGenerator(url).run();
+            return;
+        }
+
+        String[] arguments = Arrays.copyOf(args, args.length + 2);
+        arguments[args.length] = "--server.port=0";
+        arguments[args.length + 1] = "--logging.level.root=WARN";
+        try (ConfigurableApplicationContext context = new SpringApplicationBuilder(PrepaidcardApplication.class).run(arguments)) {
+            new MerchantLoadGenerator("http://localhost:" + context.getEnvironment().getProperty("local.server.port")).run();
+        }
+    }
+
+    private final String baseUrl;
+    private final int cardCount = Integer.getInteger("loadtest.cards", 1_000);
+    private final int threads = Integer.getInteger("loadtest.threads", 32);
+    private final int warmupSeconds = Integer.getInteger("loadtest.warmup-seconds", 5);
+    private final int durationSeconds = Integer.getInteger("loadtest.duration-seconds", 30);
+    private final int hotCards = Integer.getInteger("loadtest.hot-cards", 10);
+    private final double hotShare = Double.parseDouble(System.getProperty("loadtest.hot-share", "0.5"));
+    private final double refundShare = Double.parseDouble(System.getProperty("loadtest.refund-share", "0.3"));
+    private final double reverseShare = Double.parseDouble(System.getProperty("loadtest.reverse-share", "0.5"));
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final AtomicLong requests = new AtomicLong();
+    private final Map<Action, ActionStats> stats = new EnumMap<>(Action.class);
+    private final List<CardModel> cards = new ArrayList<>();
+    private volatile boolean recording = false;
+    private volatile boolean running = true;
+
+    private MerchantLoadGenerator(String baseUrl) {
+        this.baseUrl = baseUrl;
+        for (Action action : Action.values()) {
+            stats.put(action, new ActionStats());
+        }
+        System.setProperty("http.maxConnections", Integer.toString(threads));
+    }
+
+    private void run() throws Exception {
+        System.out.printf("Target %s: %d cards, %d threads, %ds after %ds warm-up, %.0f%% of journeys on %d hot cards%n",
+                baseUrl, cardCount, threads, durationSeconds, warmupSeconds, hotShare * 100, Math.min(hotCards, cardCount));
+        createCards();
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Latencies>> workers = new ArrayList<>(threads);
+        for (int i = 0; i < threads; i++) {
+            workers.add(executor.submit(this::drive));
+        }
+
+        TimeUnit.SECONDS.sleep(warmupSeconds);
+        recording = true;
+        long started = System.nanoTime();
+        TimeUnit.SECONDS.sleep(durationSeconds);
+        recording = false;
+        double elapsedSeconds = (System.nanoTime() - started) / 1e9;
+        running = false;
+
+        Latencies latencies = new Latencies();
+        for (Future<Latencies> worker : workers) {
+            latencies.addAll(worker.get());
+        }
+        executor.shutdown();
+
+        report(latencies, elapsedSeconds);
+        checkBalances();
+    }
+
+    private void createCards() throws IOException {
+        for (int i = 0; i < cardCount; i++) {
+            Response created = get("/api/card/create/loadtest-" + System.nanoTime() + "-" + i);
+            if (created.status != 200) {
+                throw new IllegalStateException("Could not create card: " + created.body);
+            }
+
+            CardModel card = new CardModel(created.body);
+            Response loaded = get("/api/card/load/" + card.id + "/" + nextRequestId() + "/" + FUNDS);
+            if (loaded.status != 200) {
+                throw new IllegalStateException("Could not load card " + card.id + ": " + loaded.body);
+            }
+            card.available.addAndGet(FUNDS);
+            cards.add(card);
+        }
+    }
+
+    private Latencies drive() {
+        Latencies latencies = new Latencies();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (running) {
+            CardModel card = pickCard(random);
+            String requestId = nextRequestId();
+            long amount = 1 + random.nextInt(MAX_AMOUNT);
+            if (!send(Action.AUTHORISE, card, requestId, amount, latencies)) {
+                continue;
+            }
+            card.authorised(amount);
+
+            long captured = amount / 2 + random.nextLong(amount - amount / 2 + 1);
+            if (captured > 0 && send(Action.CAPTURE, card, requestId, captured, latencies)) {
+                card.captured(captured);
+            } else {
+                captured = 0;
+            }
+
+            if (captured > 0 && random.nextDouble() < refundShare) {
+                long refunded = 1 + random.nextLong(captured);
+                if (send(Action.REFUND, card, requestId, refunded, latencies)) {
+                    card.refunded(refunded);
+                }
+            }
+
+            long remaining = amount - captured;
+            if (remaining > 0 && random.nextDouble() < reverseShare) {
+                long reversed = 1 + random.nextLong(remaining);
+                if (send(Action.REVERSE, card, requestId, reversed, latencies)) {
+                    card.reversed(reversed);
+                }
+            }
+        }
+        return latencies;
+    }
+
+    private CardModel pickCard(ThreadLocalRandom random) {
+        int hot = Math.min(hotCards, cards.size());
+        if (hot > 0 && random.nextDouble() < hotShare) {
+            return cards.get(random.nextInt(hot));
+        }
+        return cards.get(random.nextInt(cards.size()));
+    }
+
+    /**
+     * A request that never got an answer may or may not have been applied, so its card can no
+     * longer be checked against the model.
+     */
+    private boolean send(Action action, CardModel card, String requestId, long amount, Latencies latencies) {
+        String path = "/api/merchant/" + MERCHANT + "/" + action.path() + "/" + card.id + "/" + requestId + "/" + amount;
+        long started = System.nanoTime();
+        Response response;
+        try {
+            response = post(path);
+        } catch (IOException e) {
+            card.uncertain = true;
+            record(action, latencies, System.nanoTime() - started, e.getClass().getSimpleName());
+            return false;
+        }
+
+        boolean accepted = response.status == 200;
+        record(action, latencies, System.nanoTime() - started, accepted ? null : response.status + " " + response.body);
+        return accepted;
+    }
+
+    private void record(Action action, Latencies latencies, long nanos, String error) {
+        if (!recording) {
+            return;
+        }
+
+        latencies.add(action, nanos);
+        ActionStats actionStats = stats.get(action);
+        if (error == null) {
+            actionStats.accepted.increment();
+        } else {
+            actionStats.errors.computeIfAbsent(error, e -> new LongAdder()).increment();
+        }
+    }
+
+    private void report(Latencies latencies, double elapsedSeconds) {
+        System.out.println();
+        System.out.printf("%-10s %10s %10s %10s %12s %10s %10s %10s%n", "action", "requests", "accepted", "failed", "requests/s", "p50 ms", "p99 ms", "p99.9 ms");
+        long total = 0;
+        for (Action action : Action.values()) {
+            long[] values = latencies.sorted(action);
+            if (values.length == 0) {
+                continue;
+            }
+
+            ActionStats actionStats = stats.get(action);
+            long accepted = actionStats.accepted.sum();
+            total += values.length;
+            System.out.printf("%-10s %10d %10d %10d %12.1f %10.2f %10.2f %10.2f%n", action.path(), values.length, accepted, values.length - accepted,
+                    values.length / elapsedSeconds, percentile(values, 0.5), percentile(values, 0.99), percentile(values, 0.999));
+        }
+        System.out.printf("%-10s %10d %10s %10s %12.1f%n", "total", total, "", "", total / elapsedSeconds);
+
+        System.out.println();
+        System.out.println("Failures:");
+        boolean anyFailures = false;
+        for (Action action : Action.values()) {
+            Map<String, LongAdder> errors = new TreeMap<>(stats.get(action).errors);
+            for (Map.Entry<String, LongAdder> error : errors.entrySet()) {
+                anyFailures = true;
+                System.out.printf("  %-10s %8d  %s%n", action.path(), error.getValue().sum(), error.getKey());
+            }
+        }
+        if (!anyFailures) {
+            System.out.println("  none");
+        }
+    }
+
+    private void checkBalances() throws IOException {
+        int checked = 0;
+        int uncertain = 0;
+        List<String> mismatches = new ArrayList<>();
+        for (CardModel card : cards) {
+            if (card.uncertain) {
+                uncertain++;
+                continue;
+            }
+
+            JsonNode balance = objectMapper.readTree(get("/api/card/balance/" + card.id).body);
+            String actual = describe(balance.path("loaded").asLong(), balance.path("available").asLong(),
+                    balance.path("blocked").asLong(), balance.path("captured").asLong());
+            String expected = describe(FUNDS, card.available.get(), card.blocked.get(), card.captured.get());
+            if (!actual.equals(expected)) {
+                mismatches.add(card.id + ": expected " + expected + " but was " + actual);
+            }
+            checked++;
+        }
+
+        System.out.println();
+        System.out.printf("Balance check: %d cards checked, %d mismatched, %d skipped after requests without a response%n",
+                checked, mismatches.size(), uncertain);
+        mismatches.stream().limit(10).forEach(mismatch -> System.out.println("  " + mismatch));
+        if (!mismatches.isEmpty()) {
+            throw new IllegalStateException(mismatches.size() + " card balances do not match the requests that were accepted");
+        }
+    }
+
+    private static String describe(long loaded, long available, long blocked, long captured) {
+        return String.format("loaded=%d available=%d blocked=%d captured=%d", loaded, available, blocked, captured);
+    }
+
+    private static double percentile(long[] sorted, double quantile) {
+        int index = (int) Math.ceil(quantile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1e6;
+    }
+
+    private String nextRequestId() {
+        return "loadtest-" + requests.incrementAndGet();
+    }
+
+    private Response get(String path) throws IOException {
+        return request("GET", path);
+    }
+
+    private Response post(String path) throws IOException {
+        return request("POST", path);
+    }
+
+    private Response request(String method, String path) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(5_000);
+        connection.setReadTimeout(30_000);
+        int status = connection.getResponseCode();
+        InputStream body = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        return new Response(status, read(body));
+    }
+
+    private static String read(InputStream in) throws IOException {
+        if (in == null) {
+            return "";
+        }
+
+        try (InputStream input = in) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            for (int read = input.read(buffer); read >= 0; read = input.read(buffer)) {
+                out.write(buffer, 0, read);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static final class Response {
+        private final int status;
+        private final String body;
+
+        private Response(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    private static final class ActionStats {
+        private final LongAdder accepted = new LongAdder();
+        private final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * What the card's balances should be, given the requests the API accepted.
+     */
+    private static final class CardModel {
+        private final String id;
+        private final AtomicLong available = new AtomicLong();
+        private final AtomicLong blocked = new AtomicLong();
+        private final AtomicLong captured = new AtomicLong();
+        private volatile boolean uncertain = false;
+
+        private CardModel(String id) {
+            this.id = id;
+        }
+
+        private void authorised(long amount) {
+            available.addAndGet(-amount);
+            blocked.addAndGet(amount);
+        }
+
+        private void captured(long amount) {
+            blocked.addAndGet(-amount);
+            captured.addAndGet(amount);
+        }
+
+        private void refunded(long amount) {
+            captured.addAndGet(-amount);
+            available.addAndGet(amount);
+        }
+
+        private void reversed(long amount) {
+            blocked.addAndGet(-amount);
+            available.addAndGet(amount);
+        }
+    }
+
+    /**
+     * Request latencies recorded by one thread, kept per action.
+     */
+    private static final class Latencies {
+        private final long[][] values = new long[Action.values().length][1024];
+        private final int[] counts = new int[Action.values().length];
+
+        private void add(Action action, long nanos) {
+            int i = action.ordinal();
+            if (counts[i] == values[i].length) {
+                values[i] = Arrays.copyOf(values[i], counts[i] * 2);
+            }
+            values[i][counts[i]++] = nanos;
+        }
+
+        private void addAll(Latencies other) {
+            for (Action action : Action.values()) {
+                for (int i = 0; i < other.counts[action.ordinal()]; i++) {
+                    add(action, other.values[action.ordinal()][i]);
+                }
+            }
+        }
+
+        private long[] sorted(Action action) {
+            long[] sorted = Arrays.copyOf(values[action.ordinal()], counts[action.ordinal()]);
+            Arrays.sort(sorted);
+            return sorted;
+        }
+    }
+
+}
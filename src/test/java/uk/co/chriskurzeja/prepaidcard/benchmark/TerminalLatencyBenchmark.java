@@ -0,0 +1,232 @@
+package uk.co.chriskurzeja.prepaidcard.benchmark;
+
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import uk.co.chriskurzeja.prepaidcard.PrepaidcardApplication;
+import uk.co.chriskurzeja.prepaidcard.terminal.TerminalClient;
+import uk.co.chriskurzeja.prepaidcard.terminal.TerminalServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static uk.co.chriskurzeja.prepaidcard.model.TransactionType.AUTHORISE_TRANSACTION;
+
+/**
+ * Compares the round trip of an authorisation over the merchant REST API with the same over the
+ * binary terminal protocol, with the same number of requests outstanding at once. HTTP needs a
+ * connection for each request in flight; the terminal protocol pipelines them all on one.
+ * <p>
+ * Run with {@code mvn -Pterminal-benchmark test-compile exec:java -Dterminalbench.requests=50000}.
+ * The application is started on free ports with the terminal listener enabled; arguments in
+ * {@code -Dexec.args} are passed to it.
+ */
+public class TerminalLatencyBenchmark {
+
+    private static final String MERCHANT = "terminalbench";
+
+    public static void main(String[] args) throws Exception {
+        String[] arguments = Arrays.copyOf(args, args.length + 3);
+        arguments[args.length] = "--server.port=0";
+        arguments[args.length + 1] = "--terminal.port=0";
+        arguments[args.length + 2] = "--logging.level.root=WARN";
+        try (ConfigurableApplicationContext context = new SpringApplicationBuilder(PrepaidcardApplication.class).run(arguments)) {
+            new TerminalLatencyBenchmark("http://localhost:" + context.getEnvironment().getProperty("local.server.port"),
+                    context.getBean(TerminalServer.class).getPort()).run();
+        }
+    }
+
+    private final String baseUrl;
+    private final int terminalPort;
+    private final int cardCount = Integer.getInteger("terminalbench.cards", 100);
+    private final int inFlight = Integer.getInteger("terminalbench.in-flight", 32);
+    private final int requests = Integer.getInteger("terminalbench.requests", 20_000);
+    private final int warmupRequests = Integer.getInteger("terminalbench.warmup-requests", 10_000);
+
+    private final AtomicLong requestIds = new AtomicLong();
+    private final List<UUID> cards = new ArrayList<>();
+
+    private TerminalLatencyBenchmark(String baseUrl, int terminalPort) {
+        this.baseUrl = baseUrl;
+        this.terminalPort = terminalPort;
+        System.setProperty("http.maxConnections", Integer.toString(inFlight));
+    }
+
+    private void run() throws Exception {
+        System.out.printf("%d authorisations over %d cards, %d in flight, after %d to warm up%n", requests, cardCount, inFlight, warmupRequests);
+        createCards();
+
+        http(warmupRequests);
+        Result http = http(requests);
+        terminal(warmupRequests);
+        Result terminal = terminal(requests);
+
+        System.out.println();
+        System.out.printf("%-10s %12s %10s %12s %10s %10s %10s %10s%n", "protocol", "connections", "rejected", "requests/s", "p50 ms", "p99 ms", "p99.9 ms", "max ms");
+        http.print("http");
+        terminal.print("terminal");
+    }
+
+    private void createCards() throws IOException {
+        for (int i = 0; i < cardCount; i++) {
+            String created = get("/api/card/create/terminalbench-" + System.nanoTime() + "-" + i);
+            UUID card = UUID.fromString(created);
+            get("/api/card/load/" + card + "/" + nextRequestId() + "/" + Long.MAX_VALUE / (2L * cardCount));
+            cards.add(card);
+        }
+    }
+
+    /**
+     * Each thread holds its own keep-alive connection and has one request outstanding at a time.
+     */
+    private Result http(int count) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(inFlight);
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger rejected = new AtomicInteger();
+        long[] latencies = new long[count];
+        long started = System.nanoTime();
+        List<Future<?>> workers = new ArrayList<>();
+        for (int t = 0; t < inFlight; t++) {
+            workers.add(executor.submit(() -> {
+                for (int i = next.getAndIncrement(); i < count; i = next.getAndIncrement()) {
+                    String path = "/api/merchant/" + MERCHANT + "/authorise/" + cards.get(i % cardCount) + "/" + nextRequestId() + "/1";
+                    long sent = System.nanoTime();
+                    if (post(path) != 200) {
+                        rejected.incrementAndGet();
+                    }
+                    latencies[i] = System.nanoTime() - sent;
+                }
+                return null;
+            }));
+        }
+        for (Future<?> worker : workers) {
+            worker.get();
+        }
+        long elapsed = System.nanoTime() - started;
+        executor.shutdown();
+        return new Result(inFlight, rejected.get(), latencies, elapsed);
+    }
+
+    /**
+     * One connection, written to by this thread and read by another, with up to the same number
+     * of requests outstanding as there are HTTP connections.
+     */
+    private Result terminal(int count) throws Exception {
+        long[] sentAt = new long[count];
+        long[] latencies = new long[count];
+        Semaphore window = new Semaphore(inFlight);
+        AtomicInteger rejected = new AtomicInteger();
+        try (TerminalClient client = new TerminalClient("localhost", terminalPort)) {
+            ExecutorService reader = Executors.newSingleThreadExecutor();
+            Future<?> responses = reader.submit(() -> {
+                for (int i = 0; i < count; i++) {
+                    TerminalClient.Response response = client.receive();
+                    int id = response.getCorrelationId();
+                    latencies[id] = System.nanoTime() - sentAt[id];
+                    if (!response.isAccepted()) {
+                        rejected.incrementAndGet();
+                    }
+                    window.release();
+                }
+                return null;
+            });
+
+            long started = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                if (!window.tryAcquire()) {
+                    client.flush();
+                    window.acquire();
+                }
+                sentAt[i] = System.nanoTime();
+                client.send(AUTHORISE_TRANSACTION, i, cards.get(i % cardCount), MERCHANT, nextRequestId(), 1L);
+            }
+            client.flush();
+            responses.get();
+            long elapsed = System.nanoTime() - started;
+            reader.shutdown();
+            return new Result(1, rejected.get(), latencies, elapsed);
+        }
+    }
+
+    private String nextRequestId() {
+        return "terminalbench-" + requestIds.incrementAndGet();
+    }
+
+    private String get(String path) throws IOException {
+        HttpURLConnection connection = open("GET", path);
+        if (connection.getResponseCode() != 200) {
+            throw new IllegalStateException("GET " + path + " failed: " + read(connection.getErrorStream()));
+        }
+        return read(connection.getInputStream());
+    }
+
+    private int post(String path) throws IOException {
+        HttpURLConnection connection = open("POST", path);
+        int status = connection.getResponseCode();
+        read(status < 400 ? connection.getInputStream() : connection.getErrorStream());
+        return status;
+    }
+
+    private HttpURLConnection open(String method, String path) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(5_000);
+        connection.setReadTimeout(30_000);
+        return connection;
+    }
+
+    private static String read(InputStream in) throws IOException {
+        if (in == null) {
+            return "";
+        }
+
+        try (InputStream input = in) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            for (int read = input.read(buffer); read >= 0; read = input.read(buffer)) {
+                out.write(buffer, 0, read);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static final class Result {
+        private final int connections;
+        private final int rejected;
+        private final long[] latencies;
+        private final long elapsedNanos;
+
+        private Result(int connections, int rejected, long[] latencies, long elapsedNanos) {
+            this.connections = connections;
+            this.rejected = rejected;
+            this.latencies = latencies;
+            this.elapsedNanos = elapsedNanos;
+            Arrays.sort(latencies);
+        }
+
+        private void print(String protocol) {
+            System.out.printf("%-10s %12d %10d %12.1f %10.2f %10.2f %10.2f %10.2f%n", protocol, connections, rejected,
+                    latencies.length / (elapsedNanos / 1e9), percentile(0.5), percentile(0.99), percentile(0.999),
+                    latencies[latencies.length - 1] / 1e6);
+        }
+
+        private double percentile(double quantile) {
+            int index = (int) Math.ceil(quantile * latencies.length) - 1;
+            return latencies[Math.max(0, Math.min(latencies.length - 1, index))] / 1e6;
+        }
+    }
+
+}
@@ -0,0 +1,154 @@
+package uk.co.chriskurzeja.prepaidcard.benchmark;
+
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.support.TransactionTemplate;
+import uk.co.chriskurzeja.prepaidcard.PrepaidcardApplication;
+import uk.co.chriskurzeja.prepaidcard.data.jpa.repository.TransactionRepository;
+import uk.co.chriskurzeja.prepaidcard.model.Transaction;
+import uk.co.chriskurzeja.prepaidcard.model.TransactionKey;
+import uk.co.chriskurzeja.prepaidcard.model.TransactionType;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Measures insert and lookup cost against the transaction table as it grows by powers of ten,
+ * using the schema Hibernate generates from the entity mappings on a file-backed H2 database.
+ * <p>
+ * Run with {@code mvn -Pschema-benchmark test-compile exec:java -Dbenchmark.rows=100000000}.
+ * The table is bulk-filled with plain JDBC between measurements; the insert figure is the cost of
+ * saving rows through {@link TransactionRepository}, and the lookups are the two queries the
+ * ledger runs on its hot path.
+ */
+public class TransactionSchemaBenchmark {
+
+    private static final int CARDS = 100_000;
+    private static final int FILL_BATCH = 10_000;
+    private static final int INSERTS = 1_000;
+    private static final int KEY_LOOKUPS = 10_000;
+    private static final int HISTORY_LOOKUPS = 200;
+
+    private static final String CARD_1 = "00000000000000000000000000000001";
+
+    private static final String FILL_SQL = "insert into transaction " +
+            "(id, card_id, request_id, merchant, amount_in_pence, transaction_type, sequence_number, expires_at) " +
+            "values (next value for transaction_id_seq, ?, ?, 'benchmark', 100, 'AUTHORISE_TRANSACTION', 0, 0)";
+
+    public static void main(String[] args) {
+        long maxRows = Long.getLong("benchmark.rows", 1_000_000L);
+        String database = System.getProperty("benchmark.database", "./target/schema-benchmark/transactions");
+
+        try (ConfigurableApplicationContext context = new SpringApplicationBuilder(PrepaidcardApplication.class)
+                .properties(
+                        "server.port=0",
+                        "spring.datasource.url=jdbc:h2:file:" + database + ";DB_CLOSE_ON_EXIT=FALSE",
+                        "spring.jpa.hibernate.ddl-auto=create",
+                        "logging.level.root=WARN")
+                .run(args)) {
+            new TransactionSchemaBenchmark(context).run(maxRows);
+        }
+    }
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final TransactionRepository transactionRepository;
+    private long rows;
+
+    private TransactionSchemaBenchmark(ConfigurableApplicationContext context) {
+        this.jdbcTemplate = context.getBean(JdbcTemplate.class);
+        this.transactionTemplate = context.getBean(TransactionTemplate.class);
+        this.transactionRepository = context.getBean(TransactionRepository.class);
+        this.rows = transactionRepository.count();
+    }
+
+    private void run(long maxRows) {
+        System.out.printf("%12s %18s %18s %22s%n", "rows", "insert us/row", "key lookup us/op", "card history us/op");
+        for (long target = 1_000; target <= maxRows; target *= 10) {
+            fillTo(target);
+            jdbcTemplate.execute("analyze");
+            System.out.printf("%12d %18.2f %18.2f %22.2f%n", rows, measureInserts(), measureKeyLookups(), measureHistoryLookups());
+        }
+
+        System.out.println();
+        System.out.println("Indexes:");
+        jdbcTemplate.queryForList("select index_name || ' (' || column_name || ')' from information_schema.indexes " +
+                "where table_name = 'TRANSACTION' order by index_name, ordinal_position", String.class).forEach(System.out::println);
+        System.out.println("Plan for key lookup:");
+        jdbcTemplate.queryForList("explain select * from transaction where card_id = X'" + CARD_1 + "' and request_id = 'request-1' " +
+                "and transaction_type = 'AUTHORISE_TRANSACTION'", String.class).forEach(System.out::println);
+        System.out.println("Plan for card history:");
+        jdbcTemplate.queryForList("explain select * from transaction where card_id = X'" + CARD_1 + "' order by id", String.class)
+                .forEach(System.out::println);
+    }
+
+    private void fillTo(long target) {
+        while (rows < target) {
+            int batch = (int) Math.min(FILL_BATCH, target - rows);
+            List<Object[]> arguments = new ArrayList<>(batch);
+            for (int i = 0; i < batch; i++) {
+                long row = rows + i;
+                arguments.add(new Object[]{cardIdBytes(row), requestId(row)});
+            }
+            jdbcTemplate.batchUpdate(FILL_SQL, arguments);
+            rows += batch;
+        }
+    }
+
+    private double measureInserts() {
+        List<Transaction> transactions = new ArrayList<>(INSERTS);
+        for (int i = 0; i < INSERTS; i++) {
+            long row = rows + i;
+            transactions.add(new Transaction(new TransactionKey(requestId(row), cardId(row)), "benchmark", 100L, TransactionType.AUTHORISE_TRANSACTION));
+        }
+
+        long started = System.nanoTime();
+        transactionTemplate.execute(status -> transactionRepository.saveAll(transactions));
+        rows += INSERTS;
+        return micros(System.nanoTime() - started, INSERTS);
+    }
+
+    private double measureKeyLookups() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long started = System.nanoTime();
+        for (int i = 0; i < KEY_LOOKUPS; i++) {
+            long row = random.nextLong(rows);
+            transactionRepository.findTransactionByTransactionKeyAndTransactionType(
+                    new TransactionKey(requestId(row), cardId(row)), TransactionType.AUTHORISE_TRANSACTION);
+        }
+        return micros(System.nanoTime() - started, KEY_LOOKUPS);
+    }
+
+    private double measureHistoryLookups() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long started = System.nanoTime();
+        for (int i = 0; i < HISTORY_LOOKUPS; i++) {
+            transactionRepository.findByTransactionKeyCardId(cardId(random.nextLong(Math.min(rows, CARDS))));
+        }
+        return micros(System.nanoTime() - started, HISTORY_LOOKUPS);
+    }
+
+    private static UUID cardId(long row) {
+        return new UUID(0L, row % CARDS);
+    }
+
+    /**
+     * The card id as Hibernate stores it, for the rows written with plain JDBC.
+     */
+    private static byte[] cardIdBytes(long row) {
+        return ByteBuffer.allocate(16).putLong(0L).putLong(row % CARDS).array();
+    }
+
+    private static String requestId(long row) {
+        return "request-" + row;
+    }
+
+    private static double micros(long nanos, int operations) {
+        return nanos / 1_000.0 / operations;
+    }
+
+}
@@ -0,0 +1,81 @@
+package uk.co.chriskurzeja.prepaidcard.card;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+import uk.co.chriskurzeja.prepaidcard.PrepaidcardApplication;
+import uk.co.chriskurzeja.prepaidcard.ledger.AuthorisationEvictor;
+import uk.co.chriskurzeja.prepaidcard.model.BalanceSummary;
+import uk.co.chriskurzeja.prepaidcard.model.MerchantTransactionResult;
+import uk.co.chriskurzeja.prepaidcard.model.Transaction;
+import uk.co.chriskurzeja.prepaidcard.model.TransactionKey;
+import uk.co.chriskurzeja.prepaidcard.model.TransactionType;
+
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static uk.co.chriskurzeja.prepaidcard.model.TransactionType.AUTHORISE_TRANSACTION;
+import static uk.co.chriskurzeja.prepaidcard.model.TransactionType.CAPTURE_TRANSACTION_FUNDS;
+import static uk.co.chriskurzeja.prepaidcard.model.TransactionType.LOAD_FUNDS;
+import static uk.co.chriskurzeja.prepaidcard.model.TransactionType.REFUND_CAPTURED_FUNDS;
+import static uk.co.chriskurzeja.prepaidcard.model.TransactionType.REVERSE_TRANSACTION;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(classes = PrepaidcardApplication.class,
+        properties = {"ledger.eviction.interval-seconds=3600", "ledger.eviction.refund-window-seconds=0"})
+public class AuthorisationEvictionTest {
+
+    @Autowired
+    private TransactionService transactionService;
+    @Autowired
+    private UserService userService;
+    @Autowired
+    private AuthorisationEvictor authorisationEvictor;
+
+    private UUID card;
+
+    @Before
+    public void setup() {
+        card = userService.createCardForUser("eviction-" + UUID.randomUUID()).right().get();
+        assertThat(transactionService.handleTransaction(transaction("load", LOAD_FUNDS, 1000L)).isRight()).isTrue();
+    }
+
+    @Test
+    public void a_late_refund_on_an_evicted_authorisation_is_accepted() {
+        transactionService.handleTransaction(transaction("purchase", AUTHORISE_TRANSACTION, 400L));
+        transactionService.handleTransaction(transaction("purchase", CAPTURE_TRANSACTION_FUNDS, 300L));
+        transactionService.handleTransaction(transaction("purchase", REVERSE_TRANSACTION, 100L));
+
+        assertThat(authorisationEvictor.evictSettled(System.currentTimeMillis() + 1000L)).isGreaterThanOrEqualTo(1);
+
+        MerchantTransactionResult refunded = (MerchantTransactionResult) transactionService
+                .handleTransaction(transaction("purchase", REFUND_CAPTURED_FUNDS, 50L)).right().get();
+        assertThat(refunded.getCaptured()).isEqualTo(250L);
+        assertThat(transactionService.handleTransaction(transaction("purchase", REFUND_CAPTURED_FUNDS, 251L)).left().get())
+                .isEqualTo("Insufficient amount available to refund");
+
+        BalanceSummary balance = transactionService.getBalance(card).right().get();
+        assertThat(balance.getCaptured()).isEqualTo(250L);
+        assertThat(balance.getAvailable()).isEqualTo(750L);
+    }
+
+    @Test
+    public void an_evicted_authorisation_cannot_be_authorised_again() {
+        transactionService.handleTransaction(transaction("purchase", AUTHORISE_TRANSACTION, 400L));
+        transactionService.handleTransaction(transaction("purchase", REVERSE_TRANSACTION, 400L));
+
+        assertThat(authorisationEvictor.evictSettled(System.currentTimeMillis() + 1000L)).isGreaterThanOrEqualTo(1);
+
+        assertThat(transactionService.handleTransaction(transaction("purchase", AUTHORISE_TRANSACTION, 400L)).left().get())
+                .isEqualTo("Transaction has already been handled");
+        assertThat(transactionService.getBalance(card).right().get().getBlocked()).isZero();
+    }
+
+    private Transaction transaction(String requestId, TransactionType type, long amount) {
+        return new Transaction(new TransactionKey(requestId, card), "merchant", amount, type);
+    }
+
+}
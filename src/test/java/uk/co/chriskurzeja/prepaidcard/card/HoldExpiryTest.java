@@ -0,0 +1,105 @@
+package uk.co.chriskurzeja.prepaidcard.card;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+import uk.co.chriskurzeja.prepaidcard.PrepaidcardApplication;
+import uk.co.chriskurzeja.prepaidcard.data.jpa.repository.TransactionRepository;
+import uk.co.chriskurzeja.prepaidcard.model.BalanceSummary;
+import uk.co.chriskurzeja.prepaidcard.model.Transaction;
+import uk.co.chriskurzeja.prepaidcard.model.TransactionKey;
+import uk.co.chriskurzeja.prepaidcard.model.TransactionType;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+import static uk.co.chriskurzeja.prepaidcard.model.TransactionType.AUTHORISE_TRANSACTION;
+import static uk.co.chriskurzeja.prepaidcard.model.TransactionType.CAPTURE_TRANSACTION_FUNDS;
+import static uk.co.chriskurzeja.prepaidcard.model.TransactionType.LOAD_FUNDS;
+import static uk.co.chriskurzeja.prepaidcard.model.TransactionType.REVERSE_TRANSACTION;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(classes = PrepaidcardApplication.class,
+        properties = {"ledger.holds.merchant-ttl-seconds=hotel=60", "ledger.holds.check-interval-ms=3600000"})
+public class HoldExpiryTest {
+
+    @Autowired
+    private TransactionService transactionService;
+    @Autowired
+    private UserService userService;
+    @Autowired
+    private TransactionRepository transactionRepository;
+
+    private static long clock = 0L;
+    private UUID card;
+
+    @Before
+    public void setup() {
+        card = userService.createCardForUser("holds-" + UUID.randomUUID()).right().get();
+        assertThat(transactionService.handleTransaction(transaction("load", LOAD_FUNDS, "user", 1000L)).isRight()).isTrue();
+    }
+
+    @Test
+    public void an_expired_hold_is_reversed_and_its_funds_released() {
+        transactionService.handleTransaction(transaction("stay", AUTHORISE_TRANSACTION, "hotel", 400L));
+        transactionService.handleTransaction(transaction("stay", CAPTURE_TRANSACTION_FUNDS, "hotel", 100L));
+
+        assertThat(transactionService.expireHolds(pastHotelExpiry())).isGreaterThanOrEqualTo(1);
+
+        BalanceSummary balance = transactionService.getBalance(card).right().get();
+        assertThat(balance.getBlocked()).isZero();
+        assertThat(balance.getAvailable()).isEqualTo(900L);
+        assertThat(transactionRepository.findByTransactionKeyCardId(card))
+                .filteredOn(transaction -> transaction.getTransactionType() == REVERSE_TRANSACTION)
+                .extracting(Transaction::getMerchant, Transaction::getAmount)
+                .containsExactly(tuple("hotel", 300L));
+        assertThat(transactionService.handleTransaction(transaction("stay", CAPTURE_TRANSACTION_FUNDS, "hotel", 100L)).left().get())
+                .isEqualTo("Insufficient amount available to capture");
+    }
+
+    @Test
+    public void holds_are_kept_for_as_long_as_their_merchant_allows() {
+        transactionService.handleTransaction(transaction("stay", AUTHORISE_TRANSACTION, "hotel", 400L));
+        transactionService.handleTransaction(transaction("coffee", AUTHORISE_TRANSACTION, "cafe", 200L));
+
+        transactionService.expireHolds(pastHotelExpiry());
+
+        assertThat(transactionService.getBalance(card).right().get().getBlocked()).isEqualTo(200L);
+        Transaction authorisation = transactionRepository.findByTransactionKeyCardId(card).stream()
+                .filter(transaction -> transaction.getTransactionKey().getRequestId().equals("coffee"))
+                .findFirst().get();
+        assertThat(authorisation.getExpiresAt()).isGreaterThan(System.currentTimeMillis() + TimeUnit.DAYS.toMillis(6));
+    }
+
+    @Test
+    public void a_settled_hold_is_not_reversed_when_it_would_have_expired() {
+        transactionService.handleTransaction(transaction("stay", AUTHORISE_TRANSACTION, "hotel", 400L));
+        transactionService.handleTransaction(transaction("stay", CAPTURE_TRANSACTION_FUNDS, "hotel", 400L));
+
+        transactionService.expireHolds(pastHotelExpiry());
+
+        assertThat(transactionRepository.findByTransactionKeyCardId(card))
+                .extracting(Transaction::getTransactionType)
+                .doesNotContain(REVERSE_TRANSACTION);
+        assertThat(transactionService.getBalance(card).right().get().getCaptured()).isEqualTo(400L);
+    }
+
+    private Transaction transaction(String requestId, TransactionType type, String merchant, long amount) {
+        return new Transaction(new TransactionKey(requestId, card), merchant, amount, type);
+    }
+
+    /**
+     * A time past the expiry of any hotel hold taken so far. It never goes backwards, as the hold
+     * timers have already been moved on to every time handed out before.
+     */
+    private static long pastHotelExpiry() {
+        clock = Math.max(clock, System.currentTimeMillis()) + TimeUnit.MINUTES.toMillis(2);
+        return clock;
+    }
+
+}
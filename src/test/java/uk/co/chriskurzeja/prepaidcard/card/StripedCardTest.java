@@ -0,0 +1,121 @@
+package uk.co.chriskurzeja.prepaidcard.card;
+
+import io.atlassian.fugue.Either;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+import uk.co.chriskurzeja.prepaidcard.PrepaidcardApplication;
+import uk.co.chriskurzeja.prepaidcard.data.jpa.repository.CardRepository;
+import uk.co.chriskurzeja.prepaidcard.ledger.LedgerEngine;
+import uk.co.chriskurzeja.prepaidcard.ledger.StripeRebalancer;
+import uk.co.chriskurzeja.prepaidcard.model.BalanceSummary;
+import uk.co.chriskurzeja.prepaidcard.model.Card;
+import uk.co.chriskurzeja.prepaidcard.model.Transaction;
+import uk.co.chriskurzeja.prepaidcard.model.TransactionKey;
+import uk.co.chriskurzeja.prepaidcard.model.TransactionType;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static uk.co.chriskurzeja.prepaidcard.model.TransactionType.AUTHORISE_TRANSACTION;
+import static uk.co.chriskurzeja.prepaidcard.model.TransactionType.CAPTURE_TRANSACTION_FUNDS;
+import static uk.co.chriskurzeja.prepaidcard.model.TransactionType.LOAD_FUNDS;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(classes = PrepaidcardApplication.class, properties = {
+        "ledger.partitions=4",
+        "ledger.striping.cards=6f0c3a52-95a4-4d1e-9a47-0e2f1b3c9d01,6f0c3a52-95a4-4d1e-9a47-0e2f1b3c9d02",
+        "ledger.striping.slices=4",
+        "ledger.striping.rebalance-interval-ms=3600000"})
+public class StripedCardTest {
+
+    private static final UUID CARD = UUID.fromString("6f0c3a52-95a4-4d1e-9a47-0e2f1b3c9d01");
+    private static final UUID CONTENDED_CARD = UUID.fromString("6f0c3a52-95a4-4d1e-9a47-0e2f1b3c9d02");
+
+    @Autowired
+    private TransactionService service;
+    @Autowired
+    private CardRepository cardRepository;
+    @Autowired
+    private LedgerEngine ledgerEngine;
+    @Autowired
+    private StripeRebalancer rebalancer;
+
+    @Before
+    public void setup() {
+        for (UUID cardId : new UUID[]{CARD, CONTENDED_CARD}) {
+            if (!cardRepository.existsById(cardId)) {
+                cardRepository.save(new Card(cardId, "striped-" + cardId));
+            }
+        }
+    }
+
+    @Test
+    public void an_authorisation_its_slice_cannot_cover_is_decided_against_the_whole_card() {
+        assertThat(service.handleTransaction(transaction(CARD, "load", LOAD_FUNDS, 1000L)).isRight()).isTrue();
+        String purchase = requestOnAnotherSlice("load");
+
+        assertThat(service.handleTransaction(transaction(CARD, purchase, AUTHORISE_TRANSACTION, 1000L)).isRight()).isTrue();
+        assertThat(service.handleTransaction(transaction(CARD, "one-too-many", AUTHORISE_TRANSACTION, 1L)).left().get())
+                .isEqualTo("Insufficient funds on the card");
+        assertThat(service.handleTransaction(transaction(CARD, purchase, CAPTURE_TRANSACTION_FUNDS, 600L)).isRight()).isTrue();
+
+        BalanceSummary balance = service.getBalance(CARD).right().get();
+        assertThat(balance.getLoaded()).isEqualTo(1000L);
+        assertThat(balance.getAvailable()).isZero();
+        assertThat(balance.getBlocked()).isEqualTo(400L);
+        assertThat(balance.getCaptured()).isEqualTo(600L);
+        assertThat(rebalancer.rebalanceUnbalanced()).isZero();
+    }
+
+    @Test
+    public void concurrent_authorisations_spend_exactly_the_cards_funds_and_never_more() throws Exception {
+        assertThat(service.handleTransaction(transaction(CONTENDED_CARD, "load", LOAD_FUNDS, 500L)).isRight()).isTrue();
+        assertThat(rebalancer.rebalanceUnbalanced()).isEqualTo(1);
+
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        List<Callable<Either<String, Object>>> authorisations = new ArrayList<>();
+        for (int i = 0; i < 800; i++) {
+            String requestId = "purchase-" + i;
+            authorisations.add(() -> service.handleTransaction(transaction(CONTENDED_CARD, requestId, AUTHORISE_TRANSACTION, 1L)));
+        }
+        long accepted = 0;
+        for (Future<Either<String, Object>> result : executor.invokeAll(authorisations)) {
+            if (result.get().isRight()) {
+                accepted++;
+            } else {
+                assertThat(result.get().left().get()).isEqualTo("Insufficient funds on the card");
+            }
+        }
+        executor.shutdown();
+
+        assertThat(accepted).isEqualTo(500L);
+        BalanceSummary balance = service.getBalance(CONTENDED_CARD).right().get();
+        assertThat(balance.getAvailable()).isZero();
+        assertThat(balance.getBlocked()).isEqualTo(500L);
+    }
+
+    private String requestOnAnotherSlice(String requestId) {
+        int slice = ledgerEngine.partitionFor(new TransactionKey(requestId, CARD));
+        for (int i = 0; ; i++) {
+            String other = "purchase-" + i;
+            if (ledgerEngine.partitionFor(new TransactionKey(other, CARD)) != slice) {
+                return other;
+            }
+        }
+    }
+
+    private static Transaction transaction(UUID cardId, String requestId, TransactionType type, long amount) {
+        return new Transaction(new TransactionKey(requestId, cardId), "merchant", amount, type);
+    }
+
+}
@@ -0,0 +1,113 @@
+package uk.co.chriskurzeja.prepaidcard.card;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+import uk.co.chriskurzeja.prepaidcard.PrepaidcardApplication;
+import uk.co.chriskurzeja.prepaidcard.data.jpa.repository.CardRepository;
+import uk.co.chriskurzeja.prepaidcard.data.jpa.repository.TransactionRepository;
+import uk.co.chriskurzeja.prepaidcard.model.Transaction;
+import uk.co.chriskurzeja.prepaidcard.model.TransactionKey;
+import uk.co.chriskurzeja.prepaidcard.model.TransactionPage;
+import uk.co.chriskurzeja.prepaidcard.projection.LedgerProjector;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static uk.co.chriskurzeja.prepaidcard.model.TransactionType.LOAD_FUNDS;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(classes = PrepaidcardApplication.class)
+public class TransactionHistoryServiceTest {
+
+    @Autowired
+    private TransactionHistoryService historyService;
+    @Autowired
+    private TransactionService transactionService;
+    @Autowired
+    private UserService userService;
+    @Autowired
+    private TransactionRepository transactionRepository;
+    @Autowired
+    private CardRepository cardRepository;
+    @Autowired
+    private LedgerProjector ledgerProjector;
+
+    private final int loads = 25;
+    private UUID card;
+
+    @Before
+    public void setup() throws InterruptedException {
+        transactionRepository.deleteAll();
+        cardRepository.deleteAll();
+
+        card = userService.createCardForUser("user").right().get();
+        UUID otherCard = userService.createCardForUser("otherUser").right().get();
+        for (int i = 0; i < loads; i++) {
+            assertThat(transactionService.handleTransaction(load(card, "request" + i)).isRight()).isTrue();
+            assertThat(transactionService.handleTransaction(load(otherCard, "request" + i)).isRight()).isTrue();
+        }
+        assertThat(ledgerProjector.awaitProjected(10, TimeUnit.SECONDS)).isTrue();
+    }
+
+    @Test
+    public void following_the_cursor_reads_every_transaction_once_in_order() {
+        List<Transaction> read = new ArrayList<>();
+        long cursor = 0;
+        int pages = 0;
+        while (true) {
+            TransactionPage page = historyService.getPage(card, cursor, 10).right().get();
+            read.addAll(page.getTransactions());
+            pages++;
+            if (page.getNextCursor() == null) {
+                break;
+            }
+            cursor = page.getNextCursor();
+        }
+
+        assertThat(pages).isEqualTo(3);
+        assertThat(read).extracting(transaction -> transaction.getTransactionKey().getRequestId())
+                .containsExactlyElementsOf(requestIds());
+    }
+
+    @Test
+    public void a_page_that_ends_the_history_has_no_cursor() {
+        TransactionPage page = historyService.getPage(card, 0, loads).right().get();
+
+        assertThat(page.getTransactions()).hasSize(loads);
+        assertThat(page.getNextCursor()).isNull();
+    }
+
+    @Test
+    public void pages_for_an_unknown_card_or_of_an_invalid_size_are_rejected() {
+        assertThat(historyService.getPage(UUID.randomUUID(), 0, 10).isLeft()).isTrue();
+        assertThat(historyService.getPage(card, 0, 0).isLeft()).isTrue();
+        assertThat(historyService.getPage(card, 0, 1_000_000).isLeft()).isTrue();
+    }
+
+    @Test
+    public void streaming_visits_every_transaction_in_order() {
+        List<String> streamed = new ArrayList<>();
+        long read = historyService.forEachTransaction(card, transaction -> streamed.add(transaction.getTransactionKey().getRequestId()));
+
+        assertThat(read).isEqualTo(loads);
+        assertThat(streamed).containsExactlyElementsOf(requestIds());
+    }
+
+    private List<String> requestIds() {
+        return IntStream.range(0, loads).mapToObj(i -> "request" + i).collect(Collectors.toList());
+    }
+
+    private Transaction load(UUID cardId, String requestId) {
+        return new Transaction(new TransactionKey(requestId, cardId), "user", 100L, LOAD_FUNDS);
+    }
+
+}
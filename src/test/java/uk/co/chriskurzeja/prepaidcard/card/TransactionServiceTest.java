@@ -10,13 +10,26 @@ import org.springframework.test.context.junit4.SpringRunner;
 import uk.co.chriskurzeja.prepaidcard.PrepaidcardApplication;
 import uk.co.chriskurzeja.prepaidcard.data.jpa.repository.CardRepository;
 import uk.co.chriskurzeja.prepaidcard.data.jpa.repository.TransactionRepository;
+import uk.co.chriskurzeja.prepaidcard.metrics.TransactionMetrics;
+import uk.co.chriskurzeja.prepaidcard.model.BalanceSummary;
 import uk.co.chriskurzeja.prepaidcard.model.MerchantTransactionResult;
 import uk.co.chriskurzeja.prepaidcard.model.Transaction;
 import uk.co.chriskurzeja.prepaidcard.model.TransactionKey;
 import uk.co.chriskurzeja.prepaidcard.model.TransactionType;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static uk.co.chriskurzeja.prepaidcard.model.TransactionType.LOAD_FUNDS;
@@ -37,10 +50,12 @@ public class TransactionServiceTest {
     private TransactionRepository transactionRepository;
     @Autowired
     private CardRepository cardRepository;
+    @Autowired
+    private TransactionMetrics metrics;
 
-    private final String unknownCard = "unknownCard";
-    private String cardWithoutMoney;
-    private String cardWithPreloadedMoney;
+    private final UUID unknownCard = UUID.randomUUID();
+    private UUID cardWithoutMoney;
+    private UUID cardWithPreloadedMoney;
     private final long loadedAmount = 1000L;
     private final long lessThanLoaded = 900L;
     private final long moreThanLoaded = 1200L;
@@ -349,6 +364,163 @@ public class TransactionServiceTest {
         assertThat(secondRefund.isLeft()).isTrue();
     }
 
+    @Test
+    public void the_balance_of_a_loaded_card_shows_the_loaded_amount_as_available() {
+        BalanceSummary balance = service.getBalance(cardWithPreloadedMoney).right().get();
+
+        assertThat(balance.getLoaded()).isEqualTo(loadedAmount);
+        assertThat(balance.getAvailable()).isEqualTo(loadedAmount);
+        assertThat(balance.getBlocked()).isZero();
+        assertThat(balance.getCaptured()).isZero();
+    }
+
+    @Test
+    public void the_balance_of_a_card_is_updated_by_each_accepted_transaction() {
+        authoriseTransaction();
+        captureAmount(lessThanLoaded);
+
+        BalanceSummary balance = service.getBalance(cardWithPreloadedMoney).right().get();
+        assertThat(balance.getLoaded()).isEqualTo(loadedAmount);
+        assertThat(balance.getAvailable()).isZero();
+        assertThat(balance.getBlocked()).isEqualTo(loadedAmount - lessThanLoaded);
+        assertThat(balance.getCaptured()).isEqualTo(lessThanLoaded);
+    }
+
+    @Test
+    public void the_balance_of_a_card_without_transactions_is_empty() {
+        BalanceSummary balance = service.getBalance(cardWithoutMoney).right().get();
+        assertThat(balance.getLoaded()).isZero();
+        assertThat(balance.getAvailable()).isZero();
+    }
+
+    @Test
+    public void the_balance_of_an_unknown_card_cannot_be_retrieved() {
+        assertThat(service.getBalance(unknownCard).isLeft()).isTrue();
+    }
+
+    @Test
+    public void concurrent_authorisations_on_the_same_card_never_block_more_than_the_loaded_balance() throws Exception {
+        long toAuthorise = loadedAmount / 10;
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Callable<Either<String, Object>>> authorisations = IntStream.range(0, 50)
+                    .mapToObj(i -> (Callable<Either<String, Object>>) () ->
+                            service.handleTransaction(transaction(cardWithPreloadedMoney, "request" + i, AUTHORISE_TRANSACTION, toAuthorise)))
+                    .collect(Collectors.toList());
+
+            long succeeded = 0;
+            for (Future<Either<String, Object>> result : executor.invokeAll(authorisations)) {
+                if (result.get().isRight()) {
+                    succeeded++;
+                }
+            }
+
+            assertThat(succeeded).isEqualTo(10);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void an_authorisation_that_could_not_be_saved_cannot_be_captured() {
+        String tooLongToSave = String.join("", Collections.nCopies(300, "m"));
+        Transaction authorisation = new Transaction(new TransactionKey("request", cardWithPreloadedMoney), tooLongToSave, lessThanLoaded, AUTHORISE_TRANSACTION);
+
+        assertThat(service.handleTransaction(authorisation).left().get()).isEqualTo("Could not save transaction");
+        assertTransactionFailed(service.handleTransaction(transaction(cardWithPreloadedMoney, CAPTURE_TRANSACTION_FUNDS, lessThanLoaded)));
+
+        BalanceSummary balance = service.getBalance(cardWithPreloadedMoney).right().get();
+        assertThat(balance.getAvailable()).isEqualTo(loadedAmount);
+        assertThat(balance.getBlocked()).isZero();
+        assertThat(balance.getCaptured()).isZero();
+    }
+
+    @Test
+    public void a_batch_applies_the_transactions_for_a_card_in_order() {
+        List<Either<String, Object>> results = service.handleBatch(Arrays.asList(
+                transaction(cardWithPreloadedMoney, AUTHORISE_TRANSACTION, loadedAmount),
+                transaction(cardWithPreloadedMoney, CAPTURE_TRANSACTION_FUNDS, lessThanLoaded),
+                transaction(cardWithPreloadedMoney, REFUND_CAPTURED_FUNDS, lessThanLoaded)
+        ));
+
+        assertThat(results).extracting(Either::isRight).containsExactly(true, true, true);
+        assertThat(getTransactions(cardWithPreloadedMoney)).hasSize(4);
+
+        BalanceSummary balance = service.getBalance(cardWithPreloadedMoney).right().get();
+        assertThat(balance.getAvailable()).isEqualTo(lessThanLoaded);
+        assertThat(balance.getBlocked()).isEqualTo(loadedAmount - lessThanLoaded);
+        assertThat(balance.getCaptured()).isZero();
+    }
+
+    @Test
+    public void a_failed_item_does_not_fail_the_rest_of_the_batch() {
+        List<Either<String, Object>> results = service.handleBatch(Arrays.asList(
+                transaction(unknownCard, LOAD_FUNDS, loadedAmount),
+                transaction(cardWithoutMoney, "request", AUTHORISE_TRANSACTION, lessThanLoaded),
+                transaction(cardWithoutMoney, "load", LOAD_FUNDS, loadedAmount),
+                transaction(cardWithPreloadedMoney, CAPTURE_TRANSACTION_FUNDS, lessThanLoaded),
+                transaction(cardWithPreloadedMoney, AUTHORISE_TRANSACTION, moreThanLoaded),
+                transaction(cardWithPreloadedMoney, AUTHORISE_TRANSACTION, lessThanLoaded)
+        ));
+
+        assertThat(results).extracting(Either::isRight).containsExactly(false, false, true, false, false, true);
+        assertThat(service.getBalance(cardWithoutMoney).right().get().getAvailable()).isEqualTo(loadedAmount);
+        assertThat(service.getBalance(cardWithPreloadedMoney).right().get().getBlocked()).isEqualTo(lessThanLoaded);
+    }
+
+    @Test
+    public void a_transaction_repeated_within_a_batch_is_only_handled_once() {
+        List<Either<String, Object>> results = service.handleBatch(Arrays.asList(
+                transaction(cardWithPreloadedMoney, AUTHORISE_TRANSACTION, lessThanLoaded / 2),
+                transaction(cardWithPreloadedMoney, AUTHORISE_TRANSACTION, lessThanLoaded / 2)
+        ));
+
+        assertThat(results).extracting(Either::isRight).containsExactly(true, false);
+        assertThat(getTransactions(cardWithPreloadedMoney)).hasSize(2);
+    }
+
+    @Test
+    public void an_asynchronous_transaction_completes_with_the_same_result_as_a_synchronous_one() throws Exception {
+        Either<String, Object> authorised = service.handleTransactionAsync(transaction(cardWithPreloadedMoney, AUTHORISE_TRANSACTION, lessThanLoaded)).get();
+        Either<String, Object> duplicate = service.handleTransactionAsync(transaction(cardWithPreloadedMoney, AUTHORISE_TRANSACTION, lessThanLoaded)).get();
+        Either<String, Object> unknown = service.handleTransactionAsync(transaction(unknownCard, LOAD_FUNDS, loadedAmount)).get();
+
+        assertTransactionSucceeded(authorised, MerchantTransactionResult::getBlocked, lessThanLoaded);
+        assertTransactionFailed(duplicate);
+        assertTransactionFailed(unknown);
+    }
+
+    @Test
+    public void many_asynchronous_transactions_can_be_in_flight_at_once() {
+        List<CompletableFuture<Either<String, Object>>> loads = IntStream.range(0, 500)
+                .mapToObj(i -> service.handleTransactionAsync(transaction(cardWithoutMoney, "load" + i, LOAD_FUNDS, 1L)))
+                .collect(Collectors.toList());
+
+        assertThat(loads.stream().map(CompletableFuture::join)).allMatch(Either::isRight);
+        assertThat(service.getBalance(cardWithoutMoney).right().get().getLoaded()).isEqualTo(500L);
+    }
+
+    @Test
+    public void handled_transactions_are_timed_and_rejections_counted_by_reason() {
+        long authorisations = count(metrics.getTransactions(AUTHORISE_TRANSACTION).getCounts());
+        long declines = rejections(AUTHORISE_TRANSACTION, "Insufficient funds on the card");
+
+        service.handleTransaction(transaction(cardWithPreloadedMoney, "declined", AUTHORISE_TRANSACTION, moreThanLoaded));
+        service.handleTransaction(transaction(cardWithPreloadedMoney, "accepted", AUTHORISE_TRANSACTION, lessThanLoaded));
+
+        assertThat(count(metrics.getTransactions(AUTHORISE_TRANSACTION).getCounts())).isEqualTo(authorisations + 2);
+        assertThat(rejections(AUTHORISE_TRANSACTION, "Insufficient funds on the card")).isEqualTo(declines + 1);
+    }
+
+    private long rejections(TransactionType type, String reason) {
+        LongAdder rejected = metrics.getRejections(type).get(reason);
+        return rejected == null ? 0L : rejected.sum();
+    }
+
+    private static long count(long[] buckets) {
+        return Arrays.stream(buckets).sum();
+    }
+
     private void assertTransactionFailed(Either<String, Object> result) {
         assertThat(result.isLeft()).isTrue();
     }
@@ -361,19 +533,16 @@ public class TransactionServiceTest {
                 .containsOnly(expectedValue);
     }
 
-    private Transaction transaction(String card, TransactionType type, long amount) {
+    private Transaction transaction(UUID card, TransactionType type, long amount) {
         return transaction(card, "request", type, amount);
     }
 
-    private Transaction transaction(String cardId, String requestId, TransactionType type, long amount) {
+    private Transaction transaction(UUID cardId, String requestId, TransactionType type, long amount) {
         return new Transaction(new TransactionKey(requestId, cardId), "user", amount, type);
     }
 
-    private List<Transaction> getTransactions(String cardId) {
-        Either<String,List<Transaction>> wrappedTransactions = service.getTransactions(cardId);
-
-        assertThat(wrappedTransactions.isRight()).isTrue();
-        return wrappedTransactions.right().get();
+    private List<Transaction> getTransactions(UUID cardId) {
+        return transactionRepository.findByTransactionKeyCardId(cardId);
     }
 
     private void authoriseTransaction() {
@@ -9,7 +9,13 @@ import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.test.context.junit4.SpringRunner;
 import uk.co.chriskurzeja.prepaidcard.PrepaidcardApplication;
 import uk.co.chriskurzeja.prepaidcard.data.jpa.repository.CardRepository;
+import uk.co.chriskurzeja.prepaidcard.model.CacheStatistics;
 import uk.co.chriskurzeja.prepaidcard.model.Card;
+import uk.co.chriskurzeja.prepaidcard.model.UserPage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
@@ -19,7 +25,7 @@ public class UserServiceTest {
 
     private final String userWithCard = "user";
     private final String userWithoutCard = "userWithoutCard";
-    private String cardIdForUserWithCard;
+    private UUID cardIdForUserWithCard;
 
     @Autowired
     private UserService userService;
@@ -30,46 +36,74 @@ public class UserServiceTest {
     @Before
     public void setup() {
         cardRepository.deleteAll();
-        Either<String,String> result = userService.createCardForUser(userWithCard);
+        Either<String,UUID> result = userService.createCardForUser(userWithCard);
         assertThat(result.isRight()).isTrue();
         cardIdForUserWithCard = result.right().get();
     }
 
     @Test
     public void creating_a_card_for_a_user_will_return_the_cards_id() {
-        Either<String,String> card = userService.createCardForUser(userWithoutCard);
+        Either<String,UUID> card = userService.createCardForUser(userWithoutCard);
         assertThat(card.isRight()).isTrue();
     }
 
     @Test
     public void creating_a_card_for_an_existing_user_will_fail() {
-        Either<String,String> card = userService.createCardForUser(userWithCard);
+        Either<String,UUID> card = userService.createCardForUser(userWithCard);
         assertThat(card.isLeft()).isTrue();
     }
 
     @Test
-    public void get_user_ids_returns_the_ids_of_all_users_with_a_card() {
+    public void user_pages_list_every_user_with_a_card_once_in_order() {
+        userService.createCardForUser(userWithoutCard);
+        userService.createCardForUser("another");
+
+        UserPage first = userService.getUserPage("", "", 2).right().get();
+        assertThat(first.getUserIds()).containsExactly("another", userWithCard);
+        UserPage second = userService.getUserPage("", first.getNextCursor(), 2).right().get();
+        assertThat(second.getUserIds()).containsExactly(userWithoutCard);
+        assertThat(second.getNextCursor()).isNull();
+        assertThat(userService.getUserPage("", "", 0).isLeft()).isTrue();
+    }
+
+    @Test
+    public void user_listings_can_be_filtered_by_prefix() {
+        userService.createCardForUser(userWithoutCard);
+        userService.createCardForUser("user_1");
+        userService.createCardForUser("userX1");
+
+        assertThat(userService.getUserPage("userW", "", 10).right().get().getUserIds()).containsExactly(userWithoutCard);
+        assertThat(userService.getUserPage("user_", "", 10).right().get().getUserIds()).containsExactly("user_1");
+
+        List<String> exported = new ArrayList<>();
+        assertThat(userService.forEachUserId("user", exported::add)).isEqualTo(4L);
+        assertThat(exported).containsExactly(userWithCard, "userWithoutCard", "userX1", "user_1");
+    }
+
+    @Test
+    public void the_user_count_follows_card_creation() {
+        long before = userService.getUserCount();
         userService.createCardForUser(userWithoutCard);
+        userService.createCardForUser(userWithCard);
 
-        assertThat(userService.getUserIds())
-                .containsOnly(userWithCard, userWithoutCard);
+        assertThat(userService.getUserCount()).isEqualTo(before + 1);
     }
 
     @Test
     public void get_card_id_for_user_for_an_unknown_user_will_fail() {
-        Either<String,String> result = userService.getCardIdForUser(userWithoutCard);
+        Either<String,UUID> result = userService.getCardIdForUser(userWithoutCard);
         assertThat(result.isLeft()).isTrue();
     }
 
     @Test
     public void get_card_id_for_known_user_will_return_card_id() {
-        Either<String,String> result = userService.getCardIdForUser(userWithCard);
+        Either<String,UUID> result = userService.getCardIdForUser(userWithCard);
         assertThat(result.right().get()).isEqualTo(cardIdForUserWithCard);
     }
 
     @Test
     public void get_card_by_id_that_doesnt_exist_will_fail() {
-        Either<String,Card> result  = userService.getCard("unknown");
+        Either<String,Card> result  = userService.getCard(UUID.randomUUID());
         assertThat(result.isLeft()).isTrue();
     }
 
@@ -85,4 +119,29 @@ public class UserServiceTest {
                 .containsOnly(userWithCard);
     }
 
+    @Test
+    public void a_card_that_has_been_looked_up_is_served_from_the_cache() {
+        userService.getCard(cardIdForUserWithCard);
+        CacheStatistics before = userService.getCardCacheStatistics();
+
+        cardRepository.deleteById(cardIdForUserWithCard);
+        Either<String,Card> result = userService.getCard(cardIdForUserWithCard);
+
+        assertThat(result.isRight()).isTrue();
+        assertThat(userService.getCardCacheStatistics().getHits()).isEqualTo(before.getHits() + 1);
+        assertThat(userService.getCardCacheStatistics().getMisses()).isEqualTo(before.getMisses());
+    }
+
+    @Test
+    public void a_card_that_does_not_exist_is_remembered_as_missing() {
+        CacheStatistics before = userService.getCardCacheStatistics();
+        UUID missing = UUID.randomUUID();
+
+        assertThat(userService.getCard(missing).isLeft()).isTrue();
+        assertThat(userService.getCard(missing).isLeft()).isTrue();
+
+        assertThat(userService.getCardCacheStatistics().getMisses()).isEqualTo(before.getMisses() + 1);
+        assertThat(userService.getCardCacheStatistics().getHits()).isEqualTo(before.getHits() + 1);
+    }
+
 }
@@ -0,0 +1,162 @@
+package uk.co.chriskurzeja.prepaidcard.card;
+
+import io.atlassian.fugue.Either;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+import uk.co.chriskurzeja.prepaidcard.PrepaidcardApplication;
+import uk.co.chriskurzeja.prepaidcard.data.jpa.repository.TransactionRepository;
+import uk.co.chriskurzeja.prepaidcard.model.BalanceSummary;
+import uk.co.chriskurzeja.prepaidcard.model.MerchantTransactionResult;
+import uk.co.chriskurzeja.prepaidcard.model.Transaction;
+import uk.co.chriskurzeja.prepaidcard.model.TransactionKey;
+import uk.co.chriskurzeja.prepaidcard.model.TransactionType;
+import uk.co.chriskurzeja.prepaidcard.projection.LedgerProjector;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static uk.co.chriskurzeja.prepaidcard.model.TransactionType.AUTHORISE_TRANSACTION;
+import static uk.co.chriskurzeja.prepaidcard.model.TransactionType.CAPTURE_TRANSACTION_FUNDS;
+import static uk.co.chriskurzeja.prepaidcard.model.TransactionType.LOAD_FUNDS;
+import static uk.co.chriskurzeja.prepaidcard.model.TransactionType.REFUND_CAPTURED_FUNDS;
+import static uk.co.chriskurzeja.prepaidcard.model.TransactionType.REVERSE_TRANSACTION;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(classes = PrepaidcardApplication.class,
+        properties = {"ledger.balances=database", "ledger.balances.max-attempts=100", "projection.url="})
+public class VersionedBalanceStoreTest {
+
+    @Autowired
+    private TransactionService service;
+    @Autowired
+    private UserService userService;
+    @Autowired
+    private TransactionRepository transactionRepository;
+    @Autowired
+    private TransactionHistoryService historyService;
+    @Autowired
+    private LedgerProjector projector;
+
+    private UUID card;
+
+    @Before
+    public void setup() {
+        card = userService.createCardForUser("versioned-" + UUID.randomUUID()).right().get();
+        assertThat(service.handleTransaction(transaction("load", LOAD_FUNDS, 1000L)).isRight()).isTrue();
+    }
+
+    @Test
+    public void operations_are_decided_against_the_balances_in_the_database() {
+        assertThat(service.handleTransaction(transaction("too-much", AUTHORISE_TRANSACTION, 1001L)).left().get())
+                .isEqualTo("Insufficient funds on the card");
+        assertThat(service.handleTransaction(transaction("purchase", CAPTURE_TRANSACTION_FUNDS, 10L)).left().get())
+                .isEqualTo("Funds were not authorised for transaction");
+
+        service.handleTransaction(transaction("purchase", AUTHORISE_TRANSACTION, 400L));
+        MerchantTransactionResult captured = merchantResult(service.handleTransaction(transaction("purchase", CAPTURE_TRANSACTION_FUNDS, 300L)));
+        assertThat(captured.getBlocked()).isEqualTo(100L);
+        assertThat(captured.getCaptured()).isEqualTo(300L);
+        service.handleTransaction(transaction("purchase", REFUND_CAPTURED_FUNDS, 50L));
+        service.handleTransaction(transaction("purchase", REVERSE_TRANSACTION, 100L));
+
+        assertThat(service.handleTransaction(transaction("purchase", AUTHORISE_TRANSACTION, 10L)).left().get())
+                .isEqualTo("Transaction has already been handled");
+        assertThat(service.handleTransaction(transaction("purchase", REFUND_CAPTURED_FUNDS, 251L)).left().get())
+                .isEqualTo("Insufficient amount available to refund");
+        assertThat(service.handleTransaction(transaction("load", LOAD_FUNDS, 1000L)).left().get())
+                .isEqualTo("Transaction has already been handled");
+
+        BalanceSummary balance = service.getBalance(card).right().get();
+        assertThat(balance.getLoaded()).isEqualTo(1000L);
+        assertThat(balance.getAvailable()).isEqualTo(750L);
+        assertThat(balance.getBlocked()).isZero();
+        assertThat(balance.getCaptured()).isEqualTo(250L);
+        assertThat(transactionRepository.findByTransactionKey(new TransactionKey("purchase", card)))
+                .extracting(Transaction::getSequenceNumber)
+                .containsExactlyInAnyOrder(0, 1, 2, 3);
+    }
+
+    @Test
+    public void concurrent_authorisations_on_one_card_never_block_more_than_was_loaded() throws Exception {
+        List<Either<String, Object>> results = concurrently(IntStream.range(0, 200)
+                .mapToObj(i -> transaction("request-" + i, AUTHORISE_TRANSACTION, 10L)));
+
+        long accepted = results.stream().filter(Either::isRight).count();
+        assertThat(accepted).isEqualTo(100);
+        assertThat(results).filteredOn(Either::isLeft).extracting(result -> result.left().get())
+                .containsOnly("Insufficient funds on the card");
+        BalanceSummary balance = service.getBalance(card).right().get();
+        assertThat(balance.getBlocked()).isEqualTo(1000L);
+        assertThat(balance.getAvailable()).isZero();
+    }
+
+    @Test
+    public void concurrent_captures_of_one_authorisation_are_each_applied_once() throws Exception {
+        service.handleTransaction(transaction("purchase", AUTHORISE_TRANSACTION, 1000L));
+
+        List<Either<String, Object>> results = concurrently(IntStream.range(0, 50)
+                .mapToObj(i -> transaction("purchase", CAPTURE_TRANSACTION_FUNDS, 10L)));
+
+        assertThat(results).allMatch(Either::isRight);
+        BalanceSummary balance = service.getBalance(card).right().get();
+        assertThat(balance.getBlocked()).isEqualTo(500L);
+        assertThat(balance.getCaptured()).isEqualTo(500L);
+        assertThat(transactionRepository.findByTransactionKey(new TransactionKey("purchase", card))).hasSize(51);
+    }
+
+    @Test
+    public void the_projections_include_what_other_instances_recorded() throws InterruptedException {
+        String merchant = "merchant-" + UUID.randomUUID();
+        service.handleTransaction(transaction("purchase", AUTHORISE_TRANSACTION, 400L));
+        // Recorded by another instance, straight into the shared table.
+        Transaction elsewhere = new Transaction(new TransactionKey("elsewhere", card), merchant, 100L, AUTHORISE_TRANSACTION);
+        elsewhere.setRecordedAt(System.currentTimeMillis());
+        transactionRepository.save(elsewhere);
+
+        assertThat(projector.awaitProjected(10, TimeUnit.SECONDS)).isTrue();
+
+        assertThat(historyService.getTransactions(card).right().get()).extracting(Transaction::getTransactionKey)
+                .extracting(TransactionKey::getRequestId)
+                .containsExactlyInAnyOrder("load", "purchase", "elsewhere");
+        assertThat(historyService.getMerchantSummary(merchant).right().get().getAuthorised()).isEqualTo(100L);
+    }
+
+    private List<Either<String, Object>> concurrently(Stream<Transaction> transactions) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Callable<Either<String, Object>>> tasks = transactions
+                    .map(transaction -> (Callable<Either<String, Object>>) () -> service.handleTransaction(transaction))
+                    .collect(Collectors.toList());
+            List<Either<String, Object>> results = new ArrayList<>();
+            for (Future<Either<String, Object>> result : executor.invokeAll(tasks)) {
+                results.add(result.get());
+            }
+            return results;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static MerchantTransactionResult merchantResult(Either<String, Object> result) {
+        return (MerchantTransactionResult) result.right().get();
+    }
+
+    private Transaction transaction(String requestId, TransactionType type, long amount) {
+        return new Transaction(new TransactionKey(requestId, card), "merchant", amount, type);
+    }
+
+}
@@ -0,0 +1,254 @@
+package uk.co.chriskurzeja.prepaidcard.cluster;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import uk.co.chriskurzeja.prepaidcard.PrepaidcardApplication;
+import uk.co.chriskurzeja.prepaidcard.projection.LedgerProjector;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Two nodes and a router in one JVM, each node with its own database and projections. Node a forwards requests for
+ * b's cards and node b redirects requests for a's.
+ */
+public class ClusterRoutingTest {
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private static ConfigurableApplicationContext nodeA;
+    private static ConfigurableApplicationContext nodeB;
+    private static ClusterRouter router;
+    private static ClusterTopology topology;
+    private static String urlA;
+    private static String urlB;
+    private static String routerUrl;
+
+    @BeforeClass
+    public static void startCluster() throws IOException {
+        int portA = freePort();
+        int portB = freePort();
+        urlA = "http://localhost:" + portA;
+        urlB = "http://localhost:" + portB;
+        String nodes = "a=" + urlA + ",b=" + urlB;
+        topology = new ClusterTopology("a", nodes, 128, "forward");
+
+        nodeA = start("a", portA, nodes, "forward");
+        nodeB = start("b", portB, nodes, "redirect");
+        router = new ClusterRouter(nodes, 128, 5_000);
+        router.start(0, 4);
+        routerUrl = "http://localhost:" + router.getPort();
+    }
+
+    @AfterClass
+    public static void stopCluster() {
+        if (router != null) {
+            router.stop();
+        }
+        if (nodeA != null) {
+            nodeA.close();
+        }
+        if (nodeB != null) {
+            nodeB.close();
+        }
+    }
+
+    @Test
+    public void a_card_is_created_by_and_owned_by_the_node_that_owns_its_user() throws IOException {
+        String user = userOwnedBy("b");
+        Response created = request("GET", urlA + "/api/card/create/" + user, null);
+
+        assertThat(created.status).isEqualTo(200);
+        assertThat(created.owner).isEqualTo("b");
+        assertThat(topology.ownerOf(UUID.fromString(created.body))).isEqualTo("b");
+        assertThat(nodeB.getBean(ClusterTopology.class).isLocal(UUID.fromString(created.body))).isTrue();
+    }
+
+    @Test
+    public void a_forwarding_node_relays_the_owners_response() throws IOException {
+        String card = createCard(urlB, userOwnedBy("b"));
+        load(urlB, card, 1000L);
+
+        Response authorised = request("POST", urlA + "/api/merchant/shop/authorise/" + card + "/purchase/400", null);
+        assertThat(authorised.status).isEqualTo(200);
+        assertThat(objectMapper.readTree(authorised.body).path("blocked").asLong()).isEqualTo(400L);
+
+        Response available = request("GET", urlA + "/api/card/balance/available/" + card, null);
+        assertThat(available.body).isEqualTo("600");
+    }
+
+    @Test
+    public void a_redirecting_node_points_at_the_owner() throws IOException {
+        String card = createCard(urlA, userOwnedBy("a"));
+
+        Response redirected = request("GET", urlB + "/api/card/balance/" + card, null);
+        assertThat(redirected.status).isEqualTo(307);
+        assertThat(redirected.location).isEqualTo(urlA + "/api/card/balance/" + card);
+    }
+
+    @Test
+    public void a_request_that_was_already_forwarded_is_not_forwarded_again() throws IOException {
+        String card = createCard(urlB, userOwnedBy("b"));
+
+        HttpURLConnection connection = open("GET", urlA + "/api/card/balance/" + card);
+        connection.setRequestProperty(ClusterForwarder.FORWARDED_BY, "b");
+        assertThat(connection.getResponseCode()).isEqualTo(421);
+    }
+
+    @Test
+    public void a_batch_is_split_between_the_nodes_that_own_its_cards() throws IOException {
+        String cardA = createCard(urlA, userOwnedBy("a"));
+        String cardB = createCard(urlB, userOwnedBy("b"));
+        load(urlA, cardA, 100L);
+        load(urlB, cardB, 100L);
+
+        String batch = "[" +
+                item(cardB, "first", 10L) + "," +
+                item(cardA, "second", 20L) + "," +
+                item(cardB, "third", 500L) + "]";
+        Response response = request("POST", urlA + "/api/merchant/shop/batch", batch);
+
+        JsonNode items = objectMapper.readTree(response.body);
+        assertThat(items).hasSize(3);
+        assertThat(items.get(0).path("accepted").asBoolean()).isTrue();
+        assertThat(items.get(0).path("result").path("card_id").asText()).isEqualTo(cardB);
+        assertThat(items.get(1).path("accepted").asBoolean()).isTrue();
+        assertThat(items.get(1).path("result").path("blocked").asLong()).isEqualTo(20L);
+        assertThat(items.get(2).path("error").asText()).isEqualTo("Insufficient funds on the card");
+    }
+
+    @Test
+    public void a_merchants_totals_are_added_up_across_the_nodes() throws IOException, InterruptedException {
+        String merchant = "shop-" + UUID.randomUUID();
+        String cardA = createCard(urlA, userOwnedBy("a"));
+        String cardB = createCard(urlB, userOwnedBy("b"));
+        load(urlA, cardA, 1000L);
+        load(urlB, cardB, 1000L);
+        assertThat(request("POST", urlA + "/api/merchant/" + merchant + "/authorise/" + cardA + "/purchase/100", null).status).isEqualTo(200);
+        assertThat(request("POST", urlB + "/api/merchant/" + merchant + "/authorise/" + cardB + "/purchase/250", null).status).isEqualTo(200);
+        assertThat(nodeA.getBean(LedgerProjector.class).awaitProjected(10, TimeUnit.SECONDS)).isTrue();
+        assertThat(nodeB.getBean(LedgerProjector.class).awaitProjected(10, TimeUnit.SECONDS)).isTrue();
+
+        for (String url : new String[]{urlA, urlB, routerUrl}) {
+            Response summary = request("GET", url + "/api/merchant/" + merchant + "/summary", null);
+            assertThat(summary.status).isEqualTo(200);
+            assertThat(objectMapper.readTree(summary.body).path("transactions").asLong()).isEqualTo(2L);
+            assertThat(objectMapper.readTree(summary.body).path("authorised").asLong()).isEqualTo(350L);
+
+            Response volume = request("GET", url + "/api/merchant/" + merchant + "/volume", null);
+            assertThat(volume.status).isEqualTo(200);
+            assertThat(objectMapper.readTree(volume.body)).hasSize(1);
+            assertThat(objectMapper.readTree(volume.body).get(0).path("authorised").asLong()).isEqualTo(350L);
+        }
+
+        HttpURLConnection forwarded = open("GET", urlA + "/api/merchant/" + merchant + "/summary");
+        forwarded.setRequestProperty(ClusterForwarder.FORWARDED_BY, "b");
+        assertThat(forwarded.getResponseCode()).isEqualTo(200);
+        assertThat(objectMapper.readTree(forwarded.getInputStream()).path("authorised").asLong()).isEqualTo(100L);
+
+        assertThat(request("GET", urlA + "/api/merchant/shop-" + UUID.randomUUID() + "/summary", null).status).isEqualTo(400);
+    }
+
+    @Test
+    public void the_router_sends_each_card_to_its_owner() throws IOException {
+        for (String node : new String[]{"a", "b"}) {
+            Response created = request("GET", routerUrl + "/api/card/create/" + userOwnedBy(node), null);
+            assertThat(created.owner).isEqualTo(node);
+
+            Response loaded = request("GET", routerUrl + "/api/card/load/" + created.body + "/load/250", null);
+            assertThat(loaded.status).isEqualTo(200);
+            assertThat(loaded.owner).isEqualTo(node);
+            assertThat(request("GET", routerUrl + "/api/card/balance/loaded/" + created.body, null).body).isEqualTo("250");
+        }
+    }
+
+    private static String item(String card, String transactionId, long amount) {
+        return "{\"action\":\"authorise\",\"card_id\":\"" + card + "\",\"transaction_id\":\"" + transactionId + "\",\"amount_in_pence\":" + amount + "}";
+    }
+
+    private static String userOwnedBy(String node) {
+        String user = "user-" + UUID.randomUUID();
+        while (!topology.ownerOfUser(user).equals(node)) {
+            user = "user-" + UUID.randomUUID();
+        }
+        return user;
+    }
+
+    private static String createCard(String url, String user) throws IOException {
+        Response created = request("GET", url + "/api/card/create/" + user, null);
+        assertThat(created.status).isEqualTo(200);
+        return created.body;
+    }
+
+    private static void load(String url, String card, long amount) throws IOException {
+        assertThat(request("GET", url + "/api/card/load/" + card + "/load-" + UUID.randomUUID() + "/" + amount, null).status).isEqualTo(200);
+    }
+
+    private static ConfigurableApplicationContext start(String node, int port, String nodes, String routing) {
+        return new SpringApplicationBuilder(PrepaidcardApplication.class).run(
+                "--server.port=" + port,
+                "--spring.jmx.enabled=false",
+                "--spring.datasource.url=jdbc:h2:mem:cluster-" + node + "-" + System.nanoTime(),
+                "--projection.url=jdbc:h2:mem:projection-" + node + "-" + System.nanoTime(),
+                "--cluster.node-id=" + node,
+                "--cluster.nodes=" + nodes,
+                "--cluster.routing=" + routing);
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static HttpURLConnection open(String method, String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod(method);
+        connection.setInstanceFollowRedirects(false);
+        return connection;
+    }
+
+    private static Response request(String method, String url, String json) throws IOException {
+        HttpURLConnection connection = open(method, url);
+        if (json != null) {
+            connection.setRequestProperty("Content-Type", "application/json");
+            connection.setDoOutput(true);
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(json.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        int status = connection.getResponseCode();
+        byte[] body = ClusterForwarder.readFully(status < 400 ? connection.getInputStream() : connection.getErrorStream());
+        return new Response(status, new String(body, StandardCharsets.UTF_8),
+                connection.getHeaderField(ClusterRoutingFilter.OWNER), connection.getHeaderField("Location"));
+    }
+
+    private static final class Response {
+        private final int status;
+        private final String body;
+        private final String owner;
+        private final String location;
+
+        private Response(int status, String body, String owner, String location) {
+            this.status = status;
+            this.body = body;
+            this.owner = owner;
+            this.location = location;
+        }
+    }
+
+}
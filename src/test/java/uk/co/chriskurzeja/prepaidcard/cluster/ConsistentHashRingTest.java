@@ -0,0 +1,60 @@
+package uk.co.chriskurzeja.prepaidcard.cluster;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ConsistentHashRingTest {
+
+    private static final int CARDS = 100_000;
+
+    private final ConsistentHashRing threeNodes = new ConsistentHashRing(Arrays.asList("a", "b", "c"), 128);
+    private final ConsistentHashRing fourNodes = new ConsistentHashRing(Arrays.asList("a", "b", "c", "d"), 128);
+
+    @Test
+    public void rings_built_from_the_same_nodes_agree_whatever_the_order() {
+        ConsistentHashRing reordered = new ConsistentHashRing(Arrays.asList("c", "a", "b"), 128);
+        Random random = new Random(1);
+        for (int i = 0; i < 1_000; i++) {
+            UUID card = new UUID(random.nextLong(), random.nextLong());
+            assertThat(reordered.nodeFor(card)).isEqualTo(threeNodes.nodeFor(card));
+        }
+        assertThat(reordered.nodeFor("alice")).isEqualTo(threeNodes.nodeFor("alice"));
+    }
+
+    @Test
+    public void cards_are_spread_evenly_across_the_nodes() {
+        Map<String, Integer> counts = new HashMap<>();
+        Random random = new Random(2);
+        for (int i = 0; i < CARDS; i++) {
+            counts.merge(threeNodes.nodeFor(new UUID(random.nextLong(), random.nextLong())), 1, Integer::sum);
+        }
+
+        assertThat(counts).containsOnlyKeys("a", "b", "c");
+        assertThat(counts.values()).allSatisfy(count -> assertThat(count).isBetween(CARDS / 3 * 8 / 10, CARDS / 3 * 12 / 10));
+    }
+
+    @Test
+    public void adding_a_node_only_moves_cards_to_it() {
+        int moved = 0;
+        Random random = new Random(3);
+        for (int i = 0; i < CARDS; i++) {
+            UUID card = new UUID(random.nextLong(), random.nextLong());
+            String before = threeNodes.nodeFor(card);
+            String after = fourNodes.nodeFor(card);
+            if (!before.equals(after)) {
+                assertThat(after).isEqualTo("d");
+                moved++;
+            }
+        }
+
+        assertThat(moved).isBetween(CARDS / 4 * 7 / 10, CARDS / 4 * 13 / 10);
+    }
+
+}
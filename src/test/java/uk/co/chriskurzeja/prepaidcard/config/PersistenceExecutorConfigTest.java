@@ -0,0 +1,52 @@
+package uk.co.chriskurzeja.prepaidcard.config;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class PersistenceExecutorConfigTest {
+
+    private final CountDownLatch release = new CountDownLatch(1);
+    private ExecutorService executor;
+
+    @After
+    public void shutdown() {
+        release.countDown();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void work_beyond_the_threads_and_queue_is_rejected() {
+        executor = new PersistenceExecutorConfig().persistenceExecutor(2, 2, false);
+        for (int i = 0; i < 4; i++) {
+            executor.execute(this::awaitRelease);
+        }
+
+        assertThatThrownBy(() -> executor.execute(this::awaitRelease)).isInstanceOf(RejectedExecutionException.class);
+    }
+
+    @Test
+    public void asking_for_virtual_threads_still_runs_work_where_they_are_unavailable() throws Exception {
+        executor = new PersistenceExecutorConfig().persistenceExecutor(2, 2, true);
+        CountDownLatch ran = new CountDownLatch(1);
+        executor.execute(ran::countDown);
+
+        assertThat(ran.await(5, TimeUnit.SECONDS)).isTrue();
+    }
+
+    private void awaitRelease() {
+        try {
+            release.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
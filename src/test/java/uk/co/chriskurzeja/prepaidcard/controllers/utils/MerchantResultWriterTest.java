@@ -0,0 +1,51 @@
+package uk.co.chriskurzeja.prepaidcard.controllers.utils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Test;
+import uk.co.chriskurzeja.prepaidcard.model.MerchantTransactionResult;
+import uk.co.chriskurzeja.prepaidcard.model.Transaction;
+import uk.co.chriskurzeja.prepaidcard.model.TransactionKey;
+import uk.co.chriskurzeja.prepaidcard.model.TransactionType;
+
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MerchantResultWriterTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final MerchantResultWriter writer = new MerchantResultWriter();
+
+    @Test
+    public void results_are_written_as_jackson_writes_them() throws Exception {
+        assertSameAsJackson(result("Tesco", "request-1", 2_500L, 0L, TransactionType.AUTHORISE_TRANSACTION));
+        assertSameAsJackson(result("Sainsbury's", "r", 0L, Long.MAX_VALUE, TransactionType.CAPTURE_TRANSACTION_FUNDS));
+        assertSameAsJackson(result(null, "request", -1L, Long.MIN_VALUE, TransactionType.REFUND_CAPTURED_FUNDS));
+    }
+
+    @Test
+    public void ids_are_escaped_and_encoded_as_jackson_does() throws Exception {
+        assertSameAsJackson(result("quote \" backslash \\ slash /", "tab\tnewline\ncontrol\u0001", 1L, 2L, TransactionType.REVERSE_TRANSACTION));
+        assertSameAsJackson(result("Café Zürich €", "emoji 💳", 1L, 2L, TransactionType.AUTHORISE_TRANSACTION));
+    }
+
+    @Test
+    public void the_buffer_grows_for_unusually_long_ids() throws Exception {
+        StringBuilder merchant = new StringBuilder();
+        for (int i = 0; i < 1_000; i++) {
+            merchant.append("\u0001é");
+        }
+        assertSameAsJackson(result(merchant.toString(), "request", 1L, 2L, TransactionType.AUTHORISE_TRANSACTION));
+        assertSameAsJackson(result("short", "request", 1L, 2L, TransactionType.AUTHORISE_TRANSACTION));
+    }
+
+    private void assertSameAsJackson(MerchantTransactionResult result) throws Exception {
+        assertThat(writer.write(result).toString()).isEqualTo(objectMapper.writeValueAsString(result));
+    }
+
+    private static MerchantTransactionResult result(String merchant, String requestId, long blocked, long captured, TransactionType type) {
+        Transaction transaction = new Transaction(new TransactionKey(requestId, UUID.randomUUID()), merchant, 1L, type);
+        return new MerchantTransactionResult(transaction, blocked, captured);
+    }
+
+}
@@ -0,0 +1,63 @@
+package uk.co.chriskurzeja.prepaidcard.data.jpa.repository;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.transaction.annotation.Transactional;
+import uk.co.chriskurzeja.prepaidcard.PrepaidcardApplication;
+import uk.co.chriskurzeja.prepaidcard.model.Transaction;
+import uk.co.chriskurzeja.prepaidcard.model.TransactionKey;
+import uk.co.chriskurzeja.prepaidcard.model.TransactionType;
+
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static uk.co.chriskurzeja.prepaidcard.model.TransactionType.AUTHORISE_TRANSACTION;
+import static uk.co.chriskurzeja.prepaidcard.model.TransactionType.CAPTURE_TRANSACTION_FUNDS;
+import static uk.co.chriskurzeja.prepaidcard.model.TransactionType.LOAD_FUNDS;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(classes = PrepaidcardApplication.class)
+@Transactional
+public class TransactionRepositoryTest {
+
+    @Autowired
+    private TransactionRepository transactionRepository;
+
+    private final TransactionKey key = new TransactionKey("request", UUID.randomUUID());
+
+    @Test(expected = DataIntegrityViolationException.class)
+    public void the_same_operation_cannot_be_recorded_twice() {
+        transactionRepository.saveAndFlush(transaction(LOAD_FUNDS, 0));
+        transactionRepository.saveAndFlush(transaction(LOAD_FUNDS, 0));
+    }
+
+    @Test
+    public void operations_with_different_sequence_numbers_can_be_recorded_for_the_same_authorisation() {
+        transactionRepository.saveAndFlush(transaction(AUTHORISE_TRANSACTION, 0));
+        transactionRepository.saveAndFlush(transaction(CAPTURE_TRANSACTION_FUNDS, 1));
+        transactionRepository.saveAndFlush(transaction(CAPTURE_TRANSACTION_FUNDS, 2));
+
+        assertThat(transactionRepository.findByTransactionKey(key))
+                .extracting(Transaction::getSequenceNumber)
+                .containsExactlyInAnyOrder(0, 1, 2);
+    }
+
+    @Test
+    public void ids_are_allocated_from_the_transaction_sequence() {
+        Transaction first = transactionRepository.saveAndFlush(transaction(AUTHORISE_TRANSACTION, 0));
+        Transaction second = transactionRepository.saveAndFlush(transaction(CAPTURE_TRANSACTION_FUNDS, 1));
+
+        assertThat(second.getId()).isGreaterThan(first.getId());
+    }
+
+    private Transaction transaction(TransactionType type, int sequenceNumber) {
+        Transaction transaction = new Transaction(key, "merchant", 100L, type);
+        transaction.setSequenceNumber(sequenceNumber);
+        return transaction;
+    }
+
+}
@@ -0,0 +1,65 @@
+package uk.co.chriskurzeja.prepaidcard.ledger;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CardBalanceTableTest {
+
+    private final CardBalanceTable table = new CardBalanceTable(4);
+
+    @Test
+    public void cards_keep_their_ordinal_as_the_table_grows() {
+        UUID[] cardIds = new UUID[10_000];
+        for (int i = 0; i < cardIds.length; i++) {
+            cardIds[i] = UUID.randomUUID();
+        }
+        int first = table.findOrAdd(cardIds[0]);
+        for (int i = 1; i < cardIds.length; i++) {
+            table.findOrAdd(cardIds[i]);
+        }
+
+        assertThat(table.size()).isEqualTo(10_000);
+        assertThat(table.find(cardIds[0])).isEqualTo(first);
+        for (UUID cardId : cardIds) {
+            assertThat(table.getCardId(table.find(cardId.getMostSignificantBits(), cardId.getLeastSignificantBits()))).isEqualTo(cardId);
+        }
+        assertThat(table.find(UUID.randomUUID())).isEqualTo(CardBalanceTable.ABSENT);
+    }
+
+    @Test
+    public void balances_move_between_available_blocked_and_captured() {
+        int card = table.findOrAdd(UUID.randomUUID());
+        table.load(card, 100L);
+        table.block(card, 60L);
+        table.capture(card, 20L);
+        table.reverse(card, 10L);
+        table.refund(card, 5L);
+
+        assertThat(table.get(card).summary().getLoaded()).isEqualTo(100L);
+        assertThat(table.getBalance(card)).isEqualTo(55L);
+        assertThat(table.getBlocked(card)).isEqualTo(30L);
+        assertThat(table.getCaptured(card)).isEqualTo(15L);
+        assertThat(table.canBlock(card, 55L)).isTrue();
+        assertThat(table.canBlock(card, 56L)).isFalse();
+        assertThat(table.canCapture(card, 31L)).isFalse();
+        assertThat(table.canRefund(card, 15L)).isTrue();
+    }
+
+    @Test
+    public void a_copy_is_unaffected_by_later_changes() {
+        int card = table.findOrAdd(UUID.randomUUID());
+        table.load(card, 100L);
+
+        CardBalanceTable copy = table.copy();
+        table.load(card, 50L);
+        UUID another = UUID.randomUUID();
+        table.findOrAdd(another);
+
+        assertThat(copy.getLoaded(card)).isEqualTo(100L);
+        assertThat(copy.find(another)).isEqualTo(CardBalanceTable.ABSENT);
+    }
+
+}
@@ -0,0 +1,57 @@
+package uk.co.chriskurzeja.prepaidcard.ledger;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class EvictedAuthorisationsTest {
+
+    private final EvictedAuthorisations evicted = new EvictedAuthorisations(4);
+
+    @Test
+    public void the_same_request_id_on_different_cards_is_a_different_authorisation() {
+        evicted.add(0, "request");
+
+        assertThat(evicted.contains(0, new String("request"))).isTrue();
+        assertThat(evicted.contains(1, "request")).isFalse();
+        assertThat(evicted.contains(0, "other")).isFalse();
+    }
+
+    @Test
+    public void adding_an_authorisation_twice_keeps_one_entry() {
+        evicted.add(0, "request");
+        evicted.add(0, EvictedAuthorisations.hash("request"));
+
+        assertThat(evicted.size()).isEqualTo(1);
+        assertThat(evicted.getCard(0)).isZero();
+        assertThat(evicted.getRequestHash(0)).isEqualTo(EvictedAuthorisations.hash("request"));
+    }
+
+    @Test
+    public void authorisations_are_still_found_after_others_are_removed() {
+        for (int i = 0; i < 20_000; i++) {
+            evicted.add(i % 7, "request-" + i);
+        }
+        for (int i = 0; i < 20_000; i += 2) {
+            evicted.remove(i % 7, "request-" + i);
+        }
+
+        assertThat(evicted.size()).isEqualTo(10_000);
+        for (int i = 0; i < 20_000; i++) {
+            assertThat(evicted.contains(i % 7, "request-" + i)).isEqualTo(i % 2 == 1);
+        }
+    }
+
+    @Test
+    public void a_copy_is_unaffected_by_later_changes() {
+        evicted.add(0, "request");
+        EvictedAuthorisations copy = evicted.copy();
+
+        evicted.remove(0, "request");
+        evicted.add(0, "other");
+
+        assertThat(copy.contains(0, "request")).isTrue();
+        assertThat(copy.contains(0, "other")).isFalse();
+    }
+
+}
@@ -0,0 +1,84 @@
+package uk.co.chriskurzeja.prepaidcard.ledger;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class HoldTimersTest {
+
+    private static final long TICK_MS = 1000L;
+    private static final long START = 1_600_000_000_000L;
+
+    private final HoldTimers timers = new HoldTimers(TICK_MS, START, 4);
+    private final List<String> fired = new ArrayList<>();
+
+    @Test
+    public void a_timer_fires_once_its_deadline_has_passed_and_not_before() {
+        timers.schedule(1, "hold", START + 2500L);
+
+        assertThat(advance(START + 2999L)).isZero();
+        assertThat(advance(START + 3000L)).isEqualTo(1);
+        assertThat(fired).containsExactly("hold");
+        assertThat(timers.size()).isZero();
+        assertThat(advance(START + 10_000L)).isZero();
+    }
+
+    @Test
+    public void a_cancelled_timer_never_fires() {
+        int cancelled = timers.schedule(1, "cancelled", START + 5000L);
+        timers.schedule(2, "kept", START + 5000L);
+
+        timers.cancel(cancelled);
+
+        assertThat(advance(START + 5000L)).isEqualTo(1);
+        assertThat(fired).containsExactly("kept");
+    }
+
+    @Test
+    public void a_deadline_already_passed_fires_on_the_next_tick() {
+        advance(START + 10_000L);
+        timers.schedule(1, "late", START);
+
+        assertThat(advance(START + 10_999L)).isZero();
+        assertThat(advance(START + 11_000L)).isEqualTo(1);
+    }
+
+    @Test
+    public void timers_in_the_upper_wheels_cascade_down_and_fire_on_their_own_tick() {
+        long[] offsets = {300L, 256L * 256L + 7L, TimeUnit.DAYS.toSeconds(7), 256L * 256L * 256L + 1L};
+        for (long offset : offsets) {
+            timers.schedule(0, "after-" + offset, START + offset * TICK_MS);
+        }
+
+        for (long offset : offsets) {
+            assertThat(advance(START + (offset - 1) * TICK_MS)).isZero();
+            assertThat(advance(START + offset * TICK_MS)).isEqualTo(1);
+            assertThat(fired).endsWith("after-" + offset);
+        }
+        assertThat(timers.size()).isZero();
+    }
+
+    @Test
+    public void freed_timers_are_reused_as_holds_come_and_go() {
+        for (int round = 0; round < 1000; round++) {
+            int timer = timers.schedule(round, "hold-" + round, START + 60_000L);
+            assertThat(timer).isBetween(0, 3);
+            timers.cancel(timer);
+        }
+        for (int i = 0; i < 10_000; i++) {
+            timers.schedule(i, "hold-" + i, START + (i % 600) * TICK_MS);
+        }
+
+        assertThat(advance(START + 600 * TICK_MS)).isEqualTo(10_000);
+        assertThat(timers.size()).isZero();
+    }
+
+    private int advance(long now) {
+        return timers.advance(now, (card, requestId) -> fired.add(requestId));
+    }
+
+}
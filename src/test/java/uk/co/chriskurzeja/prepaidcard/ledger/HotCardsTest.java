@@ -0,0 +1,57 @@
+package uk.co.chriskurzeja.prepaidcard.ledger;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class HotCardsTest {
+
+    private final HotCards hotCards = new HotCards(4);
+
+    private final UUID quiet = UUID.randomUUID();
+    private final UUID middling = UUID.randomUUID();
+    private final UUID busy = UUID.randomUUID();
+
+    @Test
+    public void cards_are_listed_busiest_first() {
+        record(quiet, 1);
+        record(busy, 3);
+        record(middling, 2);
+
+        assertThat(hotCards.top()).extracting(PartitionStatistics.CardActivity::getCardId)
+                .containsExactly(busy, middling, quiet);
+        assertThat(hotCards.top()).extracting(PartitionStatistics.CardActivity::getOperations)
+                .containsExactly(3L, 2L, 1L);
+    }
+
+    @Test
+    public void a_busy_card_keeps_its_slot_among_many_quiet_ones() {
+        for (int i = 0; i < 1_000; i++) {
+            hotCards.record(busy);
+            hotCards.record(UUID.randomUUID());
+        }
+
+        PartitionStatistics.CardActivity hottest = hotCards.top().get(0);
+        assertThat(hottest.getCardId()).isEqualTo(busy);
+        assertThat(hottest.getOperations()).isGreaterThanOrEqualTo(1_000L);
+        assertThat(hotCards.top()).hasSize(4);
+    }
+
+    @Test
+    public void card_ids_are_matched_by_value() {
+        hotCards.record(new UUID(busy.getMostSignificantBits(), busy.getLeastSignificantBits()));
+        hotCards.record(new UUID(busy.getMostSignificantBits(), busy.getLeastSignificantBits()));
+
+        assertThat(hotCards.top()).hasSize(1);
+        assertThat(hotCards.top().get(0).getOperations()).isEqualTo(2L);
+    }
+
+    private void record(UUID cardId, int times) {
+        for (int i = 0; i < times; i++) {
+            hotCards.record(cardId);
+        }
+    }
+
+}
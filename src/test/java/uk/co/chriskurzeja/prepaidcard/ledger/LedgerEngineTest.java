@@ -0,0 +1,173 @@
+package uk.co.chriskurzeja.prepaidcard.ledger;
+
+import org.junit.After;
+import org.junit.Test;
+import uk.co.chriskurzeja.prepaidcard.model.BalanceSummary;
+import uk.co.chriskurzeja.prepaidcard.model.TransactionKey;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LedgerEngineTest {
+
+    private final LedgerEngine engine = new LedgerEngine(4, 0L);
+    private final UUID card = UUID.randomUUID();
+    private final UUID stripedCard = UUID.randomUUID();
+    private final LedgerEngine stripedEngine = new LedgerEngine(4, 0L, stripedCard.toString(), 3);
+
+    @After
+    public void tearDown() throws InterruptedException {
+        engine.shutdown();
+        stripedEngine.shutdown();
+    }
+
+    @Test
+    public void a_card_is_always_assigned_to_the_same_partition() {
+        int partition = engine.partitionFor(card);
+        assertThat(engine.partitionFor(card)).isEqualTo(partition);
+        assertThat(engine.execute(card, LedgerPartition::getIndex)).isEqualTo(partition);
+    }
+
+    @Test
+    public void operations_for_a_card_see_the_balance_left_by_earlier_operations() {
+        engine.execute(card, p -> { load(p, card, 100L); return null; });
+        boolean canBlock = engine.execute(card, p -> canBlock(p, card, 100L));
+        assertThat(canBlock).isTrue();
+    }
+
+    @Test
+    public void operations_submitted_from_the_owning_worker_run_inline() {
+        boolean nested = engine.execute(card, p -> engine.execute(card, inner -> inner == p));
+        assertThat(nested).isTrue();
+    }
+
+    @Test
+    public void concurrent_operations_on_a_hot_card_are_not_lost() throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        for (int i = 0; i < 10_000; i++) {
+            executor.execute(() -> engine.execute(card, p -> { load(p, card, 1L); return null; }));
+        }
+        executor.shutdown();
+        executor.awaitTermination(30, TimeUnit.SECONDS);
+
+        boolean canBlockAll = engine.execute(card, p -> canBlock(p, card, 10_000L));
+        boolean canBlockMore = engine.execute(card, p -> canBlock(p, card, 10_001L));
+        assertThat(canBlockAll).isTrue();
+        assertThat(canBlockMore).isFalse();
+    }
+
+    @Test
+    public void exceptions_thrown_by_an_operation_are_rethrown_to_the_caller() {
+        List<Throwable> thrown = new ArrayList<>();
+        try {
+            engine.execute(card, p -> { throw new IllegalArgumentException("boom"); });
+        } catch (IllegalArgumentException e) {
+            thrown.add(e);
+        }
+        assertThat(thrown).extracting(Throwable::getMessage).containsOnly("boom");
+    }
+
+    @Test
+    public void a_striped_card_spreads_its_requests_over_the_partitions_following_its_own() {
+        int home = stripedEngine.partitionFor(stripedCard);
+        Set<Integer> partitions = new HashSet<>();
+        for (int i = 0; i < 100; i++) {
+            TransactionKey key = new TransactionKey("request-" + i, stripedCard);
+            assertThat(stripedEngine.partitionFor(key)).isEqualTo(stripedEngine.partitionFor(key));
+            partitions.add(stripedEngine.partitionFor(key));
+        }
+
+        assertThat(partitions).containsOnly(home, (home + 1) % 4, (home + 2) % 4);
+        assertThat(engine.partitionFor(new TransactionKey("request", card))).isEqualTo(engine.partitionFor(card));
+    }
+
+    @Test
+    public void a_striped_card_is_read_as_the_sum_of_its_slices() {
+        loadEverySlice(100L);
+
+        BalanceSummary balance = stripedEngine.getBalance(stripedCard).get();
+        assertThat(balance.getLoaded()).isEqualTo(300L);
+        assertThat(balance.getAvailable()).isEqualTo(300L);
+    }
+
+    @Test
+    public void gathering_moves_every_slices_available_funds_onto_the_requests_slice() {
+        loadEverySlice(100L);
+        TransactionKey key = new TransactionKey("request", stripedCard);
+
+        boolean canBlockAll = stripedEngine.gather(key, p -> canBlock(p, stripedCard, 300L));
+        boolean canBlockMore = stripedEngine.execute(key, p -> canBlock(p, stripedCard, 301L));
+
+        assertThat(canBlockAll).isTrue();
+        assertThat(canBlockMore).isFalse();
+        assertThat(stripedEngine.getBalance(stripedCard).get().getAvailable()).isEqualTo(300L);
+        assertThat(stripedEngine.isUnbalanced(stripedCard)).isTrue();
+    }
+
+    @Test
+    public void rebalancing_spreads_the_available_balance_evenly_over_the_slices() {
+        TransactionKey key = new TransactionKey("request", stripedCard);
+        stripedEngine.execute(key, p -> { load(p, stripedCard, 300L); p.publish(stripedCard); return null; });
+        assertThat(stripedEngine.isUnbalanced(stripedCard)).isTrue();
+
+        stripedEngine.rebalance(stripedCard);
+
+        assertThat(stripedEngine.isUnbalanced(stripedCard)).isFalse();
+        assertThat(stripedEngine.getBalance(stripedCard).get().getAvailable()).isEqualTo(300L);
+        boolean canBlockShare = stripedEngine.execute(key, p -> canBlock(p, stripedCard, 100L));
+        boolean canBlockMore = stripedEngine.execute(key, p -> canBlock(p, stripedCard, 101L));
+        assertThat(canBlockShare).isTrue();
+        assertThat(canBlockMore).isFalse();
+    }
+
+    @Test
+    public void gathering_nets_an_overdrawn_slice_against_the_others() {
+        loadEverySlice(100L);
+        TransactionKey overdrawn = keyOnSlice(0);
+        stripedEngine.execute(overdrawn, p -> { p.getCardBalances().block(p.getCardBalances().findOrAdd(stripedCard), 250L); return null; });
+
+        TransactionKey key = keyOnSlice(1);
+        boolean canBlockNet = stripedEngine.gather(key, p -> canBlock(p, stripedCard, 50L));
+        boolean canBlockMore = stripedEngine.gather(key, p -> canBlock(p, stripedCard, 51L));
+
+        assertThat(canBlockNet).isTrue();
+        assertThat(canBlockMore).isFalse();
+    }
+
+    private TransactionKey keyOnSlice(int slice) {
+        for (int i = 0; ; i++) {
+            TransactionKey key = new TransactionKey("request-" + i, stripedCard);
+            if (stripedEngine.getStripes().sliceFor(key) == slice) {
+                return key;
+            }
+        }
+    }
+
+    private void loadEverySlice(long amount) {
+        int home = stripedEngine.partitionFor(stripedCard);
+        stripedEngine.executeOnAll(p -> {
+            if (Math.floorMod(p.getIndex() - home, 4) < 3) {
+                load(p, stripedCard, amount);
+                p.publish(stripedCard);
+            }
+            return null;
+        });
+    }
+
+    private static void load(LedgerPartition partition, UUID cardId, long amount) {
+        partition.getCardBalances().load(partition.getCardBalances().findOrAdd(cardId), amount);
+    }
+
+    private static boolean canBlock(LedgerPartition partition, UUID cardId, long amount) {
+        return partition.getCardBalances().canBlock(partition.getCardBalances().findOrAdd(cardId), amount);
+    }
+
+}
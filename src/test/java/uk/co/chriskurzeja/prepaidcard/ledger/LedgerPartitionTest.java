@@ -0,0 +1,295 @@
+package uk.co.chriskurzeja.prepaidcard.ledger;
+
+import org.junit.Test;
+import uk.co.chriskurzeja.prepaidcard.controllers.utils.MerchantResultWriter;
+import uk.co.chriskurzeja.prepaidcard.model.Transaction;
+import uk.co.chriskurzeja.prepaidcard.model.TransactionKey;
+import uk.co.chriskurzeja.prepaidcard.model.TransactionType;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LedgerPartitionTest {
+
+    private final LedgerPartition partition = new LedgerPartition(0, new BalanceReadModel(CardStripes.NONE, 1));
+    private final UUID cardId = UUID.randomUUID();
+
+    @Test
+    public void an_authorisation_is_accepted_once_and_only_against_available_funds() {
+        load(100L);
+        TransactionKey key = new TransactionKey("request", cardId);
+
+        assertThat(partition.authorise(new TransactionKey("too-much", cardId), 101L).getRejection()).isEqualTo("Insufficient funds on the card");
+        OperationResult authorised = partition.authorise(key, 60L);
+        assertThat(authorised.isAccepted()).isTrue();
+        assertThat(authorised.getBlocked()).isEqualTo(60L);
+        assertThat(authorised.getSequenceNumber()).isEqualTo(0);
+        assertThat(partition.authorise(key, 10L).getRejection()).isEqualTo("Transaction has already been handled");
+    }
+
+    @Test
+    public void captures_are_numbered_and_limited_to_the_authorised_amount() {
+        load(100L);
+        TransactionKey key = new TransactionKey("request", cardId);
+
+        assertThat(partition.capture(key, 10L).getRejection()).isEqualTo("Funds were not authorised for transaction");
+        partition.authorise(key, 60L);
+        assertThat(partition.capture(key, 20L).getSequenceNumber()).isEqualTo(1);
+        OperationResult second = partition.capture(key, 30L);
+        assertThat(second.getSequenceNumber()).isEqualTo(2);
+        assertThat(second.getBlocked()).isEqualTo(10L);
+        assertThat(second.getCaptured()).isEqualTo(50L);
+        assertThat(partition.capture(key, 11L).getRejection()).isEqualTo("Insufficient amount available to capture");
+    }
+
+    @Test
+    public void an_expired_hold_is_reversed_for_whatever_is_still_blocked() {
+        load(100L);
+        long now = System.currentTimeMillis();
+        TransactionKey expiring = new TransactionKey("expiring", cardId);
+        TransactionKey settled = new TransactionKey("settled", cardId);
+        partition.authorise(expiring, 60L, "hotel", now + 60_000L);
+        partition.authorise(settled, 20L, "hotel", now + 60_000L);
+        partition.capture(expiring, 15L);
+        partition.capture(settled, 20L);
+
+        assertThat(partition.getPendingHolds()).isEqualTo(1);
+        assertThat(partition.expireHolds(now + 59_000L)).isEmpty();
+        List<Transaction> reversals = partition.expireHolds(now + 61_000L);
+
+        assertThat(reversals).hasSize(1);
+        Transaction reversal = reversals.get(0);
+        assertThat(reversal.getTransactionKey()).isEqualTo(expiring);
+        assertThat(reversal.getMerchant()).isEqualTo("hotel");
+        assertThat(reversal.getAmount()).isEqualTo(45L);
+        assertThat(reversal.getTransactionType()).isEqualTo(TransactionType.REVERSE_TRANSACTION);
+        assertThat(partition.getPendingHolds()).isZero();
+    }
+
+    @Test
+    public void a_hold_without_an_expiry_is_never_released() {
+        load(100L);
+        partition.authorise(new TransactionKey("request", cardId), 60L);
+
+        assertThat(partition.getPendingHolds()).isZero();
+        assertThat(partition.expireHolds(System.currentTimeMillis() + TimeUnit.DAYS.toMillis(365))).isEmpty();
+    }
+
+    @Test
+    public void a_replayed_authorisation_keeps_the_expiry_it_was_given() {
+        long now = System.currentTimeMillis();
+        replay(1L, "load", TransactionType.LOAD_FUNDS, 100L, 0L);
+        replay(2L, "expiring", TransactionType.AUTHORISE_TRANSACTION, 60L, now + 30_000L);
+        replay(3L, "captured", TransactionType.AUTHORISE_TRANSACTION, 40L, now + 30_000L);
+        replay(4L, "captured", TransactionType.CAPTURE_TRANSACTION_FUNDS, 40L, 0L);
+
+        assertThat(partition.getPendingHolds()).isEqualTo(1);
+        assertThat(partition.expireHolds(now + 31_000L)).extracting(Transaction::getAmount).containsExactly(60L);
+    }
+
+    @Test
+    public void rolling_back_a_capture_puts_the_hold_back_on_the_wheel() {
+        load(100L);
+        long now = System.currentTimeMillis();
+        TransactionKey key = new TransactionKey("request", cardId);
+        partition.authorise(key, 60L, "hotel", now + 30_000L);
+
+        Transaction capture = new Transaction(key, "hotel", 60L, TransactionType.CAPTURE_TRANSACTION_FUNDS);
+        LedgerPartition.Checkpoint checkpoint = partition.checkpoint(Collections.singletonList(capture));
+        partition.capture(key, 60L);
+        assertThat(partition.getPendingHolds()).isZero();
+        partition.rollback(checkpoint);
+
+        assertThat(partition.getPendingHolds()).isEqualTo(1);
+        assertThat(partition.expireHolds(now + 31_000L)).extracting(Transaction::getAmount).containsExactly(60L);
+    }
+
+    @Test
+    public void undoing_a_capture_puts_the_balances_and_the_hold_back() {
+        load(100L);
+        long now = System.currentTimeMillis();
+        TransactionKey key = new TransactionKey("request", cardId);
+        partition.authorise(key, 60L, "hotel", now + 30_000L);
+
+        partition.mark(key);
+        partition.capture(key, 60L);
+        partition.undo();
+
+        int card = partition.getCardBalances().find(cardId);
+        assertThat(partition.getCardBalances().getBlocked(card)).isEqualTo(60L);
+        assertThat(partition.getCardBalances().getCaptured(card)).isZero();
+        assertThat(partition.capture(key, 20L).getSequenceNumber()).isEqualTo(1);
+        assertThat(partition.getPendingHolds()).isEqualTo(1);
+    }
+
+    @Test
+    public void undoing_an_authorisation_removes_it_and_its_hold() {
+        load(100L);
+        TransactionKey key = new TransactionKey("request", cardId);
+
+        partition.mark(key);
+        partition.authorise(key, 60L, "hotel", System.currentTimeMillis() + 30_000L);
+        partition.undo();
+
+        assertThat(partition.getTransactionBalances().size()).isZero();
+        assertThat(partition.getPendingHolds()).isZero();
+        assertThat(partition.getCardBalances().getBalance(partition.getCardBalances().find(cardId))).isEqualTo(100L);
+        assertThat(partition.authorise(key, 100L).isAccepted()).isTrue();
+    }
+
+    @Test
+    public void undoing_an_operation_on_a_rehydrated_authorisation_evicts_it_again() {
+        load(100L);
+        TransactionKey key = new TransactionKey("request", cardId);
+        partition.authorise(key, 60L);
+        partition.capture(key, 60L);
+        partition.evictSettled(System.currentTimeMillis(), 0L, persisted -> true);
+
+        partition.mark(key);
+        partition.rehydrate(key, history(key, 60L));
+        partition.refund(key, 20L);
+        partition.undo();
+
+        assertThat(partition.getTransactionBalances().size()).isZero();
+        assertThat(partition.refund(key, 20L).isEvicted()).isTrue();
+        assertThat(partition.getCardBalances().getCaptured(partition.getCardBalances().find(cardId))).isEqualTo(60L);
+    }
+
+    @Test
+    public void only_settled_and_persisted_authorisations_are_evicted() {
+        load(100L);
+        long now = System.currentTimeMillis();
+        TransactionKey reversed = new TransactionKey("reversed", cardId);
+        TransactionKey captured = new TransactionKey("captured", cardId);
+        TransactionKey blocked = new TransactionKey("blocked", cardId);
+        TransactionKey unpersisted = new TransactionKey("unpersisted", cardId);
+        partition.authorise(reversed, 10L);
+        partition.reverse(reversed, 10L);
+        partition.authorise(captured, 10L);
+        partition.capture(captured, 10L);
+        partition.authorise(blocked, 10L);
+        partition.authorise(unpersisted, 10L);
+        partition.reverse(unpersisted, 10L);
+
+        assertThat(partition.evictSettled(now + 1000L, 60_000L, key -> !key.equals(unpersisted))).isEqualTo(1);
+        assertThat(partition.authorise(reversed, 10L).isEvicted()).isTrue();
+        assertThat(partition.evictSettled(now + 61_000L, 60_000L, key -> !key.equals(unpersisted))).isEqualTo(1);
+        assertThat(partition.refund(captured, 10L).isEvicted()).isTrue();
+
+        assertThat(partition.getTransactionBalances().size()).isEqualTo(2);
+        assertThat(partition.capture(blocked, 10L).isAccepted()).isTrue();
+        assertThat(partition.reverse(new TransactionKey("unknown", cardId), 10L).getRejection())
+                .isEqualTo("Funds were not authorised for transaction");
+    }
+
+    @Test
+    public void an_evicted_authorisation_is_rehydrated_for_a_late_refund() {
+        load(100L);
+        TransactionKey key = new TransactionKey("request", cardId);
+        partition.authorise(key, 60L);
+        partition.capture(key, 60L);
+        partition.evictSettled(System.currentTimeMillis(), 0L, persisted -> true);
+
+        partition.rehydrate(key, history(key, 60L));
+
+        OperationResult refunded = partition.refund(key, 20L);
+        assertThat(refunded.isAccepted()).isTrue();
+        assertThat(refunded.getCaptured()).isEqualTo(40L);
+        assertThat(refunded.getSequenceNumber()).isEqualTo(2);
+        assertThat(partition.authorise(key, 10L).getRejection()).isEqualTo("Transaction has already been handled");
+        assertThat(partition.getCardBalances().get(partition.getCardBalances().find(cardId)).getCaptured()).isEqualTo(40L);
+    }
+
+    @Test
+    public void rolling_back_an_operation_on_a_rehydrated_authorisation_evicts_it_again() {
+        load(100L);
+        TransactionKey key = new TransactionKey("request", cardId);
+        partition.authorise(key, 60L);
+        partition.capture(key, 60L);
+        partition.evictSettled(System.currentTimeMillis(), 0L, persisted -> true);
+
+        Transaction refund = new Transaction(key, "hotel", 20L, TransactionType.REFUND_CAPTURED_FUNDS);
+        LedgerPartition.Checkpoint checkpoint = partition.checkpoint(Collections.singletonList(refund));
+        partition.rehydrate(key, history(key, 60L));
+        partition.refund(key, 20L);
+        partition.rollback(checkpoint);
+
+        assertThat(partition.getTransactionBalances().size()).isZero();
+        assertThat(partition.refund(key, 20L).isEvicted()).isTrue();
+        assertThat(partition.getCardBalances().get(partition.getCardBalances().find(cardId)).getCaptured()).isEqualTo(60L);
+    }
+
+    @Test
+    public void authorising_capturing_and_writing_the_result_allocates_nothing_once_warm() {
+        TransactionKey[] keys = new TransactionKey[64];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = new TransactionKey("request-" + i, cardId);
+        }
+        MerchantResultWriter writer = new MerchantResultWriter();
+
+        int operations = 10_000;
+        cycle(keys, writer, operations);
+        long overhead = allocatedBytes() - allocatedBytes();
+
+        long before = allocatedBytes();
+        cycle(keys, writer, operations);
+        long allocated = allocatedBytes() - before + overhead;
+
+        assertThat(allocated / operations).isZero();
+    }
+
+    /**
+     * Authorises and captures over a fixed set of keys, settling each authorisation so the tables
+     * and hold timers stay the same size, as a steady stream of short-lived authorisations would.
+     * Each operation is marked first and decided with a merchant and an expiry, as the service
+     * decides a queued request.
+     */
+    private void cycle(TransactionKey[] keys, MerchantResultWriter writer, int operations) {
+        CardBalanceTable cards = partition.getCardBalances();
+        TransactionBalanceTable authorisations = partition.getTransactionBalances();
+        long expiresAt = System.currentTimeMillis() + 60_000L;
+        for (int i = 0; i < operations; i++) {
+            TransactionKey key = keys[i % keys.length];
+            cards.load(cards.findOrAdd(cardId), 100L);
+
+            partition.mark(key);
+            OperationResult result = partition.authorise(key, 100L, "merchant", expiresAt);
+            writer.write(cardId, "merchant", key.getRequestId(), result.getBlocked(), result.getCaptured(), TransactionType.AUTHORISE_TRANSACTION);
+            partition.mark(key);
+            result = partition.capture(key, 100L);
+            writer.write(cardId, "merchant", key.getRequestId(), result.getBlocked(), result.getCaptured(), TransactionType.CAPTURE_TRANSACTION_FUNDS);
+
+            authorisations.remove(authorisations.find(cards.find(cardId), key.getRequestId()));
+        }
+    }
+
+    private void replay(long id, String requestId, TransactionType type, long amount, long expiresAt) {
+        Transaction transaction = new Transaction(new TransactionKey(requestId, cardId), "hotel", amount, type);
+        transaction.setId(id);
+        transaction.setExpiresAt(expiresAt);
+        partition.replay(transaction);
+    }
+
+    private List<Transaction> history(TransactionKey key, long captured) {
+        Transaction authorisation = new Transaction(key, "hotel", captured, TransactionType.AUTHORISE_TRANSACTION);
+        authorisation.setId(1L);
+        Transaction capture = new Transaction(key, "hotel", captured, TransactionType.CAPTURE_TRANSACTION_FUNDS);
+        capture.setId(2L);
+        return Arrays.asList(authorisation, capture);
+    }
+
+    private void load(long amount) {
+        partition.getCardBalances().load(partition.getCardBalances().findOrAdd(cardId), amount);
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+}
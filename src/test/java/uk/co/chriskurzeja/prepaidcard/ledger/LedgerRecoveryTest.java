@@ -0,0 +1,151 @@
+package uk.co.chriskurzeja.prepaidcard.ledger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.transaction.annotation.Transactional;
+import uk.co.chriskurzeja.prepaidcard.PrepaidcardApplication;
+import uk.co.chriskurzeja.prepaidcard.data.jpa.repository.CardRepository;
+import uk.co.chriskurzeja.prepaidcard.data.jpa.repository.TransactionRepository;
+import uk.co.chriskurzeja.prepaidcard.model.Card;
+import uk.co.chriskurzeja.prepaidcard.model.Transaction;
+import uk.co.chriskurzeja.prepaidcard.model.TransactionKey;
+import uk.co.chriskurzeja.prepaidcard.model.TransactionType;
+
+import javax.persistence.EntityManager;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static uk.co.chriskurzeja.prepaidcard.model.TransactionType.AUTHORISE_TRANSACTION;
+import static uk.co.chriskurzeja.prepaidcard.model.TransactionType.CAPTURE_TRANSACTION_FUNDS;
+import static uk.co.chriskurzeja.prepaidcard.model.TransactionType.LOAD_FUNDS;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(classes = PrepaidcardApplication.class)
+@Transactional
+public class LedgerRecoveryTest {
+
+    @Autowired
+    private TransactionRepository transactionRepository;
+    @Autowired
+    private CardRepository cardRepository;
+    @Autowired
+    private EntityManager entityManager;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final LedgerEngine engine = new LedgerEngine(2, 0L);
+    private final LedgerEngine restoredEngine = new LedgerEngine(3, 0L);
+    private final LedgerSnapshotStore disabledStore = new LedgerSnapshotStore(false, "unused");
+    private UUID cardId;
+
+    @Before
+    public void setup() {
+        cardId = cardRepository.save(new Card("recoveredUser")).getId();
+        transactionRepository.save(transaction("load", LOAD_FUNDS, 1000L));
+        transactionRepository.save(transaction("request", AUTHORISE_TRANSACTION, 400L));
+        transactionRepository.save(transaction("request", CAPTURE_TRANSACTION_FUNDS, 100L));
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        engine.shutdown();
+        restoredEngine.shutdown();
+    }
+
+    @Test
+    public void recovery_rebuilds_card_and_transaction_balances_from_the_transaction_log() {
+        recovery(engine, disabledStore).recover();
+
+        assertThat(engine.isRecovered()).isTrue();
+        assertBalances(engine, 600L, 300L);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void transactions_cannot_be_replayed_once_the_ledger_has_recovered() {
+        recovery(engine, disabledStore).recover();
+        engine.replay(transactionRepository.findByTransactionKeyCardId(cardId), null);
+    }
+
+    @Test
+    public void recovery_from_a_snapshot_only_replays_transactions_written_after_it() throws Exception {
+        LedgerSnapshotStore store = new LedgerSnapshotStore(true, folder.getRoot().toPath().resolve("ledger.snapshot").toString());
+        recovery(engine, disabledStore).recover();
+        store.write(engine.snapshot());
+
+        transactionRepository.save(transaction("anotherLoad", LOAD_FUNDS, 500L));
+        recovery(restoredEngine, store).recover();
+
+        assertBalances(restoredEngine, 1100L, 300L);
+    }
+
+    @Test
+    public void a_striped_card_cannot_authorise_more_than_it_holds_after_a_restart() throws InterruptedException {
+        LedgerEngine stripedEngine = new LedgerEngine(4, 0L, cardId.toString(), 2);
+        try {
+            TransactionKey loaded = key("load");
+            TransactionKey elsewhere = keyOnOtherSlice(stripedEngine, loaded);
+            transactionRepository.save(new Transaction(elsewhere, "merchant", 600L, AUTHORISE_TRANSACTION));
+
+            recovery(stripedEngine, disabledStore).recover();
+
+            TransactionKey onLoadedSlice = keyOnOtherSlice(stripedEngine, elsewhere);
+            boolean authorised = stripedEngine.execute(onLoadedSlice, p -> p.authorise(onLoadedSlice, 1L).isAccepted());
+            boolean gathered = stripedEngine.gather(onLoadedSlice, p -> p.authorise(onLoadedSlice, 1L).isAccepted());
+            assertThat(authorised).isFalse();
+            assertThat(gathered).isFalse();
+            assertThat(stripedEngine.getBalance(cardId).get().getAvailable()).isZero();
+        } finally {
+            stripedEngine.shutdown();
+        }
+    }
+
+    private TransactionKey keyOnOtherSlice(LedgerEngine ledger, TransactionKey key) {
+        for (int i = 0; ; i++) {
+            TransactionKey other = key("other-" + i);
+            if (ledger.partitionFor(other) != ledger.partitionFor(key)) {
+                return other;
+            }
+        }
+    }
+
+    private void assertBalances(LedgerEngine ledger, long available, long capturable) {
+        boolean canBlockRemaining = ledger.execute(cardId, p -> p.getCardBalances().canBlock(card(p), available));
+        boolean canBlockMore = ledger.execute(cardId, p -> p.getCardBalances().canBlock(card(p), available + 1));
+        boolean canCaptureRemaining = ledger.execute(cardId, p -> p.getTransactionBalances().canCapture(authorisation(p), capturable));
+        boolean canCaptureMore = ledger.execute(cardId, p -> p.getTransactionBalances().canCapture(authorisation(p), capturable + 1));
+
+        assertThat(canBlockRemaining).isTrue();
+        assertThat(canBlockMore).isFalse();
+        assertThat(canCaptureRemaining).isTrue();
+        assertThat(canCaptureMore).isFalse();
+    }
+
+    private int card(LedgerPartition partition) {
+        return partition.getCardBalances().find(cardId);
+    }
+
+    private int authorisation(LedgerPartition partition) {
+        return partition.getTransactionBalances().find(card(partition), "request");
+    }
+
+    private LedgerRecovery recovery(LedgerEngine ledger, LedgerSnapshotStore store) {
+        return new LedgerRecovery(transactionRepository, ledger, entityManager, store, 2, 2, 0L);
+    }
+
+    private Transaction transaction(String requestId, TransactionType type, long amount) {
+        return new Transaction(key(requestId), "merchant", amount, type);
+    }
+
+    private TransactionKey key(String requestId) {
+        return new TransactionKey(requestId, cardId);
+    }
+
+}
@@ -0,0 +1,107 @@
+package uk.co.chriskurzeja.prepaidcard.ledger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import uk.co.chriskurzeja.prepaidcard.model.CardBalance;
+import uk.co.chriskurzeja.prepaidcard.model.TransactionBalance;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LedgerSnapshotStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void a_written_snapshot_can_be_read_back() {
+        LedgerSnapshotStore store = store(snapshotPath());
+        UUID cardId = UUID.randomUUID();
+
+        CardBalanceTable cards = new CardBalanceTable();
+        int cardOrdinal = cards.findOrAdd(cardId);
+        cards.set(cardOrdinal, new CardBalance(150L, 100L, 20L, 30L));
+        TransactionBalanceTable transactions = new TransactionBalanceTable();
+        transactions.set(transactions.findOrAdd(cardOrdinal, "request"), new TransactionBalance(20L, 30L, 2));
+        transactions.setHold(transactions.findOrAdd(cardOrdinal, "request"), "hotel", 1_500_000_000_000L);
+        transactions.setSettledAt(transactions.findOrAdd(cardOrdinal, "kept"), 1_400_000_000_000L);
+        EvictedAuthorisations evicted = new EvictedAuthorisations();
+        evicted.add(cardOrdinal, "settled");
+
+        store.write(new LedgerSnapshot(Arrays.asList(
+                new PartitionSnapshot(42L, cards, transactions, evicted),
+                new PartitionSnapshot(7L, new CardBalanceTable(), new TransactionBalanceTable(), new EvictedAuthorisations()))));
+
+        LedgerSnapshot snapshot = store.read().get();
+        assertThat(snapshot.getLowWaterMark()).isEqualTo(7L);
+        assertThat(snapshot.getHighWaterMark()).isEqualTo(42L);
+
+        CardBalanceTable readCards = snapshot.getPartitions().get(0).getCardBalances();
+        CardBalance card = readCards.get(readCards.find(cardId));
+        assertThat(card.getLoaded()).isEqualTo(150L);
+        assertThat(card.getBalance()).isEqualTo(100L);
+        assertThat(card.getBlocked()).isEqualTo(20L);
+        assertThat(card.getCaptured()).isEqualTo(30L);
+
+        TransactionBalanceTable readTransactions = snapshot.getPartitions().get(0).getTransactionBalances();
+        TransactionBalance transaction = readTransactions.get(readTransactions.find(readCards.find(cardId), "request"));
+        assertThat(transaction.getBlocked()).isEqualTo(20L);
+        assertThat(transaction.getCaptured()).isEqualTo(30L);
+        int held = readTransactions.find(readCards.find(cardId), "request");
+        assertThat(readTransactions.getMerchant(held)).isEqualTo("hotel");
+        assertThat(readTransactions.getExpiresAt(held)).isEqualTo(1_500_000_000_000L);
+        int kept = readTransactions.find(readCards.find(cardId), "kept");
+        assertThat(readTransactions.getMerchant(kept)).isNull();
+        assertThat(readTransactions.getExpiresAt(kept)).isEqualTo(LedgerPartition.NO_EXPIRY);
+        assertThat(readTransactions.getSettledAt(kept)).isEqualTo(1_400_000_000_000L);
+
+        EvictedAuthorisations readEvicted = snapshot.getPartitions().get(0).getEvictedAuthorisations();
+        assertThat(readEvicted.contains(readCards.find(cardId), "settled")).isTrue();
+        assertThat(readEvicted.contains(readCards.find(cardId), "request")).isFalse();
+    }
+
+    @Test
+    public void the_striped_cards_are_read_back_with_the_snapshot() {
+        LedgerSnapshotStore store = store(snapshotPath());
+        CardStripes stripes = new CardStripes(Collections.singleton(UUID.randomUUID()), 3);
+
+        store.write(new LedgerSnapshot(stripes, Collections.emptyList()));
+
+        assertThat(store.read().get().getStripes()).isEqualTo(stripes);
+    }
+
+    @Test
+    public void reading_a_missing_snapshot_returns_nothing() {
+        assertThat(store(snapshotPath()).read()).isEqualTo(Optional.empty());
+    }
+
+    @Test
+    public void reading_a_corrupt_snapshot_returns_nothing() throws Exception {
+        Path path = snapshotPath();
+        Files.write(path, new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9});
+        assertThat(store(path).read()).isEqualTo(Optional.empty());
+    }
+
+    @Test
+    public void a_disabled_store_never_returns_a_snapshot() {
+        Path path = snapshotPath();
+        store(path).write(new LedgerSnapshot(Collections.emptyList()));
+        assertThat(new LedgerSnapshotStore(false, path.toString()).read()).isEqualTo(Optional.empty());
+    }
+
+    private Path snapshotPath() {
+        return folder.getRoot().toPath().resolve("ledger.snapshot");
+    }
+
+    private LedgerSnapshotStore store(Path path) {
+        return new LedgerSnapshotStore(true, path.toString());
+    }
+
+}
@@ -0,0 +1,94 @@
+package uk.co.chriskurzeja.prepaidcard.ledger;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TransactionBalanceTableTest {
+
+    private final TransactionBalanceTable table = new TransactionBalanceTable(4);
+
+    @Test
+    public void the_same_request_id_on_different_cards_is_a_different_authorisation() {
+        int first = table.findOrAdd(0, "request");
+        int second = table.findOrAdd(1, "request");
+        table.block(first, 100L);
+
+        assertThat(second).isNotEqualTo(first);
+        assertThat(table.getBlocked(second)).isZero();
+        assertThat(table.find(0, new String("request"))).isEqualTo(first);
+    }
+
+    @Test
+    public void operations_are_counted_for_captures_reversals_and_refunds() {
+        int authorisation = table.findOrAdd(0, "request");
+        table.block(authorisation, 100L);
+        table.capture(authorisation, 40L);
+        table.reverse(authorisation, 10L);
+        table.refund(authorisation, 15L);
+
+        assertThat(table.getBlocked(authorisation)).isEqualTo(50L);
+        assertThat(table.getCaptured(authorisation)).isEqualTo(25L);
+        assertThat(table.getOperations(authorisation)).isEqualTo(3);
+        assertThat(table.canCapture(authorisation, 51L)).isFalse();
+        assertThat(table.canRefund(authorisation, 25L)).isTrue();
+    }
+
+    @Test
+    public void authorisations_are_still_found_after_others_are_removed() {
+        Map<String, Long> expected = new HashMap<>();
+        List<String> present = new ArrayList<>();
+        List<String> removed = new ArrayList<>();
+        Random random = new Random(42);
+
+        for (int i = 0; i < 20_000; i++) {
+            if (present.isEmpty() || random.nextInt(3) > 0) {
+                String requestId = "request-" + i;
+                table.block(table.findOrAdd(i % 7, requestId), i);
+                expected.put(requestId, (long) i);
+                present.add(requestId);
+            } else {
+                String requestId = present.remove(random.nextInt(present.size()));
+                table.remove(table.find(Integer.parseInt(requestId.substring(8)) % 7, requestId));
+                expected.remove(requestId);
+                removed.add(requestId);
+            }
+        }
+
+        assertThat(table.size()).isEqualTo(expected.size());
+        expected.forEach((requestId, blocked) -> {
+            int authorisation = table.find(Integer.parseInt(requestId.substring(8)) % 7, requestId);
+            assertThat(authorisation).isNotEqualTo(TransactionBalanceTable.ABSENT);
+            assertThat(table.getBlocked(authorisation)).isEqualTo(blocked);
+        });
+        removed.forEach(requestId ->
+                assertThat(table.find(Integer.parseInt(requestId.substring(8)) % 7, requestId)).isEqualTo(TransactionBalanceTable.ABSENT));
+    }
+
+    @Test
+    public void shrinking_after_a_mass_removal_keeps_the_authorisations_left() {
+        for (int i = 0; i < 10_000; i++) {
+            table.block(table.findOrAdd(0, "request-" + i), i);
+        }
+        for (int i = 10_000 - 1; i >= 100; i--) {
+            table.remove(table.find(0, "request-" + i));
+        }
+
+        table.shrink();
+
+        assertThat(table.size()).isEqualTo(100);
+        for (int i = 0; i < 100; i++) {
+            assertThat(table.getBlocked(table.find(0, "request-" + i))).isEqualTo(i);
+        }
+        assertThat(table.find(0, "request-100")).isEqualTo(TransactionBalanceTable.ABSENT);
+        table.block(table.findOrAdd(0, "request-100"), 100L);
+        assertThat(table.size()).isEqualTo(101);
+    }
+
+}
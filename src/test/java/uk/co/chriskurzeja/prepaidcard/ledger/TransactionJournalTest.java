@@ -0,0 +1,165 @@
+package uk.co.chriskurzeja.prepaidcard.ledger;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import uk.co.chriskurzeja.prepaidcard.model.Transaction;
+import uk.co.chriskurzeja.prepaidcard.model.TransactionKey;
+import uk.co.chriskurzeja.prepaidcard.model.TransactionType;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TransactionJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final AtomicLong ids = new AtomicLong();
+    private final List<TransactionJournal> opened = new ArrayList<>();
+    private final UUID card = UUID.randomUUID();
+
+    @After
+    public void closeJournals() throws Exception {
+        for (TransactionJournal journal : opened) {
+            journal.close();
+        }
+    }
+
+    @Test
+    public void appended_transactions_are_read_back_when_the_journal_is_reopened() throws Exception {
+        Path path = journalPath();
+        TransactionJournal journal = open(path);
+        Transaction capture = transaction(card, "request", TransactionType.CAPTURE_TRANSACTION_FUNDS, 250L);
+        capture.setSequenceNumber(3);
+        journal.append(transaction(card, "request", TransactionType.AUTHORISE_TRANSACTION, 500L));
+        journal.append(capture);
+        assertThat(journal.awaitDurable()).isTrue();
+        journal.close();
+
+        List<Transaction> recovered = recovered(open(path));
+        assertThat(recovered).extracting(Transaction::getId).containsExactly(1L, 2L);
+        assertThat(recovered.get(1).getTransactionKey()).isEqualTo(new TransactionKey("request", card));
+        assertThat(recovered.get(1).getTransactionType()).isEqualTo(TransactionType.CAPTURE_TRANSACTION_FUNDS);
+        assertThat(recovered.get(1).getAmount()).isEqualTo(250L);
+        assertThat(recovered.get(1).getSequenceNumber()).isEqualTo(3);
+        assertThat(recovered.get(1).getMerchant()).isEqualTo("merchant");
+    }
+
+    @Test
+    public void transactions_are_handed_on_in_order_once_they_are_durable() throws Exception {
+        TransactionJournal journal = open(journalPath());
+        List<Long> durable = new ArrayList<>();
+        journal.onDurable(transaction -> durable.add(transaction.getId()));
+        journal.append(transaction(card, "first", TransactionType.LOAD_FUNDS, 100L));
+        journal.append(transaction(card, "second", TransactionType.LOAD_FUNDS, 100L));
+
+        assertThat(journal.awaitDurable()).isTrue();
+        assertThat(durable).containsExactly(1L, 2L);
+    }
+
+    @Test
+    public void an_incomplete_record_at_the_end_of_the_journal_is_discarded() throws Exception {
+        Path path = journalPath();
+        TransactionJournal journal = open(path);
+        journal.append(transaction(card, "first", TransactionType.LOAD_FUNDS, 100L));
+        assertThat(journal.awaitDurable()).isTrue();
+        journal.close();
+
+        long intact = Files.size(path);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.wrap(new byte[] {0, 0, 0, 40, 1, 2, 3}));
+        }
+
+        assertThat(recovered(open(path))).extracting(Transaction::getId).containsExactly(1L);
+        assertThat(Files.size(path)).isEqualTo(intact);
+    }
+
+    @Test
+    public void concurrent_appends_share_a_sync() throws Exception {
+        TransactionJournal journal = open(journalPath());
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Callable<Boolean>> appends = new ArrayList<>();
+            for (int i = 0; i < 400; i++) {
+                String requestId = "request" + i;
+                appends.add(() -> {
+                    journal.append(transaction(card, requestId, TransactionType.LOAD_FUNDS, 1L));
+                    return journal.awaitDurable();
+                });
+            }
+
+            for (Future<Boolean> durable : executor.invokeAll(appends)) {
+                assertThat(durable.get()).isTrue();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertThat(journal.getSyncCount()).isLessThan(400L);
+    }
+
+    @Test
+    public void undrained_transactions_are_found_until_they_are_drained() throws Exception {
+        TransactionJournal journal = open(journalPath());
+        journal.append(transaction(card, "request", TransactionType.AUTHORISE_TRANSACTION, 100L));
+        assertThat(journal.awaitDurable()).isTrue();
+        assertThat(journal.contains(new TransactionKey("request", card), TransactionType.AUTHORISE_TRANSACTION)).isTrue();
+
+        journal.markDrained(journal.takeDurable(10, 1, TimeUnit.SECONDS));
+
+        assertThat(journal.contains(new TransactionKey("request", card), TransactionType.AUTHORISE_TRANSACTION)).isFalse();
+    }
+
+    @Test
+    public void the_journal_is_emptied_once_everything_has_been_drained() throws Exception {
+        Path path = journalPath();
+        TransactionJournal journal = open(path);
+        journal.append(transaction(card, "request", TransactionType.LOAD_FUNDS, 100L));
+        assertThat(journal.awaitDurable()).isTrue();
+        assertThat(Files.size(path)).isPositive();
+
+        journal.markDrained(journal.takeDurable(10, 1, TimeUnit.SECONDS));
+        journal.append(transaction(card, "another", TransactionType.LOAD_FUNDS, 100L));
+        assertThat(journal.awaitDurable()).isTrue();
+        journal.close();
+
+        assertThat(recovered(open(path))).extracting(Transaction::getId).containsExactly(2L);
+    }
+
+    private TransactionJournal open(Path path) throws Exception {
+        TransactionJournal journal = new TransactionJournal(transaction -> ids.incrementAndGet(), true, path);
+        journal.open();
+        opened.add(journal);
+        return journal;
+    }
+
+    private List<Transaction> recovered(TransactionJournal journal) {
+        return journal.getRecovered().stream().map(TransactionJournal.Entry::getTransaction).collect(Collectors.toList());
+    }
+
+    private Path journalPath() {
+        return folder.getRoot().toPath().resolve("ledger.journal");
+    }
+
+    private Transaction transaction(UUID cardId, String requestId, TransactionType type, long amount) {
+        return new Transaction(new TransactionKey(requestId, cardId), "merchant", amount, type);
+    }
+
+}
@@ -0,0 +1,41 @@
+package uk.co.chriskurzeja.prepaidcard.metrics;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LatencyHistogramTest {
+
+    private final LatencyHistogram histogram = new LatencyHistogram();
+
+    @Test
+    public void a_value_is_counted_in_the_first_bucket_whose_bound_is_not_below_it() {
+        histogram.record(1_024L);
+        histogram.record(1_025L);
+        histogram.record(LatencyHistogram.getUpperBoundNanos(5));
+
+        long[] counts = histogram.getCounts();
+        assertThat(counts[0]).isEqualTo(1L);
+        assertThat(counts[1]).isEqualTo(1L);
+        assertThat(counts[5]).isEqualTo(1L);
+    }
+
+    @Test
+    public void values_beyond_the_last_bound_are_counted_in_the_overflow_bucket() {
+        histogram.record(0L);
+        histogram.record(Long.MAX_VALUE);
+
+        long[] counts = histogram.getCounts();
+        assertThat(counts[0]).isEqualTo(1L);
+        assertThat(counts[LatencyHistogram.BOUNDED_BUCKETS]).isEqualTo(1L);
+    }
+
+    @Test
+    public void the_sum_of_recorded_values_is_kept() {
+        histogram.record(2_000L);
+        histogram.record(3_000L);
+
+        assertThat(histogram.getSumNanos()).isEqualTo(5_000L);
+    }
+
+}
@@ -0,0 +1,59 @@
+package uk.co.chriskurzeja.prepaidcard.projection;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+import uk.co.chriskurzeja.prepaidcard.PrepaidcardApplication;
+import uk.co.chriskurzeja.prepaidcard.card.TransactionHistoryService;
+import uk.co.chriskurzeja.prepaidcard.card.TransactionService;
+import uk.co.chriskurzeja.prepaidcard.card.UserService;
+import uk.co.chriskurzeja.prepaidcard.model.Transaction;
+import uk.co.chriskurzeja.prepaidcard.model.TransactionKey;
+import uk.co.chriskurzeja.prepaidcard.model.TransactionType;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * A log that holds a single event, so nearly every event is dropped and has to be read back from
+ * the transaction table. The projections are kept in a store of its own, as they would be in a
+ * separate application.
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(classes = PrepaidcardApplication.class, properties = {"projection.max-pending-events=1", "projection.url="})
+public class LedgerEventOverflowTest {
+
+    @Autowired
+    private LedgerProjector projector;
+    @Autowired
+    private TransactionService transactionService;
+    @Autowired
+    private TransactionHistoryService historyService;
+    @Autowired
+    private UserService userService;
+
+    @Test
+    public void dropped_events_are_read_back_from_the_transaction_table() throws InterruptedException {
+        UUID card = userService.createCardForUser("overflow-" + UUID.randomUUID()).right().get();
+        String merchant = "merchant-" + UUID.randomUUID();
+        assertThat(transactionService.handleTransaction(
+                new Transaction(new TransactionKey("load", card), "user", 1000L, TransactionType.LOAD_FUNDS)).isRight()).isTrue();
+        List<Transaction> sales = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            sales.add(new Transaction(new TransactionKey("sale-" + i, card), merchant, 10L, TransactionType.AUTHORISE_TRANSACTION));
+        }
+        assertThat(transactionService.handleBatch(sales)).allMatch(result -> result.isRight());
+
+        assertThat(projector.awaitProjected(10, TimeUnit.SECONDS)).isTrue();
+        assertThat(projector.getStatus().getDroppedEvents()).isGreaterThan(0L);
+        assertThat(historyService.getTransactions(card).right().get()).hasSize(51);
+        assertThat(historyService.getMerchantSummary(merchant).right().get().getTransactions()).isEqualTo(50L);
+    }
+
+}
@@ -0,0 +1,131 @@
+package uk.co.chriskurzeja.prepaidcard.projection;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+import uk.co.chriskurzeja.prepaidcard.PrepaidcardApplication;
+import uk.co.chriskurzeja.prepaidcard.card.TransactionHistoryService;
+import uk.co.chriskurzeja.prepaidcard.card.TransactionService;
+import uk.co.chriskurzeja.prepaidcard.card.UserService;
+import uk.co.chriskurzeja.prepaidcard.data.jpa.repository.CardRepository;
+import uk.co.chriskurzeja.prepaidcard.data.jpa.repository.TransactionRepository;
+import uk.co.chriskurzeja.prepaidcard.model.MerchantSummary;
+import uk.co.chriskurzeja.prepaidcard.model.ProjectionStatus;
+import uk.co.chriskurzeja.prepaidcard.model.Transaction;
+import uk.co.chriskurzeja.prepaidcard.model.TransactionKey;
+import uk.co.chriskurzeja.prepaidcard.model.TransactionType;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static uk.co.chriskurzeja.prepaidcard.model.TransactionType.AUTHORISE_TRANSACTION;
+import static uk.co.chriskurzeja.prepaidcard.model.TransactionType.CAPTURE_TRANSACTION_FUNDS;
+import static uk.co.chriskurzeja.prepaidcard.model.TransactionType.LOAD_FUNDS;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(classes = PrepaidcardApplication.class)
+public class LedgerProjectorTest {
+
+    @Autowired
+    private LedgerProjector projector;
+    @Autowired
+    private TransactionService transactionService;
+    @Autowired
+    private TransactionHistoryService historyService;
+    @Autowired
+    private UserService userService;
+    @Autowired
+    private CardRepository cardRepository;
+    @Autowired
+    private TransactionRepository transactionRepository;
+
+    @Test
+    public void accepted_transactions_reach_the_histories_and_merchant_summaries() throws InterruptedException {
+        UUID card = userService.createCardForUser("projected-" + UUID.randomUUID()).right().get();
+        String merchant = "merchant-" + UUID.randomUUID();
+        transactionService.handleTransaction(transaction(card, "user", "load", LOAD_FUNDS, 1000L));
+        transactionService.handleTransaction(transaction(card, merchant, "sale", AUTHORISE_TRANSACTION, 600L));
+        transactionService.handleBatch(Arrays.asList(
+                transaction(card, merchant, "sale", CAPTURE_TRANSACTION_FUNDS, 250L),
+                transaction(card, merchant, "declined", AUTHORISE_TRANSACTION, 5000L)));
+
+        assertThat(projector.awaitProjected(10, TimeUnit.SECONDS)).isTrue();
+
+        List<Transaction> history = historyService.getTransactions(card).right().get();
+        assertThat(history).extracting(Transaction::getTransactionType)
+                .containsExactly(LOAD_FUNDS, AUTHORISE_TRANSACTION, CAPTURE_TRANSACTION_FUNDS);
+
+        MerchantSummary summary = historyService.getMerchantSummary(merchant).right().get();
+        assertThat(summary.getTransactions()).isEqualTo(2L);
+        assertThat(summary.getAuthorised()).isEqualTo(600L);
+        assertThat(summary.getCaptured()).isEqualTo(250L);
+    }
+
+    @Test
+    public void the_preconfigured_transactions_reach_the_histories_and_merchant_summaries() throws InterruptedException {
+        UUID alice = cardRepository.getCardByUserIdEquals("alice").getId();
+        assertThat(projector.awaitProjected(10, TimeUnit.SECONDS)).isTrue();
+
+        assertThat(historyService.getTransactions(alice).right().get()).hasSize(transactionRepository.findByTransactionKeyCardId(alice).size());
+        assertThat(historyService.getMerchantSummary("Tesco").isRight()).isTrue();
+    }
+
+    @Test
+    public void the_watermark_stays_at_the_oldest_event_not_yet_projected() throws InterruptedException {
+        assertThat(projector.awaitProjected(10, TimeUnit.SECONDS)).isTrue();
+        long before = System.currentTimeMillis();
+        assertThat(projector.getWatermark()).isGreaterThanOrEqualTo(before);
+
+        ProjectionStatus status = projector.getStatus();
+        assertThat(status.isRebuilding()).isFalse();
+        assertThat(status.getPendingEvents()).isGreaterThanOrEqualTo(0L);
+
+        LedgerEventLog log = new LedgerEventLog();
+        log.publish(transaction(UUID.randomUUID(), "shop", "sale", AUTHORISE_TRANSACTION, 1L));
+        long published = log.peek(1).get(0).getPublishedAt();
+        Thread.sleep(5);
+        assertThat(log.getWatermark()).isEqualTo(published);
+
+        log.remove(1);
+        assertThat(log.getWatermark()).isGreaterThan(published);
+        assertThat(log.getProjectedCount()).isEqualTo(log.getPublishedCount());
+    }
+
+    @Test
+    public void publishing_to_a_full_log_drops_the_event_and_remembers_it_for_reading_back() {
+        LedgerEventLog log = new LedgerEventLog(1);
+        log.publish(transaction(UUID.randomUUID(), "shop", "first", AUTHORISE_TRANSACTION, 1L));
+        long before = System.currentTimeMillis();
+        Transaction dropped = transaction(UUID.randomUUID(), "shop", "second", AUTHORISE_TRANSACTION, 1L);
+        dropped.setId(42L);
+        log.publish(dropped);
+
+        assertThat(log.getPublishedCount()).isEqualTo(1L);
+        assertThat(log.getDroppedCount()).isEqualTo(1L);
+        assertThat(log.hasDropped()).isTrue();
+        assertThat(log.getDroppedFrom()).isEqualTo(42L);
+        assertThat(log.getDroppedThrough()).isEqualTo(42L);
+
+        log.remove(1);
+        assertThat(log.getWatermark()).isBetween(before, System.currentTimeMillis());
+        log.readBackThrough(41L);
+        assertThat(log.hasDropped()).isTrue();
+        log.readBackThrough(42L);
+        assertThat(log.hasDropped()).isFalse();
+    }
+
+    @Test
+    public void the_unknown_merchant_has_no_summary() {
+        assertThat(historyService.getMerchantSummary("merchant-" + UUID.randomUUID()).isLeft()).isTrue();
+    }
+
+    private static Transaction transaction(UUID card, String merchant, String requestId, TransactionType type, long amount) {
+        return new Transaction(new TransactionKey(requestId, card), merchant, amount, type);
+    }
+
+}
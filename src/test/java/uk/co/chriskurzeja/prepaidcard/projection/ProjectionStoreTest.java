@@ -0,0 +1,192 @@
+package uk.co.chriskurzeja.prepaidcard.projection;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import uk.co.chriskurzeja.prepaidcard.model.MerchantSummary;
+import uk.co.chriskurzeja.prepaidcard.model.SpendRollup;
+import uk.co.chriskurzeja.prepaidcard.model.Transaction;
+import uk.co.chriskurzeja.prepaidcard.model.TransactionKey;
+import uk.co.chriskurzeja.prepaidcard.model.TransactionType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static uk.co.chriskurzeja.prepaidcard.model.SpendPeriod.ALL;
+import static uk.co.chriskurzeja.prepaidcard.model.SpendPeriod.DAY;
+import static uk.co.chriskurzeja.prepaidcard.model.SpendPeriod.HOUR;
+import static uk.co.chriskurzeja.prepaidcard.model.TransactionType.AUTHORISE_TRANSACTION;
+import static uk.co.chriskurzeja.prepaidcard.model.TransactionType.CAPTURE_TRANSACTION_FUNDS;
+import static uk.co.chriskurzeja.prepaidcard.model.TransactionType.LOAD_FUNDS;
+import static uk.co.chriskurzeja.prepaidcard.model.TransactionType.REFUND_CAPTURED_FUNDS;
+import static uk.co.chriskurzeja.prepaidcard.model.TransactionType.REVERSE_TRANSACTION;
+
+public class ProjectionStoreTest {
+
+    private final UUID card = UUID.randomUUID();
+    private final UUID otherCard = UUID.randomUUID();
+    private ProjectionStore store;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void setup() {
+        store = new ProjectionStore("", 2);
+        store.createSchema();
+    }
+
+    @After
+    public void tearDown() {
+        store.close();
+    }
+
+    @Test
+    public void histories_are_kept_per_card_in_id_order() {
+        store.project(Arrays.asList(
+                transaction(3L, card, "user", "load", LOAD_FUNDS, 500L),
+                transaction(1L, otherCard, "user", "load", LOAD_FUNDS, 100L),
+                transaction(2L, card, "shop", "sale", AUTHORISE_TRANSACTION, 200L)));
+
+        assertThat(store.findAfter(card, 0L, 10)).extracting(Transaction::getId).containsExactly(2L, 3L);
+        assertThat(store.findAfter(card, 2L, 10)).extracting(Transaction::getId).containsExactly(3L);
+
+        List<String> requestIds = new ArrayList<>();
+        assertThat(store.forEach(card, transaction -> requestIds.add(transaction.getTransactionKey().getRequestId()))).isEqualTo(2L);
+        assertThat(requestIds).containsExactly("sale", "load");
+    }
+
+    @Test
+    public void histories_keep_when_each_operation_was_recorded_and_when_its_hold_expires() {
+        Transaction sale = at(1234L, transaction(1L, card, "shop", "sale", AUTHORISE_TRANSACTION, 200L));
+        sale.setExpiresAt(5678L);
+        store.project(Arrays.asList(sale));
+
+        Transaction projected = store.findAfter(card, 0L, 10).get(0);
+        assertThat(projected.getRecordedAt()).isEqualTo(1234L);
+        assertThat(projected.getExpiresAt()).isEqualTo(5678L);
+    }
+
+    @Test
+    public void merchant_summaries_total_each_kind_of_operation_and_ignore_loads() {
+        store.project(Arrays.asList(
+                transaction(1L, card, "shop", "load", LOAD_FUNDS, 1000L),
+                transaction(2L, card, "shop", "sale", AUTHORISE_TRANSACTION, 400L),
+                transaction(3L, card, "shop", "sale", CAPTURE_TRANSACTION_FUNDS, 300L),
+                transaction(4L, card, "shop", "sale", REVERSE_TRANSACTION, 100L)));
+        store.project(Arrays.asList(
+                transaction(5L, card, "shop", "sale", REFUND_CAPTURED_FUNDS, 50L),
+                transaction(6L, otherCard, "cafe", "coffee", AUTHORISE_TRANSACTION, 250L)));
+
+        MerchantSummary shop = store.findMerchantSummary("shop").get();
+        assertThat(shop.getTransactions()).isEqualTo(4L);
+        assertThat(shop.getAuthorised()).isEqualTo(400L);
+        assertThat(shop.getCaptured()).isEqualTo(300L);
+        assertThat(shop.getReversed()).isEqualTo(100L);
+        assertThat(shop.getRefunded()).isEqualTo(50L);
+        assertThat(store.findMerchantSummary("cafe").get().getAuthorised()).isEqualTo(250L);
+        assertThat(store.findMerchantSummary("nowhere")).isEmpty();
+    }
+
+    @Test
+    public void a_transaction_projected_twice_is_only_counted_once() {
+        Transaction sale = transaction(7L, card, "shop", "sale", AUTHORISE_TRANSACTION, 400L);
+
+        assertThat(store.project(Arrays.asList(sale, sale))).isEqualTo(1);
+        assertThat(store.project(Arrays.asList(sale, transaction(8L, card, "shop", "other", AUTHORISE_TRANSACTION, 10L)))).isEqualTo(1);
+
+        assertThat(store.findAfter(card, 0L, 10)).hasSize(2);
+        assertThat(store.findMerchantSummary("shop").get().getAuthorised()).isEqualTo(410L);
+    }
+
+    @Test
+    public void spend_is_rolled_up_per_card_merchant_and_period() {
+        long day = TimeUnit.DAYS.toMillis(17000);
+        long hour = TimeUnit.HOURS.toMillis(1);
+        store.project(Arrays.asList(
+                at(day + 10L, transaction(1L, card, "user", "load", LOAD_FUNDS, 1000L)),
+                at(day + 10L, transaction(2L, card, "shop", "sale", AUTHORISE_TRANSACTION, 400L)),
+                at(day + hour + 10L, transaction(3L, card, "shop", "sale", CAPTURE_TRANSACTION_FUNDS, 300L)),
+                at(day + hour + 20L, transaction(4L, card, "cafe", "coffee", AUTHORISE_TRANSACTION, 250L)),
+                at(day + hour + 30L, transaction(5L, otherCard, "shop", "other", AUTHORISE_TRANSACTION, 50L))));
+        store.project(Arrays.asList(
+                at(day + TimeUnit.DAYS.toMillis(1), transaction(6L, card, "shop", "sale", REFUND_CAPTURED_FUNDS, 100L))));
+
+        assertThat(store.findCardSpend(card, ALL, 0L)).extracting(SpendRollup::getMerchant).containsExactly("cafe", "shop");
+        SpendRollup shop = store.findCardSpend(card, ALL, 0L).get(1);
+        assertThat(shop.getTransactions()).isEqualTo(3L);
+        assertThat(shop.getAuthorised()).isEqualTo(400L);
+        assertThat(shop.getCaptured()).isEqualTo(300L);
+        assertThat(shop.getRefunded()).isEqualTo(100L);
+
+        assertThat(store.findCardSpend(card, DAY, day)).extracting(SpendRollup::getTransactions).containsExactly(1L, 2L);
+        assertThat(store.findCardSpend(card, HOUR, day)).extracting(SpendRollup::getMerchant).containsExactly("shop");
+        assertThat(store.findCardSpend(card, HOUR, day + hour)).extracting(SpendRollup::getMerchant).containsExactly("cafe", "shop");
+        assertThat(store.findCardSpend(otherCard, ALL, 0L)).extracting(SpendRollup::getAuthorised).containsExactly(50L);
+    }
+
+    @Test
+    public void merchant_volume_is_kept_per_day() {
+        long day = TimeUnit.DAYS.toMillis(17000);
+        long nextDay = day + TimeUnit.DAYS.toMillis(1);
+        store.project(Arrays.asList(
+                at(day + 10L, transaction(1L, card, "shop", "sale", AUTHORISE_TRANSACTION, 400L)),
+                at(day + 20L, transaction(2L, otherCard, "shop", "other", AUTHORISE_TRANSACTION, 50L)),
+                at(nextDay + 10L, transaction(3L, card, "shop", "sale", CAPTURE_TRANSACTION_FUNDS, 300L)),
+                at(nextDay + 20L, transaction(4L, card, "cafe", "coffee", AUTHORISE_TRANSACTION, 250L))));
+
+        List<SpendRollup> volume = store.findMerchantVolume("shop", day, nextDay);
+        assertThat(volume).extracting(SpendRollup::getPeriodStart).containsExactly(day, nextDay);
+        assertThat(volume.get(0).getAuthorised()).isEqualTo(450L);
+        assertThat(volume.get(0).getTransactions()).isEqualTo(2L);
+        assertThat(volume.get(1).getCaptured()).isEqualTo(300L);
+        assertThat(store.findMerchantVolume("shop", nextDay, nextDay)).hasSize(1);
+        assertThat(store.findMerchantVolume("nowhere", day, nextDay)).isEmpty();
+    }
+
+    @Test
+    public void a_file_backed_store_keeps_its_projections_and_where_it_left_off_across_restarts() {
+        String url = "jdbc:h2:file:" + folder.getRoot().toPath().resolve("projection");
+        ProjectionStore first = new ProjectionStore(url, 2);
+        first.createSchema();
+        first.project(Arrays.asList(
+                transaction(3L, card, "user", "load", LOAD_FUNDS, 500L),
+                transaction(5L, card, "shop", "sale", AUTHORISE_TRANSACTION, 200L)));
+        first.close();
+
+        ProjectionStore restarted = new ProjectionStore(url, 2);
+        try {
+            restarted.createSchema();
+            assertThat(restarted.getProjectedThrough()).isEqualTo(5L);
+            assertThat(restarted.findAfter(card, 0L, 10)).hasSize(2);
+
+            restarted.project(Arrays.asList(transaction(4L, card, "shop", "other", AUTHORISE_TRANSACTION, 100L)));
+            assertThat(restarted.getProjectedThrough()).isEqualTo(5L);
+            assertThat(restarted.findMerchantSummary("shop").get().getAuthorised()).isEqualTo(300L);
+
+            restarted.clear();
+            assertThat(restarted.getProjectedThrough()).isZero();
+            assertThat(restarted.findAfter(card, 0L, 10)).isEmpty();
+        } finally {
+            restarted.close();
+        }
+    }
+
+    private static Transaction at(long recordedAt, Transaction transaction) {
+        transaction.setRecordedAt(recordedAt);
+        return transaction;
+    }
+
+    private static Transaction transaction(long id, UUID cardId, String merchant, String requestId, TransactionType type, long amount) {
+        Transaction transaction = new Transaction(new TransactionKey(requestId, cardId), merchant, amount, type);
+        transaction.setId(id);
+        return transaction;
+    }
+
+}
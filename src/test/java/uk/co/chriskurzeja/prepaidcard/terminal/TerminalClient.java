@@ -0,0 +1,120 @@
+package uk.co.chriskurzeja.prepaidcard.terminal;
+
+import uk.co.chriskurzeja.prepaidcard.model.TransactionType;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+/**
+ * A blocking client for the {@link TerminalProtocol}. Requests are buffered until
+ * {@link #flush()}, so any number can be pipelined before reading the responses. Sending and
+ * receiving may happen on different threads, but each on only one at a time.
+ */
+public class TerminalClient implements Closeable {
+
+    public static class Response {
+
+        private final int status;
+        private final int correlationId;
+        private final long blocked;
+        private final long captured;
+        private final String reason;
+
+        private Response(int status, int correlationId, long blocked, long captured, String reason) {
+            this.status = status;
+            this.correlationId = correlationId;
+            this.blocked = blocked;
+            this.captured = captured;
+            this.reason = reason;
+        }
+
+        public boolean isAccepted() {
+            return status == TerminalProtocol.ACCEPTED;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public int getCorrelationId() {
+            return correlationId;
+        }
+
+        public long getBlocked() {
+            return blocked;
+        }
+
+        public long getCaptured() {
+            return captured;
+        }
+
+        public String getReason() {
+            return reason;
+        }
+
+    }
+
+    private final Socket socket;
+    private final OutputStream out;
+    private final DataInputStream in;
+    private final ByteBuffer frame = ByteBuffer.allocate(TerminalProtocol.MAX_REQUEST);
+
+    public TerminalClient(String host, int port) throws IOException {
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+    }
+
+    public void send(TransactionType type, int correlationId, UUID cardId, String merchant, String transactionId, long amountInPence) throws IOException {
+        frame.clear();
+        TerminalProtocol.writeRequest(frame, type, correlationId, cardId, merchant, transactionId, amountInPence);
+        out.write(frame.array(), 0, frame.position());
+    }
+
+    /**
+     * Sends raw bytes, to try out how the server copes with frames it should not accept.
+     */
+    public void sendRaw(byte[] bytes) throws IOException {
+        out.write(bytes);
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Flushes and then tells the server nothing more will be sent, leaving the replies to be read.
+     */
+    public void shutdownOutput() throws IOException {
+        out.flush();
+        socket.shutdownOutput();
+    }
+
+    public Response receive() throws IOException {
+        int length = in.readUnsignedShort();
+        int status = in.readUnsignedByte();
+        int correlationId = in.readInt();
+        if (status == TerminalProtocol.ACCEPTED) {
+            return new Response(status, correlationId, in.readLong(), in.readLong(), null);
+        }
+
+        byte[] reason = new byte[length - (TerminalProtocol.RESPONSE_HEADER - TerminalProtocol.LENGTH_FIELD)];
+        in.readFully(reason);
+        return new Response(status, correlationId, 0L, 0L, new String(reason, StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+}
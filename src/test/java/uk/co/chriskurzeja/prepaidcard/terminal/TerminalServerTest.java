@@ -0,0 +1,169 @@
+package uk.co.chriskurzeja.prepaidcard.terminal;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+import uk.co.chriskurzeja.prepaidcard.PrepaidcardApplication;
+import uk.co.chriskurzeja.prepaidcard.card.TransactionService;
+import uk.co.chriskurzeja.prepaidcard.card.UserService;
+import uk.co.chriskurzeja.prepaidcard.model.Transaction;
+import uk.co.chriskurzeja.prepaidcard.model.TransactionKey;
+import uk.co.chriskurzeja.prepaidcard.model.TransactionType;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static uk.co.chriskurzeja.prepaidcard.model.TransactionType.AUTHORISE_TRANSACTION;
+import static uk.co.chriskurzeja.prepaidcard.model.TransactionType.CAPTURE_TRANSACTION_FUNDS;
+import static uk.co.chriskurzeja.prepaidcard.model.TransactionType.REFUND_CAPTURED_FUNDS;
+import static uk.co.chriskurzeja.prepaidcard.model.TransactionType.REVERSE_TRANSACTION;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(classes = PrepaidcardApplication.class, properties = {"terminal.port=0", "terminal.max-in-flight=8"})
+public class TerminalServerTest {
+
+    @Autowired
+    private TerminalServer server;
+    @Autowired
+    private TransactionService transactionService;
+    @Autowired
+    private UserService userService;
+
+    private UUID cardId;
+    private TerminalClient client;
+
+    @Before
+    public void setup() throws IOException {
+        cardId = userService.createCardForUser("terminal-" + UUID.randomUUID()).right().get();
+        assertThat(transactionService.handleTransaction(new Transaction(
+                new TransactionKey("load-" + UUID.randomUUID(), cardId), "terminal", 1000L, TransactionType.LOAD_FUNDS)).isRight()).isTrue();
+        client = new TerminalClient("localhost", server.getPort());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        client.close();
+    }
+
+    @Test
+    public void pipelined_operations_on_an_authorisation_are_applied_in_order() throws IOException {
+        client.send(AUTHORISE_TRANSACTION, 1, cardId, "shop", "purchase", 600L);
+        client.send(CAPTURE_TRANSACTION_FUNDS, 2, cardId, "shop", "purchase", 400L);
+        client.send(REFUND_CAPTURED_FUNDS, 3, cardId, "shop", "purchase", 100L);
+        client.send(REVERSE_TRANSACTION, 4, cardId, "shop", "purchase", 200L);
+        client.flush();
+
+        Map<Integer, TerminalClient.Response> responses = receive(4);
+        assertAccepted(responses.get(1), 600L, 0L);
+        assertAccepted(responses.get(2), 200L, 400L);
+        assertAccepted(responses.get(3), 200L, 300L);
+        assertAccepted(responses.get(4), 0L, 300L);
+        assertThat(transactionService.getBalance(cardId).right().get().getAvailable()).isEqualTo(700L);
+    }
+
+    @Test
+    public void rejections_carry_the_same_reasons_as_the_rest_api() throws IOException {
+        client.send(AUTHORISE_TRANSACTION, 1, cardId, "shop", "too-much", 5000L);
+        client.send(CAPTURE_TRANSACTION_FUNDS, 2, cardId, "shop", "never-authorised", 100L);
+        client.send(AUTHORISE_TRANSACTION, 3, UUID.randomUUID(), "shop", "unknown-card", 100L);
+        client.flush();
+
+        Map<Integer, TerminalClient.Response> responses = receive(3);
+        assertRejected(responses.get(1), "Insufficient funds on the card");
+        assertRejected(responses.get(2), "Funds were not authorised for transaction");
+        assertRejected(responses.get(3), "Card does not exist");
+    }
+
+    @Test
+    public void more_requests_than_may_be_in_flight_are_all_answered() throws IOException {
+        int requests = 200;
+        for (int i = 0; i < requests; i++) {
+            client.send(AUTHORISE_TRANSACTION, i, cardId, "shop", "small-" + i, 1L);
+        }
+        client.flush();
+
+        Map<Integer, TerminalClient.Response> responses = receive(requests);
+        assertThat(responses).hasSize(requests);
+        assertThat(responses.values()).allMatch(TerminalClient.Response::isAccepted);
+        assertThat(transactionService.getBalance(cardId).right().get().getBlocked()).isEqualTo(requests);
+    }
+
+    @Test
+    public void an_unknown_operation_is_rejected_and_the_connection_stays_usable() throws IOException {
+        byte[] frame = new byte[TerminalProtocol.REQUEST_HEADER + 2];
+        frame[1] = (byte) (frame.length - TerminalProtocol.LENGTH_FIELD);
+        frame[2] = 9;
+        frame[6] = 7;
+        frame[31] = 1;
+        frame[32] = 1;
+        client.sendRaw(frame);
+        client.send(AUTHORISE_TRANSACTION, 8, cardId, "shop", "after-unknown", 10L);
+        client.flush();
+
+        Map<Integer, TerminalClient.Response> responses = receive(2);
+        assertRejected(responses.get(7), "Unknown transaction type 9");
+        assertAccepted(responses.get(8), 10L, 0L);
+    }
+
+    @Test
+    public void requests_turned_away_straight_away_count_towards_those_in_flight() throws IOException {
+        int requests = 2000;
+        for (int i = 0; i < requests; i++) {
+            client.send(AUTHORISE_TRANSACTION, i, cardId, "", "empty-merchant-" + i, 1L);
+        }
+        client.send(AUTHORISE_TRANSACTION, requests, cardId, "shop", "after-rejections", 10L);
+        client.flush();
+
+        Map<Integer, TerminalClient.Response> responses = receive(requests + 1);
+        assertThat(responses).hasSize(requests + 1);
+        assertRejected(responses.get(0), "Merchant and transaction id must not be empty");
+        assertRejected(responses.get(requests - 1), "Merchant and transaction id must not be empty");
+        assertAccepted(responses.get(requests), 10L, 0L);
+    }
+
+    @Test
+    public void a_terminal_that_stops_sending_still_gets_every_reply_before_the_connection_closes() throws IOException {
+        int requests = 100;
+        for (int i = 0; i < requests; i++) {
+            client.send(AUTHORISE_TRANSACTION, i, cardId, "shop", "before-shutdown-" + i, 1L);
+        }
+        client.send(AUTHORISE_TRANSACTION, requests, cardId, "", "rejected-before-shutdown", 1L);
+        client.shutdownOutput();
+
+        Map<Integer, TerminalClient.Response> responses = receive(requests + 1);
+        assertThat(responses).hasSize(requests + 1);
+        assertThat(responses.values()).filteredOn(TerminalClient.Response::isAccepted).hasSize(requests);
+        assertRejected(responses.get(requests), "Merchant and transaction id must not be empty");
+        assertThatThrownBy(client::receive).isInstanceOf(EOFException.class);
+    }
+
+    private Map<Integer, TerminalClient.Response> receive(int count) throws IOException {
+        Map<Integer, TerminalClient.Response> responses = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            TerminalClient.Response response = client.receive();
+            responses.put(response.getCorrelationId(), response);
+        }
+        return responses;
+    }
+
+    private void assertAccepted(TerminalClient.Response response, long blocked, long captured) {
+        assertThat(response.isAccepted()).as(response.getReason()).isTrue();
+        assertThat(response.getBlocked()).isEqualTo(blocked);
+        assertThat(response.getCaptured()).isEqualTo(captured);
+    }
+
+    private void assertRejected(TerminalClient.Response response, String reason) {
+        assertThat(response.getStatus()).isEqualTo(TerminalProtocol.REJECTED);
+        assertThat(response.getReason()).isEqualTo(reason);
+    }
+
+}